@@ -0,0 +1,24 @@
+package bridge
+
+import (
+	"github.com/xjasonlyu/tun2socks/v2/engine"
+	"github.com/xjasonlyu/tun2socks/v2/proxy"
+)
+
+// MaxGroupMembers bounds the members reported by FillGroupStats.
+const MaxGroupMembers = 32
+
+// GroupStatsSlots is the array size needed for a full report.
+const GroupStatsSlots = 1 + 2*MaxGroupMembers
+
+// FillGroupStats writes the state of the active proxy group into dst:
+// the selected member index, then an (rtt in microseconds, consecutive
+// failures) pair per member, with -1 as rtt until a probe succeeds. It
+// returns the number of slots written, 0 when no group is in use.
+func FillGroupStats(dst []int64) int {
+	g, ok := engine.Proxy().(*proxy.Group)
+	if !ok {
+		return 0
+	}
+	return g.Stats(dst)
+}
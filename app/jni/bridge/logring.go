@@ -0,0 +1,273 @@
+package bridge
+
+import (
+	"encoding/binary"
+	"fmt"
+	"sync"
+	"sync/atomic"
+	"time"
+	"unicode/utf8"
+
+	"go.uber.org/zap"
+	"go.uber.org/zap/zapcore"
+
+	"github.com/xjasonlyu/tun2socks/v2/log"
+)
+
+// Levels of the records handed to Java, mirrored by the LOG_* constants
+// of Tun2Socks.java.
+const (
+	LogDebug uint8 = iota
+	LogInfo
+	LogWarn
+	LogError
+	LogSilent
+)
+
+const (
+	// logRingSize is the number of records buffered between drains,
+	// must be a power of two.
+	logRingSize = 1024
+
+	// logMaxLen truncates long lines so a record fits in a fixed slot.
+	logMaxLen = 256
+
+	// logRateLimit is the number of filtered lines accepted per second,
+	// anything above it is counted as dropped.
+	logRateLimit = 500
+
+	// logRecordHeader is the [level u8][length u16] prefix of a record.
+	logRecordHeader = 3
+)
+
+type logSlot struct {
+	seq   atomic.Uint64
+	level uint8
+	n     uint16
+	buf   [logMaxLen]byte
+}
+
+// logRing is a bounded multi-producer, single-consumer queue of
+// fixed-size slots. Producers never block: lines below the level are
+// skipped before being formatted, and when the ring is full or the
+// per-second budget is spent the line is dropped and counted.
+type logRing struct {
+	slots [logRingSize]logSlot
+	tail  atomic.Uint64
+
+	minLevel atomic.Uint32
+	window   atomic.Int64
+	inWindow atomic.Int64
+	dropped  atomic.Int64
+
+	notify chan struct{}
+
+	// consumer state, guarded by drainMu.
+	drainMu  sync.Mutex
+	head     uint64
+	reported int64
+	timer    *time.Timer
+}
+
+var _logRing = newLogRing()
+
+func newLogRing() *logRing {
+	r := &logRing{notify: make(chan struct{}, 1)}
+	for i := range r.slots {
+		r.slots[i].seq.Store(uint64(i))
+	}
+	r.minLevel.Store(uint32(LogWarn))
+	return r
+}
+
+func (r *logRing) enabled(level uint8) bool {
+	return uint32(level) >= r.minLevel.Load()
+}
+
+// allow spends one line of the budget of the current second.
+func (r *logRing) allow() bool {
+	now := time.Now().Unix()
+	if w := r.window.Load(); w != now && r.window.CompareAndSwap(w, now) {
+		r.inWindow.Store(0)
+	}
+	return r.inWindow.Add(1) <= logRateLimit
+}
+
+func (r *logRing) push(level uint8, msg string) {
+	pos := r.tail.Load()
+	for {
+		s := &r.slots[pos&(logRingSize-1)]
+		switch diff := int64(s.seq.Load() - pos); {
+		case diff == 0:
+			if !r.tail.CompareAndSwap(pos, pos+1) {
+				pos = r.tail.Load()
+				continue
+			}
+			s.level = level
+			s.n = uint16(copy(s.buf[:], truncate(msg, logMaxLen)))
+			s.seq.Store(pos + 1)
+
+			select {
+			case r.notify <- struct{}{}:
+			default:
+			}
+			return
+		case diff < 0:
+			// the consumer is a full lap behind.
+			r.dropped.Add(1)
+			return
+		default:
+			pos = r.tail.Load()
+		}
+	}
+}
+
+// drain copies whole records into dst, waiting up to timeout for the
+// first one, and returns the number of bytes written.
+func (r *logRing) drain(dst []byte, timeout time.Duration) int {
+	r.drainMu.Lock()
+	defer r.drainMu.Unlock()
+
+	n := r.copyRecords(dst)
+	if n > 0 || timeout <= 0 {
+		return n
+	}
+
+	if r.timer == nil {
+		r.timer = time.NewTimer(timeout)
+	} else {
+		r.timer.Reset(timeout)
+	}
+	select {
+	case <-r.notify:
+		r.timer.Stop()
+	case <-r.timer.C:
+	}
+	return r.copyRecords(dst)
+}
+
+func (r *logRing) copyRecords(dst []byte) (n int) {
+	if d := r.dropped.Load() - r.reported; d > 0 {
+		msg := fmt.Sprintf("[LOG] %d lines dropped", d)
+		if len(dst) < logRecordHeader+len(msg) {
+			return 0
+		}
+		n += putRecord(dst, LogWarn, msg)
+		r.reported += d
+	}
+
+	for {
+		s := &r.slots[r.head&(logRingSize-1)]
+		if s.seq.Load() != r.head+1 {
+			return n
+		}
+		if len(dst)-n < logRecordHeader+int(s.n) {
+			return n
+		}
+		n += putRecord(dst[n:], s.level, s.buf[:s.n])
+		s.seq.Store(r.head + logRingSize)
+		r.head++
+	}
+}
+
+func putRecord[T string | []byte](dst []byte, level uint8, msg T) int {
+	dst[0] = level
+	binary.BigEndian.PutUint16(dst[1:], uint16(len(msg)))
+	return logRecordHeader + copy(dst[logRecordHeader:], msg)
+}
+
+// truncate cuts s to at most n bytes without splitting a rune.
+func truncate(s string, n int) string {
+	if len(s) <= n {
+		return s
+	}
+	for n > 0 && !utf8.RuneStart(s[n]) {
+		n--
+	}
+	return s[:n]
+}
+
+// Log queues a line subject to the level filter and the rate limit.
+func Log(level uint8, msg string) {
+	if !_logRing.enabled(level) {
+		return
+	}
+	if !_logRing.allow() {
+		_logRing.dropped.Add(1)
+		return
+	}
+	_logRing.push(level, msg)
+}
+
+// Notice queues a lifecycle line that the UI depends on, bypassing the
+// level filter and the rate limit.
+func Notice(msg string) {
+	_logRing.push(LogInfo, msg)
+}
+
+// DrainLogs copies queued records into dst, see logRing.drain.
+func DrainLogs(dst []byte, timeout time.Duration) int {
+	return _logRing.drain(dst, timeout)
+}
+
+// SetLogLevel sets the minimum level of lines passed to Java,
+// LogSilent turns everything except notices off.
+func SetLogLevel(level uint8) {
+	_logRing.minLevel.Store(uint32(min(level, LogSilent)))
+}
+
+// DroppedLogs returns the number of lines dropped so far.
+func DroppedLogs() int64 {
+	return _logRing.dropped.Load()
+}
+
+// InstallLogger routes the engine logs into the ring. The engine sets
+// its own logger while starting, so this is called once it is up.
+func InstallLogger() {
+	log.SetLogger(zap.New(ringCore{}))
+}
+
+// ringCore is a zapcore.Core feeding the log ring. Enabled consults the
+// ring level, so filtered lines are rejected before being formatted.
+type ringCore struct{}
+
+func (ringCore) Enabled(l zapcore.Level) bool {
+	return _logRing.enabled(zapLevel(l))
+}
+
+func (c ringCore) With([]zapcore.Field) zapcore.Core {
+	return c
+}
+
+func (c ringCore) Check(e zapcore.Entry, ce *zapcore.CheckedEntry) *zapcore.CheckedEntry {
+	if c.Enabled(e.Level) {
+		return ce.AddCore(e, c)
+	}
+	return ce
+}
+
+func (ringCore) Write(e zapcore.Entry, _ []zapcore.Field) error {
+	if !_logRing.allow() {
+		_logRing.dropped.Add(1)
+		return nil
+	}
+	_logRing.push(zapLevel(e.Level), e.Message)
+	return nil
+}
+
+func (ringCore) Sync() error {
+	return nil
+}
+
+func zapLevel(l zapcore.Level) uint8 {
+	switch {
+	case l <= zapcore.DebugLevel:
+		return LogDebug
+	case l == zapcore.InfoLevel:
+		return LogInfo
+	case l == zapcore.WarnLevel:
+		return LogWarn
+	default:
+		return LogError
+	}
+}
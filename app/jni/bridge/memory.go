@@ -0,0 +1,37 @@
+package bridge
+
+import (
+	"runtime/debug"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/log"
+)
+
+// Levels passed to ComponentCallbacks2.onTrimMemory that TrimMemory acts
+// on. UI_HIDDEN (20) and BACKGROUND (40) only mean the app left the
+// screen, which a running VPN does not care about.
+const (
+	trimRunningLow      = 10
+	trimRunningCritical = 15
+	trimModerate        = 60
+)
+
+// TrimMemory releases memory after the system reported the given trim
+// level: the cached buffers go first, and under serious pressure the
+// heap is returned to the system right away.
+func TrimMemory(level int) {
+	if level < trimRunningLow || (level > trimRunningCritical && level < trimModerate) {
+		return
+	}
+	buffer.Trim()
+	if level == trimRunningCritical || level >= trimModerate {
+		debug.FreeOSMemory()
+	}
+	log.Infof("[MEMORY] trimmed at level %d, %d bytes of buffers in use", level, buffer.Stats().Bytes)
+}
+
+// SetBufferBudget caps the memory relays may take to grow their buffers,
+// 0 lifts the cap.
+func SetBufferBudget(bytes int64) {
+	buffer.SetBudget(bytes)
+}
@@ -0,0 +1,50 @@
+package bridge
+
+import (
+	"time"
+
+	"github.com/xjasonlyu/tun2socks/v2/engine"
+)
+
+// Readiness states returned by AwaitReady, in the order they are reached.
+const (
+	ReadyNone    = iota // the engine is not running
+	ReadyStarted        // the stack is up, no packet read from the TUN yet
+	ReadyTraffic        // at least one packet came in from the TUN
+)
+
+// AwaitReady waits up to timeout for the first packet from the TUN and
+// returns the state reached. A zero timeout reports the current state
+// without waiting, and a stop ends the wait with ReadyNone.
+func AwaitReady(timeout time.Duration) int {
+	started, traffic, stopped := engine.Ready()
+
+	select {
+	case <-traffic:
+		return ReadyTraffic
+	default:
+	}
+	if timeout > 0 {
+		t := time.NewTimer(timeout)
+		defer t.Stop()
+		select {
+		case <-traffic:
+			return ReadyTraffic
+		case <-stopped:
+			return ReadyNone
+		case <-t.C:
+		}
+	}
+
+	select {
+	case <-stopped:
+		return ReadyNone
+	default:
+	}
+	select {
+	case <-started:
+		return ReadyStarted
+	default:
+		return ReadyNone
+	}
+}
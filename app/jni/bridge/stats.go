@@ -0,0 +1,87 @@
+// Package bridge holds the Android facing helpers used by the JNI exports,
+// keeping tun2socks_android.go a thin layer of cgo entry points.
+package bridge
+
+import (
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/engine"
+	"github.com/xjasonlyu/tun2socks/v2/proxy"
+	"github.com/xjasonlyu/tun2socks/v2/tunnel"
+	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
+)
+
+// Slots filled by FillStats. The order is part of the JNI contract and
+// must stay in sync with the STAT_* constants of Tun2Socks.java, new
+// counters are only ever appended.
+const (
+	StatUploadTotal = iota
+	StatDownloadTotal
+	StatUploadRate
+	StatDownloadRate
+	StatTCPConnections
+	StatUDPConnections
+	StatIPPacketsReceived
+	StatIPPacketsSent
+	StatDroppedPackets
+	StatTCPEstablished
+	StatTCPRetransmits
+	StatTCPFailedAttempts
+	StatUDPPacketsReceived
+	StatUDPPacketsSent
+	StatUDPReceiveErrors
+	StatLogDropped
+	StatDispatchQueued
+	StatDispatchBusy
+	StatDispatchShed
+	StatRelayBufferBytes
+	StatBufferBytes
+	StatWarmHits
+	StatWarmMisses
+	StatWarmSavedMillis
+
+	// StatCount is the number of slots a caller should provide.
+	StatCount
+)
+
+// FillStats writes the current counters into dst and returns the number
+// of slots written, which is min(len(dst), StatCount). It does not
+// allocate, so it is safe to call at a high frequency from a UI poller.
+func FillStats(dst []int64) int {
+	var s [StatCount]int64
+
+	m := statistic.DefaultManager
+	s[StatUploadTotal], s[StatDownloadTotal] = m.Total()
+	s[StatUploadRate], s[StatDownloadRate] = m.Now()
+	s[StatTCPConnections], s[StatUDPConnections] = m.Connections()
+
+	s[StatLogDropped] = DroppedLogs()
+
+	ds := tunnel.T().DispatchStats()
+	s[StatDispatchQueued] = int64(ds.Queued)
+	s[StatDispatchBusy] = int64(ds.Busy)
+	s[StatDispatchShed] = int64(ds.ShedQueueFull + ds.ShedDestination)
+	_, s[StatRelayBufferBytes] = tunnel.RelayMemory()
+	s[StatBufferBytes] = buffer.Stats().Bytes
+	hits, misses, saved := proxy.WarmStats()
+	s[StatWarmHits], s[StatWarmMisses] = int64(hits), int64(misses)
+	s[StatWarmSavedMillis] = saved.Milliseconds()
+
+	if ns, ok := engine.NetStats(); ok {
+		s[StatIPPacketsReceived] = int64(ns.IP.PacketsReceived.Value())
+		s[StatIPPacketsSent] = int64(ns.IP.PacketsSent.Value())
+		s[StatDroppedPackets] = int64(ns.DroppedPackets.Value())
+		s[StatTCPEstablished] = int64(ns.TCP.CurrentEstablished.Value())
+		s[StatTCPRetransmits] = int64(ns.TCP.Retransmits.Value())
+		s[StatTCPFailedAttempts] = int64(ns.TCP.FailedConnectionAttempts.Value())
+		s[StatUDPPacketsReceived] = int64(ns.UDP.PacketsReceived.Value())
+		s[StatUDPPacketsSent] = int64(ns.UDP.PacketsSent.Value())
+		s[StatUDPReceiveErrors] = int64(ns.UDP.ReceiveBufferErrors.Value())
+	}
+	return copy(dst, s[:])
+}
+
+// ResetStats clears the traffic totals so that a new session starts
+// counting from zero. Active connection counts are left untouched.
+func ResetStats() {
+	statistic.DefaultManager.ResetStatistic()
+}
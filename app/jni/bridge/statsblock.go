@@ -0,0 +1,137 @@
+package bridge
+
+import (
+	"sync"
+	"sync/atomic"
+	"time"
+	"unsafe"
+
+	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
+)
+
+// Layout of the stats block shared with the Java UI. Every slot is a
+// native endian int64, mirrored by StatsBlock.java. The header is
+// followed by a ring of (upload, download) pairs, one per second.
+const (
+	blockSlotMagic = iota
+	blockSlotVersion
+	blockSlotSeq
+	blockSlotCapacity
+	blockSlotHead
+	blockSlotUploadTotal
+	blockSlotDownloadTotal
+	blockSlotTCPConnections
+	blockSlotUDPConnections
+	blockSlotUpdated
+
+	// blockHeaderSlots leaves room for future header fields.
+	blockHeaderSlots = 16
+)
+
+const (
+	blockMagic   = 0x54535342 // "TSSB"
+	blockVersion = 1
+
+	blockInterval = time.Second
+)
+
+var (
+	blockMu sync.Mutex
+	block   *statsBlock
+)
+
+type statsBlock struct {
+	slots    []int64
+	capacity int64
+	head     int64
+
+	stop chan struct{}
+	done chan struct{}
+}
+
+// AttachStatsBlock starts publishing the traffic counters into the size
+// bytes of memory at ptr, which the caller must keep alive until
+// DetachStatsBlock returns. Any previously attached block is detached.
+func AttachStatsBlock(ptr unsafe.Pointer, size int) bool {
+	n := size / 8
+	if ptr == nil || uintptr(ptr)%8 != 0 || n < blockHeaderSlots+2 {
+		return false
+	}
+
+	DetachStatsBlock()
+
+	b := &statsBlock{
+		slots:    unsafe.Slice((*int64)(ptr), n),
+		capacity: int64(n-blockHeaderSlots) / 2,
+		stop:     make(chan struct{}),
+		done:     make(chan struct{}),
+	}
+	clear(b.slots)
+	b.slots[blockSlotMagic] = blockMagic
+	b.slots[blockSlotVersion] = blockVersion
+	b.slots[blockSlotCapacity] = b.capacity
+
+	blockMu.Lock()
+	block = b
+	blockMu.Unlock()
+
+	go b.run()
+	return true
+}
+
+// DetachStatsBlock stops publishing. Once it returns the memory handed
+// to AttachStatsBlock is no longer touched.
+func DetachStatsBlock() {
+	blockMu.Lock()
+	b := block
+	block = nil
+	blockMu.Unlock()
+
+	if b != nil {
+		close(b.stop)
+		<-b.done
+	}
+}
+
+func (b *statsBlock) run() {
+	defer close(b.done)
+
+	ticker := time.NewTicker(blockInterval)
+	defer ticker.Stop()
+
+	for {
+		select {
+		case <-b.stop:
+			return
+		case now := <-ticker.C:
+			b.publish(now)
+		}
+	}
+}
+
+// publish writes one sample under a seqlock: the sequence is odd while
+// the block is being updated, readers retry until they see the same
+// even value before and after copying.
+func (b *statsBlock) publish(now time.Time) {
+	m := statistic.DefaultManager
+	up, down := m.Now()
+	upTotal, downTotal := m.Total()
+	tcp, udp := m.Connections()
+
+	s := b.slots
+	atomic.AddInt64(&s[blockSlotSeq], 1)
+
+	i := blockHeaderSlots + 2*(b.head%b.capacity)
+	atomic.StoreInt64(&s[i], up)
+	atomic.StoreInt64(&s[i+1], down)
+	b.head++
+
+	atomic.StoreInt64(&s[blockSlotHead], b.head)
+	atomic.StoreInt64(&s[blockSlotUploadTotal], upTotal)
+	atomic.StoreInt64(&s[blockSlotDownloadTotal], downTotal)
+	atomic.StoreInt64(&s[blockSlotTCPConnections], tcp)
+	atomic.StoreInt64(&s[blockSlotUDPConnections], udp)
+	atomic.StoreInt64(&s[blockSlotUpdated], now.UnixMilli())
+
+	atomic.AddInt64(&s[blockSlotSeq], 1)
+}
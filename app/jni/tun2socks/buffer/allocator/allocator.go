@@ -3,14 +3,39 @@ package allocator
 import (
 	"errors"
 	"math/bits"
+	"sync/atomic"
 
 	"github.com/xjasonlyu/tun2socks/v2/internal/pool"
 )
 
+// Classes is the number of size classes, from 1B to 64K.
+const Classes = 17
+
 // Allocator for incoming frames, optimized to prevent overwriting
 // after zeroing.
+//
+// It keeps count of the buffers it hands out so that their memory can be
+// budgeted: TryGet refuses to go over the budget, and Trim lets the
+// garbage collector reclaim the buffers cached in the pools.
 type Allocator struct {
-	buffers []*pool.Pool[[]byte]
+	buffers [Classes]atomic.Pointer[pool.Pool[[]byte]]
+	inUse   [Classes]atomic.Int64
+
+	budget atomic.Int64
+	denied atomic.Uint64
+}
+
+// Stats is a snapshot of the buffers handed out by an Allocator.
+type Stats struct {
+	// InUse is the number of buffers of each size class, 1<<i bytes,
+	// taken and not yet returned.
+	InUse [Classes]int64
+	// Bytes is the memory held by those buffers.
+	Bytes int64
+	// Budget is the cap enforced by TryGet, 0 when there is none.
+	Budget int64
+	// Denied is the number of TryGet calls refused by the budget.
+	Denied uint64
 }
 
 // New initiates a []byte allocator for frames less than 65536 bytes,
@@ -18,28 +43,51 @@ type Allocator struct {
 // to be no more than 50%.
 func New() *Allocator {
 	alloc := &Allocator{}
-	alloc.buffers = make([]*pool.Pool[[]byte], 17) // 1B -> 64K
 	for k := range alloc.buffers {
-		i := k
-		alloc.buffers[k] = pool.New(func() []byte {
-			return make([]byte, 1<<uint32(i))
-		})
+		alloc.buffers[k].Store(newPool(k))
 	}
 	return alloc
 }
 
+func newPool(k int) *pool.Pool[[]byte] {
+	return pool.New(func() []byte {
+		return make([]byte, 1<<uint32(k))
+	})
+}
+
+// class returns the size class serving size, or -1 if there is none.
+func class(size int) int {
+	if size <= 0 || size > 65536 {
+		return -1
+	}
+	b := int(msb(size))
+	if size == 1<<b {
+		return b
+	}
+	return b + 1
+}
+
 // Get gets a []byte from pool with most appropriate cap.
 func (alloc *Allocator) Get(size int) []byte {
-	if size <= 0 || size > 65536 {
+	b := class(size)
+	if b < 0 {
 		return nil
 	}
+	alloc.inUse[b].Add(1)
+	return alloc.buffers[b].Load().Get()[:size]
+}
 
-	b := msb(size)
-	if size == 1<<b {
-		return alloc.buffers[b].Get()[:size]
+// TryGet is like Get, but returns nil when the buffer would take the
+// memory held by the allocator's buffers over the budget.
+func (alloc *Allocator) TryGet(size int) []byte {
+	if budget := alloc.budget.Load(); budget > 0 {
+		b := class(size)
+		if b >= 0 && alloc.held()+int64(1)<<b > budget {
+			alloc.denied.Add(1)
+			return nil
+		}
 	}
-
-	return alloc.buffers[b+1].Get()[:size]
+	return alloc.Get(size)
 }
 
 // Put returns a []byte to pool for future use,
@@ -50,10 +98,48 @@ func (alloc *Allocator) Put(buf []byte) error {
 		return errors.New("allocator Put() incorrect buffer size")
 	}
 
-	alloc.buffers[b].Put(buf)
+	alloc.inUse[b].Add(-1)
+	alloc.buffers[b].Load().Put(buf)
 	return nil
 }
 
+// SetBudget caps the memory TryGet hands out at budget bytes, 0 lifts
+// the cap. Get is never refused.
+func (alloc *Allocator) SetBudget(budget int64) {
+	alloc.budget.Store(max(budget, 0))
+}
+
+// Trim drops the buffers cached in the pools, so that the next garbage
+// collection can return them to the system. Buffers in use are not
+// affected and go to the new pools once returned.
+func (alloc *Allocator) Trim() {
+	for k := range alloc.buffers {
+		alloc.buffers[k].Store(newPool(k))
+	}
+}
+
+// Stats returns the buffers currently handed out. Buffers that are never
+// returned, or returned without coming from Get, skew the counts; they
+// are clamped at zero.
+func (alloc *Allocator) Stats() Stats {
+	s := Stats{
+		Budget: alloc.budget.Load(),
+		Denied: alloc.denied.Load(),
+	}
+	for k := range alloc.inUse {
+		s.InUse[k] = max(alloc.inUse[k].Load(), 0)
+		s.Bytes += s.InUse[k] << k
+	}
+	return s
+}
+
+func (alloc *Allocator) held() (bytes int64) {
+	for k := range alloc.inUse {
+		bytes += max(alloc.inUse[k].Load(), 0) << k
+	}
+	return bytes
+}
+
 // msb returns the pos of most significant bit.
 func msb(size int) uint16 {
 	return uint16(bits.Len32(uint32(size)) - 1)
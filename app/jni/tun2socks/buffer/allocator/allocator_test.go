@@ -41,6 +41,31 @@ func TestAllocPutThenGet(t *testing.T) {
 	assert.Equal(t, cap(data), cap(newData), "different cap while alloc.Get()")
 }
 
+func TestAllocBudget(t *testing.T) {
+	alloc := New()
+	alloc.SetBudget(8 << 10)
+
+	a := alloc.TryGet(4 << 10)
+	assert.NotNil(t, a)
+	assert.NotNil(t, alloc.TryGet(3<<10), "rounded up to 4K")
+	assert.Nil(t, alloc.TryGet(1), "budget exceeded")
+	assert.NotNil(t, alloc.Get(1), "Get ignores the budget")
+
+	s := alloc.Stats()
+	assert.EqualValues(t, 2, s.InUse[12])
+	assert.EqualValues(t, 1, s.InUse[0])
+	assert.EqualValues(t, 8<<10+1, s.Bytes)
+	assert.EqualValues(t, 1, s.Denied)
+
+	_ = alloc.Put(a)
+	alloc.Trim()
+	assert.NotNil(t, alloc.TryGet(2<<10))
+	assert.EqualValues(t, 1, alloc.Stats().InUse[12])
+
+	alloc.SetBudget(0)
+	assert.NotNil(t, alloc.TryGet(65536))
+}
+
 func BenchmarkMSB(b *testing.B) {
 	for i := 0; i < b.N; i++ {
 		msb(rand.Int())
@@ -14,6 +14,14 @@ const (
 	// size of vmess/shadowsocks is about 16 KiB, so define a buffer
 	// of 20 KiB to reduce the memory of each TCP relay.
 	RelayBufferSize = 20 << 10
+
+	// TCP relays size their buffer to the flow: a relay waiting for data
+	// holds RelayBufferIdleSize bytes, bursts are read with a buffer that
+	// grows from RelayBufferMinSize up to RelayBufferMaxSize. All three
+	// are powers of two so that the allocator wastes nothing.
+	RelayBufferIdleSize = 512
+	RelayBufferMinSize  = 4 << 10
+	RelayBufferMaxSize  = 32 << 10
 )
 
 var _allocator = allocator.New()
@@ -23,7 +31,29 @@ func Get(size int) []byte {
 	return _allocator.Get(size)
 }
 
+// TryGet gets a []byte from default allocator, or nil when that would go
+// over the memory budget.
+func TryGet(size int) []byte {
+	return _allocator.TryGet(size)
+}
+
 // Put returns a []byte to default allocator for future use.
 func Put(buf []byte) error {
 	return _allocator.Put(buf)
 }
+
+// SetBudget caps the memory handed out by TryGet, 0 lifts the cap.
+func SetBudget(bytes int64) {
+	_allocator.SetBudget(bytes)
+}
+
+// Trim lets the garbage collector reclaim the buffers cached in the
+// default allocator.
+func Trim() {
+	_allocator.Trim()
+}
+
+// Stats returns the buffers handed out by default allocator.
+func Stats() allocator.Stats {
+	return _allocator.Stats()
+}
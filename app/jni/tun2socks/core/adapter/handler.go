@@ -1,8 +1,28 @@
 package adapter
 
+import (
+	"net/netip"
+
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+)
+
 // TransportHandler is a TCP/UDP connection handler that implements
 // HandleTCP and HandleUDP methods.
 type TransportHandler interface {
 	HandleTCP(TCPConn)
 	HandleUDP(UDPConn)
 }
+
+// UDPPacketHandler is implemented by transport handlers that take UDP
+// datagrams one at a time, instead of a UDPConn with an endpoint of its
+// own for every flow. The stack then calls HandleUDPPacket in place of
+// HandleUDP, from its dispatch goroutine: it must not block. The handler
+// owns data.
+type UDPPacketHandler interface {
+	HandleUDPPacket(id *stack.TransportEndpointID, data []byte, w UDPWriter)
+}
+
+// UDPWriter sends datagrams into the stack, from any address.
+type UDPWriter interface {
+	WriteUDP(b []byte, from, to netip.AddrPort) error
+}
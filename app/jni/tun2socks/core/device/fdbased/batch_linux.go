@@ -0,0 +1,358 @@
+package fdbased
+
+import (
+	"context"
+	"errors"
+	"os"
+	"sync"
+	"syscall"
+	"unsafe"
+
+	"go.uber.org/atomic"
+	"golang.org/x/sys/unix"
+	"gvisor.dev/gvisor/pkg/buffer"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+	"gvisor.dev/gvisor/pkg/tcpip/link/channel"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+)
+
+const (
+	// Queue length for outbound packets waiting to be written.
+	batchQueueLen = 1 << 10
+
+	// initialBatch is where the batch size starts adapting from.
+	initialBatch = 8
+)
+
+// mmsghdr mirrors struct mmsghdr, whose padding follows the alignment
+// of the platform just like Go's.
+type mmsghdr struct {
+	hdr unix.Msghdr
+	len uint32
+}
+
+// batchEndpoint moves packets between the stack and the fd many at a
+// time: recvmmsg/sendmmsg when the fd is a socket, one packet per
+// read/writev otherwise since a TUN character device has no batched
+// calls. The fd is driven through the runtime poller, so idle queues
+// cost no thread.
+type batchEndpoint struct {
+	*channel.Endpoint
+
+	file   *os.File
+	conn   syscall.RawConn
+	mtu    uint32
+	socket bool
+	limit  int
+	gso    bool
+
+	syscalls atomic.Uint64
+	packets  atomic.Uint64
+
+	once sync.Once
+	wg   sync.WaitGroup
+}
+
+// newBatchEndpoint works on a duplicate of fd, the caller keeps
+// ownership of fd itself.
+func newBatchEndpoint(fd int, mtu uint32, limit int, gso bool) (*batchEndpoint, error) {
+	dup, err := unix.Dup(fd)
+	if err != nil {
+		return nil, err
+	}
+	if err = unix.SetNonblock(dup, true); err != nil {
+		unix.Close(dup)
+		return nil, err
+	}
+	_, sockErr := unix.GetsockoptInt(dup, unix.SOL_SOCKET, unix.SO_TYPE)
+
+	file := os.NewFile(uintptr(dup), "fd")
+	conn, err := file.SyscallConn()
+	if err != nil {
+		file.Close()
+		return nil, err
+	}
+	return &batchEndpoint{
+		Endpoint: channel.New(batchQueueLen, mtu, ""),
+		file:     file,
+		conn:     conn,
+		mtu:      mtu,
+		socket:   sockErr == nil,
+		limit:    limit,
+		gso:      gso,
+	}, nil
+}
+
+// Attach launches the goroutines that read and write the fd.
+func (e *batchEndpoint) Attach(dispatcher stack.NetworkDispatcher) {
+	e.Endpoint.Attach(dispatcher)
+	e.once.Do(func() {
+		ctx, cancel := context.WithCancel(context.Background())
+		e.wg.Add(2)
+		go func() {
+			e.outboundLoop(ctx)
+			e.wg.Done()
+		}()
+		go func() {
+			e.dispatchLoop(cancel)
+			e.wg.Done()
+		}()
+	})
+}
+
+// Close stops both loops and waits for them to return.
+func (e *batchEndpoint) Close() {
+	e.file.Close()
+	e.Endpoint.Close()
+	e.wg.Wait()
+}
+
+// SupportedGSO lets the stack build TCP super-packets when GSO is on,
+// writePackets splits them like a NIC doing TSO.
+func (e *batchEndpoint) SupportedGSO() stack.SupportedGSO {
+	if e.gso {
+		return stack.HostGSOSupported
+	}
+	return stack.GSONotSupported
+}
+
+// GSOMaxSize returns the largest super-packet the stack may build.
+func (e *batchEndpoint) GSOMaxSize() uint32 {
+	if e.gso {
+		return gsoMaxSize
+	}
+	return 0
+}
+
+// Stats returns the read and write syscalls made so far and the packets
+// they carried.
+func (e *batchEndpoint) Stats() (syscalls, packets uint64) {
+	return e.syscalls.Load(), e.packets.Load()
+}
+
+// nextBatch grows the batch while calls come back full and shrinks it
+// when they carry little, so a busy link amortizes each syscall over
+// many packets while an idle one does not keep buffers armed for nothing.
+func nextBatch(batch, n, limit int) int {
+	switch {
+	case n >= batch && batch < limit:
+		return min(batch*2, limit)
+	case n < batch/4 && batch > 1:
+		return batch / 2
+	}
+	return batch
+}
+
+func (e *batchEndpoint) dispatchLoop(cancel context.CancelFunc) {
+	defer cancel()
+
+	mtu := int(e.mtu)
+	bufs := make([]byte, e.limit*mtu)
+	iovecs := make([]unix.Iovec, e.limit)
+	msgs := make([]mmsghdr, e.limit)
+	for i := range msgs {
+		iovecs[i].Base = &bufs[i*mtu]
+		iovecs[i].SetLen(mtu)
+		msgs[i].hdr.Iov = &iovecs[i]
+		msgs[i].hdr.SetIovlen(1)
+	}
+
+	batch := min(initialBatch, e.limit)
+	for {
+		var (
+			n     int
+			errno error
+		)
+		err := e.conn.Read(func(fd uintptr) bool {
+			n, errno = e.read(int(fd), msgs[:batch])
+			return !errors.Is(errno, unix.EAGAIN)
+		})
+		if err != nil {
+			return
+		}
+		if errno != nil {
+			if errors.Is(errno, unix.EINTR) {
+				continue
+			}
+			return
+		}
+		e.packets.Add(uint64(n))
+
+		for i := 0; i < n; i++ {
+			size := int(msgs[i].len)
+			if size == 0 || size > mtu || !e.IsAttached() {
+				continue
+			}
+			e.deliver(bufs[i*mtu : i*mtu+size])
+		}
+		batch = nextBatch(batch, n, e.limit)
+	}
+}
+
+// read fills msgs and returns the number of packets received.
+func (e *batchEndpoint) read(fd int, msgs []mmsghdr) (int, error) {
+	e.syscalls.Inc()
+	if !e.socket {
+		n, err := unix.Read(fd, unsafe.Slice(msgs[0].hdr.Iov.Base, e.mtu))
+		if err != nil {
+			return 0, err
+		}
+		msgs[0].len = uint32(n)
+		return 1, nil
+	}
+	n, _, errno := unix.Syscall6(unix.SYS_RECVMMSG, uintptr(fd),
+		uintptr(unsafe.Pointer(&msgs[0])), uintptr(len(msgs)), unix.MSG_DONTWAIT, 0, 0)
+	if errno != 0 {
+		return 0, errno
+	}
+	return int(n), nil
+}
+
+func (e *batchEndpoint) deliver(data []byte) {
+	// MakeWithData copies, the read buffers are reused right away.
+	pkt := stack.NewPacketBuffer(stack.PacketBufferOptions{
+		Payload: buffer.MakeWithData(data),
+	})
+	switch header.IPVersion(data) {
+	case header.IPv4Version:
+		e.InjectInbound(header.IPv4ProtocolNumber, pkt)
+	case header.IPv6Version:
+		e.InjectInbound(header.IPv6ProtocolNumber, pkt)
+	}
+	pkt.DecRef()
+}
+
+// writeScratch is the memory outboundLoop reuses from batch to batch.
+type writeScratch struct {
+	msgs   []mmsghdr
+	iovecs []unix.Iovec
+	flat   []byte
+	hdrs   []byte
+	segs   []gsoSegment
+}
+
+func (e *batchEndpoint) outboundLoop(ctx context.Context) {
+	pkts := make([]*stack.PacketBuffer, 0, e.limit)
+	w := &writeScratch{}
+
+	batch := min(initialBatch, e.limit)
+	for {
+		pkt := e.ReadContext(ctx)
+		if pkt == nil {
+			return
+		}
+		pkts = append(pkts[:0], pkt)
+		for len(pkts) < batch {
+			if pkt = e.Read(); pkt == nil {
+				break
+			}
+			pkts = append(pkts, pkt)
+		}
+
+		e.writePackets(pkts, w)
+		for _, pkt := range pkts {
+			pkt.DecRef()
+		}
+		batch = nextBatch(batch, len(pkts), e.limit)
+	}
+}
+
+func appendIovec(iovecs []unix.Iovec, b []byte) []unix.Iovec {
+	if len(b) == 0 {
+		return iovecs
+	}
+	iov := unix.Iovec{Base: &b[0]}
+	iov.SetLen(len(b))
+	return append(iovecs, iov)
+}
+
+// writePackets writes pkts straight from their views without flattening
+// them, only super-packets are copied once to be split into segments.
+// Packets the fd does not take are dropped, as a NIC would.
+func (e *batchEndpoint) writePackets(pkts []*stack.PacketBuffer, w *writeScratch) {
+	w.msgs = w.msgs[:0]
+	w.iovecs = w.iovecs[:0]
+	w.flat = w.flat[:0]
+	w.hdrs = w.hdrs[:0]
+
+	// Each message records the offset of its first iovec for now, the
+	// iovecs may still move while growing.
+	addMsg := func(start int) {
+		var m mmsghdr
+		m.hdr.SetIovlen(len(w.iovecs) - start)
+		m.len = uint32(start)
+		w.msgs = append(w.msgs, m)
+	}
+	for _, pkt := range pkts {
+		if pkt.GSOOptions.Type == stack.GSONone {
+			start := len(w.iovecs)
+			for _, s := range pkt.AsSlices() {
+				w.iovecs = appendIovec(w.iovecs, s)
+			}
+			addMsg(start)
+			continue
+		}
+
+		start := len(w.flat)
+		for _, s := range pkt.AsSlices() {
+			w.flat = append(w.flat, s...)
+		}
+		var err error
+		w.hdrs, w.segs, err = splitGSO(w.flat[start:], int(pkt.GSOOptions.L3HdrLen),
+			int(pkt.GSOOptions.MSS), w.hdrs, w.segs[:0])
+		if err != nil {
+			continue
+		}
+		for _, seg := range w.segs {
+			start := len(w.iovecs)
+			w.iovecs = appendIovec(w.iovecs, seg.hdr)
+			w.iovecs = appendIovec(w.iovecs, seg.payload)
+			addMsg(start)
+		}
+	}
+	msgs := w.msgs
+	for i := range msgs {
+		if msgs[i].hdr.Iovlen > 0 {
+			msgs[i].hdr.Iov = &w.iovecs[msgs[i].len]
+		}
+		msgs[i].len = 0
+	}
+
+	sent := 0
+	_ = e.conn.Write(func(fd uintptr) bool {
+		for sent < len(msgs) {
+			n, errno := e.write(int(fd), msgs[sent:])
+			switch {
+			case errors.Is(errno, unix.EAGAIN):
+				return false
+			case errors.Is(errno, unix.EINTR):
+				continue
+			case errno != nil:
+				// Skip the packet the fd refused.
+				n = 1
+			}
+			sent += n
+		}
+		return true
+	})
+	e.packets.Add(uint64(len(msgs)))
+}
+
+// write sends msgs and returns the number of packets written.
+func (e *batchEndpoint) write(fd int, msgs []mmsghdr) (int, error) {
+	e.syscalls.Inc()
+	if !e.socket {
+		_, _, errno := unix.Syscall(unix.SYS_WRITEV, uintptr(fd),
+			uintptr(unsafe.Pointer(msgs[0].hdr.Iov)), uintptr(msgs[0].hdr.Iovlen))
+		if errno != 0 {
+			return 0, errno
+		}
+		return 1, nil
+	}
+	n, _, errno := unix.Syscall6(unix.SYS_SENDMMSG, uintptr(fd),
+		uintptr(unsafe.Pointer(&msgs[0])), uintptr(len(msgs)), unix.MSG_DONTWAIT, 0, 0)
+	if errno != 0 {
+		return 0, errno
+	}
+	return int(n), nil
+}
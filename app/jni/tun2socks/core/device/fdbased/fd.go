@@ -1,3 +1,28 @@
 package fdbased
 
 const Driver = "fd"
+
+// Options tune how packets are read from the descriptors.
+type Options struct {
+	// Queues are the extra descriptors of a multi-queue TUN, read in
+	// parallel with the first one. The device owns and closes them.
+	Queues []int
+
+	// Processors is the number of goroutines the packets of each queue
+	// are fanned out to, steered by flow hash so that a connection always
+	// lands on the same one. 0 spreads GOMAXPROCS over the queues.
+	Processors int
+
+	// Batch turns on batched I/O moving up to that many packets per
+	// syscall, adapting to the load. Only sockets can batch, a TUN fd
+	// still moves one packet per call. It reads a single queue on one
+	// goroutine, so it excludes Queues and Processors.
+	Batch int
+
+	// GSO lets the stack hand over TCP super-packets of up to 32 KiB that
+	// the device splits into MTU sized segments on the way out, so bulk
+	// downloads cross the stack once per super-packet rather than once
+	// per segment. It implies batched I/O.
+	GSO bool
+}
+
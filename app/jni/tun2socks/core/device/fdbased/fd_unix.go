@@ -18,11 +18,12 @@ type FD struct {
 	stack.LinkEndpoint
 
 	fd     int
+	queues []int
 	mtu    uint32
 	closed bool
 }
 
-func Open(name string, mtu uint32, offset int) (device.Device, error) {
+func Open(name string, mtu uint32, offset int, opts Options) (device.Device, error) {
 	fd, err := strconv.Atoi(name)
 	if err != nil {
 		return nil, fmt.Errorf("cannot open fd: %s", name)
@@ -30,7 +31,13 @@ func Open(name string, mtu uint32, offset int) (device.Device, error) {
 	if mtu == 0 {
 		mtu = defaultMTU
 	}
-	return open(fd, mtu, offset)
+	if opts.Processors < 0 {
+		return nil, fmt.Errorf("invalid processors: %d", opts.Processors)
+	}
+	if opts.Batch < 0 {
+		return nil, fmt.Errorf("invalid batch: %d", opts.Batch)
+	}
+	return open(fd, mtu, offset, opts)
 }
 
 func (f *FD) Type() string {
@@ -41,10 +48,40 @@ func (f *FD) Name() string {
 	return strconv.Itoa(f.fd)
 }
 
+// IOStats returns the syscalls and packets of batched I/O, false when
+// the device does not batch.
+func (f *FD) IOStats() (syscalls, packets uint64, ok bool) {
+	if s, ok := f.LinkEndpoint.(interface{ Stats() (uint64, uint64) }); ok {
+		syscalls, packets = s.Stats()
+		return syscalls, packets, true
+	}
+	return 0, 0, false
+}
+
+// SupportedGSO forwards the offload of the endpoint, which embedding
+// the stack.LinkEndpoint interface would hide from the stack.
+func (f *FD) SupportedGSO() stack.SupportedGSO {
+	if g, ok := f.LinkEndpoint.(stack.GSOEndpoint); ok {
+		return g.SupportedGSO()
+	}
+	return stack.GSONotSupported
+}
+
+// GSOMaxSize forwards the offload of the endpoint, see SupportedGSO.
+func (f *FD) GSOMaxSize() uint32 {
+	if g, ok := f.LinkEndpoint.(stack.GSOEndpoint); ok {
+		return g.GSOMaxSize()
+	}
+	return 0
+}
+
 func (f *FD) Close() {
 	if !f.closed {
 		defer f.LinkEndpoint.Close()
 		_ = unix.Close(f.fd)
+		for _, q := range f.queues {
+			_ = unix.Close(q)
+		}
 		f.closed = true
 	}
 }
@@ -6,6 +6,6 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/core/device"
 )
 
-func Open(name string, mtu uint32, offset int) (device.Device, error) {
+func Open(name string, mtu uint32, offset int, opts Options) (device.Device, error) {
 	return nil, errors.ErrUnsupported
 }
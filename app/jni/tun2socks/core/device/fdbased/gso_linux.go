@@ -0,0 +1,86 @@
+package fdbased
+
+import (
+	"errors"
+
+	"gvisor.dev/gvisor/pkg/tcpip/checksum"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+)
+
+// gsoMaxSize bounds the TCP super-packets the stack hands over. It stays
+// well below 64 KiB so that the lengths always fit the IP headers.
+const gsoMaxSize = 1 << 15
+
+// gsoSegment is one wire packet cut from a super-packet. Its headers are
+// private, the payload points into the super-packet.
+type gsoSegment struct {
+	hdr     []byte
+	payload []byte
+}
+
+// splitGSO cuts the TCP super-packet b, whose network headers take l3Len
+// bytes, into segments carrying at most mss bytes of payload each. Every
+// segment gets a copy of the headers appended to hdrs with its lengths,
+// sequence number, flags, IPv4 ID and checksums fixed up, the way a NIC
+// doing TSO would. It returns the grown hdrs and segs.
+func splitGSO(b []byte, l3Len, mss int, hdrs []byte, segs []gsoSegment) ([]byte, []gsoSegment, error) {
+	if l3Len <= 0 || len(b) < l3Len+header.TCPMinimumSize || mss <= 0 {
+		return hdrs, segs, errors.New("malformed gso packet")
+	}
+	v4 := header.IPVersion(b) == header.IPv4Version
+	tcp := header.TCP(b[l3Len:])
+	hdrLen := l3Len + int(tcp.DataOffset())
+	if hdrLen > len(b) {
+		return hdrs, segs, errors.New("malformed gso packet")
+	}
+
+	payload := b[hdrLen:]
+	seq := tcp.SequenceNumber()
+	flags := tcp.Flags()
+	var id uint16
+	if v4 {
+		id = header.IPv4(b).ID()
+	}
+
+	for i := 0; i == 0 || len(payload) > 0; i++ {
+		n := min(mss, len(payload))
+		start := len(hdrs)
+		hdrs = append(hdrs, b[:hdrLen]...)
+		h := hdrs[start:]
+
+		f := flags
+		if n < len(payload) {
+			// FIN and PSH belong to the last segment only.
+			f &^= header.TCPFlagFin | header.TCPFlagPsh
+		}
+		if i > 0 {
+			f &^= header.TCPFlagCwr
+		}
+		th := header.TCP(h[l3Len:])
+		th.SetSequenceNumber(seq + uint32(i*mss))
+		th.SetFlags(uint8(f))
+
+		var xsum uint16
+		if v4 {
+			ip := header.IPv4(h)
+			ip.SetTotalLength(uint16(hdrLen + n))
+			ip.SetID(id + uint16(i))
+			ip.SetChecksum(0)
+			ip.SetChecksum(^ip.CalculateChecksum())
+			xsum = header.PseudoHeaderChecksum(header.TCPProtocolNumber,
+				ip.SourceAddress(), ip.DestinationAddress(), uint16(hdrLen-l3Len+n))
+		} else {
+			ip := header.IPv6(h)
+			ip.SetPayloadLength(uint16(hdrLen - header.IPv6MinimumSize + n))
+			xsum = header.PseudoHeaderChecksum(header.TCPProtocolNumber,
+				ip.SourceAddress(), ip.DestinationAddress(), uint16(hdrLen-l3Len+n))
+		}
+		xsum = checksum.Checksum(payload[:n], xsum)
+		th.SetChecksum(0)
+		th.SetChecksum(^th.CalculateChecksum(xsum))
+
+		segs = append(segs, gsoSegment{hdr: h, payload: payload[:n]})
+		payload = payload[n:]
+	}
+	return hdrs, segs, nil
+}
@@ -0,0 +1,70 @@
+package fdbased
+
+import (
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"gvisor.dev/gvisor/pkg/tcpip"
+	"gvisor.dev/gvisor/pkg/tcpip/checksum"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+)
+
+func TestSplitGSOIPv4(t *testing.T) {
+	src := tcpip.AddrFrom4([4]byte{10, 0, 0, 1})
+	dst := tcpip.AddrFrom4([4]byte{10, 0, 0, 2})
+
+	payload := make([]byte, 2500)
+	for i := range payload {
+		payload[i] = byte(i)
+	}
+	b := make([]byte, header.IPv4MinimumSize+header.TCPMinimumSize+len(payload))
+	header.IPv4(b).Encode(&header.IPv4Fields{
+		TotalLength: uint16(len(b)),
+		ID:          100,
+		TTL:         64,
+		Protocol:    uint8(header.TCPProtocolNumber),
+		SrcAddr:     src,
+		DstAddr:     dst,
+	})
+	header.TCP(b[header.IPv4MinimumSize:]).Encode(&header.TCPFields{
+		SrcPort:    443,
+		DstPort:    40000,
+		SeqNum:     1000,
+		AckNum:     1,
+		DataOffset: header.TCPMinimumSize,
+		Flags:      header.TCPFlagAck | header.TCPFlagPsh | header.TCPFlagFin,
+		WindowSize: 65535,
+	})
+	copy(b[header.IPv4MinimumSize+header.TCPMinimumSize:], payload)
+
+	_, segs, err := splitGSO(b, header.IPv4MinimumSize, 1000, nil, nil)
+	require.NoError(t, err)
+	require.Len(t, segs, 3)
+
+	var joined []byte
+	for i, seg := range segs {
+		ip := header.IPv4(seg.hdr)
+		tcp := header.TCP(seg.hdr[header.IPv4MinimumSize:])
+
+		assert.Equal(t, len(seg.hdr)+len(seg.payload), int(ip.TotalLength()))
+		assert.Equal(t, uint16(100+i), ip.ID())
+		assert.True(t, ip.IsChecksumValid())
+		assert.Equal(t, uint32(1000+i*1000), tcp.SequenceNumber())
+
+		last := i == len(segs)-1
+		assert.Equal(t, last, tcp.Flags().Contains(header.TCPFlagFin))
+		assert.Equal(t, last, tcp.Flags().Contains(header.TCPFlagPsh))
+		assert.True(t, tcp.Flags().Contains(header.TCPFlagAck))
+
+		xsum := checksum.Checksum(seg.payload, 0)
+		assert.True(t, tcp.IsChecksumValid(src, dst, xsum, uint16(len(seg.payload))))
+		joined = append(joined, seg.payload...)
+	}
+	assert.Equal(t, payload, joined)
+}
+
+func TestSplitGSORejectsMalformed(t *testing.T) {
+	_, _, err := splitGSO(make([]byte, 10), header.IPv4MinimumSize, 1000, nil, nil)
+	assert.Error(t, err)
+}
@@ -1,21 +1,52 @@
 package fdbased
 
 import (
+	"errors"
 	"fmt"
+	"runtime"
 
 	"gvisor.dev/gvisor/pkg/tcpip/link/fdbased"
 
 	"github.com/xjasonlyu/tun2socks/v2/core/device"
 )
 
-func open(fd int, mtu uint32, offset int) (device.Device, error) {
-	f := &FD{fd: fd, mtu: mtu}
+// defaultBatch is the batch limit when only GSO asks for the batched
+// endpoint.
+const defaultBatch = 64
+
+func open(fd int, mtu uint32, offset int, opts Options) (device.Device, error) {
+	f := &FD{fd: fd, queues: opts.Queues, mtu: mtu}
+	if opts.Batch > 0 || opts.GSO {
+		if len(opts.Queues) > 0 || opts.Processors > 0 {
+			return nil, errors.New("batch and gso exclude queues and processors")
+		}
+		batch := opts.Batch
+		if batch == 0 {
+			batch = defaultBatch
+		}
+		ep, err := newBatchEndpoint(fd, mtu, batch, opts.GSO)
+		if err != nil {
+			return nil, fmt.Errorf("create endpoint: %w", err)
+		}
+		f.LinkEndpoint = ep
+		return f, nil
+	}
+
+	fds := append([]int{fd}, opts.Queues...)
+
+	// Each descriptor has a single reader, the processors take the
+	// protocol work off it so that bulk transfers use more than one core.
+	processors := opts.Processors
+	if processors == 0 {
+		processors = max(1, runtime.GOMAXPROCS(0)/len(fds))
+	}
 
 	ep, err := fdbased.New(&fdbased.Options{
-		FDs: []int{fd},
+		FDs: fds,
 		MTU: mtu,
 		// TUN only, ignore ethernet header.
-		EthernetHeader: false,
+		EthernetHeader:       false,
+		ProcessorsPerChannel: processors,
 	})
 	if err != nil {
 		return nil, fmt.Errorf("create endpoint: %w", err)
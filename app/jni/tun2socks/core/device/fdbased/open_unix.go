@@ -3,6 +3,7 @@
 package fdbased
 
 import (
+	"errors"
 	"fmt"
 	"os"
 
@@ -10,7 +11,11 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/core/device/iobased"
 )
 
-func open(fd int, mtu uint32, offset int) (device.Device, error) {
+func open(fd int, mtu uint32, offset int, opts Options) (device.Device, error) {
+	if len(opts.Queues) > 0 || opts.Batch > 0 || opts.GSO {
+		return nil, errors.New("multi-queue, batch and gso are only supported on linux")
+	}
+
 	f := &FD{fd: fd, mtu: mtu}
 	ep, err := iobased.New(os.NewFile(uintptr(fd), f.Name()), mtu, offset)
 	if err != nil {
@@ -1,8 +1,17 @@
 package core
 
 import (
+	"fmt"
+	"net/netip"
+
+	"gvisor.dev/gvisor/pkg/buffer"
 	glog "gvisor.dev/gvisor/pkg/log"
+	"gvisor.dev/gvisor/pkg/tcpip"
 	"gvisor.dev/gvisor/pkg/tcpip/adapters/gonet"
+	"gvisor.dev/gvisor/pkg/tcpip/checksum"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv4"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv6"
 	"gvisor.dev/gvisor/pkg/tcpip/stack"
 	"gvisor.dev/gvisor/pkg/tcpip/transport/udp"
 	"gvisor.dev/gvisor/pkg/waiter"
@@ -45,3 +54,102 @@ type udpConn struct {
 func (c *udpConn) ID() *stack.TransportEndpointID {
 	return &c.id
 }
+
+// withUDPPacketHandler hands every valid UDP datagram to handler without
+// creating endpoints, replies are written with a udpWriter.
+func withUDPPacketHandler(nicID tcpip.NICID, handler adapter.UDPPacketHandler) option.Option {
+	return func(s *stack.Stack) error {
+		w := &udpWriter{stack: s, nicID: nicID}
+		s.SetTransportProtocolHandler(udp.ProtocolNumber, func(id stack.TransportEndpointID, pkt *stack.PacketBuffer) bool {
+			hdr := header.UDP(pkt.TransportHeader().Slice())
+			if len(hdr) < header.UDPMinimumSize {
+				return false
+			}
+			// Checksums are verified by endpoints, which are bypassed here.
+			// Refused packets are counted as malformed by the protocol.
+			netHdr := pkt.Network()
+			lengthValid, csumValid := header.UDPValid(
+				hdr,
+				func() uint16 { return pkt.Data().Checksum() },
+				uint16(pkt.Data().Size()),
+				pkt.NetworkProtocolNumber,
+				netHdr.SourceAddress(),
+				netHdr.DestinationAddress(),
+				pkt.RXChecksumValidated)
+			if !lengthValid || !csumValid {
+				return false
+			}
+
+			handler.HandleUDPPacket(&id, pkt.Data().AsRange().ToSlice(), w)
+			return true
+		})
+		return nil
+	}
+}
+
+// udpWriter builds UDP packets and routes them out of the NIC, the way a
+// UDP endpoint would. Spoofing lets them come from any address.
+type udpWriter struct {
+	stack *stack.Stack
+	nicID tcpip.NICID
+}
+
+func (w *udpWriter) WriteUDP(b []byte, from, to netip.AddrPort) error {
+	from = netip.AddrPortFrom(from.Addr().Unmap(), from.Port())
+	to = netip.AddrPortFrom(to.Addr().Unmap(), to.Port())
+	netProto := ipv4.ProtocolNumber
+	if to.Addr().Is6() {
+		netProto = ipv6.ProtocolNumber
+	}
+	if from.Addr().Is6() != to.Addr().Is6() {
+		return fmt.Errorf("address family mismatch: %s -> %s", from, to)
+	}
+
+	r, err := w.stack.FindRoute(w.nicID,
+		tcpip.AddrFromSlice(from.Addr().AsSlice()),
+		tcpip.AddrFromSlice(to.Addr().AsSlice()),
+		netProto, false)
+	if err != nil {
+		return fmt.Errorf("find route %s -> %s: %s", from, to, err)
+	}
+	defer r.Release()
+
+	pkt := stack.NewPacketBuffer(stack.PacketBufferOptions{
+		ReserveHeaderBytes: header.UDPMinimumSize + int(r.MaxHeaderLength()),
+		Payload:            buffer.MakeWithData(b),
+	})
+	defer pkt.DecRef()
+
+	length := uint16(header.UDPMinimumSize + len(b))
+	hdr := header.UDP(pkt.TransportHeader().Push(header.UDPMinimumSize))
+	hdr.Encode(&header.UDPFields{
+		SrcPort: from.Port(),
+		DstPort: to.Port(),
+		Length:  length,
+	})
+	xsum := r.PseudoHeaderChecksum(udp.ProtocolNumber, length)
+	xsum = checksum.Combine(xsum, checksum.Checksum(b, 0))
+	// A zero checksum means none for UDP, send its other encoding.
+	if xsum = ^hdr.CalculateChecksum(xsum); xsum == 0 {
+		xsum = 0xffff
+	}
+	hdr.SetChecksum(xsum)
+	pkt.TransportProtocolNumber = udp.ProtocolNumber
+
+	if err := r.WritePacket(stack.NetworkHeaderParams{
+		Protocol: udp.ProtocolNumber,
+		TTL:      r.DefaultTTL(),
+	}, pkt); err != nil {
+		return fmt.Errorf("write packet: %s", err)
+	}
+	return nil
+}
+
+// withUDP prefers handing datagrams over one at a time when the handler
+// supports it.
+func withUDP(nicID tcpip.NICID, handler adapter.TransportHandler) option.Option {
+	if ph, ok := handler.(adapter.UDPPacketHandler); ok {
+		return withUDPPacketHandler(nicID, ph)
+	}
+	return withUDPHandler(handler.HandleUDP)
+}
@@ -2,6 +2,8 @@ package engine
 
 import (
 	"errors"
+	"fmt"
+	"io"
 	"net"
 	"net/netip"
 	"os/exec"
@@ -13,6 +15,7 @@ import (
 	"gvisor.dev/gvisor/pkg/tcpip"
 	"gvisor.dev/gvisor/pkg/tcpip/stack"
 
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
 	"github.com/xjasonlyu/tun2socks/v2/core"
 	"github.com/xjasonlyu/tun2socks/v2/core/device"
 	"github.com/xjasonlyu/tun2socks/v2/core/option"
@@ -20,6 +23,7 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/log"
 	"github.com/xjasonlyu/tun2socks/v2/proxy"
 	"github.com/xjasonlyu/tun2socks/v2/restapi"
+	"github.com/xjasonlyu/tun2socks/v2/rule"
 	"github.com/xjasonlyu/tun2socks/v2/tunnel"
 )
 
@@ -37,6 +41,21 @@ var (
 
 	// _defaultStack holds the default stack for the engine.
 	_defaultStack *stack.Stack
+
+	// _defaultRules holds the routing rules, nil to send everything
+	// through the default proxy.
+	_defaultRules *rule.Set
+
+	// _ruleProxies holds the proxies named by the rules, which are built
+	// along with the dialer and closed with the next one.
+	_ruleProxies []proxy.Proxy
+
+	// _defaultHosts maps the addresses seen in DNS answers back to their
+	// domain for the rules, it outlives restarts and rule reloads.
+	_defaultHosts = rule.NewHostCache(8192)
+
+	// _run signals how far the engine got since it last started.
+	_run = newRun()
 )
 
 // Start starts the default engine up.
@@ -60,6 +79,105 @@ func Insert(k *Key) {
 	_engineMu.Unlock()
 }
 
+// SwapProxy replaces the proxy of the running engine without touching
+// the device or the stack. New connections use it right away, while the
+// established ones keep their upstream until they close.
+func SwapProxy(s string) error {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+
+	if _defaultStack == nil {
+		return errors.New("engine not started")
+	}
+
+	p, err := parseProxies(s, _defaultKey.ProxyProbe, _defaultKey.ProxyCheckInterval)
+	if err != nil {
+		return err
+	}
+	// Nothing changes until the dialer with p is built.
+	d, named, err := newDialer(p, _defaultRules)
+	if err != nil {
+		closeProxy(p)
+		return err
+	}
+	old := _defaultProxy
+	_defaultProxy = p
+	setDialer(d, named)
+	// Connections through old may be sharing its sessions, they are
+	// left to finish rather than cut.
+	proxy.Retire(old)
+
+	log.Infof("[ENGINE] switch proxy to %s://%s", p.Proto(), p.Addr())
+	return nil
+}
+
+// SwapRules loads the routing rules at path into the running engine, an
+// empty path turns routing off. New connections follow the new rules.
+func SwapRules(path string) error {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+
+	if _defaultStack == nil {
+		return errors.New("engine not started")
+	}
+
+	var rules *rule.Set
+	if path != "" {
+		var err error
+		if rules, err = parseRules(path); err != nil {
+			return err
+		}
+	}
+	d, named, err := newDialer(_defaultProxy, rules)
+	if err != nil {
+		return err
+	}
+	_defaultRules = rules
+	setDialer(d, named)
+
+	if rules == nil {
+		log.Infof("[ENGINE] routing rules cleared")
+	} else {
+		log.Infof("[ENGINE] load %d rules from %s", rules.Len(), path)
+	}
+	return nil
+}
+
+// Proxy returns the proxy of the running engine, nil if not started.
+func Proxy() proxy.Proxy {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+	return _defaultProxy
+}
+
+// NetStats returns the counters of the default stack, the boolean
+// reports whether the stack has been initialized.
+func NetStats() (tcpip.Stats, bool) {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+
+	// default stack is not initialized.
+	if _defaultStack == nil {
+		return tcpip.Stats{}, false
+	}
+	return _defaultStack.Stats(), true
+}
+
+// DeviceIOStats returns the syscalls made by the device and the packets
+// they moved, false if the device does not count them.
+func DeviceIOStats() (syscalls, packets uint64, ok bool) {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+
+	s, ok := _defaultDevice.(interface {
+		IOStats() (uint64, uint64, bool)
+	})
+	if !ok {
+		return 0, 0, false
+	}
+	return s.IOStats()
+}
+
 func start() error {
 	_engineMu.Lock()
 	defer _engineMu.Unlock()
@@ -77,6 +195,11 @@ func start() error {
 			return err
 		}
 	}
+	select {
+	case <-_run.started:
+	default:
+		close(_run.started)
+	}
 	return nil
 }
 
@@ -89,10 +212,72 @@ func stop() (err error) {
 		_defaultStack.Close()
 		_defaultStack.Wait()
 	}
+	// The tunnel outlives the stack, its UDP sessions do not.
+	tunnel.T().CloseSessions()
+	closeProxy(_defaultProxy)
+	closeProxies(_ruleProxies)
+	_ruleProxies = nil
+	close(_run.stopped)
+	_run = newRun()
 	_engineMu.Unlock()
 	return nil
 }
 
+// newDialer returns the dialer routing through rules to p, or straight
+// to p when there are none, along with the proxies the rules name. The
+// tunnel is left to the caller to switch, with setDialer.
+func newDialer(p proxy.Proxy, rules *rule.Set) (_ proxy.Dialer, built []proxy.Proxy, err error) {
+	if rules == nil {
+		return p, nil, nil
+	}
+	defer func() {
+		if err != nil {
+			closeProxies(built)
+		}
+	}()
+
+	named := map[string]proxy.Dialer{rule.TargetProxy: p}
+	for name, u := range rules.Proxies() {
+		rp, err := parseProxy(u)
+		if err != nil {
+			return nil, built, fmt.Errorf("rule proxy %s: %w", name, err)
+		}
+		named[name] = rp
+		built = append(built, rp)
+	}
+
+	router, err := rule.NewRouter(rules, named, _defaultHosts)
+	if err != nil {
+		return nil, built, err
+	}
+	return router, built, nil
+}
+
+// setDialer switches the tunnel to d, then retires the rule proxies of
+// the previous dialer in favor of those of d. It must be called with
+// _engineMu held.
+func setDialer(d proxy.Dialer, ruleProxies []proxy.Proxy) {
+	tunnel.T().SetDialer(d)
+	for _, p := range _ruleProxies {
+		proxy.Retire(p)
+	}
+	_ruleProxies = ruleProxies
+}
+
+// closeProxy releases the background resources of p, if it has any.
+func closeProxy(p proxy.Proxy) {
+	if c, ok := p.(io.Closer); ok {
+		c.Close()
+	}
+}
+
+// closeProxies closes every proxy of proxies.
+func closeProxies(proxies []proxy.Proxy) {
+	for _, p := range proxies {
+		closeProxy(p)
+	}
+}
+
 func execCommand(cmd string) error {
 	parts, err := shlex.Split(cmd)
 	if err != nil {
@@ -133,6 +318,31 @@ func general(k *Key) error {
 		}
 		tunnel.T().SetUDPTimeout(k.UDPTimeout)
 	}
+
+	if k.UDPNAT != "" {
+		mode, err := tunnel.ParseNATMode(k.UDPNAT)
+		if err != nil {
+			return err
+		}
+		tunnel.T().SetUDPNAT(mode)
+	}
+
+	if k.DispatchWorkers < 0 || k.DispatchQueue < 0 || k.DispatchPerDestination < 0 {
+		return errors.New("invalid dispatch value")
+	}
+	tunnel.T().SetDispatch(tunnel.DispatchConfig{
+		Workers:        k.DispatchWorkers,
+		QueueLen:       k.DispatchQueue,
+		PerDestination: k.DispatchPerDestination,
+	})
+
+	if k.BufferBudget != "" {
+		size, err := units.RAMInBytes(k.BufferBudget)
+		if err != nil {
+			return err
+		}
+		buffer.SetBudget(size)
+	}
 	return nil
 }
 
@@ -145,14 +355,8 @@ func restAPI(k *Key) error {
 		host, token := u.Host, u.User.String()
 
 		restapi.SetStatsFunc(func() tcpip.Stats {
-			_engineMu.Lock()
-			defer _engineMu.Unlock()
-
-			// default stack is not initialized.
-			if _defaultStack == nil {
-				return tcpip.Stats{}
-			}
-			return _defaultStack.Stats()
+			stats, _ := NetStats()
+			return stats
 		})
 
 		go func() {
@@ -190,10 +394,22 @@ func netstack(k *Key) (err error) {
 		}
 	}()
 
-	if _defaultProxy, err = parseProxy(k.Proxy); err != nil {
+	if _defaultProxy, err = parseProxies(k.Proxy, k.ProxyProbe, k.ProxyCheckInterval); err != nil {
+		return err
+	}
+
+	_defaultRules = nil
+	if k.Rules != "" {
+		if _defaultRules, err = parseRules(k.Rules); err != nil {
+			return err
+		}
+		log.Infof("[ENGINE] load %d rules from %s", _defaultRules.Len(), k.Rules)
+	}
+	d, named, err := newDialer(_defaultProxy, _defaultRules)
+	if err != nil {
 		return err
 	}
-	tunnel.T().SetDialer(_defaultProxy)
+	setDialer(d, named)
 
 	if _defaultDevice, err = parseDevice(k.Device, uint32(k.MTU)); err != nil {
 		return err
@@ -226,7 +442,7 @@ func netstack(k *Key) (err error) {
 	}
 
 	if _defaultStack, err = core.CreateStack(&core.Config{
-		LinkEndpoint:     _defaultDevice,
+		LinkEndpoint:     &readyEndpoint{Device: _defaultDevice, run: _run},
 		TransportHandler: tunnel.T(),
 		MulticastGroups:  multicastGroups,
 		Options:          opts,
@@ -0,0 +1,121 @@
+package engine
+
+import (
+	"context"
+	"io"
+	"net"
+	"net/netip"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"go.uber.org/atomic"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/mux"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+	"github.com/xjasonlyu/tun2socks/v2/tunnel"
+)
+
+// muxStandIn is a SOCKS5 server terminating the mux itself, whose
+// streams echo. It counts the sessions still open.
+func muxStandIn(t *testing.T) (string, *atomic.Int64) {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	t.Cleanup(func() { l.Close() })
+
+	sessions := atomic.NewInt64(0)
+	go func() {
+		for {
+			c, err := l.Accept()
+			if err != nil {
+				return
+			}
+			go serveMux(c, sessions)
+		}
+	}()
+	return l.Addr().String(), sessions
+}
+
+func serveMux(c net.Conn, sessions *atomic.Int64) {
+	defer c.Close()
+	buf := make([]byte, socks5.MaxAddrLen)
+	// VER, NMETHODS, METHODS
+	if _, err := io.ReadFull(c, buf[:3]); err != nil {
+		return
+	}
+	c.Write([]byte{socks5.Version, socks5.MethodNoAuth})
+	// VER, CMD, RSV, ADDR of the mux pseudo destination
+	if _, err := io.ReadFull(c, buf[:3]); err != nil {
+		return
+	}
+	if _, err := socks5.ReadAddr(c, buf); err != nil {
+		return
+	}
+	c.Write([]byte{socks5.Version, 0, 0, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0})
+	if err := mux.ReadPreface(c); err != nil {
+		return
+	}
+
+	sessions.Inc()
+	defer sessions.Dec()
+	s := mux.Server(c, mux.DefaultConfig())
+	for {
+		st, err := s.AcceptStream()
+		if err != nil {
+			return
+		}
+		go func() {
+			defer st.Close()
+			if _, err := mux.ReadRequest(st); err != nil {
+				return
+			}
+			mux.WriteStatus(st, nil)
+			io.Copy(st, st)
+		}()
+	}
+}
+
+func roundTrip(t *testing.T, c net.Conn, msg string) {
+	_, err := c.Write([]byte(msg))
+	require.NoError(t, err)
+	got := make([]byte, len(msg))
+	_, err = io.ReadFull(c, got)
+	require.NoError(t, err)
+	assert.Equal(t, msg, string(got))
+}
+
+func TestSwapProxyKeepsStreams(t *testing.T) {
+	addr, sessions := muxStandIn(t)
+
+	_engineMu.Lock()
+	_defaultKey, _defaultStack = &Key{}, stack.New(stack.Options{})
+	_engineMu.Unlock()
+	t.Cleanup(func() {
+		_engineMu.Lock()
+		closeProxy(_defaultProxy)
+		_defaultKey, _defaultStack, _defaultProxy = nil, nil, nil
+		_engineMu.Unlock()
+	})
+
+	u := "socks5://" + addr + "?mux=1"
+	require.NoError(t, SwapProxy(u))
+	c, err := tunnel.T().Dialer().DialContext(context.Background(), &M.Metadata{
+		Network: M.TCP,
+		DstIP:   netip.MustParseAddr("1.2.3.4"),
+		DstPort: 80,
+	})
+	require.NoError(t, err)
+	defer c.Close()
+	roundTrip(t, c, "before")
+
+	// The stream outlives the proxy it was opened through, whose session
+	// goes away with it.
+	require.NoError(t, SwapProxy(u))
+	roundTrip(t, c, "after")
+	assert.EqualValues(t, 1, sessions.Load())
+	c.Close()
+	assert.Eventually(t, func() bool { return sessions.Load() == 0 }, time.Second, 10*time.Millisecond)
+}
@@ -6,6 +6,9 @@ type Key struct {
 	MTU                      int           `yaml:"mtu"`
 	Mark                     int           `yaml:"fwmark"`
 	Proxy                    string        `yaml:"proxy"`
+	ProxyProbe               string        `yaml:"proxy-probe"`
+	ProxyCheckInterval       time.Duration `yaml:"proxy-check-interval"`
+	Rules                    string        `yaml:"rules"`
 	RestAPI                  string        `yaml:"restapi"`
 	Device                   string        `yaml:"device"`
 	LogLevel                 string        `yaml:"loglevel"`
@@ -17,4 +20,9 @@ type Key struct {
 	TUNPreUp                 string        `yaml:"tun-pre-up"`
 	TUNPostUp                string        `yaml:"tun-post-up"`
 	UDPTimeout               time.Duration `yaml:"udp-timeout"`
+	UDPNAT                   string        `yaml:"udp-nat"`
+	DispatchWorkers          int           `yaml:"dispatch-workers"`
+	DispatchQueue            int           `yaml:"dispatch-queue"`
+	DispatchPerDestination   int           `yaml:"dispatch-per-destination"`
+	BufferBudget             string        `yaml:"buffer-budget"`
 }
@@ -2,12 +2,16 @@ package engine
 
 import (
 	"encoding/base64"
+	"errors"
 	"fmt"
 	"net"
 	"net/netip"
 	"net/url"
+	"os"
 	"runtime"
+	"strconv"
 	"strings"
+	"time"
 
 	"github.com/gorilla/schema"
 
@@ -16,6 +20,7 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/core/device/tun"
 	"github.com/xjasonlyu/tun2socks/v2/proxy"
 	"github.com/xjasonlyu/tun2socks/v2/proxy/proto"
+	"github.com/xjasonlyu/tun2socks/v2/rule"
 )
 
 func parseRestAPI(s string) (*url.URL, error) {
@@ -74,7 +79,73 @@ func parseFD(u *url.URL, mtu uint32) (device.Device, error) {
 	if runtime.GOOS == "ios" {
 		offset = 4
 	}
-	return fdbased.Open(u.Host, mtu, offset)
+
+	// fd://3?queues=4,5&processors=2 reads a multi-queue TUN through
+	// descriptors 3, 4 and 5 with two processors each, fd://3?batch=64
+	// moves up to 64 packets per syscall instead and fd://3?gso=true
+	// adds TCP segmentation offload to that.
+	var opts fdbased.Options
+	if s := u.Query().Get("queues"); s != "" {
+		for _, q := range strings.Split(s, ",") {
+			fd, err := strconv.Atoi(strings.TrimSpace(q))
+			if err != nil || fd < 0 {
+				return nil, fmt.Errorf("invalid queue fd: %s", q)
+			}
+			opts.Queues = append(opts.Queues, fd)
+		}
+	}
+	if s := u.Query().Get("processors"); s != "" {
+		n, err := strconv.Atoi(s)
+		if err != nil {
+			return nil, fmt.Errorf("invalid processors: %s", s)
+		}
+		opts.Processors = n
+	}
+	if s := u.Query().Get("batch"); s != "" {
+		n, err := strconv.Atoi(s)
+		if err != nil {
+			return nil, fmt.Errorf("invalid batch: %s", s)
+		}
+		opts.Batch = n
+	}
+	if s := u.Query().Get("gso"); s != "" {
+		v, err := strconv.ParseBool(s)
+		if err != nil {
+			return nil, fmt.Errorf("invalid gso: %s", s)
+		}
+		opts.GSO = v
+	}
+	return fdbased.Open(u.Host, mtu, offset, opts)
+}
+
+// parseProxies parses one proxy, or a group of them when s holds several
+// URLs separated by newlines or commas.
+func parseProxies(s, probe string, interval time.Duration) (proxy.Proxy, error) {
+	urls := strings.FieldsFunc(s, func(r rune) bool {
+		return r == '\n' || r == ',' || r == '\r'
+	})
+	if len(urls) == 0 {
+		return nil, errors.New("empty proxy")
+	}
+	if len(urls) == 1 {
+		return parseProxy(strings.TrimSpace(urls[0]))
+	}
+
+	proxies := make([]proxy.Proxy, 0, len(urls))
+	for _, u := range urls {
+		p, err := parseProxy(strings.TrimSpace(u))
+		if err != nil {
+			closeProxies(proxies)
+			return nil, fmt.Errorf("parse %s: %w", u, err)
+		}
+		proxies = append(proxies, p)
+	}
+	g, err := proxy.NewGroup(proxies, probe, interval)
+	if err != nil {
+		closeProxies(proxies)
+		return nil, err
+	}
+	return g, nil
 }
 
 func parseProxy(s string) (proxy.Proxy, error) {
@@ -95,13 +166,13 @@ func parseProxy(s string) (proxy.Proxy, error) {
 	case proto.Reject.String():
 		return proxy.NewReject(), nil
 	case proto.HTTP.String():
-		return parseHTTP(u)
+		return parseOptions(u, parseHTTP)
 	case proto.Socks4.String():
 		return parseSocks4(u)
 	case proto.Socks5.String():
-		return parseSocks5(u)
+		return parseOptions(u, parseSocks5)
 	case proto.Shadowsocks.String():
-		return parseShadowsocks(u)
+		return parseOptions(u, parseShadowsocks)
 	case proto.Relay.String():
 		return parseRelay(u)
 	default:
@@ -109,6 +180,45 @@ func parseProxy(s string) (proxy.Proxy, error) {
 	}
 }
 
+// parseOptions applies the connection options of the URL to the proxy
+// parsed by parse. socks5://host:port?warm=4 keeps up to 4 connections
+// to the server ready, socks5://host:port?mux=4&mux-streams=16 carries
+// the TCP connections over up to 4 sessions of 16 streams each.
+func parseOptions(u *url.URL, parse func(*url.URL) (proxy.Proxy, error)) (proxy.Proxy, error) {
+	p, err := parse(u)
+	if err != nil {
+		return nil, err
+	}
+	if s := u.Query().Get("warm"); s != "" {
+		n, err := strconv.Atoi(s)
+		if err != nil || n < 0 {
+			return nil, fmt.Errorf("invalid warm: %s", s)
+		}
+		if w, ok := p.(proxy.Warmer); ok {
+			w.SetWarm(n)
+		}
+	}
+
+	s := u.Query().Get("mux")
+	if s == "" {
+		return p, nil
+	}
+	sessions, err := strconv.Atoi(s)
+	if err != nil || sessions < 0 {
+		return nil, fmt.Errorf("invalid mux: %s", s)
+	}
+	if sessions == 0 {
+		return p, nil
+	}
+	var streams int
+	if s := u.Query().Get("mux-streams"); s != "" {
+		if streams, err = strconv.Atoi(s); err != nil || streams <= 0 {
+			return nil, fmt.Errorf("invalid mux-streams: %s", s)
+		}
+	}
+	return proxy.NewMux(p, sessions, streams)
+}
+
 func parseHTTP(u *url.URL) (proxy.Proxy, error) {
 	address, username := u.Host, u.User.Username()
 	password, _ := u.User.Password()
@@ -128,7 +238,21 @@ func parseSocks5(u *url.URL) (proxy.Proxy, error) {
 	if address == "" {
 		address = u.Path
 	}
-	return proxy.NewSocks5(address, username, password)
+	p, err := proxy.NewSocks5(address, username, password)
+	if err != nil {
+		return nil, err
+	}
+
+	// socks5://host:port?udp-over-tcp=true carries UDP over streams to
+	// the server, for networks that drop UDP to it.
+	if s := u.Query().Get("udp-over-tcp"); s != "" {
+		on, err := strconv.ParseBool(s)
+		if err != nil {
+			return nil, fmt.Errorf("invalid udp-over-tcp: %s", s)
+		}
+		p.SetUDPOverTCP(on)
+	}
+	return p, nil
 }
 
 func parseShadowsocks(u *url.URL) (proxy.Proxy, error) {
@@ -153,7 +277,9 @@ func parseShadowsocks(u *url.URL) (proxy.Proxy, error) {
 	}
 
 	rawQuery, _ := url.QueryUnescape(u.RawQuery)
-	for _, s := range strings.Split(rawQuery, ";") {
+	// Plugin options are separated by semicolons, other parameters like
+	// mux by ampersands.
+	for _, s := range strings.FieldsFunc(rawQuery, func(r rune) bool { return r == ';' || r == '&' }) {
 		data := strings.SplitN(s, "=", 2)
 		if len(data) != 2 {
 			continue
@@ -186,6 +312,20 @@ func parseRelay(u *url.URL) (proxy.Proxy, error) {
 	return proxy.NewRelay(address, username, password, opts.NoDelay)
 }
 
+func parseRules(path string) (*rule.Set, error) {
+	f, err := os.Open(path)
+	if err != nil {
+		return nil, err
+	}
+	defer f.Close()
+
+	rules, err := rule.Parse(f)
+	if err != nil {
+		return nil, fmt.Errorf("parse rules %s: %w", path, err)
+	}
+	return rules, nil
+}
+
 func parseMulticastGroups(s string) (multicastGroups []netip.Addr, _ error) {
 	for _, ip := range strings.Split(s, ",") {
 		if ip = strings.TrimSpace(ip); ip == "" {
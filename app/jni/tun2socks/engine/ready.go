@@ -0,0 +1,78 @@
+package engine
+
+import (
+	"sync"
+
+	"gvisor.dev/gvisor/pkg/tcpip"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+
+	"github.com/xjasonlyu/tun2socks/v2/core/device"
+)
+
+// run signals the stages the engine reaches from a start to the stop
+// that ends it.
+type run struct {
+	started chan struct{} // closed once the stack is up
+	traffic chan struct{} // closed by the first packet from the device
+	stopped chan struct{} // closed by stop
+
+	once sync.Once // closes traffic
+}
+
+func newRun() *run {
+	return &run{
+		started: make(chan struct{}),
+		traffic: make(chan struct{}),
+		stopped: make(chan struct{}),
+	}
+}
+
+// Ready returns the channels of the current run, closed once the stack
+// is up, once it has got its first packet from the device, and once the
+// engine stops. Those of a run that never starts are never closed.
+func Ready() (started, traffic, stopped <-chan struct{}) {
+	_engineMu.Lock()
+	defer _engineMu.Unlock()
+	return _run.started, _run.traffic, _run.stopped
+}
+
+// readyEndpoint hands the stack the packets of the device, closing the
+// traffic channel of its run with the first one.
+type readyEndpoint struct {
+	device.Device
+	run *run
+}
+
+func (e *readyEndpoint) Attach(dispatcher stack.NetworkDispatcher) {
+	if dispatcher != nil {
+		dispatcher = &readyDispatcher{NetworkDispatcher: dispatcher, run: e.run}
+	}
+	e.Device.Attach(dispatcher)
+}
+
+// SupportedGSO forwards the offload of the device, which embedding the
+// device.Device interface would hide from the stack.
+func (e *readyEndpoint) SupportedGSO() stack.SupportedGSO {
+	if g, ok := e.Device.(stack.GSOEndpoint); ok {
+		return g.SupportedGSO()
+	}
+	return stack.GSONotSupported
+}
+
+// GSOMaxSize forwards the offload of the device, see SupportedGSO.
+func (e *readyEndpoint) GSOMaxSize() uint32 {
+	if g, ok := e.Device.(stack.GSOEndpoint); ok {
+		return g.GSOMaxSize()
+	}
+	return 0
+}
+
+type readyDispatcher struct {
+	stack.NetworkDispatcher
+	run *run
+}
+
+func (d *readyDispatcher) DeliverNetworkPacket(protocol tcpip.NetworkProtocolNumber, pkt *stack.PacketBuffer) {
+	d.run.once.Do(func() { close(d.run.traffic) })
+	d.NetworkDispatcher.DeliverNetworkPacket(protocol, pkt)
+}
@@ -0,0 +1,410 @@
+//go:build linux
+
+// Package bench measures the whole tunnel path on loopback: a client
+// netstack writes IP packets into one end of a socketpair, the engine
+// reads them from the other end through the fd device the apps use,
+// and forwards the connections through an in-process stand-in proxy.
+// Nothing in it needs a TUN device or root, so it runs on any Linux box.
+package bench
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"net"
+	"runtime"
+	"slices"
+	"sync"
+	"time"
+
+	"golang.org/x/sys/unix"
+	"gvisor.dev/gvisor/pkg/tcpip"
+	"gvisor.dev/gvisor/pkg/tcpip/adapters/gonet"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+	"gvisor.dev/gvisor/pkg/tcpip/link/fdbased"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv4"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv6"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+	"gvisor.dev/gvisor/pkg/tcpip/transport/tcp"
+
+	"github.com/xjasonlyu/tun2socks/v2/core/option"
+	"github.com/xjasonlyu/tun2socks/v2/engine"
+	"github.com/xjasonlyu/tun2socks/v2/internal/standin"
+)
+
+const (
+	clientNIC = 1
+
+	// socketBufferSize of both ends of the socketpair, large enough to
+	// absorb a burst without dropping packets.
+	socketBufferSize = 4 << 20
+)
+
+var (
+	// The client lives in 198.18.0.0/15, the range reserved for
+	// benchmarks by RFC 2544. Connections go to targetAddr and the
+	// stand-in proxy maps them back onto loopback.
+	clientAddr = tcpip.AddrFrom4([4]byte{198, 18, 0, 2})
+	targetAddr = tcpip.AddrFrom4([4]byte{198, 18, 0, 1})
+)
+
+// Proxy selects the stand-in proxy between the engine and the targets.
+type Proxy string
+
+const (
+	SOCKS5      Proxy = "socks5"
+	Shadowsocks Proxy = "ss"
+)
+
+// Config of a Harness.
+type Config struct {
+	// Proxy protocol spoken by the engine, SOCKS5 by default.
+	Proxy Proxy
+
+	// Method is the Shadowsocks cipher, AES-256-GCM by default.
+	Method string
+
+	// MTU of the link between client and engine, 1500 by default.
+	MTU uint32
+
+	// Processors of the engine device, 0 for its default.
+	Processors int
+
+	// Batch turns on batched I/O in the engine device, see fdbased.Options.
+	Batch int
+
+	// GSO turns on TCP segmentation offload in the engine device.
+	GSO bool
+}
+
+// Harness is a running engine wired to a client stack and stand-in
+// servers. Only one can exist at a time since the engine is global.
+type Harness struct {
+	client *stack.Stack
+	fd     int
+
+	proxy  *standin.Server
+	source *standin.Server
+	echo   *standin.Server
+}
+
+// New starts the stand-ins, the engine and the client stack.
+func New(cfg Config) (_ *Harness, err error) {
+	if cfg.Proxy == "" {
+		cfg.Proxy = SOCKS5
+	}
+	if cfg.Method == "" {
+		cfg.Method = "AES-256-GCM"
+	}
+	if cfg.MTU == 0 {
+		cfg.MTU = 1500
+	}
+
+	h := &Harness{fd: -1}
+	defer func() {
+		if err != nil {
+			h.Close()
+		}
+	}()
+
+	if h.source, err = standin.Source(); err != nil {
+		return nil, err
+	}
+	if h.echo, err = standin.Echo(); err != nil {
+		return nil, err
+	}
+
+	var proxyURL string
+	switch cfg.Proxy {
+	case SOCKS5:
+		h.proxy, err = standin.SOCKS5("127.0.0.1")
+		if err == nil {
+			proxyURL = fmt.Sprintf("socks5://%s", h.proxy.Addr())
+		}
+	case Shadowsocks:
+		h.proxy, err = standin.Shadowsocks("127.0.0.1", cfg.Method, "bench")
+		if err == nil {
+			proxyURL = fmt.Sprintf("ss://%s:bench@%s", cfg.Method, h.proxy.Addr())
+		}
+	default:
+		err = fmt.Errorf("unsupported proxy: %s", cfg.Proxy)
+	}
+	if err != nil {
+		return nil, err
+	}
+
+	fds, err := unix.Socketpair(unix.AF_UNIX, unix.SOCK_SEQPACKET, 0)
+	if err != nil {
+		return nil, fmt.Errorf("socketpair: %w", err)
+	}
+	for _, fd := range fds {
+		_ = unix.SetsockoptInt(fd, unix.SOL_SOCKET, unix.SO_SNDBUF, socketBufferSize)
+		_ = unix.SetsockoptInt(fd, unix.SOL_SOCKET, unix.SO_RCVBUF, socketBufferSize)
+	}
+	h.fd = fds[1]
+
+	// The engine owns fds[0] from here on and closes it in Stop.
+	engine.Insert(&engine.Key{
+		MTU:      int(cfg.MTU),
+		Proxy:    proxyURL,
+		Device:   deviceURL(fds[0], cfg),
+		LogLevel: "silent",
+	})
+	engine.Start()
+
+	if h.client, err = newClient(h.fd, cfg.MTU); err != nil {
+		return nil, err
+	}
+	return h, nil
+}
+
+func deviceURL(fd int, cfg Config) string {
+	if cfg.Batch > 0 || cfg.GSO {
+		return fmt.Sprintf("fd://%d?batch=%d&gso=%t", fd, cfg.Batch, cfg.GSO)
+	}
+	return fmt.Sprintf("fd://%d?processors=%d", fd, cfg.Processors)
+}
+
+// newClient creates the netstack playing the apps behind the TUN.
+func newClient(fd int, mtu uint32) (*stack.Stack, error) {
+	s := stack.New(stack.Options{
+		NetworkProtocols:   []stack.NetworkProtocolFactory{ipv4.NewProtocol, ipv6.NewProtocol},
+		TransportProtocols: []stack.TransportProtocolFactory{tcp.NewProtocol},
+	})
+	if err := option.WithDefault()(s); err != nil {
+		return nil, err
+	}
+
+	ep, err := fdbased.New(&fdbased.Options{
+		FDs: []int{fd},
+		MTU: mtu,
+	})
+	if err != nil {
+		return nil, fmt.Errorf("create endpoint: %w", err)
+	}
+	if err := s.CreateNIC(clientNIC, ep); err != nil {
+		return nil, fmt.Errorf("create nic: %s", err)
+	}
+	if err := s.AddProtocolAddress(clientNIC, tcpip.ProtocolAddress{
+		Protocol:          ipv4.ProtocolNumber,
+		AddressWithPrefix: tcpip.AddressWithPrefix{Address: clientAddr, PrefixLen: 15},
+	}, stack.AddressProperties{}); err != nil {
+		return nil, fmt.Errorf("add address: %s", err)
+	}
+	s.SetRouteTable([]tcpip.Route{{Destination: header.IPv4EmptySubnet, NIC: clientNIC}})
+	return s, nil
+}
+
+// Close stops the engine and everything New started.
+func (h *Harness) Close() {
+	if h.client != nil {
+		engine.Stop()
+		h.client.Close()
+		h.client.Wait()
+	}
+	if h.fd >= 0 {
+		_ = unix.Close(h.fd)
+	}
+	for _, s := range []*standin.Server{h.proxy, h.source, h.echo} {
+		if s != nil {
+			s.Close()
+		}
+	}
+}
+
+func (h *Harness) dial(ctx context.Context, port uint16) (net.Conn, error) {
+	return gonet.DialContextTCP(ctx, h.client, tcpip.FullAddress{
+		NIC:  clientNIC,
+		Addr: targetAddr,
+		Port: port,
+	}, ipv4.ProtocolNumber)
+}
+
+// Latency is the distribution of connection setup times.
+type Latency struct {
+	P50, P99 time.Duration
+}
+
+// Setup opens n connections one after another and measures the time
+// from the first SYN until a byte made the round trip to the target,
+// which covers the proxy handshake the engine does on the way.
+func (h *Harness) Setup(n int) (Latency, error) {
+	if n <= 0 {
+		return Latency{}, errors.New("no connections")
+	}
+	samples := make([]time.Duration, 0, n)
+	b := []byte{0}
+	for i := 0; i < n; i++ {
+		ctx, cancel := context.WithTimeout(context.Background(), 5*time.Second)
+		start := time.Now()
+		c, err := h.dial(ctx, h.echo.Port())
+		cancel()
+		if err != nil {
+			return Latency{}, fmt.Errorf("dial: %w", err)
+		}
+		_ = c.SetDeadline(time.Now().Add(5 * time.Second))
+		if _, err = c.Write(b); err == nil {
+			_, err = c.Read(b)
+		}
+		samples = append(samples, time.Since(start))
+		c.Close()
+		if err != nil {
+			return Latency{}, fmt.Errorf("round trip: %w", err)
+		}
+	}
+	slices.Sort(samples)
+	return Latency{
+		P50: samples[len(samples)*50/100],
+		P99: samples[len(samples)*99/100],
+	}, nil
+}
+
+// Throughput is what crossed the tunnel during a measurement.
+type Throughput struct {
+	Bytes   uint64
+	Packets uint64
+	Mallocs uint64
+	Elapsed time.Duration
+
+	// Syscalls made by the device and the packets they moved, both 0
+	// unless it batches.
+	Syscalls      uint64
+	DevicePackets uint64
+}
+
+// Add accumulates another measurement into t.
+func (t *Throughput) Add(o Throughput) {
+	t.Bytes += o.Bytes
+	t.Packets += o.Packets
+	t.Mallocs += o.Mallocs
+	t.Elapsed += o.Elapsed
+	t.Syscalls += o.Syscalls
+	t.DevicePackets += o.DevicePackets
+}
+
+// Gbps is the payload rate in gigabits per second.
+func (t Throughput) Gbps() float64 {
+	return float64(t.Bytes) * 8 / t.Elapsed.Seconds() / 1e9
+}
+
+// PacketsPerSecond counts the packets handled by the engine stack in
+// both directions.
+func (t Throughput) PacketsPerSecond() float64 {
+	return float64(t.Packets) / t.Elapsed.Seconds()
+}
+
+// AllocsPerMB is the number of heap allocations per megabyte of
+// payload. It is counted over the whole process, client stack and
+// stand-ins included, so compare it between runs rather than reading
+// it as the engine cost alone.
+func (t Throughput) AllocsPerMB() float64 {
+	return float64(t.Mallocs) / (float64(t.Bytes) / (1 << 20))
+}
+
+// SyscallsPerPacket is the device cost per packet, 0 when the device
+// does not count its syscalls.
+func (t Throughput) SyscallsPerPacket() float64 {
+	if t.DevicePackets == 0 {
+		return 0
+	}
+	return float64(t.Syscalls) / float64(t.DevicePackets)
+}
+
+// Download runs streams parallel connections that read from the source
+// stand-in for d.
+func (h *Harness) Download(streams int, d time.Duration) (Throughput, error) {
+	if streams <= 0 {
+		return Throughput{}, errors.New("no streams")
+	}
+	ctx, cancel := context.WithTimeout(context.Background(), 5*time.Second)
+	defer cancel()
+
+	conns := make([]net.Conn, 0, streams)
+	defer func() {
+		for _, c := range conns {
+			c.Close()
+		}
+	}()
+	for i := 0; i < streams; i++ {
+		c, err := h.dial(ctx, h.source.Port())
+		if err != nil {
+			return Throughput{}, fmt.Errorf("dial: %w", err)
+		}
+		conns = append(conns, c)
+	}
+
+	var (
+		mu    sync.Mutex
+		total uint64
+		first error
+		wg    sync.WaitGroup
+	)
+	var before, after runtime.MemStats
+	packets := enginePackets()
+	syscalls, devicePackets, _ := engine.DeviceIOStats()
+	runtime.ReadMemStats(&before)
+	start := time.Now()
+	deadline := start.Add(d)
+
+	for _, c := range conns {
+		wg.Add(1)
+		go func(c net.Conn) {
+			defer wg.Done()
+			_ = c.SetReadDeadline(deadline)
+			buf := make([]byte, 32<<10)
+			var n uint64
+			var err error
+			for {
+				var m int
+				if m, err = c.Read(buf); err != nil {
+					break
+				}
+				n += uint64(m)
+			}
+			mu.Lock()
+			total += n
+			if !isTimeout(err) && first == nil {
+				first = err
+			}
+			mu.Unlock()
+		}(c)
+	}
+	wg.Wait()
+
+	elapsed := time.Since(start)
+	runtime.ReadMemStats(&after)
+	syscallsAfter, devicePacketsAfter, _ := engine.DeviceIOStats()
+	if first != nil {
+		return Throughput{}, fmt.Errorf("read: %w", first)
+	}
+	return Throughput{
+		Bytes:   total,
+		Packets: enginePackets() - packets,
+		Mallocs: after.Mallocs - before.Mallocs,
+		Elapsed: elapsed,
+
+		Syscalls:      syscallsAfter - syscalls,
+		DevicePackets: devicePacketsAfter - devicePackets,
+	}, nil
+}
+
+func isTimeout(err error) bool {
+	var ne net.Error
+	return errors.As(err, &ne) && ne.Timeout()
+}
+
+// enginePackets returns the IP packets the engine stack has received
+// and sent so far.
+func enginePackets() uint64 {
+	stats, ok := engine.NetStats()
+	if !ok {
+		return 0
+	}
+	return stats.IP.PacketsReceived.Value() + stats.IP.PacketsSent.Value()
+}
+
+// String formats the results the way the benchmark reports them.
+func (t Throughput) String() string {
+	return fmt.Sprintf("%.2f Gbps, %.0f packets/s, %.1f allocs/MB",
+		t.Gbps(), t.PacketsPerSecond(), t.AllocsPerMB())
+}
@@ -0,0 +1,70 @@
+//go:build linux
+
+package bench
+
+import (
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+)
+
+const (
+	benchStreams = 4
+	benchWindow  = time.Second
+	benchDials   = 200
+)
+
+// Each iteration is one download window, so -benchtime=5x averages five
+// of them. The custom metrics are the ones to compare, ns/op only
+// reflects the window.
+func benchmarkTunnel(b *testing.B, cfg Config) {
+	h, err := New(cfg)
+	require.NoError(b, err)
+	defer h.Close()
+
+	lat, err := h.Setup(benchDials)
+	require.NoError(b, err)
+
+	var total Throughput
+	b.ResetTimer()
+	for i := 0; i < b.N; i++ {
+		t, err := h.Download(benchStreams, benchWindow)
+		require.NoError(b, err)
+		total.Add(t)
+	}
+	b.StopTimer()
+
+	b.ReportMetric(total.Gbps(), "Gbps")
+	b.ReportMetric(total.PacketsPerSecond(), "packets/s")
+	b.ReportMetric(total.AllocsPerMB(), "allocs/MB")
+	if cfg.Batch > 0 || cfg.GSO {
+		b.ReportMetric(total.SyscallsPerPacket(), "syscalls/packet")
+	}
+	b.ReportMetric(float64(lat.P50.Microseconds()), "p50-setup-µs")
+	b.ReportMetric(float64(lat.P99.Microseconds()), "p99-setup-µs")
+}
+
+func BenchmarkTunnelSOCKS5(b *testing.B) {
+	benchmarkTunnel(b, Config{Proxy: SOCKS5})
+}
+
+// BenchmarkTunnelSOCKS5SingleProcessor handles every packet on the
+// reading goroutine, the baseline for the default fan-out above.
+func BenchmarkTunnelSOCKS5SingleProcessor(b *testing.B) {
+	benchmarkTunnel(b, Config{Proxy: SOCKS5, Processors: 1})
+}
+
+func BenchmarkTunnelSOCKS5Batch(b *testing.B) {
+	benchmarkTunnel(b, Config{Proxy: SOCKS5, Batch: 64})
+}
+
+// BenchmarkTunnelSOCKS5GSO is the batched run above with the stack
+// handing super-packets to the device.
+func BenchmarkTunnelSOCKS5GSO(b *testing.B) {
+	benchmarkTunnel(b, Config{Proxy: SOCKS5, Batch: 64, GSO: true})
+}
+
+func BenchmarkTunnelShadowsocks(b *testing.B) {
+	benchmarkTunnel(b, Config{Proxy: Shadowsocks})
+}
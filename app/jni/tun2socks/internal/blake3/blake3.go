@@ -0,0 +1,121 @@
+// Package blake3 implements the BLAKE3 key derivation for inputs of up to
+// one chunk, 1 KiB, which is all Shadowsocks 2022 derives its keys from.
+package blake3
+
+import (
+	"encoding/binary"
+	"math/bits"
+)
+
+// ChunkSize is the largest input supported.
+const ChunkSize = 1024
+
+const (
+	blockSize = 64
+
+	flagChunkStart        = 1 << 0
+	flagChunkEnd          = 1 << 1
+	flagRoot              = 1 << 3
+	flagDeriveKeyContext  = 1 << 5
+	flagDeriveKeyMaterial = 1 << 6
+)
+
+var iv = [8]uint32{
+	0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+	0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19,
+}
+
+var permutation = [16]int{2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8}
+
+// DeriveKey fills out, of at most 64 bytes, with the key derived from
+// material in context. It panics when material is longer than ChunkSize.
+func DeriveKey(out []byte, context string, material []byte) {
+	var ck [32]byte
+	hash(ck[:], iv, []byte(context), flagDeriveKeyContext)
+
+	var key [8]uint32
+	for i := range key {
+		key[i] = binary.LittleEndian.Uint32(ck[4*i:])
+	}
+	hash(out, key, material, flagDeriveKeyMaterial)
+}
+
+// hash writes the root output of the single chunk in to out.
+func hash(out []byte, key [8]uint32, in []byte, flags uint32) {
+	if len(in) > ChunkSize {
+		panic("blake3: input longer than a chunk")
+	}
+	if len(out) > blockSize {
+		panic("blake3: output longer than a block")
+	}
+
+	cv := key
+	var state [16]uint32
+	for first := true; first || len(in) > 0; first = false {
+		var block [blockSize]byte
+		n := copy(block[:], in)
+		in = in[n:]
+
+		f := flags
+		if first {
+			f |= flagChunkStart
+		}
+		if len(in) == 0 {
+			f |= flagChunkEnd | flagRoot
+		}
+		var m [16]uint32
+		for i := range m {
+			m[i] = binary.LittleEndian.Uint32(block[4*i:])
+		}
+		state = compress(&cv, &m, uint32(n), f)
+		copy(cv[:], state[:8])
+	}
+
+	var buf [blockSize]byte
+	for i, w := range state {
+		binary.LittleEndian.PutUint32(buf[4*i:], w)
+	}
+	copy(out, buf[:])
+}
+
+// compress is the compression function of the first chunk, whose counter
+// is zero.
+func compress(cv *[8]uint32, m *[16]uint32, blockLen, flags uint32) [16]uint32 {
+	s := [16]uint32{
+		cv[0], cv[1], cv[2], cv[3], cv[4], cv[5], cv[6], cv[7],
+		iv[0], iv[1], iv[2], iv[3], 0, 0, blockLen, flags,
+	}
+	msg := *m
+	for r := 0; r < 7; r++ {
+		g(&s, 0, 4, 8, 12, msg[0], msg[1])
+		g(&s, 1, 5, 9, 13, msg[2], msg[3])
+		g(&s, 2, 6, 10, 14, msg[4], msg[5])
+		g(&s, 3, 7, 11, 15, msg[6], msg[7])
+		g(&s, 0, 5, 10, 15, msg[8], msg[9])
+		g(&s, 1, 6, 11, 12, msg[10], msg[11])
+		g(&s, 2, 7, 8, 13, msg[12], msg[13])
+		g(&s, 3, 4, 9, 14, msg[14], msg[15])
+
+		var next [16]uint32
+		for i, p := range permutation {
+			next[i] = msg[p]
+		}
+		msg = next
+	}
+	for i := 0; i < 8; i++ {
+		s[i] ^= s[i+8]
+		s[i+8] ^= cv[i]
+	}
+	return s
+}
+
+func g(s *[16]uint32, a, b, c, d int, x, y uint32) {
+	s[a] += s[b] + x
+	s[d] = bits.RotateLeft32(s[d]^s[a], -16)
+	s[c] += s[d]
+	s[b] = bits.RotateLeft32(s[b]^s[c], -12)
+	s[a] += s[b] + y
+	s[d] = bits.RotateLeft32(s[d]^s[a], -8)
+	s[c] += s[d]
+	s[b] = bits.RotateLeft32(s[b]^s[c], -7)
+}
@@ -0,0 +1,44 @@
+package blake3
+
+import (
+	"encoding/hex"
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+)
+
+// input returns the input of the official test vectors.
+func input(n int) []byte {
+	b := make([]byte, n)
+	for i := range b {
+		b[i] = byte(i % 251)
+	}
+	return b
+}
+
+func TestHash(t *testing.T) {
+	for n, want := range map[int]string{
+		0:    "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+		1:    "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+		1024: "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+	} {
+		out := make([]byte, 32)
+		hash(out, iv, input(n), 0)
+		assert.Equal(t, want, hex.EncodeToString(out), "input of %d bytes", n)
+	}
+}
+
+func TestDeriveKey(t *testing.T) {
+	const context = "BLAKE3 2019-12-27 16:29:52 test vectors context"
+	for n, want := range map[int]string{
+		0:  "2cc39783c223154fea8dfb7c1b1660f2ac2dcbd1c1de8277b0b0dd39b7e50d7d",
+		64: "a5c4a7053fa86b64746d4bb688d06ad1f02a18fce9afd3e818fefaa7126bf73e",
+		65: "51fd05c3c1cfbc8ed67d139ad76f5cf8236cd2acd26627a30c104dfd9d3ff8a8",
+	} {
+		out := make([]byte, 32)
+		DeriveKey(out, context, input(n))
+		assert.Equal(t, want, hex.EncodeToString(out), "input of %d bytes", n)
+	}
+
+	assert.Panics(t, func() { DeriveKey(make([]byte, 32), context, input(ChunkSize+1)) })
+}
@@ -0,0 +1,29 @@
+package standin
+
+import (
+	"net"
+
+	"github.com/xjasonlyu/tun2socks/v2/transport/shadowsocks/core"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// Shadowsocks serves the Shadowsocks TCP protocol with the given cipher
+// and relays to the requested port on host, see redirectDial.
+func Shadowsocks(host, method, password string) (*Server, error) {
+	cipher, err := core.PickCipher(method, nil, password)
+	if err != nil {
+		return nil, err
+	}
+	return listen(func(c net.Conn) {
+		sc := cipher.StreamConn(c)
+		addr, err := socks5.ReadAddr(sc, make([]byte, socks5.MaxAddrLen))
+		if err != nil {
+			return
+		}
+		upstream, err := redirectDial(host, addr.String())
+		if err != nil {
+			return
+		}
+		relay(sc, upstream)
+	})
+}
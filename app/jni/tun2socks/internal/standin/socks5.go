@@ -0,0 +1,63 @@
+package standin
+
+import (
+	"io"
+	"net"
+
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// SOCKS5 serves SOCKS5 CONNECT without authentication and relays to the
+// requested port on host, see redirectDial.
+func SOCKS5(host string) (*Server, error) {
+	return listen(func(c net.Conn) {
+		target, err := socks5Handshake(c)
+		if err != nil {
+			return
+		}
+		upstream, err := redirectDial(host, target)
+		if err != nil {
+			// VER, REP (host unreachable), RSV, ATYP, BND.ADDR, BND.PORT
+			_, _ = c.Write([]byte{socks5.Version, 0x04, 0x00, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0})
+			return
+		}
+		if _, err = c.Write([]byte{socks5.Version, 0x00, 0x00, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0}); err != nil {
+			upstream.Close()
+			return
+		}
+		relay(c, upstream)
+	})
+}
+
+// socks5Handshake reads the greeting and the request of a client and
+// returns the address it asked for.
+func socks5Handshake(rw io.ReadWriter) (string, error) {
+	buf := make([]byte, socks5.MaxAddrLen)
+
+	// VER, NMETHODS, METHODS
+	if _, err := io.ReadFull(rw, buf[:2]); err != nil {
+		return "", err
+	}
+	if buf[0] != socks5.Version {
+		return "", errUnsupported
+	}
+	if _, err := io.ReadFull(rw, buf[:buf[1]]); err != nil {
+		return "", err
+	}
+	if _, err := rw.Write([]byte{socks5.Version, socks5.MethodNoAuth}); err != nil {
+		return "", err
+	}
+
+	// VER, CMD, RSV, ADDR
+	if _, err := io.ReadFull(rw, buf[:3]); err != nil {
+		return "", err
+	}
+	if socks5.Command(buf[1]) != socks5.CmdConnect {
+		return "", errUnsupported
+	}
+	addr, err := socks5.ReadAddr(rw, buf)
+	if err != nil {
+		return "", err
+	}
+	return addr.String(), nil
+}
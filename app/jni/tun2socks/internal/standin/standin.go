@@ -0,0 +1,139 @@
+// Package standin runs in-process stand-ins for the servers the engine
+// talks to: plain TCP targets and the proxies in front of them. They
+// listen on loopback and exist for tests and benchmarks only.
+package standin
+
+import (
+	"errors"
+	"io"
+	"net"
+	"sync"
+)
+
+// Server is a loopback TCP listener serving every accepted connection
+// with the same handler.
+type Server struct {
+	ln      net.Listener
+	handler func(net.Conn)
+
+	mu    sync.Mutex
+	conns map[net.Conn]struct{}
+	wg    sync.WaitGroup
+}
+
+func listen(handler func(net.Conn)) (*Server, error) {
+	ln, err := net.Listen("tcp", "127.0.0.1:0")
+	if err != nil {
+		return nil, err
+	}
+	s := &Server{
+		ln:      ln,
+		handler: handler,
+		conns:   make(map[net.Conn]struct{}),
+	}
+	s.wg.Add(1)
+	go s.serve()
+	return s, nil
+}
+
+// Addr returns the host:port the server listens on.
+func (s *Server) Addr() string {
+	return s.ln.Addr().String()
+}
+
+// Port returns the port the server listens on.
+func (s *Server) Port() uint16 {
+	return uint16(s.ln.Addr().(*net.TCPAddr).Port)
+}
+
+// Close stops the listener, closes the open connections and waits for
+// their handlers to return.
+func (s *Server) Close() error {
+	err := s.ln.Close()
+	s.mu.Lock()
+	for c := range s.conns {
+		c.Close()
+	}
+	s.mu.Unlock()
+	s.wg.Wait()
+	return err
+}
+
+func (s *Server) serve() {
+	defer s.wg.Done()
+	for {
+		c, err := s.ln.Accept()
+		if err != nil {
+			return
+		}
+		s.mu.Lock()
+		s.conns[c] = struct{}{}
+		s.mu.Unlock()
+
+		s.wg.Add(1)
+		go func() {
+			defer s.wg.Done()
+			s.handler(c)
+			s.mu.Lock()
+			delete(s.conns, c)
+			s.mu.Unlock()
+			c.Close()
+		}()
+	}
+}
+
+// Echo writes back everything it reads.
+func Echo() (*Server, error) {
+	return listen(func(c net.Conn) {
+		_, _ = io.Copy(c, c)
+	})
+}
+
+// Source streams zeros until the peer goes away, which makes it the
+// download end of a throughput measurement.
+func Source() (*Server, error) {
+	return listen(func(c net.Conn) {
+		buf := make([]byte, 64<<10)
+		for {
+			if _, err := c.Write(buf); err != nil {
+				return
+			}
+		}
+	})
+}
+
+// relay copies between the client and the upstream until both
+// directions are done.
+func relay(c, upstream net.Conn) {
+	done := make(chan struct{})
+	go func() {
+		_, _ = io.Copy(upstream, c)
+		if tc, ok := upstream.(*net.TCPConn); ok {
+			_ = tc.CloseWrite()
+		} else {
+			upstream.Close()
+		}
+		close(done)
+	}()
+	_, _ = io.Copy(c, upstream)
+	c.Close()
+	<-done
+	upstream.Close()
+}
+
+// redirectDial connects to the requested port on host, or to the
+// requested address itself when host is empty. Stand-ins are driven by
+// clients dialing unroutable benchmark addresses, host maps those back
+// onto loopback.
+func redirectDial(host, target string) (net.Conn, error) {
+	if host != "" {
+		_, port, err := net.SplitHostPort(target)
+		if err != nil {
+			return nil, err
+		}
+		target = net.JoinHostPort(host, port)
+	}
+	return net.Dial("tcp", target)
+}
+
+var errUnsupported = errors.New("unsupported request")
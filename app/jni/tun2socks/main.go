@@ -26,11 +26,19 @@ func init() {
 	flag.IntVar(&key.Mark, "fwmark", 0, "Set firewall MARK (Linux only)")
 	flag.IntVar(&key.MTU, "mtu", 0, "Set device maximum transmission unit (MTU)")
 	flag.DurationVar(&key.UDPTimeout, "udp-timeout", 0, "Set timeout for each UDP session")
+	flag.StringVar(&key.UDPNAT, "udp-nat", "", "Set UDP NAT mode: port-restricted, full-cone or symmetric")
+	flag.IntVar(&key.DispatchWorkers, "dispatch-workers", 0, "Set number of workers dialing new connections")
+	flag.IntVar(&key.DispatchQueue, "dispatch-queue", 0, "Set number of new connections waiting for a worker")
+	flag.IntVar(&key.DispatchPerDestination, "dispatch-per-destination", 0, "Set number of concurrent dials to one destination")
+	flag.StringVar(&key.BufferBudget, "buffer-budget", "", "Set memory budget for growing relay buffers")
 	flag.StringVar(&configFile, "config", "", "YAML format configuration file")
 	flag.StringVar(&key.Device, "device", "", "Use this device [driver://]name")
 	flag.StringVar(&key.Interface, "interface", "", "Use network INTERFACE (Linux/MacOS only)")
 	flag.StringVar(&key.LogLevel, "loglevel", "info", "Log level [debug|info|warn|error|silent]")
-	flag.StringVar(&key.Proxy, "proxy", "", "Use this proxy [protocol://]host[:port]")
+	flag.StringVar(&key.Proxy, "proxy", "", "Use this proxy [protocol://]host[:port], separate several with commas to group them")
+	flag.StringVar(&key.ProxyProbe, "proxy-probe", "", "Address dialed through each grouped proxy to measure it, it must answer an HTTP request")
+	flag.DurationVar(&key.ProxyCheckInterval, "proxy-check-interval", 0, "Set interval between grouped proxy health checks")
+	flag.StringVar(&key.Rules, "rules", "", "Route connections with the rules in this file")
 	flag.StringVar(&key.RestAPI, "restapi", "", "HTTP statistic server listen address")
 	flag.StringVar(&key.TCPSendBufferSize, "tcp-sndbuf", "", "Set TCP send buffer size for netstack")
 	flag.StringVar(&key.TCPReceiveBufferSize, "tcp-rcvbuf", "", "Set TCP receive buffer size for netstack")
@@ -3,6 +3,7 @@ package metadata
 import (
 	"net"
 	"net/netip"
+	"strconv"
 )
 
 // Metadata contains metadata of transport protocol sessions.
@@ -14,6 +15,8 @@ type Metadata struct {
 	SrcPort uint16     `json:"sourcePort"`
 	MidPort uint16     `json:"dialerPort"`
 	DstPort uint16     `json:"destinationPort"`
+	// Host replaces DstIP when set, the dialer then resolves it.
+	Host    string     `json:"host,omitempty"`
 }
 
 func (m *Metadata) DestinationAddrPort() netip.AddrPort {
@@ -21,6 +24,9 @@ func (m *Metadata) DestinationAddrPort() netip.AddrPort {
 }
 
 func (m *Metadata) DestinationAddress() string {
+	if m.Host != "" {
+		return net.JoinHostPort(m.Host, strconv.Itoa(int(m.DstPort)))
+	}
 	return m.DestinationAddrPort().String()
 }
 
@@ -9,7 +9,10 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/proxy/proto"
 )
 
-var _ Proxy = (*Direct)(nil)
+var (
+	_ Proxy     = (*Direct)(nil)
+	_ SharedUDP = (*Direct)(nil)
+)
 
 type Direct struct {
 	*Base
@@ -40,6 +43,10 @@ func (d *Direct) DialUDP(*M.Metadata) (net.PacketConn, error) {
 	return &directPacketConn{PacketConn: pc}, nil
 }
 
+func (d *Direct) SharedUDPKey(*M.Metadata) (string, bool) {
+	return "direct", true
+}
+
 type directPacketConn struct {
 	net.PacketConn
 }
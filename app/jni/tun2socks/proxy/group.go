@@ -0,0 +1,369 @@
+package proxy
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"io"
+	"net"
+	"net/netip"
+	"sort"
+	"strings"
+	"sync"
+	"time"
+
+	"go.uber.org/atomic"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/proxy/proto"
+)
+
+const (
+	// DefaultCheckInterval is the period between two health check rounds.
+	DefaultCheckInterval = 30 * time.Second
+
+	// DefaultProbeTarget is dialed through every member to measure it.
+	// It gets an HTTP request and has to answer.
+	DefaultProbeTarget = "1.1.1.1:80"
+)
+
+var (
+	_ Proxy     = (*Group)(nil)
+	_ SharedUDP = (*Group)(nil)
+	_ Retirer   = (*Group)(nil)
+)
+
+// member is one upstream of a Group together with its last measurement.
+type member struct {
+	Proxy
+
+	// rtt is the duration of the last successful probe, 0 if unknown.
+	rtt atomic.Duration
+
+	// failures counts consecutive failed probes and dials.
+	failures atomic.Int32
+}
+
+func (m *member) healthy() bool {
+	return m.failures.Load() == 0
+}
+
+// prober is implemented by proxies that health checks measure through
+// another one.
+type prober interface {
+	probeProxy() Proxy
+}
+
+// Group spreads new connections over several upstreams. A background
+// checker dials a probe target through every member and records how long
+// the whole handshake took until the first byte of its answer. A Mux
+// member is ranked by the probe of the proxy it wraps, since opening a
+// stream does not wait for the upstream. Connections go to the fastest
+// healthy member and fail over to the next one in that order when a dial
+// fails to reach or authenticate with the member's server. A RemoteError,
+// the server failing to reach the destination, is returned as is.
+type Group struct {
+	members []*member
+
+	// order holds member indexes sorted by health then rtt, it is
+	// replaced as a whole so dials never see a partial ordering.
+	order atomic.Pointer[[]int]
+	mu    sync.Mutex // serializes reorder
+
+	probe    M.Metadata
+	request  []byte // sent to the probe target
+	timeout  time.Duration
+	interval time.Duration
+
+	done chan struct{}
+	wg   sync.WaitGroup
+}
+
+// NewGroup returns a group of proxies and starts its health checker.
+// The probe target and interval fall back to the defaults when empty.
+func NewGroup(proxies []Proxy, probe string, interval time.Duration) (*Group, error) {
+	g, err := newGroup(proxies, probe, interval)
+	if err != nil {
+		return nil, err
+	}
+	g.wg.Add(1)
+	go g.loop()
+	return g, nil
+}
+
+func newGroup(proxies []Proxy, probe string, interval time.Duration) (*Group, error) {
+	if len(proxies) == 0 {
+		return nil, errors.New("empty proxy group")
+	}
+	if probe == "" {
+		probe = DefaultProbeTarget
+	}
+	target, err := netip.ParseAddrPort(probe)
+	if err != nil {
+		return nil, fmt.Errorf("parse probe target: %w", err)
+	}
+	if interval <= 0 {
+		interval = DefaultCheckInterval
+	}
+
+	g := &Group{
+		members: make([]*member, len(proxies)),
+		probe: M.Metadata{
+			Network: M.TCP,
+			DstIP:   target.Addr(),
+			DstPort: target.Port(),
+		},
+		request:  fmt.Appendf(nil, "HEAD / HTTP/1.1\r\nHost: %s\r\nConnection: close\r\n\r\n", target.Addr()),
+		timeout:  tcpConnectTimeout,
+		interval: interval,
+		done:     make(chan struct{}),
+	}
+	for i, p := range proxies {
+		g.members[i] = &member{Proxy: p}
+	}
+	g.reorder()
+	return g, nil
+}
+
+// Addr returns the address of the currently selected member.
+func (g *Group) Addr() string {
+	return g.selected().Addr()
+}
+
+func (g *Group) Proto() proto.Proto {
+	return proto.Group
+}
+
+// Len returns the number of members.
+func (g *Group) Len() int {
+	return len(g.members)
+}
+
+func (g *Group) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	var errs []error
+	for _, i := range *g.order.Load() {
+		m := g.members[i]
+		c, err := m.DialContext(ctx, metadata)
+		if err == nil {
+			g.succeed(m)
+			return c, nil
+		}
+		// The member reached its server, which could not reach the
+		// destination, another member would not fare better.
+		if isRemote(err) {
+			g.succeed(m)
+			return nil, err
+		}
+		errs = append(errs, err)
+		g.fail(m)
+		// the caller gave up, do not burn the other members.
+		if ctx.Err() != nil {
+			break
+		}
+	}
+	return nil, fmt.Errorf("all upstreams failed: %w", errors.Join(errs...))
+}
+
+func (g *Group) DialUDP(metadata *M.Metadata) (net.PacketConn, error) {
+	var errs []error
+	for _, i := range *g.order.Load() {
+		m := g.members[i]
+		pc, err := m.DialUDP(metadata)
+		if err == nil {
+			return pc, nil
+		}
+		// UDP may simply be unsupported by one member, that does not
+		// make it unhealthy for TCP.
+		errs = append(errs, err)
+	}
+	return nil, fmt.Errorf("all upstreams failed: %w", errors.Join(errs...))
+}
+
+// SharedUDPKey shares the UDP sockets of a source only when every member
+// would, since any of them may end up carrying the datagrams.
+func (g *Group) SharedUDPKey(metadata *M.Metadata) (string, bool) {
+	for _, m := range g.members {
+		su, ok := m.Proxy.(SharedUDP)
+		if !ok {
+			return "", false
+		}
+		if _, ok = su.SharedUDPKey(metadata); !ok {
+			return "", false
+		}
+	}
+	return fmt.Sprintf("group@%p", g), true
+}
+
+// Retire stops the health checker and retires the members, leaving the
+// connections they carry to finish.
+func (g *Group) Retire() {
+	g.stop()
+	for _, m := range g.members {
+		Retire(m.Proxy)
+	}
+}
+
+// Close stops the health checker and closes the members that hold
+// resources of their own.
+func (g *Group) Close() error {
+	g.stop()
+	for _, m := range g.members {
+		if c, ok := m.Proxy.(io.Closer); ok {
+			c.Close()
+		}
+	}
+	return nil
+}
+
+// stop ends the health checker.
+func (g *Group) stop() {
+	select {
+	case <-g.done:
+	default:
+		close(g.done)
+	}
+	g.wg.Wait()
+}
+
+// Stats writes the selected member index into dst[0] followed by an
+// (rtt in microseconds, consecutive failures) pair per member. An rtt of
+// -1 means no probe has succeeded yet. It returns the number of slots
+// written, which is cut short if dst is too small.
+func (g *Group) Stats(dst []int64) int {
+	if len(dst) == 0 {
+		return 0
+	}
+	dst[0] = int64((*g.order.Load())[0])
+	n := 1
+	for _, m := range g.members {
+		if n+2 > len(dst) {
+			break
+		}
+		rtt := int64(-1)
+		if d := m.rtt.Load(); d > 0 {
+			rtt = d.Microseconds()
+		}
+		dst[n] = rtt
+		dst[n+1] = int64(m.failures.Load())
+		n += 2
+	}
+	return n
+}
+
+func (g *Group) String() string {
+	parts := make([]string, len(g.members))
+	for i, m := range g.members {
+		parts[i] = fmt.Sprintf("%s://%s", m.Proto(), m.Addr())
+	}
+	return strings.Join(parts, ",")
+}
+
+func (g *Group) selected() *member {
+	return g.members[(*g.order.Load())[0]]
+}
+
+func (g *Group) succeed(m *member) {
+	if m.failures.Swap(0) != 0 {
+		g.reorder()
+	}
+}
+
+func (g *Group) fail(m *member) {
+	if m.failures.Inc() == 1 {
+		g.reorder()
+	}
+}
+
+// reorder sorts healthy members first, then by ascending rtt. Unknown
+// rtts sort after known ones and ties keep the configured order.
+func (g *Group) reorder() {
+	g.mu.Lock()
+	defer g.mu.Unlock()
+
+	order := make([]int, len(g.members))
+	for i := range order {
+		order[i] = i
+	}
+	sort.SliceStable(order, func(a, b int) bool {
+		ma, mb := g.members[order[a]], g.members[order[b]]
+		if ha, hb := ma.healthy(), mb.healthy(); ha != hb {
+			return ha
+		}
+		ra, rb := ma.rtt.Load(), mb.rtt.Load()
+		if ra == 0 || rb == 0 {
+			return ra != 0 && rb == 0
+		}
+		return ra < rb
+	})
+	g.order.Store(&order)
+}
+
+func (g *Group) loop() {
+	defer g.wg.Done()
+
+	ticker := time.NewTicker(g.interval)
+	defer ticker.Stop()
+
+	for {
+		g.check()
+		select {
+		case <-g.done:
+			return
+		case <-ticker.C:
+		}
+	}
+}
+
+// check probes all members concurrently and reorders them once.
+func (g *Group) check() {
+	ctx, cancel := context.WithTimeout(context.Background(), g.timeout)
+	defer cancel()
+
+	var wg sync.WaitGroup
+	for _, m := range g.members {
+		wg.Add(1)
+		go func(m *member) {
+			defer wg.Done()
+			p := m.Proxy
+			if pr, ok := p.(prober); ok {
+				p = pr.probeProxy()
+			}
+			rtt, err := g.probeOnce(ctx, p)
+			if err != nil {
+				m.failures.Inc()
+				return
+			}
+			m.rtt.Store(rtt)
+			m.failures.Store(0)
+		}(m)
+	}
+	wg.Wait()
+	g.reorder()
+}
+
+// probeOnce dials the probe target through p and waits for its answer.
+// The dial skips the warm connections, whose handshake is done already
+// and whose server may have gone since, and the answer makes the server
+// reach the target even where the protocol sends the destination along
+// with the first data.
+func (g *Group) probeOnce(ctx context.Context, p Proxy) (time.Duration, error) {
+	metadata := g.probe
+	start := time.Now()
+	c, err := p.DialContext(withProbe(ctx), &metadata)
+	if err != nil {
+		return 0, err
+	}
+	defer c.Close()
+
+	if deadline, ok := ctx.Deadline(); ok {
+		c.SetDeadline(deadline)
+	}
+	if _, err = c.Write(g.request); err != nil {
+		return 0, err
+	}
+	var b [1]byte
+	if _, err = io.ReadFull(c, b[:]); err != nil {
+		return 0, err
+	}
+	return time.Since(start), nil
+}
@@ -0,0 +1,212 @@
+package proxy
+
+import (
+	"context"
+	"io"
+	"net"
+	"net/netip"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"go.uber.org/atomic"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// deadProxy returns a SOCKS5 member whose server refuses connections.
+func deadProxy(t *testing.T) Proxy {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	addr := l.Addr().String()
+	l.Close()
+
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	return p
+}
+
+// standIn answers the request of every connection on loopback with a
+// status line, then closes it.
+func standIn(t *testing.T) netip.AddrPort {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	t.Cleanup(func() { l.Close() })
+
+	go func() {
+		for {
+			c, err := l.Accept()
+			if err != nil {
+				return
+			}
+			go func() {
+				defer c.Close()
+				if _, err := c.Read(make([]byte, 512)); err != nil {
+					return
+				}
+				c.Write([]byte("HTTP/1.1 200 OK\r\n\r\n"))
+			}()
+		}
+	}()
+	return netip.MustParseAddrPort(l.Addr().String())
+}
+
+// refusingStandIn is a SOCKS5 server refusing every CONNECT as if the
+// destination did. It counts the requests it got.
+func refusingStandIn(t *testing.T) (string, *atomic.Int64) {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	t.Cleanup(func() { l.Close() })
+
+	requests := atomic.NewInt64(0)
+	go func() {
+		for {
+			c, err := l.Accept()
+			if err != nil {
+				return
+			}
+			go func() {
+				defer c.Close()
+				buf := make([]byte, socks5.MaxAddrLen)
+				// VER, NMETHODS, METHODS
+				if _, err := io.ReadFull(c, buf[:3]); err != nil {
+					return
+				}
+				c.Write([]byte{socks5.Version, socks5.MethodNoAuth})
+				// VER, CMD, RSV, ADDR
+				if _, err := io.ReadFull(c, buf[:3]); err != nil {
+					return
+				}
+				if _, err := socks5.ReadAddr(c, buf); err != nil {
+					return
+				}
+				requests.Inc()
+				c.Write([]byte{socks5.Version, 0x05 /* connection refused */, 0, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0})
+			}()
+		}
+	}()
+	return l.Addr().String(), requests
+}
+
+func TestGroupSelectsHealthyMember(t *testing.T) {
+	target := standIn(t)
+
+	g, err := newGroup([]Proxy{deadProxy(t), NewDirect()}, target.String(), time.Hour)
+	require.NoError(t, err)
+
+	g.check()
+
+	stats := make([]int64, 5)
+	assert.Equal(t, 5, g.Stats(stats))
+	assert.EqualValues(t, 1, stats[0], "the direct member should be selected")
+	assert.EqualValues(t, -1, stats[1], "the dead member has no rtt")
+	assert.Positive(t, stats[2])
+	assert.Positive(t, stats[3])
+	assert.Zero(t, stats[4])
+}
+
+func TestGroupFailover(t *testing.T) {
+	target := standIn(t)
+
+	// No check has run yet, so the dead member is tried first.
+	g, err := newGroup([]Proxy{deadProxy(t), NewDirect()}, target.String(), time.Hour)
+	require.NoError(t, err)
+
+	c, err := g.DialContext(context.Background(), &M.Metadata{
+		Network: M.TCP,
+		DstIP:   target.Addr(),
+		DstPort: target.Port(),
+	})
+	require.NoError(t, err)
+	c.Close()
+
+	stats := make([]int64, 5)
+	g.Stats(stats)
+	assert.EqualValues(t, 1, stats[0], "the failed member should be demoted")
+	assert.EqualValues(t, 1, stats[2])
+}
+
+func TestGroupRequiresMembers(t *testing.T) {
+	_, err := NewGroup(nil, "", 0)
+	assert.Error(t, err)
+}
+
+func TestGroupDestinationRefused(t *testing.T) {
+	addr, requests := refusingStandIn(t)
+	members := make([]Proxy, 2)
+	for i := range members {
+		p, err := NewSocks5(addr, "", "")
+		require.NoError(t, err)
+		members[i] = p
+	}
+	g, err := newGroup(members, "", time.Hour)
+	require.NoError(t, err)
+
+	_, err = g.DialContext(context.Background(), standInMetadata)
+	var re *RemoteError
+	require.ErrorAs(t, err, &re)
+	var reply *socks5.ReplyError
+	require.ErrorAs(t, err, &reply)
+	assert.EqualValues(t, 0x05, reply.Reply)
+	assert.EqualValues(t, 1, requests.Load(), "a refused destination must not fail over")
+
+	stats := make([]int64, 5)
+	g.Stats(stats)
+	assert.Zero(t, stats[0])
+	assert.Zero(t, stats[2], "the members stay healthy")
+	assert.Zero(t, stats[4], "the members stay healthy")
+}
+
+func TestGroupProbeSkipsWarm(t *testing.T) {
+	// The stand-in grants every CONNECT but its target never answers.
+	p, err := NewSocks5(socksStandIn(t, false), "", "")
+	require.NoError(t, err)
+	p.SetWarm(4)
+	defer p.Close()
+
+	dialStandIn(t, p)
+	require.Eventually(t, func() bool {
+		p.warm.mu.Lock()
+		defer p.warm.mu.Unlock()
+		return len(p.warm.idle) > 0
+	}, time.Second, 10*time.Millisecond)
+
+	g, err := newGroup([]Proxy{p}, "", time.Hour)
+	require.NoError(t, err)
+	g.timeout = 200 * time.Millisecond
+
+	hits, _, saved := WarmStats()
+	g.check()
+
+	stats := make([]int64, 3)
+	g.Stats(stats)
+	assert.EqualValues(t, -1, stats[1], "a target that never answers has no rtt")
+	assert.EqualValues(t, 1, stats[2])
+
+	h, _, s := WarmStats()
+	assert.Equal(t, hits, h, "the probe must not take a warm connection")
+	assert.Equal(t, saved, s)
+	p.warm.mu.Lock()
+	defer p.warm.mu.Unlock()
+	assert.NotEmpty(t, p.warm.idle)
+}
+
+func TestGroupProbesMuxUpstream(t *testing.T) {
+	target := standIn(t)
+
+	// Direct cannot carry a session, only the probe of the wrapped
+	// proxy can succeed.
+	mx, err := NewMux(NewDirect(), 1, 0)
+	require.NoError(t, err)
+	g, err := newGroup([]Proxy{mx}, target.String(), time.Hour)
+	require.NoError(t, err)
+
+	g.check()
+
+	stats := make([]int64, 3)
+	g.Stats(stats)
+	assert.Positive(t, stats[1])
+	assert.Zero(t, stats[2])
+}
@@ -16,11 +16,18 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/proxy/proto"
 )
 
+var (
+	_ Proxy  = (*HTTP)(nil)
+	_ Warmer = (*HTTP)(nil)
+)
+
 type HTTP struct {
 	*Base
 
 	user string
 	pass string
+
+	warm *warmPool
 }
 
 func NewHTTP(addr, user, pass string) (*HTTP, error) {
@@ -34,19 +41,30 @@ func NewHTTP(addr, user, pass string) (*HTTP, error) {
 	}, nil
 }
 
-func (h *HTTP) DialContext(ctx context.Context, metadata *M.Metadata) (c net.Conn, err error) {
-	c, err = dialer.DialContext(ctx, "tcp", h.Addr())
+func (h *HTTP) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	return dialWarm(ctx, h.warm, h.open, func(c net.Conn) (net.Conn, error) {
+		return c, h.shakeHand(metadata, c)
+	})
+}
+
+func (h *HTTP) open(ctx context.Context) (net.Conn, error) {
+	c, err := dialer.DialContext(ctx, "tcp", h.Addr())
 	if err != nil {
 		return nil, fmt.Errorf("connect to %s: %w", h.Addr(), err)
 	}
 	setKeepAlive(c)
+	return c, nil
+}
 
-	defer func(c net.Conn) {
-		safeConnClose(c, err)
-	}(c)
+// SetWarm keeps up to max connections to the proxy ready.
+func (h *HTTP) SetWarm(max int) {
+	h.warm = newWarmPool(max, h.open)
+}
 
-	err = h.shakeHand(metadata, c)
-	return c, err
+// Close drops the warm connections.
+func (h *HTTP) Close() error {
+	h.warm.close()
+	return nil
 }
 
 func (h *HTTP) shakeHand(metadata *M.Metadata, rw io.ReadWriter) error {
@@ -83,7 +101,7 @@ func (h *HTTP) shakeHand(metadata *M.Metadata, rw io.ReadWriter) error {
 	case http.StatusMethodNotAllowed:
 		return errors.New("CONNECT method not allowed by proxy")
 	default:
-		return fmt.Errorf("HTTP connect status: %s", resp.Status)
+		return &RemoteError{Err: fmt.Errorf("HTTP connect status: %s", resp.Status)}
 	}
 }
 
@@ -0,0 +1,213 @@
+package proxy
+
+import (
+	"context"
+	"errors"
+	"io"
+	"net"
+	"slices"
+	"sync"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/mux"
+)
+
+// DefaultMuxStreams is the number of streams a mux session takes before
+// another one is opened.
+const DefaultMuxStreams = 32
+
+var (
+	_ Proxy     = (*Mux)(nil)
+	_ SharedUDP = (*Mux)(nil)
+	_ Retirer   = (*Mux)(nil)
+	_ prober    = (*Mux)(nil)
+)
+
+// Mux carries the TCP connections of a proxy as streams of a few
+// long-lived sessions, so that a new connection skips the TCP and proxy
+// handshakes with the upstream. The upstream must terminate the mux
+// itself. UDP is left to the proxy.
+type Mux struct {
+	Proxy
+
+	sessions int
+	streams  int
+	cfg      mux.Config
+
+	mu      sync.Mutex
+	pool    []*mux.Session
+	dialing int
+	closed  bool
+}
+
+// NewMux wraps p into at most sessions sessions of streams streams each.
+func NewMux(p Proxy, sessions, streams int) (*Mux, error) {
+	if sessions <= 0 {
+		return nil, errors.New("mux needs at least one session")
+	}
+	if streams <= 0 {
+		streams = DefaultMuxStreams
+	}
+	return &Mux{
+		Proxy:    p,
+		sessions: sessions,
+		streams:  streams,
+		cfg:      mux.DefaultConfig(),
+	}, nil
+}
+
+func (m *Mux) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	// A session may die between being picked and opening the stream,
+	// the next pick prunes it.
+	for i := 0; i < 2; i++ {
+		s, err := m.session(ctx)
+		if err != nil {
+			return nil, err
+		}
+		if s == nil {
+			return m.Proxy.DialContext(ctx, metadata)
+		}
+		st, err := s.OpenStream()
+		if err != nil {
+			// A failed session is closed already. One out of stream IDs
+			// is still healthy, it leaves the pool and closes once its
+			// streams are done.
+			if errors.Is(err, mux.ErrExhausted) {
+				m.drain(s)
+			}
+			continue
+		}
+		return mux.NewConn(st, serializeSocksAddr(metadata)), nil
+	}
+	return m.Proxy.DialContext(ctx, metadata)
+}
+
+// SharedUDPKey defers to the wrapped proxy, which carries UDP.
+func (m *Mux) SharedUDPKey(metadata *M.Metadata) (string, bool) {
+	if su, ok := m.Proxy.(SharedUDP); ok {
+		return su.SharedUDPKey(metadata)
+	}
+	return "", false
+}
+
+// session returns the least loaded session with room for a stream, or
+// opens one while the pool is not full. Once every session is full, the
+// least loaded one takes the stream anyway. A nil session means none is
+// ready while the pool is being filled, the caller dials directly then.
+func (m *Mux) session(ctx context.Context) (*mux.Session, error) {
+	m.mu.Lock()
+	if m.closed {
+		m.mu.Unlock()
+		return nil, net.ErrClosed
+	}
+	best := m.pick()
+	if best != nil && best.NumStreams() < m.streams || len(m.pool)+m.dialing >= m.sessions {
+		m.mu.Unlock()
+		return best, nil
+	}
+	m.dialing++
+	m.mu.Unlock()
+
+	s, err := m.open(ctx)
+
+	m.mu.Lock()
+	m.dialing--
+	if err == nil && m.closed {
+		s.Close()
+		err = net.ErrClosed
+	}
+	if err == nil {
+		m.pool = append(m.pool, s)
+	}
+	m.mu.Unlock()
+
+	if err != nil {
+		if best != nil {
+			return best, nil
+		}
+		return nil, err
+	}
+	return s, nil
+}
+
+// pick drops the closed sessions and returns the least loaded one.
+func (m *Mux) pick() *mux.Session {
+	var best *mux.Session
+	bestStreams := 0
+	alive := m.pool[:0]
+	for _, s := range m.pool {
+		if s.IsClosed() {
+			continue
+		}
+		alive = append(alive, s)
+		if n := s.NumStreams(); best == nil || n < bestStreams {
+			best, bestStreams = s, n
+		}
+	}
+	clear(m.pool[len(alive):])
+	m.pool = alive
+	return best
+}
+
+// drain takes s out of the pool and lets it close after its streams.
+func (m *Mux) drain(s *mux.Session) {
+	m.mu.Lock()
+	if i := slices.Index(m.pool, s); i >= 0 {
+		m.pool = slices.Delete(m.pool, i, i+1)
+	}
+	m.mu.Unlock()
+	s.Drain()
+}
+
+func (m *Mux) open(ctx context.Context) (*mux.Session, error) {
+	c, err := m.Proxy.DialContext(ctx, &M.Metadata{
+		Network: M.TCP,
+		Host:    mux.DestinationHost,
+		DstPort: mux.DestinationPort,
+	})
+	if err != nil {
+		return nil, err
+	}
+	if err = mux.WritePreface(c); err != nil {
+		c.Close()
+		return nil, err
+	}
+	return mux.Client(c, m.cfg), nil
+}
+
+// probeProxy returns the wrapped proxy for health checks. Opening a
+// stream only queues a frame on a session, so a probe through one would
+// measure local work. The sessions are watched by their own keepalive,
+// which closes one once the upstream stops answering.
+func (m *Mux) probeProxy() Proxy {
+	return m.Proxy
+}
+
+// Retire drains the sessions, which close once their streams are done,
+// then retires the wrapped proxy.
+func (m *Mux) Retire() {
+	m.mu.Lock()
+	pool := m.pool
+	m.pool, m.closed = nil, true
+	m.mu.Unlock()
+	for _, s := range pool {
+		s.Drain()
+	}
+	Retire(m.Proxy)
+}
+
+// Close closes the sessions, and with them their streams, then the
+// wrapped proxy.
+func (m *Mux) Close() error {
+	m.mu.Lock()
+	pool := m.pool
+	m.pool, m.closed = nil, true
+	m.mu.Unlock()
+	for _, s := range pool {
+		s.Close()
+	}
+	if c, ok := m.Proxy.(io.Closer); ok {
+		return c.Close()
+	}
+	return nil
+}
@@ -3,6 +3,8 @@ package proxy
 
 import (
 	"context"
+	"errors"
+	"io"
 	"net"
 	"time"
 
@@ -27,6 +29,51 @@ type Proxy interface {
 	Proto() proto.Proto
 }
 
+// SharedUDP is implemented by dialers whose UDP sockets may carry the
+// datagrams of a source to any destination. Flows of the same source
+// with the same key share one socket.
+type SharedUDP interface {
+	SharedUDPKey(*M.Metadata) (key string, ok bool)
+}
+
+// Retirer is implemented by proxies whose connections carry the flows
+// of others, like mux sessions. Retire stops handing them out and
+// closes each once its last flow ends, where Close cuts the flows short.
+type Retirer interface {
+	Retire()
+}
+
+// Retire retires p, or closes it when it holds resources of its own but
+// none that flows share.
+func Retire(p Dialer) {
+	switch p := p.(type) {
+	case Retirer:
+		p.Retire()
+	case io.Closer:
+		p.Close()
+	}
+}
+
+// RemoteError is the reply of an upstream that could not reach the
+// destination, like a refused connection. The upstream itself works,
+// so it is not a reason to try another one.
+type RemoteError struct {
+	Err error
+}
+
+func (e *RemoteError) Error() string {
+	return e.Err.Error()
+}
+
+func (e *RemoteError) Unwrap() error {
+	return e.Err
+}
+
+func isRemote(err error) bool {
+	var re *RemoteError
+	return errors.As(err, &re)
+}
+
 // SetDialer sets default Dialer.
 func SetDialer(d Dialer) {
 	_defaultDialer = d
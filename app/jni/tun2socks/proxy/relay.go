@@ -232,7 +232,11 @@ func readRelayResponse(r io.Reader) error {
 	if resp.Version != relay.Version1 {
 		return relay.ErrBadVersion
 	}
-	if resp.Status != relay.StatusOK {
+	switch resp.Status {
+	case relay.StatusOK:
+	case relay.StatusTimeout, relay.StatusHostUnreachable, relay.StatusNetworkUnreachable:
+		return &RemoteError{Err: fmt.Errorf("status %d", resp.Status)}
+	default:
 		return fmt.Errorf("status %d", resp.Status)
 	}
 	return nil
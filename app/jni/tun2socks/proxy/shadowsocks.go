@@ -14,7 +14,11 @@ import (
 	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
 )
 
-var _ Proxy = (*Shadowsocks)(nil)
+var (
+	_ Proxy     = (*Shadowsocks)(nil)
+	_ SharedUDP = (*Shadowsocks)(nil)
+	_ Warmer    = (*Shadowsocks)(nil)
+)
 
 type Shadowsocks struct {
 	*Base
@@ -23,6 +27,8 @@ type Shadowsocks struct {
 
 	// simple-obfs plugin
 	obfsMode, obfsHost string
+
+	warm *warmPool
 }
 
 func NewShadowsocks(addr, method, password, obfsMode, obfsHost string) (*Shadowsocks, error) {
@@ -42,17 +48,24 @@ func NewShadowsocks(addr, method, password, obfsMode, obfsHost string) (*Shadows
 	}, nil
 }
 
-func (ss *Shadowsocks) DialContext(ctx context.Context, metadata *M.Metadata) (c net.Conn, err error) {
-	c, err = dialer.DialContext(ctx, "tcp", ss.Addr())
+func (ss *Shadowsocks) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	return dialWarm(ctx, ss.warm, ss.open, func(c net.Conn) (net.Conn, error) {
+		return ss.shakeHand(metadata, c)
+	})
+}
+
+// open only connects, the obfs and cipher handshakes go along with the
+// first data.
+func (ss *Shadowsocks) open(ctx context.Context) (net.Conn, error) {
+	c, err := dialer.DialContext(ctx, "tcp", ss.Addr())
 	if err != nil {
 		return nil, fmt.Errorf("connect to %s: %w", ss.Addr(), err)
 	}
 	setKeepAlive(c)
+	return c, nil
+}
 
-	defer func(c net.Conn) {
-		safeConnClose(c, err)
-	}(c)
-
+func (ss *Shadowsocks) shakeHand(metadata *M.Metadata, c net.Conn) (net.Conn, error) {
 	switch ss.obfsMode {
 	case "tls":
 		c = obfs.NewTLSObfs(c, ss.obfsHost)
@@ -62,10 +75,21 @@ func (ss *Shadowsocks) DialContext(ctx context.Context, metadata *M.Metadata) (c
 	}
 
 	c = ss.cipher.StreamConn(c)
-	_, err = c.Write(serializeSocksAddr(metadata))
+	_, err := c.Write(serializeSocksAddr(metadata))
 	return c, err
 }
 
+// SetWarm keeps up to max connections to the server ready.
+func (ss *Shadowsocks) SetWarm(max int) {
+	ss.warm = newWarmPool(max, ss.open)
+}
+
+// Close drops the warm connections.
+func (ss *Shadowsocks) Close() error {
+	ss.warm.close()
+	return nil
+}
+
 func (ss *Shadowsocks) DialUDP(*M.Metadata) (net.PacketConn, error) {
 	pc, err := dialer.ListenPacket("udp", "")
 	if err != nil {
@@ -81,6 +105,10 @@ func (ss *Shadowsocks) DialUDP(*M.Metadata) (net.PacketConn, error) {
 	return &ssPacketConn{PacketConn: pc, rAddr: udpAddr}, nil
 }
 
+func (ss *Shadowsocks) SharedUDPKey(*M.Metadata) (string, bool) {
+	return "ss://" + ss.Addr(), true
+}
+
 type ssPacketConn struct {
 	net.PacketConn
 
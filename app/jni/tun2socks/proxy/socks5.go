@@ -4,16 +4,21 @@ import (
 	"context"
 	"errors"
 	"fmt"
-	"io"
 	"net"
 
 	"github.com/xjasonlyu/tun2socks/v2/dialer"
 	M "github.com/xjasonlyu/tun2socks/v2/metadata"
 	"github.com/xjasonlyu/tun2socks/v2/proxy/proto"
 	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+	"github.com/xjasonlyu/tun2socks/v2/transport/uot"
 )
 
-var _ Proxy = (*Socks5)(nil)
+var (
+	_ Proxy     = (*Socks5)(nil)
+	_ SharedUDP = (*Socks5)(nil)
+	_ Warmer    = (*Socks5)(nil)
+	_ Retirer   = (*Socks5)(nil)
+)
 
 type Socks5 struct {
 	*Base
@@ -23,6 +28,13 @@ type Socks5 struct {
 
 	// unix indicates if socks5 over UDS is enabled.
 	unix bool
+
+	warm *warmPool
+
+	// assocs are the UDP associations shared by the flows, unless uot
+	// carries them over streams instead.
+	assocs *udpAssocPool
+	uot    bool
 }
 
 func NewSocks5(addr, user, pass string) (*Socks5, error) {
@@ -33,7 +45,7 @@ func NewSocks5(addr, user, pass string) (*Socks5, error) {
 		addr = addr[1:]
 	}
 
-	return &Socks5{
+	ss := &Socks5{
 		Base: &Base{
 			addr:  addr,
 			proto: proto.Socks5,
@@ -41,10 +53,25 @@ func NewSocks5(addr, user, pass string) (*Socks5, error) {
 		user: user,
 		pass: pass,
 		unix: unix,
-	}, nil
+	}
+	ss.assocs = newUDPAssocPool(ss.associate)
+	return ss, nil
 }
 
-func (ss *Socks5) DialContext(ctx context.Context, metadata *M.Metadata) (c net.Conn, err error) {
+func (ss *Socks5) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	return dialWarm(ctx, ss.warm, ss.open, func(c net.Conn) (net.Conn, error) {
+		_, err := socks5.ClientRequest(c, serializeSocksAddr(metadata), socks5.CmdConnect)
+		var re *socks5.ReplyError
+		if errors.As(err, &re) {
+			err = &RemoteError{Err: err}
+		}
+		return c, err
+	})
+}
+
+// open connects and authenticates to the server, which then waits for
+// the request.
+func (ss *Socks5) open(ctx context.Context) (c net.Conn, err error) {
 	network := "tcp"
 	if ss.unix {
 		network = "unix"
@@ -68,130 +95,101 @@ func (ss *Socks5) DialContext(ctx context.Context, metadata *M.Metadata) (c net.
 		}
 	}
 
-	_, err = socks5.ClientHandshake(c, serializeSocksAddr(metadata), socks5.CmdConnect, user)
+	err = socks5.ClientAuth(c, user)
 	return c, err
 }
 
-func (ss *Socks5) DialUDP(*M.Metadata) (_ net.PacketConn, err error) {
-	if ss.unix {
-		return nil, fmt.Errorf("%w when unix domain socket is enabled", errors.ErrUnsupported)
-	}
+// SetWarm keeps up to max authenticated connections ready.
+func (ss *Socks5) SetWarm(max int) {
+	ss.warm = newWarmPool(max, ss.open)
+}
 
-	ctx, cancel := context.WithTimeout(context.Background(), tcpConnectTimeout)
-	defer cancel()
+// Retire drops the warm connections, and closes each UDP association
+// once its flows are done.
+func (ss *Socks5) Retire() {
+	ss.warm.close()
+	ss.assocs.retire()
+}
 
-	c, err := dialer.DialContext(ctx, "tcp", ss.Addr())
-	if err != nil {
-		err = fmt.Errorf("connect to %s: %w", ss.Addr(), err)
-		return
-	}
-	setKeepAlive(c)
+// Close drops the warm connections and the UDP associations.
+func (ss *Socks5) Close() error {
+	ss.warm.close()
+	ss.assocs.close()
+	return nil
+}
 
-	defer func() {
-		if err != nil && c != nil {
-			c.Close()
-		}
-	}()
+// SetUDPOverTCP carries the UDP flows over streams to the server, for
+// networks where UDP to it does not get through. The server must speak
+// the UDP-over-TCP protocol of sing-box. It must be called before the
+// proxy is used.
+func (ss *Socks5) SetUDPOverTCP(on bool) {
+	ss.uot = on
+}
 
-	var user *socks5.User
-	if ss.user != "" {
-		user = &socks5.User{
-			Username: ss.user,
-			Password: ss.pass,
+// SharedUDPKey shares the UDP associations of a source, which are only
+// supported over TCP, unless UDP goes over streams.
+func (ss *Socks5) SharedUDPKey(*M.Metadata) (string, bool) {
+	return "socks5://" + ss.Addr(), !ss.unix || ss.uot
+}
+
+func (ss *Socks5) DialUDP(metadata *M.Metadata) (net.PacketConn, error) {
+	if ss.uot {
+		ctx, cancel := context.WithTimeout(context.Background(), tcpConnectTimeout)
+		defer cancel()
+		c, err := ss.DialContext(ctx, &M.Metadata{
+			Network: M.TCP,
+			Host:    uot.DestinationHost,
+			DstPort: uot.DestinationPort,
+		})
+		if err != nil {
+			return nil, err
 		}
+		return uot.Client(c, serializeSocksAddr(metadata)), nil
 	}
-
-	// The UDP ASSOCIATE request is used to establish an association within
-	// the UDP relay process to handle UDP datagrams.  The DST.ADDR and
-	// DST.PORT fields contain the address and port that the client expects
-	// to use to send UDP datagrams on for the association.  The server MAY
-	// use this information to limit access to the association.  If the
-	// client is not in possession of the information at the time of the UDP
-	// ASSOCIATE, the client MUST use a port number and address of all
-	// zeros. RFC1928
-	var targetAddr socks5.Addr = []byte{socks5.AtypIPv4, 0, 0, 0, 0, 0, 0}
-
-	addr, err := socks5.ClientHandshake(c, targetAddr, socks5.CmdUDPAssociate, user)
-	if err != nil {
-		return nil, fmt.Errorf("client handshake: %w", err)
+	if ss.unix {
+		return nil, fmt.Errorf("%w when unix domain socket is enabled", errors.ErrUnsupported)
 	}
+	return ss.assocs.dial()
+}
 
-	pc, err := dialer.ListenPacket("udp", "")
+// associate opens a UDP association, and returns the connection it
+// lives as long as and the address of its relay.
+func (ss *Socks5) associate(ctx context.Context) (net.Conn, *net.UDPAddr, error) {
+	var addr socks5.Addr
+	c, err := dialWarm(ctx, ss.warm, ss.open, func(c net.Conn) (_ net.Conn, err error) {
+		// The UDP ASSOCIATE request is used to establish an association within
+		// the UDP relay process to handle UDP datagrams.  The DST.ADDR and
+		// DST.PORT fields contain the address and port that the client expects
+		// to use to send UDP datagrams on for the association.  The server MAY
+		// use this information to limit access to the association.  If the
+		// client is not in possession of the information at the time of the UDP
+		// ASSOCIATE, the client MUST use a port number and address of all
+		// zeros. RFC1928
+		var targetAddr socks5.Addr = []byte{socks5.AtypIPv4, 0, 0, 0, 0, 0, 0}
+		addr, err = socks5.ClientRequest(c, targetAddr, socks5.CmdUDPAssociate)
+		return c, err
+	})
 	if err != nil {
-		return nil, fmt.Errorf("listen packet: %w", err)
+		return nil, nil, fmt.Errorf("client handshake: %w", err)
 	}
 
-	go func() {
-		io.Copy(io.Discard, c)
-		c.Close()
-		// A UDP association terminates when the TCP connection that the UDP
-		// ASSOCIATE request arrived on terminates. RFC1928
-		pc.Close()
-	}()
-
 	bindAddr := addr.UDPAddr()
 	if bindAddr == nil {
-		return nil, fmt.Errorf("invalid UDP binding address: %#v", addr)
+		c.Close()
+		return nil, nil, fmt.Errorf("invalid UDP binding address: %#v", addr)
 	}
 
 	if bindAddr.IP.IsUnspecified() { /* e.g. "0.0.0.0" or "::" */
 		udpAddr, err := net.ResolveUDPAddr("udp", ss.Addr())
 		if err != nil {
-			return nil, fmt.Errorf("resolve udp address %s: %w", ss.Addr(), err)
+			c.Close()
+			return nil, nil, fmt.Errorf("resolve udp address %s: %w", ss.Addr(), err)
 		}
 		bindAddr.IP = udpAddr.IP
 	}
-
-	return &socksPacketConn{PacketConn: pc, rAddr: bindAddr, tcpConn: c}, nil
-}
-
-type socksPacketConn struct {
-	net.PacketConn
-
-	rAddr   net.Addr
-	tcpConn net.Conn
-}
-
-func (pc *socksPacketConn) WriteTo(b []byte, addr net.Addr) (n int, err error) {
-	var packet []byte
-	if ma, ok := addr.(*M.Addr); ok {
-		packet, err = socks5.EncodeUDPPacket(serializeSocksAddr(ma.Metadata()), b)
-	} else {
-		packet, err = socks5.EncodeUDPPacket(socks5.ParseAddr(addr), b)
-	}
-
-	if err != nil {
-		return n, err
-	}
-	return pc.PacketConn.WriteTo(packet, pc.rAddr)
-}
-
-func (pc *socksPacketConn) ReadFrom(b []byte) (int, net.Addr, error) {
-	n, _, err := pc.PacketConn.ReadFrom(b)
-	if err != nil {
-		return 0, nil, err
-	}
-
-	addr, payload, err := socks5.DecodeUDPPacket(b)
-	if err != nil {
-		return 0, nil, err
-	}
-
-	udpAddr := addr.UDPAddr()
-	if udpAddr == nil {
-		return 0, nil, fmt.Errorf("convert %s to UDPAddr is nil", addr)
-	}
-
-	// due to DecodeUDPPacket is mutable, record addr length
-	copy(b, payload)
-	return n - len(addr) - 3, udpAddr, nil
-}
-
-func (pc *socksPacketConn) Close() error {
-	pc.tcpConn.Close()
-	return pc.PacketConn.Close()
+	return c, bindAddr, nil
 }
 
 func serializeSocksAddr(m *M.Metadata) socks5.Addr {
-	return socks5.SerializeAddr("", m.DstIP, m.DstPort)
+	return socks5.SerializeAddr(m.Host, m.DstIP, m.DstPort)
 }
@@ -0,0 +1,318 @@
+package proxy
+
+import (
+	"context"
+	"fmt"
+	"io"
+	"net"
+	"slices"
+	"sync"
+	"time"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/dialer"
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+const (
+	// udpAssocIdle is how long an association without flows waits for
+	// the next one.
+	udpAssocIdle = 30 * time.Second
+	// udpAssocFlows bounds the flows sharing one association.
+	udpAssocFlows = 64
+)
+
+// udpAssocPool shares the UDP associations with a SOCKS5 server between
+// the flows. Every flow has a socket of its own, which sends through the
+// relay of its association and gets the replies meant for it alone, so
+// any flows, even to one destination, share the TCP connection of an
+// association up to udpAssocFlows of them. The server must take the
+// datagrams of an association from any port of the client, as it does
+// when the request names none.
+type udpAssocPool struct {
+	open func(context.Context) (ctrl net.Conn, relay *net.UDPAddr, err error)
+
+	mu      sync.Mutex
+	assocs  []*udpAssoc
+	opening *assocOpening
+	closed  bool // by close or retire, no flow joins anymore
+}
+
+// assocOpening is an association being opened, which the flows finding
+// no room elsewhere wait for.
+type assocOpening struct {
+	done chan struct{}
+	err  error
+}
+
+// udpAssoc is one association: the TCP connection that keeps it alive,
+// and the relay its datagrams go through.
+type udpAssoc struct {
+	ctrl  net.Conn
+	relay *net.UDPAddr
+
+	// guarded by the pool
+	flows map[*assocConn]struct{}
+	idle  *time.Timer
+	dead  bool
+}
+
+func newUDPAssocPool(open func(context.Context) (net.Conn, *net.UDPAddr, error)) *udpAssocPool {
+	return &udpAssocPool{open: open}
+}
+
+// dial returns the packet conn of a new flow.
+func (p *udpAssocPool) dial() (net.PacketConn, error) {
+	pc, err := dialer.ListenPacket("udp", "")
+	if err != nil {
+		return nil, fmt.Errorf("listen packet: %w", err)
+	}
+	c := &assocConn{PacketConn: pc, pool: p}
+	if c.assoc, err = p.claim(c); err != nil {
+		pc.Close()
+		return nil, err
+	}
+	return c, nil
+}
+
+// claim adds c to an association with room for it, or to a new one once
+// opened.
+func (p *udpAssocPool) claim(c *assocConn) (*udpAssoc, error) {
+	for {
+		p.mu.Lock()
+		if p.closed {
+			p.mu.Unlock()
+			return nil, net.ErrClosed
+		}
+		for _, a := range p.assocs {
+			if len(a.flows) < udpAssocFlows {
+				a.flows[c] = struct{}{}
+				if a.idle != nil {
+					a.idle.Stop()
+					a.idle = nil
+				}
+				p.mu.Unlock()
+				return a, nil
+			}
+		}
+		if o := p.opening; o != nil {
+			p.mu.Unlock()
+			<-o.done
+			if o.err != nil {
+				return nil, o.err
+			}
+			continue
+		}
+		o := &assocOpening{done: make(chan struct{})}
+		p.opening = o
+		p.mu.Unlock()
+
+		o.err = p.add()
+		p.mu.Lock()
+		p.opening = nil
+		p.mu.Unlock()
+		close(o.done)
+		if o.err != nil {
+			return nil, o.err
+		}
+	}
+}
+
+// add opens an association and puts it in the pool, idle.
+func (p *udpAssocPool) add() error {
+	ctx, cancel := context.WithTimeout(context.Background(), tcpConnectTimeout)
+	defer cancel()
+	ctrl, relay, err := p.open(ctx)
+	if err != nil {
+		return err
+	}
+	a := &udpAssoc{
+		ctrl:  ctrl,
+		relay: relay,
+		flows: make(map[*assocConn]struct{}),
+	}
+
+	p.mu.Lock()
+	if p.closed {
+		p.mu.Unlock()
+		ctrl.Close()
+		return net.ErrClosed
+	}
+	p.assocs = append(p.assocs, a)
+	a.idle = time.AfterFunc(udpAssocIdle, func() { p.expire(a) })
+	p.mu.Unlock()
+
+	go p.watch(a)
+	return nil
+}
+
+// release takes c off its association, which waits udpAssocIdle for
+// other flows once it has none left, or closes when the pool is retired.
+func (p *udpAssocPool) release(c *assocConn) {
+	p.mu.Lock()
+	a := c.assoc
+	delete(a.flows, c)
+	if len(a.flows) > 0 || a.dead {
+		p.mu.Unlock()
+		return
+	}
+	if !p.closed {
+		a.idle = time.AfterFunc(udpAssocIdle, func() { p.expire(a) })
+		p.mu.Unlock()
+		return
+	}
+	p.removeLocked(a)
+	p.mu.Unlock()
+	a.ctrl.Close()
+}
+
+// removeLocked takes a out of the pool and returns the flows on it.
+func (p *udpAssocPool) removeLocked(a *udpAssoc) []*assocConn {
+	a.dead = true
+	if a.idle != nil {
+		a.idle.Stop()
+		a.idle = nil
+	}
+	if i := slices.Index(p.assocs, a); i >= 0 {
+		p.assocs = slices.Delete(p.assocs, i, i+1)
+	}
+	flows := make([]*assocConn, 0, len(a.flows))
+	for c := range a.flows {
+		flows = append(flows, c)
+	}
+	return flows
+}
+
+// expire closes a if it is still without flows.
+func (p *udpAssocPool) expire(a *udpAssoc) {
+	p.mu.Lock()
+	if len(a.flows) > 0 || a.dead {
+		p.mu.Unlock()
+		return
+	}
+	p.removeLocked(a)
+	p.mu.Unlock()
+	a.ctrl.Close()
+}
+
+// drop closes a, and the flows on it with it, so that they open new
+// ones instead of waiting for replies that cannot come.
+func (p *udpAssocPool) drop(a *udpAssoc) {
+	p.mu.Lock()
+	if a.dead {
+		p.mu.Unlock()
+		return
+	}
+	flows := p.removeLocked(a)
+	p.mu.Unlock()
+
+	a.ctrl.Close()
+	for _, c := range flows {
+		c.Close()
+	}
+}
+
+// close closes every association and their flows.
+func (p *udpAssocPool) close() {
+	p.mu.Lock()
+	p.closed = true
+	assocs := slices.Clone(p.assocs)
+	var flows []*assocConn
+	for _, a := range assocs {
+		flows = append(flows, p.removeLocked(a)...)
+	}
+	p.mu.Unlock()
+
+	for _, a := range assocs {
+		a.ctrl.Close()
+	}
+	for _, c := range flows {
+		c.Close()
+	}
+}
+
+// retire closes the associations without flows, and lets the others
+// close with their last flow. No flow joins them anymore.
+func (p *udpAssocPool) retire() {
+	p.mu.Lock()
+	p.closed = true
+	var idle []*udpAssoc
+	for _, a := range slices.Clone(p.assocs) {
+		if len(a.flows) == 0 {
+			p.removeLocked(a)
+			idle = append(idle, a)
+		}
+	}
+	p.mu.Unlock()
+
+	for _, a := range idle {
+		a.ctrl.Close()
+	}
+}
+
+// watch drops a once its TCP connection ends.
+func (p *udpAssocPool) watch(a *udpAssoc) {
+	// A UDP association terminates when the TCP connection that the UDP
+	// ASSOCIATE request arrived on terminates. RFC1928
+	io.Copy(io.Discard, a.ctrl)
+	p.drop(a)
+}
+
+// assocConn is the packet conn of a flow, a socket of its own over a
+// shared association.
+type assocConn struct {
+	net.PacketConn
+
+	pool  *udpAssocPool
+	assoc *udpAssoc
+	once  sync.Once
+}
+
+func (c *assocConn) WriteTo(b []byte, addr net.Addr) (int, error) {
+	var dst socks5.Addr
+	if ma, ok := addr.(*M.Addr); ok {
+		dst = serializeSocksAddr(ma.Metadata())
+	} else {
+		dst = socks5.ParseAddr(addr)
+	}
+	if !dst.Valid() {
+		return 0, fmt.Errorf("invalid address: %s", addr)
+	}
+
+	buf := buffer.Get(3 + len(dst) + len(b))
+	defer buffer.Put(buf)
+	clear(buf[:3]) // RSV, FRAG
+	n := 3 + copy(buf[3:], dst)
+	n += copy(buf[n:], b)
+	if _, err := c.PacketConn.WriteTo(buf[:n], c.assoc.relay); err != nil {
+		return 0, err
+	}
+	return len(b), nil
+}
+
+func (c *assocConn) ReadFrom(b []byte) (int, net.Addr, error) {
+	n, _, err := c.PacketConn.ReadFrom(b)
+	if err != nil {
+		return 0, nil, err
+	}
+
+	addr, payload, err := socks5.DecodeUDPPacket(b[:n])
+	if err != nil {
+		return 0, nil, err
+	}
+	udpAddr := addr.UDPAddr()
+	if udpAddr == nil {
+		return 0, nil, fmt.Errorf("convert %s to UDPAddr is nil", addr)
+	}
+	return copy(b, payload), udpAddr, nil
+}
+
+func (c *assocConn) Close() error {
+	var err error
+	c.once.Do(func() {
+		err = c.PacketConn.Close()
+		c.pool.release(c)
+	})
+	return err
+}
@@ -0,0 +1,310 @@
+package proxy
+
+import (
+	"io"
+	"net"
+	"net/netip"
+	"sync"
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"go.uber.org/atomic"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+	"github.com/xjasonlyu/tun2socks/v2/transport/uot"
+)
+
+// socksUDPStandIn is a SOCKS5 server whose UDP associations, and
+// UDP-over-TCP sessions, echo every datagram as if its destination
+// answered. It counts the associations it granted.
+func socksUDPStandIn(tb testing.TB) (string, *atomic.Int64) {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(tb, err)
+	tb.Cleanup(func() { l.Close() })
+
+	assocs := atomic.NewInt64(0)
+	go func() {
+		for {
+			c, err := l.Accept()
+			if err != nil {
+				return
+			}
+			go serveUDPStandIn(c, assocs)
+		}
+	}()
+	return l.Addr().String(), assocs
+}
+
+func serveUDPStandIn(c net.Conn, assocs *atomic.Int64) {
+	defer c.Close()
+	buf := make([]byte, socks5.MaxAddrLen)
+	// VER, NMETHODS, METHODS
+	if _, err := io.ReadFull(c, buf[:3]); err != nil {
+		return
+	}
+	c.Write([]byte{socks5.Version, socks5.MethodNoAuth})
+	// VER, CMD, RSV, ADDR
+	if _, err := io.ReadFull(c, buf[:3]); err != nil {
+		return
+	}
+	cmd := socks5.Command(buf[1])
+	if _, err := socks5.ReadAddr(c, buf); err != nil {
+		return
+	}
+
+	switch cmd {
+	case socks5.CmdConnect: // to the UDP-over-TCP pseudo destination
+		c.Write([]byte{socks5.Version, 0, 0, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0})
+		pc, _, err := uot.Server(c)
+		if err != nil {
+			return
+		}
+		echoPackets(pc)
+	case socks5.CmdUDPAssociate:
+		pc, err := net.ListenPacket("udp", "127.0.0.1:0")
+		if err != nil {
+			return
+		}
+		defer pc.Close()
+		assocs.Inc()
+		c.Write(append([]byte{socks5.Version, 0, 0}, socks5.ParseAddr(pc.LocalAddr())...))
+		// The SOCKS header of a reply names the destination just as
+		// the one of the request did.
+		go echoPackets(pc)
+		io.Copy(io.Discard, c)
+	}
+}
+
+func echoPackets(pc net.PacketConn) {
+	b := make([]byte, 1<<16)
+	for {
+		n, from, err := pc.ReadFrom(b)
+		if err != nil {
+			return
+		}
+		pc.WriteTo(b[:n], from)
+	}
+}
+
+func udpMetadata(src, dst string) *M.Metadata {
+	s, d := netip.MustParseAddrPort(src), netip.MustParseAddrPort(dst)
+	return &M.Metadata{
+		Network: M.UDP,
+		SrcIP:   s.Addr(),
+		SrcPort: s.Port(),
+		DstIP:   d.Addr(),
+		DstPort: d.Port(),
+	}
+}
+
+// exchange sends msg to dst through pc and checks that its echo comes
+// back from dst.
+func exchange(tb testing.TB, pc net.PacketConn, dst, msg string) {
+	to := net.UDPAddrFromAddrPort(netip.MustParseAddrPort(dst))
+	_, err := pc.WriteTo([]byte(msg), to)
+	require.NoError(tb, err)
+	b := make([]byte, 64)
+	n, from, err := pc.ReadFrom(b)
+	require.NoError(tb, err)
+	assert.Equal(tb, msg, string(b[:n]))
+	assert.Equal(tb, to.String(), from.String())
+}
+
+func TestUDPAssocShared(t *testing.T) {
+	addr, assocs := socksUDPStandIn(t)
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	defer p.Close()
+
+	// Flows share an association whatever their destinations, and the
+	// replies of each go to it alone.
+	var flows []net.PacketConn
+	for i, dst := range []string{"1.1.1.1:53", "8.8.8.8:53", "1.1.1.1:53"} {
+		pc, err := p.DialUDP(udpMetadata("10.0.0.2:4000", dst))
+		require.NoError(t, err)
+		defer pc.Close()
+		exchange(t, pc, dst, "query "+string(rune('a'+i)))
+		flows = append(flows, pc)
+	}
+	exchange(t, flows[0], "9.9.9.9:53", "other")
+	exchange(t, flows[2], "1.1.1.1:53", "again")
+	assert.EqualValues(t, 1, assocs.Load())
+
+	// Closed flows leave their association to the next ones.
+	for _, pc := range flows {
+		pc.Close()
+	}
+	pc, err := p.DialUDP(udpMetadata("10.0.0.4:6000", "1.1.1.1:53"))
+	require.NoError(t, err)
+	defer pc.Close()
+	exchange(t, pc, "1.1.1.1:53", "later")
+	assert.EqualValues(t, 1, assocs.Load())
+}
+
+func TestUDPAssocBounded(t *testing.T) {
+	addr, assocs := socksUDPStandIn(t)
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	defer p.Close()
+
+	// A burst of flows to one destination, like DNS queries, opens a
+	// single association while they all wait for their answers.
+	flows := make([]net.PacketConn, udpAssocFlows)
+	errs := make([]error, udpAssocFlows)
+	var wg sync.WaitGroup
+	for i := range flows {
+		wg.Add(1)
+		go func() {
+			defer wg.Done()
+			flows[i], errs[i] = p.DialUDP(udpMetadata("10.0.0.2:4000", "1.1.1.1:53"))
+		}()
+	}
+	wg.Wait()
+	for i, pc := range flows {
+		require.NoError(t, errs[i])
+		defer pc.Close()
+		to := net.UDPAddrFromAddrPort(netip.MustParseAddrPort("1.1.1.1:53"))
+		_, err := pc.WriteTo([]byte{byte(i)}, to)
+		require.NoError(t, err)
+	}
+	b := make([]byte, 64)
+	for i, pc := range flows {
+		n, _, err := pc.ReadFrom(b)
+		require.NoError(t, err)
+		assert.Equal(t, []byte{byte(i)}, b[:n])
+	}
+	assert.EqualValues(t, 1, assocs.Load())
+
+	// Past udpAssocFlows, one more opens.
+	pc, err := p.DialUDP(udpMetadata("10.0.0.2:4000", "1.1.1.1:53"))
+	require.NoError(t, err)
+	defer pc.Close()
+	exchange(t, pc, "1.1.1.1:53", "query")
+	assert.EqualValues(t, 2, assocs.Load())
+}
+
+func TestUDPAssocDropped(t *testing.T) {
+	addr, _ := socksUDPStandIn(t)
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	defer p.Close()
+
+	pc, err := p.DialUDP(udpMetadata("10.0.0.2:4000", "1.1.1.1:53"))
+	require.NoError(t, err)
+	defer pc.Close()
+
+	// The association ends with its TCP connection, and its flows
+	// with it.
+	p.assocs.mu.Lock()
+	ctrl := p.assocs.assocs[0].ctrl
+	p.assocs.mu.Unlock()
+	ctrl.Close()
+	_, _, err = pc.ReadFrom(make([]byte, 64))
+	assert.ErrorIs(t, err, net.ErrClosed)
+
+	p.assocs.mu.Lock()
+	assert.Empty(t, p.assocs.assocs)
+	p.assocs.mu.Unlock()
+}
+
+func TestUDPAssocRetired(t *testing.T) {
+	addr, _ := socksUDPStandIn(t)
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	defer p.Close()
+
+	pc, err := p.DialUDP(udpMetadata("10.0.0.2:4000", "1.1.1.1:53"))
+	require.NoError(t, err)
+	defer pc.Close()
+	exchange(t, pc, "1.1.1.1:53", "before")
+
+	// A retired proxy opens no more flows, and keeps its association
+	// until the last flow on it is done.
+	p.Retire()
+	_, err = p.DialUDP(udpMetadata("10.0.0.3:5000", "1.1.1.1:53"))
+	assert.ErrorIs(t, err, net.ErrClosed)
+	exchange(t, pc, "1.1.1.1:53", "after")
+
+	p.assocs.mu.Lock()
+	ctrl := p.assocs.assocs[0].ctrl
+	p.assocs.mu.Unlock()
+	pc.Close()
+	p.assocs.mu.Lock()
+	assert.Empty(t, p.assocs.assocs)
+	p.assocs.mu.Unlock()
+	_, err = ctrl.Read(make([]byte, 1))
+	assert.ErrorIs(t, err, net.ErrClosed)
+}
+
+func TestUDPOverTCP(t *testing.T) {
+	addr, assocs := socksUDPStandIn(t)
+	p, err := NewSocks5(addr, "", "")
+	require.NoError(t, err)
+	p.SetUDPOverTCP(true)
+	defer p.Close()
+
+	pc, err := p.DialUDP(udpMetadata("10.0.0.2:4000", "1.1.1.1:53"))
+	require.NoError(t, err)
+	defer pc.Close()
+	exchange(t, pc, "1.1.1.1:53", "query")
+	exchange(t, pc, "[2606:4700::1111]:443", "quic")
+	assert.Zero(t, assocs.Load())
+}
+
+// BenchmarkUDPAssociations has bursts of flows to one destination open
+// at once, each echoing one datagram, as DNS lookups do. per-flow stands
+// for one association per flow, the shared ones reuse theirs.
+func BenchmarkUDPAssociations(b *testing.B) {
+	const burst = 16
+	addr, assocs := socksUDPStandIn(b)
+	metadata := udpMetadata("10.0.0.2:4000", "1.1.1.1:53")
+
+	run := func(b *testing.B, dial func() (net.PacketConn, func())) {
+		b.ReportAllocs()
+		opened := assocs.Load()
+		flows := make([]net.PacketConn, burst)
+		dones := make([]func(), burst)
+		for i := 0; i < b.N; i++ {
+			for j := range flows {
+				flows[j], dones[j] = dial()
+			}
+			for _, pc := range flows {
+				exchange(b, pc, "1.1.1.1:53", "query")
+			}
+			for j, pc := range flows {
+				pc.Close()
+				dones[j]()
+			}
+		}
+		b.ReportMetric(float64(assocs.Load()-opened)/float64(b.N), "assocs/op")
+	}
+
+	b.Run("per-flow", func(b *testing.B) {
+		run(b, func() (net.PacketConn, func()) {
+			p, err := NewSocks5(addr, "", "")
+			require.NoError(b, err)
+			pc, err := p.DialUDP(metadata)
+			require.NoError(b, err)
+			return pc, func() { p.Close() }
+		})
+	})
+	for _, over := range []bool{false, true} {
+		name := "shared"
+		if over {
+			name = "udp-over-tcp"
+		}
+		b.Run(name, func(b *testing.B) {
+			p, err := NewSocks5(addr, "", "")
+			require.NoError(b, err)
+			p.SetUDPOverTCP(over)
+			defer p.Close()
+			run(b, func() (net.PacketConn, func()) {
+				pc, err := p.DialUDP(metadata)
+				require.NoError(b, err)
+				return pc, func() {}
+			})
+		})
+	}
+}
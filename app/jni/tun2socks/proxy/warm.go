@@ -0,0 +1,242 @@
+package proxy
+
+import (
+	"context"
+	"net"
+	"sync"
+	"time"
+
+	"go.uber.org/atomic"
+
+	"github.com/xjasonlyu/tun2socks/v2/log"
+)
+
+// warmMaxIdle is how long a warm connection waits to be used. Servers
+// drop connections that stay silent after the handshake, so it is short.
+const warmMaxIdle = 10 * time.Second
+
+var (
+	_warmHits   atomic.Uint64
+	_warmMisses atomic.Uint64
+	_warmSaved  atomic.Int64
+)
+
+// WarmStats returns the dials of all warm pools served by a connection
+// opened ahead, those that had to connect, and the connect time saved.
+func WarmStats() (hits, misses uint64, saved time.Duration) {
+	return _warmHits.Load(), _warmMisses.Load(), time.Duration(_warmSaved.Load())
+}
+
+// Warmer is implemented by proxies that can open connections to their
+// server ahead of demand.
+type Warmer interface {
+	// SetWarm keeps up to max connections ready, 0 turns it off. It must
+	// be called before the proxy is used.
+	SetWarm(max int)
+}
+
+// warmPool keeps connections to a server opened ahead of demand, so
+// that a new flow skips the connect, and the authentication where the
+// protocol has one that does not depend on the destination.
+type warmPool struct {
+	open func(context.Context) (net.Conn, error)
+	max  int
+
+	mu      sync.Mutex
+	idle    []*warmConn
+	filling int
+	closed  bool
+	// last is the time of the last dial, gap and connect moving averages
+	// of the time between dials and of the connect latency.
+	last    time.Time
+	gap     time.Duration
+	connect time.Duration
+}
+
+type warmConn struct {
+	net.Conn
+	timer *time.Timer
+}
+
+// newWarmPool returns nil when max is not positive, which a nil pool
+// handles as no pool at all.
+func newWarmPool(max int, open func(context.Context) (net.Conn, error)) *warmPool {
+	if max <= 0 {
+		return nil
+	}
+	return &warmPool{open: open, max: max}
+}
+
+func ewma(avg, sample time.Duration) time.Duration {
+	if avg == 0 {
+		return sample
+	}
+	return avg + (sample-avg)/4
+}
+
+// get returns a warm connection, or opens one. warm tells which.
+func (p *warmPool) get(ctx context.Context) (c net.Conn, warm bool, err error) {
+	if p == nil {
+		return nil, false, net.ErrClosed
+	}
+
+	now := time.Now()
+	p.mu.Lock()
+	if !p.last.IsZero() {
+		p.gap = ewma(p.gap, now.Sub(p.last))
+	}
+	p.last = now
+	for len(p.idle) > 0 && c == nil {
+		w := p.idle[0]
+		p.idle[0] = nil
+		p.idle = p.idle[1:]
+		// A timer that fired already is closing w.
+		if w.timer.Stop() && alive(w.Conn) {
+			c = w.Conn
+		} else {
+			w.Close()
+		}
+	}
+	saved := p.connect
+	p.refill(now)
+	p.mu.Unlock()
+
+	if c != nil {
+		_warmHits.Inc()
+		_warmSaved.Add(int64(saved))
+		return c, true, nil
+	}
+	_warmMisses.Inc()
+	c, err = p.dial(ctx)
+	return c, false, err
+}
+
+func (p *warmPool) dial(ctx context.Context) (net.Conn, error) {
+	start := time.Now()
+	c, err := p.open(ctx)
+	if err != nil {
+		return nil, err
+	}
+	p.mu.Lock()
+	p.connect = ewma(p.connect, time.Since(start))
+	p.mu.Unlock()
+	return c, nil
+}
+
+// target sizes the pool after Little's law: the dials expected while a
+// connection opens, plus one for bursts. It drops to zero once dials
+// stop for warmMaxIdle.
+func (p *warmPool) target(now time.Time) int {
+	if p.closed || p.last.IsZero() || now.Sub(p.last) > warmMaxIdle {
+		return 0
+	}
+	if p.gap == 0 {
+		return 1
+	}
+	return min(int(p.connect/p.gap)+1, p.max)
+}
+
+func (p *warmPool) refill(now time.Time) {
+	for n := p.target(now) - len(p.idle) - p.filling; n > 0; n-- {
+		p.filling++
+		go p.fill()
+	}
+}
+
+func (p *warmPool) fill() {
+	ctx, cancel := context.WithTimeout(context.Background(), tcpConnectTimeout)
+	c, err := p.dial(ctx)
+	cancel()
+
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	p.filling--
+	if err != nil {
+		log.Debugf("[WARM] %v", err)
+		return
+	}
+	if len(p.idle) >= p.target(time.Now()) {
+		c.Close()
+		return
+	}
+	w := &warmConn{Conn: c}
+	w.timer = time.AfterFunc(warmMaxIdle, func() { p.expire(w) })
+	p.idle = append(p.idle, w)
+}
+
+func (p *warmPool) expire(w *warmConn) {
+	p.mu.Lock()
+	for i, c := range p.idle {
+		if c == w {
+			p.idle = append(p.idle[:i], p.idle[i+1:]...)
+			break
+		}
+	}
+	p.mu.Unlock()
+	w.Close()
+}
+
+// close drops the warm connections and stops filling the pool.
+func (p *warmPool) close() {
+	if p == nil {
+		return
+	}
+	p.mu.Lock()
+	idle := p.idle
+	p.idle, p.closed = nil, true
+	p.mu.Unlock()
+	for _, w := range idle {
+		if w.timer.Stop() {
+			w.Close()
+		}
+	}
+}
+
+type probeKey struct{}
+
+// withProbe marks ctx as the one of a health probe, which has to measure
+// a connection of its own rather than take a warm one.
+func withProbe(ctx context.Context) context.Context {
+	return context.WithValue(ctx, probeKey{}, true)
+}
+
+func isProbe(ctx context.Context) bool {
+	return ctx.Value(probeKey{}) != nil
+}
+
+// dialWarm takes a connection from p, or opens one with open when p is
+// nil, and hands it to finish for the part of the handshake that depends
+// on the destination. A warm connection the server dropped meanwhile is
+// replaced by a fresh one, unless the server did answer and it is the
+// destination that failed. Probes always open a fresh one.
+func dialWarm(ctx context.Context, p *warmPool, open func(context.Context) (net.Conn, error),
+	finish func(net.Conn) (net.Conn, error),
+) (net.Conn, error) {
+	var (
+		c    net.Conn
+		warm bool
+		err  error
+	)
+	if p != nil && !isProbe(ctx) {
+		c, warm, err = p.get(ctx)
+	} else {
+		c, err = open(ctx)
+	}
+	if err != nil {
+		return nil, err
+	}
+
+	fc, err := finish(c)
+	if err != nil && warm && !isRemote(err) {
+		c.Close()
+		if c, err = open(ctx); err != nil {
+			return nil, err
+		}
+		fc, err = finish(c)
+	}
+	if err != nil {
+		c.Close()
+		return nil, err
+	}
+	return fc, nil
+}
@@ -0,0 +1,11 @@
+//go:build !unix
+
+package proxy
+
+import "net"
+
+// alive cannot tell here, a dropped connection fails the handshake and
+// is replaced then.
+func alive(net.Conn) bool {
+	return true
+}
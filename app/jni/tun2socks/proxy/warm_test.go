@@ -0,0 +1,115 @@
+package proxy
+
+import (
+	"context"
+	"io"
+	"net"
+	"net/netip"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// socksStandIn is a SOCKS5 server granting every CONNECT without going
+// anywhere. With dropIdle, it closes connections right after the
+// authentication instead.
+func socksStandIn(t *testing.T, dropIdle bool) string {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	t.Cleanup(func() { l.Close() })
+
+	go func() {
+		for {
+			c, err := l.Accept()
+			if err != nil {
+				return
+			}
+			go func() {
+				defer c.Close()
+				buf := make([]byte, socks5.MaxAddrLen)
+				// VER, NMETHODS, METHODS
+				if _, err := io.ReadFull(c, buf[:3]); err != nil {
+					return
+				}
+				c.Write([]byte{socks5.Version, socks5.MethodNoAuth})
+				if dropIdle {
+					return
+				}
+				// VER, CMD, RSV, ADDR
+				if _, err := io.ReadFull(c, buf[:3]); err != nil {
+					return
+				}
+				if _, err := socks5.ReadAddr(c, buf); err != nil {
+					return
+				}
+				c.Write([]byte{socks5.Version, 0, 0, socks5.AtypIPv4, 0, 0, 0, 0, 0, 0})
+				io.Copy(io.Discard, c)
+			}()
+		}
+	}()
+	return l.Addr().String()
+}
+
+var standInMetadata = &M.Metadata{
+	Network: M.TCP,
+	DstIP:   netip.MustParseAddr("1.2.3.4"),
+	DstPort: 80,
+}
+
+func dialStandIn(t *testing.T, p Proxy) {
+	c, err := p.DialContext(context.Background(), standInMetadata)
+	require.NoError(t, err)
+	c.Close()
+}
+
+func TestWarmPool(t *testing.T) {
+	p, err := NewSocks5(socksStandIn(t, false), "", "")
+	require.NoError(t, err)
+	p.SetWarm(4)
+	defer p.Close()
+
+	hits, misses, _ := WarmStats()
+	dialStandIn(t, p)
+	_, m, _ := WarmStats()
+	assert.Equal(t, misses+1, m, "the pool starts empty")
+
+	// The first dial asked for a connection to be opened ahead.
+	require.Eventually(t, func() bool {
+		p.warm.mu.Lock()
+		defer p.warm.mu.Unlock()
+		return len(p.warm.idle) > 0
+	}, time.Second, 10*time.Millisecond)
+
+	dialStandIn(t, p)
+	h, _, saved := WarmStats()
+	assert.Equal(t, hits+1, h)
+	assert.Positive(t, saved)
+}
+
+func TestWarmPoolDropped(t *testing.T) {
+	p, err := NewSocks5(socksStandIn(t, true), "", "")
+	require.NoError(t, err)
+	p.SetWarm(4)
+	defer p.Close()
+
+	_, err = p.DialContext(context.Background(), standInMetadata)
+	require.Error(t, err)
+	require.Eventually(t, func() bool {
+		p.warm.mu.Lock()
+		defer p.warm.mu.Unlock()
+		return len(p.warm.idle) > 0
+	}, time.Second, 10*time.Millisecond)
+
+	// The server dropped the warm connection, it must not be handed out.
+	time.Sleep(50 * time.Millisecond)
+	hits, _, _ := WarmStats()
+	_, err = p.DialContext(context.Background(), standInMetadata)
+	require.Error(t, err)
+	h, _, _ := WarmStats()
+	assert.Equal(t, hits, h)
+}
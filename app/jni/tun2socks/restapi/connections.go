@@ -28,11 +28,27 @@ func connectionRouter() http.Handler {
 	return r
 }
 
+// getConnections returns every connection, or with a since cursor only
+// those that changed after the snapshot that returned it. Over a
+// websocket, incremental=true makes every message after the first one
+// carry only the changes.
 func getConnections(w http.ResponseWriter, r *http.Request) {
+	var cursor uint64
+	if since := r.URL.Query().Get("since"); since != "" {
+		c, err := strconv.ParseUint(since, 10, 64)
+		if err != nil {
+			render.Status(r, http.StatusBadRequest)
+			render.JSON(w, r, ErrBadRequest)
+			return
+		}
+		cursor = c
+	}
+
 	if !websocket.IsWebSocketUpgrade(r) {
-		render.JSON(w, r, statistic.DefaultManager.Snapshot())
+		render.JSON(w, r, statistic.DefaultManager.SnapshotSince(cursor))
 		return
 	}
+	incremental := r.URL.Query().Get("incremental") == "true"
 
 	conn, err := _upgrader.Upgrade(w, r, nil)
 	if err != nil {
@@ -55,7 +71,11 @@ func getConnections(w http.ResponseWriter, r *http.Request) {
 	buf := &bytes.Buffer{}
 	sendSnapshot := func() error {
 		buf.Reset()
-		if err := json.NewEncoder(buf).Encode(statistic.DefaultManager.Snapshot()); err != nil {
+		snapshot := statistic.DefaultManager.SnapshotSince(cursor)
+		if incremental {
+			cursor = snapshot.Cursor
+		}
+		if err := json.NewEncoder(buf).Encode(snapshot); err != nil {
 			return err
 		}
 
@@ -0,0 +1,141 @@
+package rule
+
+import (
+	"net"
+	"net/netip"
+	"sync"
+	"time"
+
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+const (
+	minHostTTL = time.Minute
+	maxHostTTL = 30 * time.Minute
+)
+
+type hostEntry struct {
+	name    string
+	expires int64 // unix nano
+}
+
+// HostCache remembers which domain an address was resolved from, so that
+// domain rules can apply to connections that only carry an IP. It is fed
+// by the DNS answers relayed through the tunnel.
+type HostCache struct {
+	mu      sync.RWMutex
+	entries map[netip.Addr]hostEntry
+	size    int
+}
+
+// NewHostCache returns a cache holding at most size addresses.
+func NewHostCache(size int) *HostCache {
+	return &HostCache{
+		entries: make(map[netip.Addr]hostEntry, size),
+		size:    size,
+	}
+}
+
+// Lookup returns the domain ip was last resolved from, if still valid.
+func (c *HostCache) Lookup(ip netip.Addr) (string, bool) {
+	c.mu.RLock()
+	e, ok := c.entries[ip.Unmap()]
+	c.mu.RUnlock()
+	if !ok || e.expires < time.Now().UnixNano() {
+		return "", false
+	}
+	return e.name, true
+}
+
+// Store records that name resolved to ip for ttl.
+func (c *HostCache) Store(ip netip.Addr, name string, ttl time.Duration) {
+	ttl = min(max(ttl, minHostTTL), maxHostTTL)
+	now := time.Now().UnixNano()
+
+	c.mu.Lock()
+	defer c.mu.Unlock()
+
+	ip = ip.Unmap()
+	if _, ok := c.entries[ip]; !ok && len(c.entries) >= c.size {
+		c.evict(now)
+	}
+	c.entries[ip] = hostEntry{name: name, expires: now + int64(ttl)}
+}
+
+// evict drops the expired entries, or an arbitrary eighth of the cache
+// when none has expired. It must be called with mu held.
+func (c *HostCache) evict(now int64) {
+	n := 0
+	for ip, e := range c.entries {
+		if e.expires < now {
+			delete(c.entries, ip)
+			n++
+		}
+	}
+	for ip := range c.entries {
+		if n >= c.size/8+1 {
+			break
+		}
+		delete(c.entries, ip)
+		n++
+	}
+}
+
+// observe records the A and AAAA answers of a DNS response.
+func (c *HostCache) observe(msg []byte) {
+	var p dnsmessage.Parser
+	h, err := p.Start(msg)
+	if err != nil || !h.Response || h.RCode != dnsmessage.RCodeSuccess {
+		return
+	}
+	q, err := p.Question()
+	if err != nil {
+		return
+	}
+	if err = p.SkipAllQuestions(); err != nil {
+		return
+	}
+	name := normalizeDomain(q.Name.String())
+
+	for {
+		ah, err := p.AnswerHeader()
+		if err != nil {
+			return
+		}
+		ttl := time.Duration(ah.TTL) * time.Second
+		switch ah.Type {
+		case dnsmessage.TypeA:
+			r, err := p.AResource()
+			if err != nil {
+				return
+			}
+			c.Store(netip.AddrFrom4(r.A), name, ttl)
+		case dnsmessage.TypeAAAA:
+			r, err := p.AAAAResource()
+			if err != nil {
+				return
+			}
+			c.Store(netip.AddrFrom16(r.AAAA), name, ttl)
+		default:
+			// CNAMEs are attributed to the queried name.
+			if err = p.SkipAnswer(); err != nil {
+				return
+			}
+		}
+	}
+}
+
+// dnsSniffConn feeds the DNS answers read from a port 53 exchange into a
+// HostCache before handing them back to the caller.
+type dnsSniffConn struct {
+	net.PacketConn
+	hosts *HostCache
+}
+
+func (pc *dnsSniffConn) ReadFrom(p []byte) (int, net.Addr, error) {
+	n, from, err := pc.PacketConn.ReadFrom(p)
+	if n > 0 {
+		pc.hosts.observe(p[:n])
+	}
+	return n, from, err
+}
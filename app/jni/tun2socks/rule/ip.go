@@ -0,0 +1,164 @@
+package rule
+
+import (
+	"encoding/binary"
+	"net/netip"
+	"sort"
+)
+
+// u128 is an IPv6 address, or an IPv4 one mapped into ::ffff:0:0/96, as
+// a pair of integers so that ranges compare without allocating.
+type u128 struct {
+	hi, lo uint64
+}
+
+var maxU128 = u128{^uint64(0), ^uint64(0)}
+
+func addrToU128(ip netip.Addr) u128 {
+	b := ip.As16()
+	return u128{binary.BigEndian.Uint64(b[:8]), binary.BigEndian.Uint64(b[8:])}
+}
+
+func (a u128) less(b u128) bool {
+	return a.hi < b.hi || a.hi == b.hi && a.lo < b.lo
+}
+
+func (a u128) next() u128 {
+	if a.lo == ^uint64(0) {
+		return u128{a.hi + 1, 0}
+	}
+	return u128{a.hi, a.lo + 1}
+}
+
+func (a u128) prev() u128 {
+	if a.lo == 0 {
+		return u128{a.hi - 1, ^uint64(0)}
+	}
+	return u128{a.hi, a.lo - 1}
+}
+
+// hostMask returns a mask of the n low bits.
+func hostMask(n int) u128 {
+	switch {
+	case n <= 0:
+		return u128{}
+	case n >= 128:
+		return maxU128
+	case n > 64:
+		return u128{^uint64(0) >> (128 - n), ^uint64(0)}
+	default:
+		return u128{0, ^uint64(0) >> (64 - n)}
+	}
+}
+
+type ipPrefix struct {
+	lo, hi u128
+	rule   int32
+}
+
+func newIPPrefix(p netip.Prefix, rule int32) ipPrefix {
+	p = p.Masked()
+	bits := p.Bits()
+	if p.Addr().Is4() {
+		bits += 96
+	}
+	lo := addrToU128(p.Addr())
+	m := hostMask(128 - bits)
+	return ipPrefix{lo: lo, hi: u128{lo.hi | m.hi, lo.lo | m.lo}, rule: rule}
+}
+
+// ipRange maps every address in [lo, hi] to a rule.
+type ipRange struct {
+	lo, hi u128
+	rule   int32
+}
+
+// ipTable is the flattened form of a longest-prefix-match trie: the
+// nested prefixes are cut into sorted, disjoint ranges that each carry
+// the rule of their most specific prefix. A lookup is a binary search,
+// and the table costs 36 bytes per range instead of a node per bit.
+type ipTable []ipRange
+
+func (t ipTable) lookup(ip netip.Addr) int32 {
+	x := addrToU128(ip)
+	// find the first range ending at or after x.
+	i, j := 0, len(t)
+	for i < j {
+		h := int(uint(i+j) >> 1)
+		if t[h].hi.less(x) {
+			i = h + 1
+		} else {
+			j = h
+		}
+	}
+	if i < len(t) && !x.less(t[i].lo) {
+		return t[i].rule
+	}
+	return noRule
+}
+
+// compileIPs flattens prefixes into an ipTable. Any two prefixes are
+// either disjoint or nested, so a sweep with a stack of the enclosing
+// prefixes emits each gap with the rule of the innermost one.
+func compileIPs(prefixes []ipPrefix) ipTable {
+	if len(prefixes) == 0 {
+		return nil
+	}
+	// outer prefixes first, then the earlier rule for duplicates.
+	sort.SliceStable(prefixes, func(a, b int) bool {
+		pa, pb := prefixes[a], prefixes[b]
+		if pa.lo != pb.lo {
+			return pa.lo.less(pb.lo)
+		}
+		if pa.hi != pb.hi {
+			return pb.hi.less(pa.hi)
+		}
+		return pa.rule < pb.rule
+	})
+
+	t := make(ipTable, 0, len(prefixes))
+	emit := func(lo, hi u128, rule int32) {
+		if n := len(t); n > 0 && t[n-1].rule == rule && t[n-1].hi.next() == lo {
+			t[n-1].hi = hi
+			return
+		}
+		t = append(t, ipRange{lo: lo, hi: hi, rule: rule})
+	}
+
+	var (
+		stack  []ipPrefix
+		cursor u128
+		done   bool // cursor moved past the last address
+	)
+	// pop closes the innermost open prefix.
+	pop := func() {
+		top := stack[len(stack)-1]
+		stack = stack[:len(stack)-1]
+		if !done && !top.hi.less(cursor) {
+			emit(cursor, top.hi, top.rule)
+			if top.hi == maxU128 {
+				done = true
+			} else {
+				cursor = top.hi.next()
+			}
+		}
+	}
+
+	for i, p := range prefixes {
+		if i > 0 && p.lo == prefixes[i-1].lo && p.hi == prefixes[i-1].hi {
+			continue // duplicate, the earlier rule wins
+		}
+		for len(stack) > 0 && stack[len(stack)-1].hi.less(p.lo) {
+			pop()
+		}
+		if len(stack) > 0 && cursor.less(p.lo) {
+			emit(cursor, p.lo.prev(), stack[len(stack)-1].rule)
+		}
+		cursor = p.lo
+		stack = append(stack, p)
+	}
+	for len(stack) > 0 {
+		pop()
+	}
+	return t[:len(t):len(t)]
+}
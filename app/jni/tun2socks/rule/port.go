@@ -0,0 +1,77 @@
+package rule
+
+type portRange struct {
+	lo, hi uint16
+	rule   int32
+}
+
+// portTable holds sorted, disjoint port ranges.
+type portTable []portRange
+
+func (t portTable) lookup(port uint16) int32 {
+	i, j := 0, len(t)
+	for i < j {
+		h := int(uint(i+j) >> 1)
+		if t[h].hi < port {
+			i = h + 1
+		} else {
+			j = h
+		}
+	}
+	if i < len(t) && t[i].lo <= port {
+		return t[i].rule
+	}
+	return noRule
+}
+
+// compilePorts resolves overlapping ranges to the earliest rule. Ranges
+// arrive in rule order, so each port is claimed by the first range that
+// covers it; next skips the ports already claimed so that every port is
+// visited once whatever the overlap.
+func compilePorts(ranges []portRange) portTable {
+	if len(ranges) == 0 {
+		return nil
+	}
+
+	var (
+		owner [1 << 16]int32
+		next  [1<<16 + 1]int32
+	)
+	for i := range owner {
+		owner[i] = noRule
+		next[i] = int32(i)
+	}
+	next[1<<16] = 1 << 16
+
+	// find returns the first unclaimed port at or after p.
+	find := func(p int32) int32 {
+		root := p
+		for next[root] != root {
+			root = next[root]
+		}
+		for next[p] != root {
+			next[p], p = root, next[p]
+		}
+		return root
+	}
+
+	for _, r := range ranges {
+		for p := find(int32(r.lo)); p <= int32(r.hi); p = find(p) {
+			owner[p] = r.rule
+			next[p] = p + 1
+		}
+	}
+
+	var t portTable
+	for p := 0; p < len(owner); p++ {
+		if owner[p] == noRule {
+			continue
+		}
+		if n := len(t); n > 0 && t[n-1].rule == owner[p] && int(t[n-1].hi)+1 == p {
+			t[n-1].hi = uint16(p)
+			continue
+		}
+		t = append(t, portRange{lo: uint16(p), hi: uint16(p), rule: owner[p]})
+	}
+	return t
+}
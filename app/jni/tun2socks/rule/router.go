@@ -0,0 +1,118 @@
+package rule
+
+import (
+	"context"
+	"fmt"
+	"net"
+
+	"github.com/xjasonlyu/tun2socks/v2/log"
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/proxy"
+)
+
+const dnsPort = 53
+
+var (
+	_ proxy.Dialer    = (*Router)(nil)
+	_ proxy.SharedUDP = (*Router)(nil)
+)
+
+// Router is a proxy.Dialer that picks the dialer of every connection
+// from a rule Set. Connections matching no rule use the PROXY target.
+type Router struct {
+	set     *Set
+	dialers []proxy.Dialer // indexed like set.Targets()
+	def     proxy.Dialer
+	hosts   *HostCache
+}
+
+// NewRouter binds the targets of set to dialers. DIRECT and REJECT are
+// provided, PROXY and the named targets must be present in named.
+func NewRouter(set *Set, named map[string]proxy.Dialer, hosts *HostCache) (*Router, error) {
+	def, ok := named[TargetProxy]
+	if !ok {
+		return nil, fmt.Errorf("no dialer for %s", TargetProxy)
+	}
+
+	r := &Router{
+		set:     set,
+		dialers: make([]proxy.Dialer, len(set.Targets())),
+		def:     def,
+		hosts:   hosts,
+	}
+	for i, target := range set.Targets() {
+		switch target {
+		case TargetDirect:
+			r.dialers[i] = proxy.NewDirect()
+		case TargetReject:
+			r.dialers[i] = proxy.NewReject()
+		default:
+			d, ok := named[target]
+			if !ok {
+				return nil, fmt.Errorf("unknown target: %s", target)
+			}
+			r.dialers[i] = d
+		}
+	}
+	return r, nil
+}
+
+// Default returns the dialer used when no rule matches.
+func (r *Router) Default() proxy.Dialer {
+	return r.def
+}
+
+func (r *Router) DialContext(ctx context.Context, metadata *M.Metadata) (net.Conn, error) {
+	return r.route(metadata).DialContext(ctx, metadata)
+}
+
+func (r *Router) DialUDP(metadata *M.Metadata) (net.PacketConn, error) {
+	pc, err := r.route(metadata).DialUDP(metadata)
+	if err != nil {
+		return nil, err
+	}
+	if metadata.DstPort == dnsPort && r.hosts != nil {
+		pc = &dnsSniffConn{PacketConn: pc, hosts: r.hosts}
+	}
+	return pc, nil
+}
+
+// SharedUDPKey shares sockets between the flows routed to the same
+// target, as long as its dialer shares them. DNS flows are kept apart so
+// only they go through the sniffer.
+func (r *Router) SharedUDPKey(metadata *M.Metadata) (string, bool) {
+	i, d := r.match(metadata)
+	su, ok := d.(proxy.SharedUDP)
+	if !ok {
+		return "", false
+	}
+	key, ok := su.SharedUDPKey(metadata)
+	if !ok {
+		return "", false
+	}
+	key = fmt.Sprintf("%d/%s", i, key)
+	if metadata.DstPort == dnsPort && r.hosts != nil {
+		key += "/dns"
+	}
+	return key, true
+}
+
+func (r *Router) route(metadata *M.Metadata) proxy.Dialer {
+	_, d := r.match(metadata)
+	return d
+}
+
+// match returns the index of the target metadata is routed to, -1 for
+// the default, and its dialer.
+func (r *Router) match(metadata *M.Metadata) (int, proxy.Dialer) {
+	var domain string
+	if r.hosts != nil {
+		domain, _ = r.hosts.Lookup(metadata.DstIP)
+	}
+	i := r.set.Match(domain, metadata.DstIP, metadata.DstPort)
+	if i < 0 {
+		return i, r.def
+	}
+	log.Debugf("[RULE] %s (%s) via %s", metadata.DestinationAddress(), domain, r.set.targets[i])
+	return i, r.dialers[i]
+}
@@ -0,0 +1,263 @@
+// Package rule compiles split routing rules into immutable lookup tables
+// and routes connections through them.
+//
+// A rule file holds one rule per line in the form TYPE,VALUE,TARGET:
+//
+//	DOMAIN,example.com,DIRECT
+//	DOMAIN-SUFFIX,google.com,PROXY
+//	IP-CIDR,10.0.0.0/8,DIRECT
+//	IP-CIDR6,2001:db8::/32,REJECT
+//	DST-PORT,6881-6889,REJECT
+//	MATCH,PROXY
+//
+// DIRECT, REJECT and PROXY (the configured upstream) are built in, other
+// targets must be declared with PROXY,name,url. Lines starting with '#'
+// are comments. The first rule in file order that matches wins, except
+// among IP rules where the longest prefix wins.
+package rule
+
+import (
+	"bufio"
+	"errors"
+	"fmt"
+	"io"
+	"net/netip"
+	"strconv"
+	"strings"
+)
+
+// Built-in targets.
+const (
+	TargetDirect = "DIRECT"
+	TargetReject = "REJECT"
+	TargetProxy  = "PROXY"
+)
+
+// noRule marks a failed lookup.
+const noRule = -1
+
+// Set is a compiled rule set. It is immutable once built and safe for
+// concurrent lookups.
+type Set struct {
+	// targets holds the distinct target names, rules maps a rule index
+	// (its position in the file) to an index into targets.
+	targets []string
+	rules   []uint16
+
+	exact  map[string]int32
+	suffix map[string]int32
+	ips    ipTable
+	ports  portTable
+	final  int32
+
+	proxies map[string]string
+}
+
+// Parse compiles the rules read from r.
+func Parse(r io.Reader) (*Set, error) {
+	b := newBuilder()
+
+	sc := bufio.NewScanner(r)
+	sc.Buffer(make([]byte, 0, 64*1024), 64*1024)
+	for line := 1; sc.Scan(); line++ {
+		if err := b.add(sc.Text()); err != nil {
+			return nil, fmt.Errorf("line %d: %w", line, err)
+		}
+	}
+	if err := sc.Err(); err != nil {
+		return nil, err
+	}
+	return b.build(), nil
+}
+
+// Len returns the number of rules.
+func (s *Set) Len() int {
+	return len(s.rules)
+}
+
+// Targets returns the distinct target names used by the rules.
+func (s *Set) Targets() []string {
+	return s.targets
+}
+
+// Proxies returns the named proxy URLs declared by the rule file.
+func (s *Set) Proxies() map[string]string {
+	return s.proxies
+}
+
+// Match returns the target index for a connection to domain (which may
+// be empty), ip and port, or -1 if no rule applies.
+func (s *Set) Match(domain string, ip netip.Addr, port uint16) int {
+	best := s.final
+
+	if domain != "" {
+		if i, ok := s.exact[domain]; ok && uint32(i) < uint32(best) {
+			best = i
+		}
+		if len(s.suffix) > 0 {
+			// walk the label boundaries from the full name to the TLD.
+			for d := domain; ; {
+				if i, ok := s.suffix[d]; ok && uint32(i) < uint32(best) {
+					best = i
+				}
+				dot := strings.IndexByte(d, '.')
+				if dot < 0 {
+					break
+				}
+				d = d[dot+1:]
+			}
+		}
+	}
+	if ip.IsValid() {
+		if i := s.ips.lookup(ip); i != noRule && uint32(i) < uint32(best) {
+			best = i
+		}
+	}
+	if i := s.ports.lookup(port); i != noRule && uint32(i) < uint32(best) {
+		best = i
+	}
+
+	if best == noRule {
+		return noRule
+	}
+	return int(s.rules[best])
+}
+
+// builder accumulates rules before they are compiled.
+type builder struct {
+	targets map[string]uint16
+	set     *Set
+	ips     []ipPrefix
+	ports   []portRange
+}
+
+func newBuilder() *builder {
+	return &builder{
+		targets: make(map[string]uint16),
+		set: &Set{
+			exact:   make(map[string]int32),
+			suffix:  make(map[string]int32),
+			final:   noRule,
+			proxies: make(map[string]string),
+		},
+	}
+}
+
+func (b *builder) add(line string) error {
+	line = strings.TrimSpace(line)
+	if line == "" || line[0] == '#' {
+		return nil
+	}
+
+	fields := strings.SplitN(line, ",", 3)
+	for i := range fields {
+		fields[i] = strings.TrimSpace(fields[i])
+	}
+	kind := strings.ToUpper(fields[0])
+
+	switch kind {
+	case "MATCH", "FINAL":
+		if len(fields) != 2 {
+			return errors.New("MATCH takes a target only")
+		}
+		if b.set.final == noRule {
+			b.set.final = b.rule(fields[1])
+		}
+		return nil
+	case "PROXY":
+		if len(fields) != 3 || fields[1] == "" {
+			return errors.New("PROXY takes a name and a URL")
+		}
+		if isBuiltin(strings.ToUpper(fields[1])) {
+			return fmt.Errorf("%s is a reserved target", fields[1])
+		}
+		b.set.proxies[fields[1]] = fields[2]
+		return nil
+	}
+
+	if len(fields) != 3 {
+		return fmt.Errorf("malformed rule: %s", line)
+	}
+	value, target := fields[1], fields[2]
+	// drop options such as no-resolve, the engine never resolves.
+	if i := strings.IndexByte(target, ','); i >= 0 {
+		target = strings.TrimSpace(target[:i])
+	}
+
+	switch kind {
+	case "DOMAIN":
+		name := normalizeDomain(value)
+		if _, dup := b.set.exact[name]; !dup {
+			b.set.exact[name] = b.rule(target)
+		}
+	case "DOMAIN-SUFFIX":
+		name := strings.TrimPrefix(normalizeDomain(value), ".")
+		if _, dup := b.set.suffix[name]; !dup {
+			b.set.suffix[name] = b.rule(target)
+		}
+	case "IP-CIDR", "IP-CIDR6":
+		prefix, err := netip.ParsePrefix(value)
+		if err != nil {
+			return err
+		}
+		b.ips = append(b.ips, newIPPrefix(prefix, b.rule(target)))
+	case "DST-PORT":
+		lo, hi, err := parsePortRange(value)
+		if err != nil {
+			return err
+		}
+		b.ports = append(b.ports, portRange{lo: lo, hi: hi, rule: b.rule(target)})
+	default:
+		return fmt.Errorf("unsupported rule type: %s", fields[0])
+	}
+	return nil
+}
+
+// rule registers a rule pointing at target and returns its index.
+func (b *builder) rule(target string) int32 {
+	if isBuiltin(strings.ToUpper(target)) {
+		target = strings.ToUpper(target)
+	}
+	t, ok := b.targets[target]
+	if !ok {
+		t = uint16(len(b.set.targets))
+		b.targets[target] = t
+		b.set.targets = append(b.set.targets, target)
+	}
+	b.set.rules = append(b.set.rules, t)
+	return int32(len(b.set.rules) - 1)
+}
+
+func (b *builder) build() *Set {
+	s := b.set
+	s.ips = compileIPs(b.ips)
+	s.ports = compilePorts(b.ports)
+	return s
+}
+
+func isBuiltin(target string) bool {
+	return target == TargetDirect || target == TargetReject || target == TargetProxy
+}
+
+// normalizeDomain lower-cases name and strips the root dot.
+func normalizeDomain(name string) string {
+	return strings.ToLower(strings.TrimSuffix(name, "."))
+}
+
+func parsePortRange(s string) (lo, hi uint16, err error) {
+	from, to, ranged := strings.Cut(s, "-")
+	l, err := strconv.ParseUint(strings.TrimSpace(from), 10, 16)
+	if err != nil {
+		return 0, 0, err
+	}
+	h := l
+	if ranged {
+		if h, err = strconv.ParseUint(strings.TrimSpace(to), 10, 16); err != nil {
+			return 0, 0, err
+		}
+	}
+	if h < l {
+		return 0, 0, fmt.Errorf("invalid port range: %s", s)
+	}
+	return uint16(l), uint16(h), nil
+}
@@ -0,0 +1,167 @@
+package rule
+
+import (
+	"fmt"
+	"net/netip"
+	"strings"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+const testRules = `
+# comment
+PROXY,hk,socks5://127.0.0.1:1080
+DOMAIN,exact.example.com,REJECT
+DOMAIN-SUFFIX,example.com,DIRECT
+DOMAIN-SUFFIX,video.example.com,hk
+IP-CIDR,10.0.0.0/8,DIRECT
+IP-CIDR,10.1.0.0/16,REJECT
+IP-CIDR,10.1.2.0/24,hk,no-resolve
+IP-CIDR6,2001:db8::/32,REJECT
+DST-PORT,6881-6889,REJECT
+DST-PORT,6885,DIRECT
+MATCH,PROXY
+`
+
+func target(t *testing.T, s *Set, domain, ip string, port uint16) string {
+	t.Helper()
+	var addr netip.Addr
+	if ip != "" {
+		addr = netip.MustParseAddr(ip)
+	}
+	i := s.Match(domain, addr, port)
+	if i < 0 {
+		return ""
+	}
+	return s.Targets()[i]
+}
+
+func TestSetMatch(t *testing.T) {
+	s, err := Parse(strings.NewReader(testRules))
+	require.NoError(t, err)
+	assert.Equal(t, 10, s.Len())
+	assert.Equal(t, "socks5://127.0.0.1:1080", s.Proxies()["hk"])
+
+	for _, tt := range []struct {
+		domain, ip string
+		port       uint16
+		want       string
+	}{
+		{"exact.example.com", "", 443, "REJECT"},
+		{"www.example.com", "", 443, "DIRECT"},
+		{"example.com", "", 443, "DIRECT"},
+		// the earlier suffix rule wins over the more specific one.
+		{"a.video.example.com", "", 443, "DIRECT"},
+		{"notexample.com", "", 443, "PROXY"},
+		{"", "10.9.9.9", 443, "DIRECT"},
+		{"", "10.1.9.9", 443, "REJECT"},
+		{"", "10.1.2.3", 443, "hk"},
+		{"", "10.1.3.0", 443, "REJECT"},
+		{"", "11.0.0.0", 443, "PROXY"},
+		{"", "2001:db8::1", 443, "REJECT"},
+		{"", "2001:db9::1", 443, "PROXY"},
+		{"", "1.1.1.1", 6881, "REJECT"},
+		{"", "1.1.1.1", 6885, "REJECT"},
+		{"", "1.1.1.1", 6890, "PROXY"},
+		// domain rules come before IP rules in the file.
+		{"www.example.com", "10.1.0.1", 443, "DIRECT"},
+	} {
+		assert.Equal(t, tt.want, target(t, s, tt.domain, tt.ip, tt.port), "%s %s:%d", tt.domain, tt.ip, tt.port)
+	}
+}
+
+func TestSetNoMatch(t *testing.T) {
+	s, err := Parse(strings.NewReader("IP-CIDR,0.0.0.0/0,DIRECT\n"))
+	require.NoError(t, err)
+	assert.Equal(t, "DIRECT", target(t, s, "", "255.255.255.255", 1))
+	assert.Equal(t, "", target(t, s, "", "::1", 1))
+	assert.Equal(t, "", target(t, s, "example.com", "", 1))
+}
+
+func TestParseErrors(t *testing.T) {
+	for _, rules := range []string{
+		"DOMAIN,example.com",
+		"IP-CIDR,10.0.0.0/33,DIRECT",
+		"DST-PORT,9-1,DIRECT",
+		"GEOIP,CN,DIRECT",
+		"PROXY,DIRECT,socks5://127.0.0.1:1080",
+	} {
+		_, err := Parse(strings.NewReader(rules))
+		assert.Error(t, err, rules)
+	}
+}
+
+func TestHostCacheObserve(t *testing.T) {
+	b := dnsmessage.NewBuilder(nil, dnsmessage.Header{Response: true})
+	require.NoError(t, b.StartQuestions())
+	name := dnsmessage.MustNewName("WWW.Example.COM.")
+	require.NoError(t, b.Question(dnsmessage.Question{Name: name, Type: dnsmessage.TypeA, Class: dnsmessage.ClassINET}))
+	require.NoError(t, b.StartAnswers())
+	hdr := dnsmessage.ResourceHeader{Name: name, Class: dnsmessage.ClassINET, TTL: 300}
+	require.NoError(t, b.AResource(hdr, dnsmessage.AResource{A: [4]byte{93, 184, 216, 34}}))
+	msg, err := b.Finish()
+	require.NoError(t, err)
+
+	c := NewHostCache(16)
+	c.observe(msg)
+
+	domain, ok := c.Lookup(netip.MustParseAddr("93.184.216.34"))
+	assert.True(t, ok)
+	assert.Equal(t, "www.example.com", domain)
+}
+
+func TestHostCacheBounded(t *testing.T) {
+	c := NewHostCache(8)
+	for i := 0; i < 100; i++ {
+		c.Store(netip.AddrFrom4([4]byte{10, 0, 0, byte(i)}), "example.com", time.Minute)
+	}
+	assert.LessOrEqual(t, len(c.entries), 8)
+}
+
+// largeRules returns n rules split between domain suffixes and prefixes.
+func largeRules(n int) string {
+	var sb strings.Builder
+	for i := 0; i < n/2; i++ {
+		fmt.Fprintf(&sb, "DOMAIN-SUFFIX,site%d.example%d.com,DIRECT\n", i, i%97)
+		fmt.Fprintf(&sb, "IP-CIDR,%d.%d.%d.0/24,DIRECT\n", 1+i>>16&0x7f, i>>8&0xff, i&0xff)
+	}
+	sb.WriteString("MATCH,PROXY\n")
+	return sb.String()
+}
+
+func TestLargeSetLoadsQuickly(t *testing.T) {
+	rules := largeRules(100_000)
+
+	start := time.Now()
+	s, err := Parse(strings.NewReader(rules))
+	require.NoError(t, err)
+	assert.Less(t, time.Since(start), time.Second)
+	assert.Equal(t, 100_001, s.Len())
+	assert.Equal(t, "DIRECT", target(t, s, "", "1.1.2.9", 443))
+}
+
+func BenchmarkParse100k(b *testing.B) {
+	rules := largeRules(100_000)
+	b.ReportAllocs()
+	for i := 0; i < b.N; i++ {
+		if _, err := Parse(strings.NewReader(rules)); err != nil {
+			b.Fatal(err)
+		}
+	}
+}
+
+func BenchmarkMatch100k(b *testing.B) {
+	s, err := Parse(strings.NewReader(largeRules(100_000)))
+	require.NoError(b, err)
+	ip := netip.MustParseAddr("1.1.2.9")
+
+	b.ReportAllocs()
+	b.ResetTimer()
+	for i := 0; i < b.N; i++ {
+		s.Match("cdn.site4242.example69.com", ip, 443)
+	}
+}
@@ -0,0 +1,178 @@
+package mux
+
+import (
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"sync"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// The connection carrying a session is opened through the proxy to this
+// pseudo destination, the one sing-mux uses, and starts with a preface
+// naming the protocol.
+const (
+	DestinationHost = "sp.mux.sing-box.arpa"
+	DestinationPort = 444
+)
+
+const (
+	prefaceVersion = 0
+	protocolSmux   = 0
+)
+
+// Stream request flags and response status.
+const (
+	flagUDP = 1 << iota
+
+	statusSuccess = 0
+	statusError   = 1
+)
+
+// WritePreface writes what a client sends on the carrying connection
+// before the first frame.
+func WritePreface(w io.Writer) error {
+	_, err := w.Write([]byte{prefaceVersion, protocolSmux})
+	return err
+}
+
+// ReadPreface reads the preface sent by WritePreface.
+func ReadPreface(r io.Reader) error {
+	var b [2]byte
+	if _, err := io.ReadFull(r, b[:]); err != nil {
+		return err
+	}
+	if b[0] != prefaceVersion || b[1] != protocolSmux {
+		return fmt.Errorf("mux: unsupported preface %v", b)
+	}
+	return nil
+}
+
+// Conn is a stream carrying a TCP connection to one destination. The
+// request naming it rides along with the first write, and the status of
+// the server is read before the first read, so opening one costs no
+// round trip.
+type Conn struct {
+	*Stream
+
+	wmu     sync.Mutex
+	request []byte // nil once sent
+
+	rmu      sync.Mutex
+	answered bool
+}
+
+// NewConn returns a Conn asking the server for addr.
+func NewConn(s *Stream, addr socks5.Addr) *Conn {
+	request := make([]byte, 2, 2+len(addr))
+	binary.BigEndian.PutUint16(request, 0)
+	return &Conn{
+		Stream:  s,
+		request: append(request, addr...),
+	}
+}
+
+func (c *Conn) Write(b []byte) (int, error) {
+	c.wmu.Lock()
+	defer c.wmu.Unlock()
+	if c.request == nil {
+		return c.Stream.Write(b)
+	}
+
+	header := len(c.request)
+	buf := buffer.Get(header + len(b))
+	defer buffer.Put(buf)
+	copy(buf, c.request)
+	copy(buf[header:], b)
+	c.request = nil
+
+	n, err := c.Stream.Write(buf)
+	return max(n-header, 0), err
+}
+
+func (c *Conn) Read(b []byte) (int, error) {
+	c.rmu.Lock()
+	defer c.rmu.Unlock()
+	if !c.answered {
+		// The destination may speak first, the request cannot wait for
+		// a write then.
+		if _, err := c.Write(nil); err != nil {
+			return 0, err
+		}
+		if err := c.readStatus(); err != nil {
+			return 0, err
+		}
+		c.answered = true
+	}
+	return c.Stream.Read(b)
+}
+
+func (c *Conn) readStatus() error {
+	var status [1]byte
+	if _, err := io.ReadFull(c.Stream, status[:]); err != nil {
+		return err
+	}
+	switch status[0] {
+	case statusSuccess:
+		return nil
+	case statusError:
+		msg, err := readString(c.Stream)
+		if err != nil {
+			return err
+		}
+		return fmt.Errorf("mux: remote: %s", msg)
+	default:
+		return fmt.Errorf("mux: unknown status %d", status[0])
+	}
+}
+
+// ReadRequest reads the request of a stream opened with NewConn and
+// returns the address it asks for.
+func ReadRequest(r io.Reader) (socks5.Addr, error) {
+	var flags [2]byte
+	if _, err := io.ReadFull(r, flags[:]); err != nil {
+		return nil, err
+	}
+	if binary.BigEndian.Uint16(flags[:])&flagUDP != 0 {
+		return nil, errors.New("mux: udp streams are not supported")
+	}
+	return socks5.ReadAddr(r, make([]byte, socks5.MaxAddrLen))
+}
+
+// WriteStatus answers a request, a nil err meaning success.
+func WriteStatus(w io.Writer, err error) error {
+	if err == nil {
+		_, err = w.Write([]byte{statusSuccess})
+		return err
+	}
+	msg := err.Error()
+	b := binary.AppendUvarint([]byte{statusError}, uint64(len(msg)))
+	_, err = w.Write(append(b, msg...))
+	return err
+}
+
+func readString(r io.Reader) (string, error) {
+	n, err := binary.ReadUvarint(byteReader{r})
+	if err != nil {
+		return "", err
+	}
+	if n > 1<<10 {
+		return "", fmt.Errorf("mux: message of %d bytes", n)
+	}
+	b := make([]byte, n)
+	_, err = io.ReadFull(r, b)
+	return string(b), err
+}
+
+type byteReader struct {
+	io.Reader
+}
+
+func (r byteReader) ReadByte() (byte, error) {
+	var b [1]byte
+	_, err := io.ReadFull(r.Reader, b[:])
+	return b[0], err
+}
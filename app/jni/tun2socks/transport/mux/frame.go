@@ -0,0 +1,31 @@
+// Package mux carries many streams over one connection. The framing is
+// that of smux version 2, whose window updates give every stream a flow
+// control of its own.
+package mux
+
+import "encoding/binary"
+
+const version = 2
+
+// Frame commands.
+const (
+	cmdSYN byte = iota // opens a stream
+	cmdFIN             // closes a stream
+	cmdPSH             // carries data
+	cmdNOP             // keeps the session alive
+	cmdUPD             // reports what a stream consumed and its window
+)
+
+// A frame header is version(1) cmd(1) length(2) stream(4), little endian.
+const headerSize = 8
+
+// initialPeerWindow is what a stream may send before the peer reported
+// its window.
+const initialPeerWindow = 256 << 10
+
+func putHeader(b []byte, cmd byte, length int, sid uint32) {
+	b[0] = version
+	b[1] = cmd
+	binary.LittleEndian.PutUint16(b[2:], uint16(length))
+	binary.LittleEndian.PutUint32(b[4:], sid)
+}
@@ -0,0 +1,152 @@
+package mux
+
+import (
+	"bytes"
+	"crypto/rand"
+	"errors"
+	"io"
+	"net"
+	"os"
+	"sync"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// serve is a stand-in mux server: it accepts the streams of conn and
+// hands each to handle.
+func serve(t *testing.T, conn net.Conn, handle func(*Stream)) {
+	t.Helper()
+	go func() {
+		if !assert.NoError(t, ReadPreface(conn)) {
+			return
+		}
+		s := Server(conn, DefaultConfig())
+		for {
+			st, err := s.AcceptStream()
+			if err != nil {
+				return
+			}
+			go handle(st)
+		}
+	}()
+}
+
+// pair returns a client session to a stand-in server.
+func pair(t *testing.T, handle func(*Stream)) *Session {
+	c, s := net.Pipe()
+	serve(t, s, handle)
+	require.NoError(t, WritePreface(c))
+	client := Client(c, DefaultConfig())
+	t.Cleanup(func() { client.Close() })
+	return client
+}
+
+func echo(st *Stream) {
+	io.Copy(st, st)
+	st.Close()
+}
+
+func TestStreams(t *testing.T) {
+	client := pair(t, echo)
+
+	// Each stream moves more than its window, so flow control has to
+	// kick in for any of them to finish.
+	payload := make([]byte, 1<<20)
+	rand.Read(payload)
+
+	var wg sync.WaitGroup
+	for i := 0; i < 8; i++ {
+		st, err := client.OpenStream()
+		require.NoError(t, err)
+		wg.Add(1)
+		go func() {
+			defer wg.Done()
+			defer st.Close()
+			go st.Write(payload)
+			got := make([]byte, len(payload))
+			_, err := io.ReadFull(st, got)
+			assert.NoError(t, err)
+			assert.True(t, bytes.Equal(payload, got))
+		}()
+	}
+	wg.Wait()
+	assert.Eventually(t, func() bool { return client.NumStreams() == 0 }, time.Second, 10*time.Millisecond)
+}
+
+func TestFlowControl(t *testing.T) {
+	// The server never reads, the client may only fill the window.
+	client := pair(t, func(*Stream) {})
+	st, err := client.OpenStream()
+	require.NoError(t, err)
+
+	st.SetWriteDeadline(time.Now().Add(200 * time.Millisecond))
+	n, err := st.Write(make([]byte, 2*initialPeerWindow))
+	assert.ErrorIs(t, err, os.ErrDeadlineExceeded)
+	assert.Equal(t, initialPeerWindow, n)
+}
+
+func TestDrain(t *testing.T) {
+	client := pair(t, echo)
+	a, err := client.OpenStream()
+	require.NoError(t, err)
+	b, err := client.OpenStream()
+	require.NoError(t, err)
+
+	// A draining session opens nothing more, and keeps serving the
+	// streams it has until the last one is closed.
+	client.Drain()
+	_, err = client.OpenStream()
+	assert.ErrorIs(t, err, ErrDraining)
+	a.Close()
+	assert.False(t, client.IsClosed())
+	_, err = b.Write([]byte("still"))
+	require.NoError(t, err)
+	got := make([]byte, 5)
+	_, err = io.ReadFull(b, got)
+	require.NoError(t, err)
+	assert.Equal(t, "still", string(got))
+
+	b.Close()
+	assert.True(t, client.IsClosed())
+}
+
+func TestConn(t *testing.T) {
+	client := pair(t, func(st *Stream) {
+		addr, err := ReadRequest(st)
+		if err != nil {
+			st.Close()
+			return
+		}
+		if addr.String() != "1.2.3.4:80" {
+			WriteStatus(st, errors.New("unreachable"))
+			st.Close()
+			return
+		}
+		WriteStatus(st, nil)
+		echo(st)
+	})
+
+	st, err := client.OpenStream()
+	require.NoError(t, err)
+	c := NewConn(st, socks5.ParseAddrString("1.2.3.4:80"))
+	_, err = c.Write([]byte("hello"))
+	require.NoError(t, err)
+	got := make([]byte, 5)
+	_, err = io.ReadFull(c, got)
+	require.NoError(t, err)
+	assert.Equal(t, "hello", string(got))
+	c.Close()
+
+	// The request goes out on the first read when nothing was written.
+	st, err = client.OpenStream()
+	require.NoError(t, err)
+	c = NewConn(st, socks5.ParseAddrString("5.6.7.8:80"))
+	_, err = c.Read(got)
+	assert.ErrorContains(t, err, "unreachable")
+	c.Close()
+}
@@ -0,0 +1,341 @@
+package mux
+
+import (
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"math"
+	"net"
+	"sync"
+	"time"
+
+	"go.uber.org/atomic"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+var (
+	// ErrClosed is returned once the session is closed.
+	ErrClosed = errors.New("mux: session closed")
+	// ErrExhausted is returned when a session ran out of stream IDs.
+	ErrExhausted = errors.New("mux: stream ids exhausted")
+	// ErrDraining is returned by a session that opens no more streams.
+	ErrDraining = errors.New("mux: session draining")
+
+	errTimeout = errors.New("mux: keepalive timeout")
+)
+
+// Config tunes a Session.
+type Config struct {
+	// KeepAliveInterval is the period of the frames sent to keep an idle
+	// session alive, KeepAliveTimeout how long the peer may stay silent.
+	KeepAliveInterval time.Duration
+	KeepAliveTimeout  time.Duration
+	// MaxFrameSize bounds the data carried by one frame.
+	MaxFrameSize int
+	// StreamWindow is the data a stream may have received and not read
+	// yet. The peer stops sending to the stream past it.
+	StreamWindow int
+}
+
+// DefaultConfig returns the Config of smux, but for frames that fit a
+// 32 KiB buffer with their header.
+func DefaultConfig() Config {
+	return Config{
+		KeepAliveInterval: 10 * time.Second,
+		KeepAliveTimeout:  30 * time.Second,
+		MaxFrameSize:      32<<10 - headerSize,
+		StreamWindow:      256 << 10,
+	}
+}
+
+// Session multiplexes streams over a connection.
+type Session struct {
+	conn   net.Conn
+	cfg    Config
+	client bool
+
+	writeMu sync.Mutex
+
+	mu      sync.Mutex
+	streams  map[uint32]*Stream
+	nextID   uint32
+	draining bool
+	accepts  chan *Stream
+
+	// active records whether a frame arrived since the last keepalive
+	// check.
+	active atomic.Bool
+
+	die     chan struct{}
+	dieOnce sync.Once
+	err     atomic.Error
+}
+
+// Client returns the session of the side opening streams over conn.
+func Client(conn net.Conn, cfg Config) *Session {
+	return newSession(conn, cfg, true)
+}
+
+// Server returns the session of the side accepting streams over conn.
+func Server(conn net.Conn, cfg Config) *Session {
+	return newSession(conn, cfg, false)
+}
+
+func newSession(conn net.Conn, cfg Config, client bool) *Session {
+	s := &Session{
+		conn:    conn,
+		cfg:     cfg,
+		client:  client,
+		streams: make(map[uint32]*Stream),
+		accepts: make(chan *Stream, 64),
+		die:     make(chan struct{}),
+	}
+	// Clients use odd stream IDs, servers even ones.
+	if client {
+		s.nextID = 1
+	}
+	go s.recvLoop()
+	go s.keepalive()
+	return s
+}
+
+// OpenStream opens a stream, without waiting for the peer.
+func (s *Session) OpenStream() (*Stream, error) {
+	if s.IsClosed() {
+		return nil, s.closedErr()
+	}
+
+	s.mu.Lock()
+	if s.draining {
+		s.mu.Unlock()
+		return nil, ErrDraining
+	}
+	if s.nextID >= math.MaxUint32-1 {
+		s.mu.Unlock()
+		return nil, ErrExhausted
+	}
+	s.nextID += 2
+	st := newStream(s.nextID, s)
+	s.streams[st.id] = st
+	s.mu.Unlock()
+
+	if err := s.writeFrame(cmdSYN, st.id, nil); err != nil {
+		s.remove(st.id)
+		return nil, err
+	}
+	return st, nil
+}
+
+// AcceptStream waits for the peer to open a stream.
+func (s *Session) AcceptStream() (*Stream, error) {
+	select {
+	case st := <-s.accepts:
+		return st, nil
+	case <-s.die:
+		return nil, s.closedErr()
+	}
+}
+
+// NumStreams returns the number of open streams.
+func (s *Session) NumStreams() int {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	return len(s.streams)
+}
+
+// Drain stops the session from opening streams, and closes it once the
+// streams it carries are closed.
+func (s *Session) Drain() {
+	s.mu.Lock()
+	s.draining = true
+	idle := len(s.streams) == 0
+	s.mu.Unlock()
+	if idle {
+		s.Close()
+	}
+}
+
+// IsClosed reports whether the session is closed.
+func (s *Session) IsClosed() bool {
+	select {
+	case <-s.die:
+		return true
+	default:
+		return false
+	}
+}
+
+// Close closes the session and every stream it carries.
+func (s *Session) Close() error {
+	s.closeWith(ErrClosed)
+	return nil
+}
+
+func (s *Session) closeWith(err error) {
+	s.dieOnce.Do(func() {
+		s.err.Store(err)
+		close(s.die)
+		s.conn.Close()
+	})
+}
+
+func (s *Session) closedErr() error {
+	if err := s.err.Load(); err != nil {
+		return err
+	}
+	return ErrClosed
+}
+
+func (s *Session) stream(sid uint32) *Stream {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	return s.streams[sid]
+}
+
+func (s *Session) remove(sid uint32) {
+	s.mu.Lock()
+	delete(s.streams, sid)
+	idle := s.draining && len(s.streams) == 0
+	s.mu.Unlock()
+	if idle {
+		s.Close()
+	}
+}
+
+// writeFrame writes a frame in a single Write, so that a connection
+// sealing each Write, like Shadowsocks, seals whole frames.
+func (s *Session) writeFrame(cmd byte, sid uint32, data []byte) error {
+	buf := buffer.Get(headerSize + len(data))
+	defer buffer.Put(buf)
+	putHeader(buf, cmd, len(data), sid)
+	copy(buf[headerSize:], data)
+
+	s.writeMu.Lock()
+	defer s.writeMu.Unlock()
+	if s.IsClosed() {
+		return s.closedErr()
+	}
+	if _, err := s.conn.Write(buf); err != nil {
+		s.closeWith(err)
+		return err
+	}
+	return nil
+}
+
+func (s *Session) recvLoop() {
+	var hdr [headerSize]byte
+	for {
+		if _, err := io.ReadFull(s.conn, hdr[:]); err != nil {
+			s.closeWith(err)
+			return
+		}
+		s.active.Store(true)
+		if hdr[0] != version {
+			s.closeWith(fmt.Errorf("mux: unsupported version %d", hdr[0]))
+			return
+		}
+
+		var data []byte
+		if length := int(binary.LittleEndian.Uint16(hdr[2:])); length > 0 {
+			data = buffer.Get(length)
+			if _, err := io.ReadFull(s.conn, data); err != nil {
+				buffer.Put(data)
+				s.closeWith(err)
+				return
+			}
+		}
+		if err := s.handle(hdr[1], binary.LittleEndian.Uint32(hdr[4:]), data); err != nil {
+			s.closeWith(err)
+			return
+		}
+	}
+}
+
+// handle processes one frame, it takes ownership of data.
+func (s *Session) handle(cmd byte, sid uint32, data []byte) error {
+	switch cmd {
+	case cmdNOP:
+	case cmdSYN:
+		s.accept(sid)
+	case cmdFIN:
+		if st := s.stream(sid); st != nil {
+			st.fin()
+		}
+	case cmdPSH:
+		if st := s.stream(sid); st != nil && data != nil {
+			st.push(data)
+			return nil
+		}
+	case cmdUPD:
+		if len(data) != 8 {
+			return fmt.Errorf("mux: bad window update of %d bytes", len(data))
+		}
+		if st := s.stream(sid); st != nil {
+			st.update(binary.LittleEndian.Uint32(data), binary.LittleEndian.Uint32(data[4:]))
+		}
+	default:
+		return fmt.Errorf("mux: unknown command %d", cmd)
+	}
+	if data != nil {
+		buffer.Put(data)
+	}
+	return nil
+}
+
+// accept registers a stream opened by the peer. Clients accept nothing.
+func (s *Session) accept(sid uint32) {
+	if s.client {
+		return
+	}
+	s.mu.Lock()
+	if _, ok := s.streams[sid]; ok {
+		s.mu.Unlock()
+		return
+	}
+	st := newStream(sid, s)
+	s.streams[sid] = st
+	s.mu.Unlock()
+
+	select {
+	case s.accepts <- st:
+	case <-s.die:
+	}
+}
+
+func (s *Session) keepalive() {
+	ping := time.NewTicker(s.cfg.KeepAliveInterval)
+	defer ping.Stop()
+	check := time.NewTicker(s.cfg.KeepAliveTimeout)
+	defer check.Stop()
+
+	for {
+		select {
+		case <-ping.C:
+			s.ping()
+		case <-check.C:
+			if !s.active.Swap(false) {
+				s.closeWith(errTimeout)
+				return
+			}
+		case <-s.die:
+			return
+		}
+	}
+}
+
+// ping sends a NOP unless a frame is being written already. That writer
+// either keeps the session alive or is stuck, and then the keepalive
+// check closes the connection under it.
+func (s *Session) ping() {
+	if !s.writeMu.TryLock() {
+		return
+	}
+	defer s.writeMu.Unlock()
+	var hdr [headerSize]byte
+	putHeader(hdr[:], cmdNOP, 0, 0)
+	if _, err := s.conn.Write(hdr[:]); err != nil {
+		s.closeWith(err)
+	}
+}
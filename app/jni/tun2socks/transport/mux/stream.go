@@ -0,0 +1,250 @@
+package mux
+
+import (
+	"encoding/binary"
+	"io"
+	"net"
+	"os"
+	"sync"
+	"time"
+
+	"go.uber.org/atomic"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+var _ net.Conn = (*Stream)(nil)
+
+// Stream is one connection carried by a Session. The peer may only send
+// as much as the stream announced it can hold, and so may the stream.
+type Stream struct {
+	id   uint32
+	sess *Session
+
+	mu sync.Mutex
+	// Frames received and not read yet, off bytes of the first are read.
+	bufs [][]byte
+	off  int
+	// Bytes read in total, and since the peer was last told.
+	numRead uint32
+	unacked uint32
+	// Bytes written in total, and what the peer reported consumed and
+	// able to hold.
+	numWritten   uint32
+	peerConsumed uint32
+	peerWindow   uint32
+	finRecv      bool
+
+	readEvent  chan struct{}
+	writeEvent chan struct{}
+	die        chan struct{}
+	dieOnce    sync.Once
+
+	readDeadline  atomic.Time
+	writeDeadline atomic.Time
+}
+
+func newStream(id uint32, sess *Session) *Stream {
+	return &Stream{
+		id:         id,
+		sess:       sess,
+		peerWindow: initialPeerWindow,
+		readEvent:  make(chan struct{}, 1),
+		writeEvent: make(chan struct{}, 1),
+		die:        make(chan struct{}),
+	}
+}
+
+func notify(ch chan struct{}) {
+	select {
+	case ch <- struct{}{}:
+	default:
+	}
+}
+
+// ID returns the stream ID.
+func (s *Stream) ID() uint32 {
+	return s.id
+}
+
+func (s *Stream) Read(b []byte) (int, error) {
+	for {
+		s.mu.Lock()
+		n := 0
+		for n < len(b) && len(s.bufs) > 0 {
+			c := copy(b[n:], s.bufs[0][s.off:])
+			n += c
+			if s.off += c; s.off == len(s.bufs[0]) {
+				buffer.Put(s.bufs[0])
+				s.bufs[0] = nil
+				s.bufs = s.bufs[1:]
+				s.off = 0
+			}
+		}
+		var consumed uint32
+		update := false
+		if n > 0 {
+			s.numRead += uint32(n)
+			s.unacked += uint32(n)
+			if s.unacked >= uint32(s.sess.cfg.StreamWindow/2) {
+				update, consumed, s.unacked = true, s.numRead, 0
+			}
+		}
+		fin := s.finRecv
+		s.mu.Unlock()
+
+		if n > 0 {
+			if update {
+				s.sendUpdate(consumed)
+			}
+			return n, nil
+		}
+		if fin {
+			return 0, io.EOF
+		}
+		if err := s.wait(s.readEvent, &s.readDeadline); err != nil {
+			return 0, err
+		}
+	}
+}
+
+func (s *Stream) sendUpdate(consumed uint32) {
+	var data [8]byte
+	binary.LittleEndian.PutUint32(data[:], consumed)
+	binary.LittleEndian.PutUint32(data[4:], uint32(s.sess.cfg.StreamWindow))
+	s.sess.writeFrame(cmdUPD, s.id, data[:])
+}
+
+func (s *Stream) Write(b []byte) (n int, err error) {
+	for n < len(b) {
+		select {
+		case <-s.die:
+			return n, io.ErrClosedPipe
+		default:
+		}
+
+		s.mu.Lock()
+		if s.finRecv {
+			s.mu.Unlock()
+			return n, io.EOF
+		}
+		room := 0
+		if inflight := s.numWritten - s.peerConsumed; inflight < s.peerWindow {
+			room = int(s.peerWindow - inflight)
+		}
+		size := min(len(b)-n, s.sess.cfg.MaxFrameSize, room)
+		s.numWritten += uint32(size)
+		s.mu.Unlock()
+
+		if size == 0 {
+			if err = s.wait(s.writeEvent, &s.writeDeadline); err != nil {
+				return n, err
+			}
+			continue
+		}
+		if err = s.sess.writeFrame(cmdPSH, s.id, b[n:n+size]); err != nil {
+			return n, err
+		}
+		n += size
+	}
+	return n, nil
+}
+
+// wait blocks until ev fires, the deadline passes or the stream closes.
+func (s *Stream) wait(ev chan struct{}, deadline *atomic.Time) error {
+	var timeout <-chan time.Time
+	if d := deadline.Load(); !d.IsZero() {
+		until := time.Until(d)
+		if until <= 0 {
+			return os.ErrDeadlineExceeded
+		}
+		timer := time.NewTimer(until)
+		defer timer.Stop()
+		timeout = timer.C
+	}
+
+	select {
+	case <-ev:
+		return nil
+	case <-timeout:
+		return os.ErrDeadlineExceeded
+	case <-s.die:
+		return io.ErrClosedPipe
+	case <-s.sess.die:
+		return s.sess.closedErr()
+	}
+}
+
+// Close closes the stream in both directions, like smux does.
+func (s *Stream) Close() error {
+	var err error
+	s.dieOnce.Do(func() {
+		close(s.die)
+		// The FIN goes out first, removing the last stream of a
+		// draining session closes it.
+		err = s.sess.writeFrame(cmdFIN, s.id, nil)
+		s.sess.remove(s.id)
+
+		s.mu.Lock()
+		for _, b := range s.bufs {
+			buffer.Put(b)
+		}
+		s.bufs = nil
+		s.mu.Unlock()
+	})
+	return err
+}
+
+func (s *Stream) push(data []byte) {
+	s.mu.Lock()
+	select {
+	case <-s.die:
+		buffer.Put(data)
+	default:
+		s.bufs = append(s.bufs, data)
+	}
+	s.mu.Unlock()
+	notify(s.readEvent)
+}
+
+func (s *Stream) fin() {
+	s.mu.Lock()
+	s.finRecv = true
+	s.mu.Unlock()
+	notify(s.readEvent)
+	notify(s.writeEvent)
+}
+
+func (s *Stream) update(consumed, window uint32) {
+	s.mu.Lock()
+	s.peerConsumed = consumed
+	s.peerWindow = window
+	s.mu.Unlock()
+	notify(s.writeEvent)
+}
+
+func (s *Stream) LocalAddr() net.Addr {
+	return s.sess.conn.LocalAddr()
+}
+
+func (s *Stream) RemoteAddr() net.Addr {
+	return s.sess.conn.RemoteAddr()
+}
+
+func (s *Stream) SetDeadline(t time.Time) error {
+	s.SetReadDeadline(t)
+	s.SetWriteDeadline(t)
+	return nil
+}
+
+func (s *Stream) SetReadDeadline(t time.Time) error {
+	s.readDeadline.Store(t)
+	notify(s.readEvent)
+	return nil
+}
+
+func (s *Stream) SetWriteDeadline(t time.Time) error {
+	s.writeDeadline.Store(t)
+	notify(s.writeEvent)
+	return nil
+}
@@ -2,6 +2,7 @@ package core
 
 import (
 	"crypto/md5"
+	"encoding/base64"
 	"errors"
 	"net"
 	"sort"
@@ -47,6 +48,22 @@ var aeadList = map[string]struct {
 	aeadXChacha20Poly1305: {32, shadowaead.XChacha20Poly1305},
 }
 
+const (
+	aead2022Aes128Gcm        = "2022-BLAKE3-AES-128-GCM"
+	aead2022Aes256Gcm        = "2022-BLAKE3-AES-256-GCM"
+	aead2022Chacha20Poly1305 = "2022-BLAKE3-CHACHA20-POLY1305"
+)
+
+// List of Shadowsocks 2022 ciphers: key size in bytes and constructor
+var aead2022List = map[string]struct {
+	KeySize int
+	New     func([]byte) (*shadowaead.Cipher2022, error)
+}{
+	aead2022Aes128Gcm:        {16, shadowaead.AESGCM2022},
+	aead2022Aes256Gcm:        {32, shadowaead.AESGCM2022},
+	aead2022Chacha20Poly1305: {32, shadowaead.Chacha2022},
+}
+
 // List of stream ciphers: key size in bytes and constructor
 var streamList = map[string]struct {
 	KeySize int
@@ -69,6 +86,9 @@ func ListCipher() []string {
 	for k := range aeadList {
 		l = append(l, k)
 	}
+	for k := range aead2022List {
+		l = append(l, k)
+	}
 	for k := range streamList {
 		l = append(l, k)
 	}
@@ -106,6 +126,21 @@ func PickCipher(name string, key []byte, password string) (Cipher, error) {
 		return &AeadCipher{Cipher: aead, Key: key}, err
 	}
 
+	// 2022 keys are not derived, the password is the key in base64.
+	if choice, ok := aead2022List[name]; ok {
+		if len(key) == 0 {
+			var err error
+			if key, err = base64.StdEncoding.DecodeString(password); err != nil {
+				return nil, err
+			}
+		}
+		if len(key) != choice.KeySize {
+			return nil, shadowaead.KeySizeError(choice.KeySize)
+		}
+		aead, err := choice.New(key)
+		return &Aead2022Cipher{Cipher2022: aead, Key: key}, err
+	}
+
 	if choice, ok := streamList[name]; ok {
 		if len(key) == 0 {
 			key = Kdf(password, choice.KeySize)
@@ -131,6 +166,19 @@ func (aead *AeadCipher) PacketConn(c net.PacketConn) net.PacketConn {
 	return shadowaead.NewPacketConn(c, aead)
 }
 
+type Aead2022Cipher struct {
+	*shadowaead.Cipher2022
+
+	Key []byte
+}
+
+func (aead *Aead2022Cipher) StreamConn(c net.Conn) net.Conn {
+	return shadowaead.NewConn2022(c, aead.Cipher2022)
+}
+func (aead *Aead2022Cipher) PacketConn(c net.PacketConn) net.PacketConn {
+	return shadowaead.NewPacketConn2022(c, aead.Cipher2022)
+}
+
 type StreamCipher struct {
 	shadowstream.Cipher
 
@@ -0,0 +1,73 @@
+package shadowaead
+
+import (
+	"crypto/aes"
+	"crypto/cipher"
+
+	"golang.org/x/crypto/chacha20poly1305"
+
+	"github.com/xjasonlyu/tun2socks/v2/internal/blake3"
+)
+
+// subkeyContext derives the session subkeys of Shadowsocks 2022.
+const subkeyContext = "shadowsocks 2022 session subkey"
+
+// Cipher2022 is a Shadowsocks 2022 method (SIP022). Its key is used as is,
+// salts are as long as the key, and sessions are keyed with BLAKE3.
+type Cipher2022 struct {
+	psk      []byte
+	makeAEAD func(key []byte) (cipher.AEAD, error)
+
+	// UDP packets of the AES methods have their header encrypted with the
+	// block cipher of the key, those of ChaCha20 are wholly sealed with
+	// XChaCha20-Poly1305 of the key.
+	block   cipher.Block
+	udpAEAD cipher.AEAD
+
+	// salts of the server streams, which must never repeat
+	salts *saltFilter
+}
+
+// AESGCM2022 creates a 2022-blake3-aes-128-gcm or 2022-blake3-aes-256-gcm
+// Cipher. len(psk) must be 16 or 32.
+func AESGCM2022(psk []byte) (*Cipher2022, error) {
+	switch l := len(psk); l {
+	case 16, 32:
+	default:
+		return nil, aes.KeySizeError(l)
+	}
+	block, err := aes.NewCipher(psk)
+	if err != nil {
+		return nil, err
+	}
+	return &Cipher2022{psk: psk, makeAEAD: aesGCM, block: block, salts: newSaltFilter()}, nil
+}
+
+// Chacha2022 creates a 2022-blake3-chacha20-poly1305 Cipher.
+// len(psk) must be 32.
+func Chacha2022(psk []byte) (*Cipher2022, error) {
+	if len(psk) != chacha20poly1305.KeySize {
+		return nil, KeySizeError(chacha20poly1305.KeySize)
+	}
+	udpAEAD, err := chacha20poly1305.NewX(psk)
+	if err != nil {
+		return nil, err
+	}
+	return &Cipher2022{psk: psk, makeAEAD: chacha20poly1305.New, udpAEAD: udpAEAD, salts: newSaltFilter()}, nil
+}
+
+func (c *Cipher2022) KeySize() int  { return len(c.psk) }
+func (c *Cipher2022) SaltSize() int { return len(c.psk) }
+
+func (c *Cipher2022) Encrypter(salt []byte) (cipher.AEAD, error) { return c.session(salt) }
+func (c *Cipher2022) Decrypter(salt []byte) (cipher.AEAD, error) { return c.session(salt) }
+
+// session returns the AEAD of the session identified by id, a stream salt
+// or a UDP session ID.
+func (c *Cipher2022) session(id []byte) (cipher.AEAD, error) {
+	material := make([]byte, 0, len(c.psk)+len(id))
+	material = append(append(material, c.psk...), id...)
+	subkey := make([]byte, c.KeySize())
+	blake3.DeriveKey(subkey, subkeyContext, material)
+	return c.makeAEAD(subkey)
+}
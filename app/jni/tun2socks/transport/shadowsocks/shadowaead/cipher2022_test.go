@@ -0,0 +1,254 @@
+package shadowaead
+
+import (
+	"bytes"
+	"crypto/rand"
+	"encoding/binary"
+	"io"
+	"net"
+	"net/netip"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+var testCiphers2022 = map[string]func([]byte) (*Cipher2022, error){
+	"2022-blake3-aes-256-gcm":       AESGCM2022,
+	"2022-blake3-chacha20-poly1305": Chacha2022,
+}
+
+func testCipher2022(t *testing.T, newCipher func([]byte) (*Cipher2022, error)) *Cipher2022 {
+	ciph, err := newCipher(bytes.Repeat([]byte{7}, 32))
+	require.NoError(t, err)
+	return ciph
+}
+
+// serveStream2022 is the server side of a 2022 stream: it reads the
+// request and the chunks following it until want bytes of payload came,
+// then answers with reply under salt.
+func serveStream2022(t *testing.T, ciph *Cipher2022, c net.Conn, want int, salt, reply []byte) (socks5.Addr, []byte) {
+	reqSalt := make([]byte, ciph.SaltSize())
+	_, err := io.ReadFull(c, reqSalt)
+	require.NoError(t, err)
+	aead, err := ciph.Decrypter(reqSalt)
+	require.NoError(t, err)
+	r := newReader2022(c, aead)
+	nonce := r.nonce[:r.NonceSize()]
+
+	fixed := make([]byte, fixedHeaderSize+r.Overhead())
+	_, err = io.ReadFull(c, fixed)
+	require.NoError(t, err)
+	_, err = r.Open(fixed[:0], nonce, fixed, nil)
+	require.NoError(t, err)
+	increment(nonce)
+	require.EqualValues(t, headerClient, fixed[0])
+	require.True(t, timely(fixed[1:9]))
+
+	vh := make([]byte, int(binary.BigEndian.Uint16(fixed[9:]))+r.Overhead())
+	_, err = io.ReadFull(c, vh)
+	require.NoError(t, err)
+	vh, err = r.Open(vh[:0], nonce, vh, nil)
+	require.NoError(t, err)
+	increment(nonce)
+	addr := socks5.SplitAddr(vh)
+	require.NotNil(t, addr)
+	padding := int(binary.BigEndian.Uint16(vh[len(addr):]))
+	payload := vh[len(addr)+2+padding:]
+	if len(payload) == 0 {
+		assert.Positive(t, padding, "a request without payload is padded")
+	}
+	for len(payload) < want {
+		b := make([]byte, payloadSizeMask2022)
+		n, err := r.Read(b)
+		require.NoError(t, err)
+		payload = append(payload, b[:n]...)
+	}
+
+	aead, err = ciph.Encrypter(salt)
+	require.NoError(t, err)
+	w := newWriter2022(c, aead)
+	nonce = w.nonce[:w.NonceSize()]
+	hdr := append([]byte{headerServer}, make([]byte, 8)...)
+	binary.BigEndian.PutUint64(hdr[1:], uint64(time.Now().Unix()))
+	hdr = append(hdr, reqSalt...)
+	hdr = binary.BigEndian.AppendUint16(hdr, uint16(len(reply)))
+	hdr = w.Seal(hdr[:0], nonce, hdr, nil)
+	increment(nonce)
+	hdr = append(append([]byte(nil), salt...), hdr...)
+	hdr = w.Seal(hdr, nonce, reply, nil)
+	increment(nonce)
+	_, err = c.Write(hdr)
+	require.NoError(t, err)
+	_, err = w.Write(reply)
+	require.NoError(t, err)
+	return addr, payload
+}
+
+func TestConn2022(t *testing.T) {
+	dst := socks5.SerializeAddr("example.com", netip.Addr{}, 443)
+	payload := bytes.Repeat([]byte("0123456789abcdef"), 1<<13)
+
+	for name, newCipher := range testCiphers2022 {
+		t.Run(name, func(t *testing.T) {
+			ciph := testCipher2022(t, newCipher)
+			salt := make([]byte, ciph.SaltSize())
+			_, err := rand.Read(salt)
+			require.NoError(t, err)
+			l, err := net.Listen("tcp", "127.0.0.1:0")
+			require.NoError(t, err)
+			defer l.Close()
+
+			// The address goes alone, as proxies write it, or with the
+			// first data. Both answers use the same salt.
+			for _, first := range [][]byte{dst, append(append([]byte(nil), dst...), payload[:100]...)} {
+				done := make(chan struct{})
+				go func() {
+					defer close(done)
+					server, err := l.Accept()
+					if !assert.NoError(t, err) {
+						return
+					}
+					defer server.Close()
+					addr, got := serveStream2022(t, ciph, server, len(first)-len(dst)+len(payload), salt, []byte("hello"))
+					assert.Equal(t, dst, addr)
+					assert.Equal(t, append(append([]byte(nil), first[len(dst):]...), payload...), got)
+				}()
+
+				client, err := net.Dial("tcp", l.Addr().String())
+				require.NoError(t, err)
+				c := NewConn2022(client, ciph)
+				_, err = c.Write(first)
+				require.NoError(t, err)
+				_, err = c.ReadFrom(bytes.NewReader(payload))
+				require.NoError(t, err)
+
+				var reply bytes.Buffer
+				_, err = c.WriteTo(&reply)
+				<-done
+				c.Close()
+				if reply.Len() == 0 {
+					// The second stream reused the salt of the first.
+					assert.ErrorIs(t, err, ErrRepeatedSalt)
+					continue
+				}
+				require.NoError(t, err)
+				assert.Equal(t, "hellohello", reply.String())
+			}
+		})
+	}
+}
+
+// servePacket2022 seals b as the server session sid answering client.
+func servePacket2022(t *testing.T, ciph *Cipher2022, sid, pid uint64, client, b []byte) []byte {
+	var ids [separateHeaderSize]byte
+	binary.BigEndian.PutUint64(ids[:], sid)
+	binary.BigEndian.PutUint64(ids[8:], pid)
+	body := append([]byte{headerServer}, make([]byte, 8)...)
+	binary.BigEndian.PutUint64(body[1:], uint64(time.Now().Unix()))
+	body = append(body, client...)
+	body = append(body, 0, 3, 0, 0, 0) // padding
+	body = append(body, b...)
+
+	if ciph.block != nil {
+		aead, err := ciph.session(ids[:8])
+		require.NoError(t, err)
+		pkt := aead.Seal(append([]byte(nil), ids[:]...), ids[4:], body, nil)
+		ciph.block.Encrypt(pkt[:separateHeaderSize], pkt[:separateHeaderSize])
+		return pkt
+	}
+	nonce := make([]byte, xNonceSize)
+	_, err := rand.Read(nonce)
+	require.NoError(t, err)
+	return ciph.udpAEAD.Seal(nonce, nonce, append(ids[:], body...), nil)
+}
+
+// openPacket2022 opens a client packet and returns its session ID and
+// address and payload.
+func openPacket2022(t *testing.T, ciph *Cipher2022, pkt []byte) ([]byte, []byte) {
+	var ids, body []byte
+	if ciph.block != nil {
+		ids = pkt[:separateHeaderSize]
+		ciph.block.Decrypt(ids, ids)
+		aead, err := ciph.session(ids[:8])
+		require.NoError(t, err)
+		body, err = aead.Open(nil, ids[4:], pkt[separateHeaderSize:], nil)
+		require.NoError(t, err)
+	} else {
+		b, err := ciph.udpAEAD.Open(nil, pkt[:xNonceSize], pkt[xNonceSize:], nil)
+		require.NoError(t, err)
+		ids, body = b[:separateHeaderSize], b[separateHeaderSize:]
+	}
+	require.EqualValues(t, headerClient, body[0])
+	require.True(t, timely(body[1:9]))
+	padding := int(binary.BigEndian.Uint16(body[9:]))
+	return ids[:8], body[11+padding:]
+}
+
+func TestPacketConn2022(t *testing.T) {
+	dst := socks5.SerializeAddr("", netip.MustParseAddr("1.1.1.1"), 53)
+	msg := append(append([]byte(nil), dst...), "query"...)
+
+	for name, newCipher := range testCiphers2022 {
+		t.Run(name, func(t *testing.T) {
+			ciph := testCipher2022(t, newCipher)
+			server, err := net.ListenPacket("udp", "127.0.0.1:0")
+			require.NoError(t, err)
+			defer server.Close()
+			pc, err := net.ListenPacket("udp", "127.0.0.1:0")
+			require.NoError(t, err)
+			c := NewPacketConn2022(pc, ciph)
+			defer c.Close()
+
+			_, err = c.WriteTo(msg, server.LocalAddr())
+			require.NoError(t, err)
+			b := make([]byte, maxPacketSize)
+			n, from, err := server.ReadFrom(b)
+			require.NoError(t, err)
+			client, got := openPacket2022(t, ciph, b[:n])
+			assert.Equal(t, msg, got)
+
+			reply := servePacket2022(t, ciph, 42, 0, client, append(append([]byte(nil), dst...), "answer"...))
+			for i := 0; i < 2; i++ {
+				_, err = server.WriteTo(reply, from)
+				require.NoError(t, err)
+				n, _, err = c.ReadFrom(b)
+				if i == 1 {
+					assert.ErrorIs(t, err, ErrReplayedPacket)
+					break
+				}
+				require.NoError(t, err)
+				assert.Equal(t, append(append([]byte(nil), dst...), "answer"...), b[:n])
+			}
+
+			// A packet for another client is refused.
+			other := servePacket2022(t, ciph, 42, 1, make([]byte, 8), dst)
+			_, err = server.WriteTo(other, from)
+			require.NoError(t, err)
+			_, _, err = c.ReadFrom(b)
+			assert.ErrorIs(t, err, ErrBadHeader)
+		})
+	}
+}
+
+func TestSaltFilter(t *testing.T) {
+	f := newSaltFilter()
+	salt := make([]byte, 32)
+	assert.True(t, f.check(salt))
+	assert.False(t, f.check(salt))
+
+	// A full generation is rotated early but still remembered.
+	for i := 1; i <= saltCapacity; i++ {
+		binary.BigEndian.PutUint32(salt, uint32(i))
+		require.True(t, f.check(salt), "salt %d", i)
+	}
+	binary.BigEndian.PutUint32(salt, 1)
+	assert.False(t, f.check(salt))
+
+	// Salts two generations old are forgotten.
+	f.rotate(time.Now())
+	assert.True(t, f.check(salt))
+}
@@ -0,0 +1,213 @@
+package shadowaead
+
+import (
+	"bytes"
+	"crypto/cipher"
+	"crypto/rand"
+	"encoding/binary"
+	"errors"
+	"io"
+	"math"
+	"net"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"golang.zx2c4.com/wireguard/replay"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+// ErrReplayedPacket means that a packet ID of a server session came twice.
+var ErrReplayedPacket = errors.New("replayed packet")
+
+const (
+	// separateHeaderSize is the session and packet IDs of a 2022 packet.
+	separateHeaderSize = 8 + 8
+	// xNonceSize is the nonce of the XChaCha20-Poly1305 packets.
+	xNonceSize = 24
+)
+
+// PacketConn2022 is the client side of a Shadowsocks 2022 UDP session:
+// the packets written carry its session ID, those read are opened with
+// the session of the server answering it.
+type PacketConn2022 struct {
+	net.PacketConn
+	*Cipher2022
+
+	id     [8]byte
+	sealer cipher.AEAD // of the session, for the AES methods
+	err    error
+	packet atomic.Uint64
+
+	mu sync.Mutex
+	// servers are the current and the previous server sessions, the
+	// previous one until its packets in flight are in.
+	servers [2]*serverSession
+}
+
+type serverSession struct {
+	id     uint64
+	opener cipher.AEAD
+	window replay.Filter
+}
+
+// NewPacketConn2022 wraps a net.PacketConn with cipher, as a new session.
+func NewPacketConn2022(c net.PacketConn, ciph *Cipher2022) *PacketConn2022 {
+	pc := &PacketConn2022{PacketConn: c, Cipher2022: ciph}
+	if _, pc.err = rand.Read(pc.id[:]); pc.err == nil && ciph.block != nil {
+		pc.sealer, pc.err = ciph.session(pc.id[:])
+	}
+	return pc
+}
+
+// WriteTo encrypts b and write to addr using the embedded PacketConn.
+func (c *PacketConn2022) WriteTo(b []byte, addr net.Addr) (int, error) {
+	if c.err != nil {
+		return 0, c.err
+	}
+	buf := buffer.Get(maxPacketSize)
+	defer buffer.Put(buf)
+
+	var ids, body []byte
+	var prefix int
+	if c.block != nil {
+		ids, body = buf[:separateHeaderSize], buf[separateHeaderSize:]
+		prefix = separateHeaderSize
+	} else {
+		// The XChaCha20 nonce is random, the IDs are sealed with the rest.
+		if _, err := rand.Read(buf[:xNonceSize]); err != nil {
+			return 0, err
+		}
+		ids, body = buf[xNonceSize:xNonceSize+separateHeaderSize], buf[xNonceSize:]
+		prefix = xNonceSize
+	}
+	copy(ids, c.id[:])
+	binary.BigEndian.PutUint64(ids[8:], c.packet.Add(1)-1)
+
+	// type, timestamp, padding length, then the address and payload of b
+	n := 0
+	if c.block == nil {
+		n = separateHeaderSize
+	}
+	if prefix+n+1+8+2+len(b)+16 > len(buf) {
+		return 0, io.ErrShortBuffer
+	}
+	body[n] = headerClient
+	binary.BigEndian.PutUint64(body[n+1:], uint64(time.Now().Unix()))
+	binary.BigEndian.PutUint16(body[n+9:], 0)
+	n += 1 + 8 + 2
+	n += copy(body[n:], b)
+
+	if c.block != nil {
+		// The nonce is the end of the IDs, which are encrypted after.
+		body = c.sealer.Seal(body[:0], ids[4:], body[:n], nil)
+		c.block.Encrypt(ids, ids)
+	} else {
+		body = c.udpAEAD.Seal(body[:0], buf[:xNonceSize], body[:n], nil)
+	}
+	_, err := c.PacketConn.WriteTo(buf[:prefix+len(body)], addr)
+	return len(b), err
+}
+
+// ReadFrom reads from the embedded PacketConn and decrypts into b.
+func (c *PacketConn2022) ReadFrom(b []byte) (int, net.Addr, error) {
+	n, addr, err := c.PacketConn.ReadFrom(b)
+	if err != nil {
+		return n, addr, err
+	}
+	bb, err := c.open(b[:n])
+	if err != nil {
+		return n, addr, err
+	}
+	copy(b, bb)
+	return len(bb), addr, nil
+}
+
+// open decrypts pkt in place and returns the address and payload it
+// carries.
+func (c *PacketConn2022) open(pkt []byte) ([]byte, error) {
+	var (
+		ids, body []byte
+		opener    cipher.AEAD
+		err       error
+	)
+	if c.block != nil {
+		if len(pkt) < separateHeaderSize {
+			return nil, ErrShortPacket
+		}
+		ids = pkt[:separateHeaderSize]
+		c.block.Decrypt(ids, ids)
+		if opener, err = c.opener(binary.BigEndian.Uint64(ids)); err != nil {
+			return nil, err
+		}
+		body, err = opener.Open(pkt[separateHeaderSize:separateHeaderSize], ids[4:], pkt[separateHeaderSize:], nil)
+	} else {
+		if len(pkt) < xNonceSize {
+			return nil, ErrShortPacket
+		}
+		body, err = c.udpAEAD.Open(pkt[xNonceSize:xNonceSize], pkt[:xNonceSize], pkt[xNonceSize:], nil)
+		if err == nil && len(body) < separateHeaderSize {
+			return nil, ErrShortPacket
+		}
+		if err == nil {
+			ids, body = body[:separateHeaderSize], body[separateHeaderSize:]
+		}
+	}
+	if err != nil {
+		return nil, err
+	}
+
+	// type, timestamp, client session ID, padding length and padding
+	if len(body) < 1+8+8+2 {
+		return nil, ErrShortPacket
+	}
+	if body[0] != headerServer || !timely(body[1:9]) || !bytes.Equal(body[9:17], c.id[:]) {
+		return nil, ErrBadHeader
+	}
+	padding := int(binary.BigEndian.Uint16(body[17:]))
+	if body = body[19:]; len(body) < padding {
+		return nil, ErrShortPacket
+	}
+
+	if !c.accept(binary.BigEndian.Uint64(ids), binary.BigEndian.Uint64(ids[8:]), opener) {
+		return nil, ErrReplayedPacket
+	}
+	return body[padding:], nil
+}
+
+func (c *PacketConn2022) lookup(id uint64) *serverSession {
+	for _, s := range c.servers {
+		if s != nil && s.id == id {
+			return s
+		}
+	}
+	return nil
+}
+
+// opener returns the AEAD of the server session id. A session not seen
+// yet is only recorded by accept, once a packet of it is authenticated.
+func (c *PacketConn2022) opener(id uint64) (cipher.AEAD, error) {
+	c.mu.Lock()
+	s := c.lookup(id)
+	c.mu.Unlock()
+	if s != nil {
+		return s.opener, nil
+	}
+	var sid [8]byte
+	binary.BigEndian.PutUint64(sid[:], id)
+	return c.session(sid[:])
+}
+
+// accept records packet of the server session id, and reports whether
+// it is new.
+func (c *PacketConn2022) accept(id, packet uint64, opener cipher.AEAD) bool {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	s := c.lookup(id)
+	if s == nil {
+		s = &serverSession{id: id, opener: opener}
+		c.servers[0], c.servers[1] = s, c.servers[0]
+	}
+	return s.window.ValidateCounter(packet, math.MaxUint64)
+}
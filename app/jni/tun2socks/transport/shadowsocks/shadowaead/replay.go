@@ -0,0 +1,90 @@
+package shadowaead
+
+import (
+	"hash/maphash"
+	"sync"
+	"time"
+)
+
+const (
+	// saltWindow is how long a salt is remembered at least, twice the
+	// timestamp tolerance of Shadowsocks 2022.
+	saltWindow = 60 * time.Second
+
+	// Each generation of the filter holds saltCapacity salts in saltBits
+	// bits, 32 KiB, with about one false positive in four million.
+	saltCapacity = 8192
+	saltBits     = 1 << 18
+	saltHashes   = 20
+)
+
+// saltFilter tells whether a salt was seen within saltWindow. It keeps
+// two generations of Bloom filter: salts are added to the current one,
+// looked up in both, and the older one is dropped once the current one
+// is saltWindow old. A generation filling up is rotated early, which
+// bounds the memory to two generations under any load, at the cost of a
+// shorter window while it lasts.
+type saltFilter struct {
+	mu        sync.Mutex
+	seed      maphash.Seed
+	cur, prev saltGeneration
+	rotated   time.Time
+}
+
+type saltGeneration struct {
+	bits []uint64
+	n    int
+}
+
+func newSaltFilter() *saltFilter {
+	return &saltFilter{seed: maphash.MakeSeed()}
+}
+
+// check records salt and reports whether it is new.
+func (f *saltFilter) check(salt []byte) bool {
+	h := maphash.Bytes(f.seed, salt)
+	h1, h2 := uint32(h), uint32(h>>32)|1
+
+	f.mu.Lock()
+	defer f.mu.Unlock()
+	if now := time.Now(); now.Sub(f.rotated) >= saltWindow || f.cur.n >= saltCapacity {
+		f.rotate(now)
+	}
+	if f.cur.has(h1, h2) || f.prev.has(h1, h2) {
+		return false
+	}
+	f.cur.add(h1, h2)
+	return true
+}
+
+func (f *saltFilter) rotate(now time.Time) {
+	bits := f.prev.bits
+	if bits == nil {
+		bits = make([]uint64, saltBits/64)
+	} else {
+		clear(bits)
+	}
+	f.prev, f.cur = f.cur, saltGeneration{bits: bits}
+	f.rotated = now
+}
+
+func (g *saltGeneration) has(h1, h2 uint32) bool {
+	if g.bits == nil {
+		return false
+	}
+	for i := uint32(0); i < saltHashes; i++ {
+		k := (h1 + i*h2) % saltBits
+		if g.bits[k/64]&(1<<(k%64)) == 0 {
+			return false
+		}
+	}
+	return true
+}
+
+func (g *saltGeneration) add(h1, h2 uint32) {
+	for i := uint32(0); i < saltHashes; i++ {
+		k := (h1 + i*h2) % saltBits
+		g.bits[k/64] |= 1 << (k % 64)
+	}
+	g.n++
+}
@@ -12,8 +12,10 @@ import (
 
 const (
 	// payloadSizeMask is the maximum size of payload in bytes.
-	payloadSizeMask = 0x3FFF    // 16*1024 - 1
-	bufSize         = 17 * 1024 // >= 2+aead.Overhead()+payloadSizeMask+aead.Overhead()
+	payloadSizeMask = 0x3FFF // 16*1024 - 1
+	// chunkSize is the buffer a full chunk is sealed in, header and tags
+	// included, so that it takes a 16 KiB buffer of the allocator.
+	chunkSize = 16 << 10
 )
 
 var ErrZeroChunk = errors.New("zero chunk")
@@ -22,41 +24,51 @@ type Writer struct {
 	io.Writer
 	cipher.AEAD
 	nonce [32]byte // should be sufficient for most nonce sizes
+	chunk int      // buffer a full chunk is sealed in
 }
 
 // NewWriter wraps an io.Writer with authenticated encryption.
-func NewWriter(w io.Writer, aead cipher.AEAD) *Writer { return &Writer{Writer: w, AEAD: aead} }
+func NewWriter(w io.Writer, aead cipher.AEAD) *Writer {
+	return &Writer{Writer: w, AEAD: aead, chunk: chunkSize}
+}
 
-// Write encrypts p and writes to the embedded io.Writer.
-func (w *Writer) Write(p []byte) (n int, err error) {
-	buf := buffer.Get(bufSize)
-	defer buffer.Put(buf)
+// seal encrypts in place the chunk laid out in buf, n bytes of payload
+// at 2+tag, and writes it to the embedded io.Writer.
+func (w *Writer) seal(buf []byte, n int) error {
 	nonce := w.nonce[:w.NonceSize()]
 	tag := w.Overhead()
 	off := 2 + tag
 
+	buf[0], buf[1] = byte(n>>8), byte(n) // big-endian payload size
+	w.Seal(buf[:0], nonce, buf[:2], nil)
+	increment(nonce)
+	w.Seal(buf[off:off], nonce, buf[off:off+n], nil)
+	increment(nonce)
+	_, err := w.Writer.Write(buf[:off+n+tag])
+	return err
+}
+
+// Write encrypts p and writes to the embedded io.Writer, in full chunks
+// as long as p lasts.
+func (w *Writer) Write(p []byte) (n int, err error) {
+	tag := w.Overhead()
+	off := 2 + tag
+
 	// compatible with snell
 	if len(p) == 0 {
-		buf = buf[:off]
-		buf[0], buf[1] = byte(0), byte(0)
-		w.Seal(buf[:0], nonce, buf[:2], nil)
-		increment(nonce)
-		_, err = w.Writer.Write(buf)
+		var buf [2 + 32]byte
+		b := buf[:2]
+		w.Seal(b[:0], w.nonce[:w.NonceSize()], b, nil)
+		increment(w.nonce[:w.NonceSize()])
+		_, err = w.Writer.Write(buf[:off])
 		return n, err
 	}
 
+	buf := buffer.Get(min(off+len(p)+tag, w.chunk))
+	defer buffer.Put(buf)
 	for nr := 0; n < len(p) && err == nil; n += nr {
-		nr = payloadSizeMask
-		if n+nr > len(p) {
-			nr = len(p) - n
-		}
-		buf = buf[:off+nr+tag]
-		buf[0], buf[1] = byte(nr>>8), byte(nr) // big-endian payload size
-		w.Seal(buf[:0], nonce, buf[:2], nil)
-		increment(nonce)
-		w.Seal(buf[:off], nonce, p[n:n+nr], nil)
-		increment(nonce)
-		_, err = w.Writer.Write(buf)
+		nr = copy(buf[off:len(buf)-tag], p[n:])
+		err = w.seal(buf, nr)
 	}
 	return n, err
 }
@@ -64,23 +76,25 @@ func (w *Writer) Write(p []byte) (n int, err error) {
 // ReadFrom reads from the given io.Reader until EOF or error, encrypts and
 // writes to the embedded io.Writer. Returns number of bytes read from r and
 // any error encountered.
+//
+// r is read straight into the buffer the chunks are sealed in. A read that
+// fills it means more is pending, so the next ones take a full chunk, as
+// far as the buffer budget allows. A partial read means r is drained: the
+// chunk goes out at once and the next read waits on a small buffer, like
+// the relays of the tunnel.
 func (w *Writer) ReadFrom(r io.Reader) (n int64, err error) {
-	buf := buffer.Get(bufSize)
-	defer buffer.Put(buf)
-	nonce := w.nonce[:w.NonceSize()]
 	tag := w.Overhead()
 	off := 2 + tag
+
+	buf := buffer.Get(buffer.RelayBufferIdleSize)
+	defer func() { buffer.Put(buf) }()
 	for {
-		nr, er := r.Read(buf[off : off+payloadSizeMask])
-		n += int64(nr)
-		buf[0], buf[1] = byte(nr>>8), byte(nr)
-		w.Seal(buf[:0], nonce, buf[:2], nil)
-		increment(nonce)
-		w.Seal(buf[:off], nonce, buf[off:off+nr], nil)
-		increment(nonce)
-		if _, ew := w.Writer.Write(buf[:off+nr+tag]); ew != nil {
-			err = ew
-			return n, err
+		nr, er := r.Read(buf[off : len(buf)-tag])
+		if nr > 0 {
+			n += int64(nr)
+			if ew := w.seal(buf, nr); ew != nil {
+				return n, ew
+			}
 		}
 		if er != nil {
 			if er != io.EOF { // ignore EOF as per io.ReaderFrom contract
@@ -88,66 +102,96 @@ func (w *Writer) ReadFrom(r io.Reader) (n int64, err error) {
 			}
 			return n, err
 		}
+
+		switch full := nr == len(buf)-off-tag; {
+		case !full && len(buf) > buffer.RelayBufferIdleSize:
+			buffer.Put(buf)
+			buf = buffer.Get(buffer.RelayBufferIdleSize)
+		case full && len(buf) == buffer.RelayBufferIdleSize:
+			if b := buffer.TryGet(w.chunk); b != nil {
+				buffer.Put(buf)
+				buf = b
+			}
+		}
 	}
 }
 
 type Reader struct {
 	io.Reader
 	cipher.AEAD
-	nonce [32]byte // should be sufficient for most nonce sizes
-	buf   []byte   // to be put back into bufPool
-	off   int      // offset to unconsumed part of buf
+	nonce [32]byte     // should be sufficient for most nonce sizes
+	hdr   [2 + 32]byte // should be sufficient for most tag sizes
+	buf   []byte       // to be put back into bufPool
+	off   int          // offset to unconsumed part of buf
+	mask  int          // of the payload size
+	// size is the payload size of the next chunk when sized, as given by
+	// a header rather than a size field.
+	size  int
+	sized bool
 }
 
 // NewReader wraps an io.Reader with authenticated decryption.
-func NewReader(r io.Reader, aead cipher.AEAD) *Reader { return &Reader{Reader: r, AEAD: aead} }
+func NewReader(r io.Reader, aead cipher.AEAD) *Reader {
+	return &Reader{Reader: r, AEAD: aead, mask: payloadSizeMask}
+}
 
-// Read and decrypt a record into p. len(p) >= max payload size + AEAD overhead.
-func (r *Reader) read(p []byte) (int, error) {
-	nonce := r.nonce[:r.NonceSize()]
-	tag := r.Overhead()
+// next reads and decrypts the payload size of the next chunk.
+func (r *Reader) next() (int, error) {
+	if r.sized {
+		r.sized = false
+		return r.size, nil
+	}
 
-	// decrypt payload size
-	p = p[:2+tag]
-	if _, err := io.ReadFull(r.Reader, p); err != nil {
+	nonce := r.nonce[:r.NonceSize()]
+	hdr := r.hdr[:2+r.Overhead()]
+	if _, err := io.ReadFull(r.Reader, hdr); err != nil {
 		return 0, err
 	}
-	_, err := r.Open(p[:0], nonce, p, nil)
+	_, err := r.Open(hdr[:0], nonce, hdr, nil)
 	increment(nonce)
 	if err != nil {
 		return 0, err
 	}
 
-	// decrypt payload
-	size := (int(p[0])<<8 + int(p[1])) & payloadSizeMask
+	size := (int(hdr[0])<<8 + int(hdr[1])) & r.mask
 	if size == 0 {
 		return 0, ErrZeroChunk
 	}
+	return size, nil
+}
 
-	p = p[:size+tag]
+// open reads the payload of size bytes into p and decrypts it in place.
+// len(p) >= size + AEAD overhead.
+func (r *Reader) open(p []byte, size int) error {
+	nonce := r.nonce[:r.NonceSize()]
+	p = p[:size+r.Overhead()]
 	if _, err := io.ReadFull(r.Reader, p); err != nil {
-		return 0, err
+		return err
 	}
-	_, err = r.Open(p[:0], nonce, p, nil)
+	_, err := r.Open(p[:0], nonce, p, nil)
 	increment(nonce)
-	if err != nil {
-		return 0, err
-	}
-	return size, nil
+	return err
 }
 
 // Read reads from the embedded io.Reader, decrypts and writes to p.
 func (r *Reader) Read(p []byte) (int, error) {
 	if r.buf == nil {
-		if len(p) >= payloadSizeMask+r.Overhead() {
-			return r.read(p)
-		}
-		b := buffer.Get(bufSize)
-		n, err := r.read(b)
+		size, err := r.next()
 		if err != nil {
 			return 0, err
 		}
-		r.buf = b[:n]
+		if len(p) >= size+r.Overhead() {
+			if err := r.open(p, size); err != nil {
+				return 0, err
+			}
+			return size, nil
+		}
+		b := getBuffer(size + r.Overhead())
+		if err := r.open(b, size); err != nil {
+			buffer.Put(b)
+			return 0, err
+		}
+		r.buf = b[:size]
 		r.off = 0
 	}
 
@@ -163,37 +207,66 @@ func (r *Reader) Read(p []byte) (int, error) {
 // WriteTo reads from the embedded io.Reader, decrypts and writes to w until
 // there's no more data to write or when an error occurs. Return number of
 // bytes written to w and any error encountered.
+//
+// Each chunk is decrypted in place and written to w from there. The buffer
+// stays large while chunks come large, and shrinks back at the first one
+// that fits a small buffer.
 func (r *Reader) WriteTo(w io.Writer) (n int64, err error) {
-	if r.buf == nil {
-		r.buf = buffer.Get(bufSize)
-		r.off = len(r.buf)
+	if r.buf != nil {
+		nw, ew := w.Write(r.buf[r.off:])
+		r.off += nw
+		n += int64(nw)
+		if r.off == len(r.buf) {
+			buffer.Put(r.buf[:cap(r.buf)])
+			r.buf = nil
+		}
+		if ew != nil {
+			return n, ew
+		}
 	}
 
-	for {
-		for r.off < len(r.buf) {
-			nw, ew := w.Write(r.buf[r.off:])
-			r.off += nw
-			n += int64(nw)
-			if ew != nil {
-				if r.off == len(r.buf) {
-					buffer.Put(r.buf[:cap(r.buf)])
-					r.buf = nil
-				}
-				err = ew
-				return n, err
-			}
+	var buf []byte
+	defer func() {
+		if buf != nil {
+			buffer.Put(buf)
 		}
-
-		nr, er := r.read(r.buf)
+	}()
+	for {
+		size, er := r.next()
 		if er != nil {
 			if er != io.EOF {
 				err = er
 			}
 			return n, err
 		}
-		r.buf = r.buf[:nr]
-		r.off = 0
+
+		need := size + r.Overhead()
+		if cap(buf) < need || (cap(buf) > buffer.RelayBufferIdleSize && need <= buffer.RelayBufferIdleSize) {
+			if buf != nil {
+				buffer.Put(buf)
+			}
+			buf = getBuffer(max(need, buffer.RelayBufferIdleSize))
+		}
+		if err = r.open(buf, size); err != nil {
+			return n, err
+		}
+
+		nw, ew := w.Write(buf[:size])
+		n += int64(nw)
+		if ew != nil {
+			return n, ew
+		}
+	}
+}
+
+// getBuffer takes n bytes from the pool, or allocates them when n is past
+// its largest class, as a Shadowsocks 2022 chunk may be. buffer.Put drops
+// those.
+func getBuffer(n int) []byte {
+	if b := buffer.Get(n); b != nil {
+		return b
 	}
+	return make([]byte, n)
 }
 
 // increment little-endian encoded unsigned integer b. Wrap around on overflow.
@@ -283,3 +356,15 @@ func (c *Conn) ReadFrom(r io.Reader) (int64, error) {
 	}
 	return c.w.ReadFrom(r)
 }
+
+// RelayFrom is ReadFrom. It tells relays that c encrypts in a buffer of
+// its own, so that they hand it their source rather than copying through
+// a buffer of theirs.
+func (c *Conn) RelayFrom(r io.Reader) (int64, error) {
+	return c.ReadFrom(r)
+}
+
+// RelayTo is WriteTo, the decrypting counterpart of RelayFrom.
+func (c *Conn) RelayTo(w io.Writer) (int64, error) {
+	return c.WriteTo(w)
+}
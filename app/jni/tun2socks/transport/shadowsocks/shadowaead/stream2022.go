@@ -0,0 +1,224 @@
+package shadowaead
+
+import (
+	"bytes"
+	"crypto/cipher"
+	"crypto/rand"
+	"encoding/binary"
+	"errors"
+	"io"
+	mrand "math/rand/v2"
+	"net"
+	"time"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+const (
+	// header types of Shadowsocks 2022
+	headerClient = 0
+	headerServer = 1
+
+	// maxTimeDiff is how far the timestamp of a header may be off.
+	maxTimeDiff = 30 * time.Second
+	// maxPadding bounds the padding of a request without payload.
+	maxPadding = 900
+
+	// The payload size of a 2022 chunk takes all 16 bits, its full chunks
+	// are sealed in 32 KiB, the largest buffer of the relays.
+	payloadSizeMask2022 = 0xFFFF
+	chunkSize2022       = 32 << 10
+
+	// fixedHeaderSize is the type, timestamp and length of a request.
+	fixedHeaderSize = 1 + 8 + 2
+)
+
+var (
+	// ErrBadHeader means that the header of a stream or packet is not
+	// the one of a server answering this client.
+	ErrBadHeader = errors.New("bad header")
+	// ErrRepeatedSalt means that a server stream reused a salt.
+	ErrRepeatedSalt = errors.New("repeated salt")
+
+	errNoAddress = errors.New("first write without address")
+	errNoRequest = errors.New("read before the request")
+)
+
+func newWriter2022(w io.Writer, aead cipher.AEAD) *Writer {
+	return &Writer{Writer: w, AEAD: aead, chunk: chunkSize2022}
+}
+
+func newReader2022(r io.Reader, aead cipher.AEAD) *Reader {
+	return &Reader{Reader: r, AEAD: aead, mask: payloadSizeMask2022}
+}
+
+// timely reports whether the big-endian Unix time in b is within
+// maxTimeDiff of now.
+func timely(b []byte) bool {
+	t := time.Unix(int64(binary.BigEndian.Uint64(b)), 0)
+	return time.Since(t).Abs() <= maxTimeDiff
+}
+
+// Conn2022 is the client side of a Shadowsocks 2022 stream. The first
+// Write must start with the SOCKS address of the destination, which goes
+// in the request header along with the rest of that Write.
+type Conn2022 struct {
+	net.Conn
+	*Cipher2022
+	r    *Reader
+	w    *Writer
+	salt []byte // of the request, which the response echoes
+}
+
+// NewConn2022 wraps a stream-oriented net.Conn with cipher.
+func NewConn2022(c net.Conn, ciph *Cipher2022) *Conn2022 {
+	return &Conn2022{Conn: c, Cipher2022: ciph}
+}
+
+// writeRequest writes the salt and the request header carrying the
+// address at the start of p and as much of the rest as fits. It returns
+// the bytes of p sent.
+func (c *Conn2022) writeRequest(p []byte) (int, error) {
+	addr := socks5.SplitAddr(p)
+	if addr == nil {
+		return 0, errNoAddress
+	}
+	salt := make([]byte, c.SaltSize())
+	if _, err := rand.Read(salt); err != nil {
+		return 0, err
+	}
+	aead, err := c.Encrypter(salt)
+	if err != nil {
+		return 0, err
+	}
+	w := newWriter2022(c.Conn, aead)
+	nonce := w.nonce[:w.NonceSize()]
+	tag := w.Overhead()
+
+	// A request without payload is padded, so that its length tells
+	// nothing of the address.
+	payload := p[len(addr):]
+	padding := 0
+	if len(payload) == 0 {
+		padding = 1 + mrand.IntN(maxPadding)
+	}
+	payload = payload[:min(len(payload), payloadSizeMask2022-len(addr)-2)]
+	varLen := len(addr) + 2 + padding + len(payload)
+
+	buf := getBuffer(len(salt) + fixedHeaderSize + tag + varLen + tag)
+	defer buffer.Put(buf)
+	n := copy(buf, salt)
+
+	fixed := buf[n : n+fixedHeaderSize]
+	fixed[0] = headerClient
+	binary.BigEndian.PutUint64(fixed[1:], uint64(time.Now().Unix()))
+	binary.BigEndian.PutUint16(fixed[9:], uint16(varLen))
+	w.Seal(fixed[:0], nonce, fixed, nil)
+	increment(nonce)
+	n += fixedHeaderSize + tag
+
+	vh := buf[n : n+varLen]
+	m := copy(vh, addr)
+	binary.BigEndian.PutUint16(vh[m:], uint16(padding))
+	m += 2
+	clear(vh[m : m+padding])
+	copy(vh[m+padding:], payload)
+	w.Seal(vh[:0], nonce, vh, nil)
+	increment(nonce)
+	n += varLen + tag
+
+	if _, err := c.Conn.Write(buf[:n]); err != nil {
+		return 0, err
+	}
+	c.salt, c.w = salt, w
+	return len(addr) + len(payload), nil
+}
+
+// initReader reads the salt and the response header, and checks that it
+// answers the request.
+func (c *Conn2022) initReader() error {
+	if c.salt == nil {
+		return errNoRequest
+	}
+	salt := make([]byte, c.SaltSize())
+	if _, err := io.ReadFull(c.Conn, salt); err != nil {
+		return err
+	}
+	aead, err := c.Decrypter(salt)
+	if err != nil {
+		return err
+	}
+	r := newReader2022(c.Conn, aead)
+	nonce := r.nonce[:r.NonceSize()]
+
+	// type, timestamp, request salt, length of the first chunk
+	hdr := make([]byte, 1+8+len(c.salt)+2+r.Overhead())
+	if _, err := io.ReadFull(c.Conn, hdr); err != nil {
+		return err
+	}
+	if _, err := r.Open(hdr[:0], nonce, hdr, nil); err != nil {
+		return err
+	}
+	increment(nonce)
+	if hdr[0] != headerServer || !timely(hdr[1:9]) || !bytes.Equal(hdr[9:9+len(c.salt)], c.salt) {
+		return ErrBadHeader
+	}
+	// Only authenticated salts are recorded, so that garbage cannot
+	// flood the filter.
+	if !c.salts.check(salt) {
+		return ErrRepeatedSalt
+	}
+
+	r.size = int(binary.BigEndian.Uint16(hdr[9+len(c.salt):]))
+	r.sized = true
+	c.r = r
+	return nil
+}
+
+func (c *Conn2022) Read(b []byte) (int, error) {
+	if c.r == nil {
+		if err := c.initReader(); err != nil {
+			return 0, err
+		}
+	}
+	return c.r.Read(b)
+}
+
+func (c *Conn2022) WriteTo(w io.Writer) (int64, error) {
+	if c.r == nil {
+		if err := c.initReader(); err != nil {
+			return 0, err
+		}
+	}
+	return c.r.WriteTo(w)
+}
+
+func (c *Conn2022) Write(b []byte) (int, error) {
+	if c.w == nil {
+		n, err := c.writeRequest(b)
+		if err != nil || n == len(b) {
+			return n, err
+		}
+		m, err := c.w.Write(b[n:])
+		return n + m, err
+	}
+	return c.w.Write(b)
+}
+
+func (c *Conn2022) ReadFrom(r io.Reader) (int64, error) {
+	if c.w == nil {
+		return 0, errNoAddress
+	}
+	return c.w.ReadFrom(r)
+}
+
+// RelayFrom is ReadFrom, see Conn.RelayFrom.
+func (c *Conn2022) RelayFrom(r io.Reader) (int64, error) {
+	return c.ReadFrom(r)
+}
+
+// RelayTo is WriteTo, see Conn.RelayTo.
+func (c *Conn2022) RelayTo(w io.Writer) (int64, error) {
+	return c.WriteTo(w)
+}
@@ -0,0 +1,129 @@
+package shadowaead
+
+import (
+	"bytes"
+	"crypto/cipher"
+	"io"
+	"testing"
+	"testing/iotest"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+var testCiphers = map[string]func([]byte) (Cipher, error){
+	"aes-256-gcm":       AESGCM,
+	"chacha20-poly1305": Chacha20Poly1305,
+}
+
+func testAEADs(t testing.TB, newCipher func([]byte) (Cipher, error)) (enc, dec cipher.AEAD) {
+	ciph, err := newCipher(bytes.Repeat([]byte{1}, 32))
+	require.NoError(t, err)
+	salt := make([]byte, ciph.SaltSize())
+	enc, err = ciph.Encrypter(salt)
+	require.NoError(t, err)
+	dec, err = ciph.Decrypter(salt)
+	require.NoError(t, err)
+	return enc, dec
+}
+
+// trickle returns its data in reads of at most n bytes.
+type trickle struct {
+	r io.Reader
+	n int
+}
+
+func (t *trickle) Read(b []byte) (int, error) {
+	return t.r.Read(b[:min(len(b), t.n)])
+}
+
+func TestStream(t *testing.T) {
+	payload := bytes.Repeat([]byte("0123456789abcdef"), 1<<14)
+	held := buffer.Stats().Bytes
+
+	for name, newCipher := range testCiphers {
+		t.Run(name, func(t *testing.T) {
+			enc, dec := testAEADs(t, newCipher)
+			var wire bytes.Buffer
+			w := NewWriter(&wire, enc)
+
+			// Bulk, interactive and plain writes all make chunks of the
+			// same stream.
+			n, err := w.ReadFrom(bytes.NewReader(payload))
+			require.NoError(t, err)
+			assert.EqualValues(t, len(payload), n)
+			n, err = w.ReadFrom(&trickle{r: bytes.NewReader(payload[:4096]), n: 100})
+			require.NoError(t, err)
+			assert.EqualValues(t, 4096, n)
+			_, err = w.Write(payload[:40000])
+			require.NoError(t, err)
+			want := append(append(payload, payload[:4096]...), payload[:40000]...)
+
+			r := NewReader(&wire, dec)
+			head := make([]byte, 1000)
+			_, err = io.ReadFull(iotest.OneByteReader(r), head)
+			require.NoError(t, err)
+			var rest bytes.Buffer
+			_, err = r.WriteTo(&rest)
+			require.NoError(t, err)
+			assert.Equal(t, want, append(head, rest.Bytes()...))
+		})
+	}
+	assert.Equal(t, held, buffer.Stats().Bytes, "every buffer is returned")
+}
+
+func TestStreamTampered(t *testing.T) {
+	enc, dec := testAEADs(t, AESGCM)
+	var wire bytes.Buffer
+	_, err := NewWriter(&wire, enc).Write([]byte("hello"))
+	require.NoError(t, err)
+	wire.Bytes()[wire.Len()-1] ^= 1
+
+	_, err = NewReader(&wire, dec).WriteTo(io.Discard)
+	assert.Error(t, err)
+}
+
+// zeros is an endless source of bulk data.
+type zeros struct{}
+
+func (zeros) Read(b []byte) (int, error) {
+	clear(b)
+	return len(b), nil
+}
+
+const benchRelaySize = 1 << 20
+
+// The relay before in-place sealing: the tunnel reads into its 20 KiB
+// buffer, the writer copies each piece into a chunk buffer of its own.
+func benchmarkRelayCopy(b *testing.B, newCipher func([]byte) (Cipher, error)) {
+	enc, _ := testAEADs(b, newCipher)
+	w := NewWriter(io.Discard, enc)
+	buf := make([]byte, buffer.RelayBufferSize)
+	b.SetBytes(benchRelaySize)
+	b.ReportAllocs()
+	for i := 0; i < b.N; i++ {
+		_, err := io.CopyBuffer(struct{ io.Writer }{w}, io.LimitReader(zeros{}, benchRelaySize), buf)
+		require.NoError(b, err)
+	}
+}
+
+// The relay now: the writer reads straight into its chunk and seals it
+// there.
+func benchmarkRelayInPlace(b *testing.B, newCipher func([]byte) (Cipher, error)) {
+	enc, _ := testAEADs(b, newCipher)
+	w := NewWriter(io.Discard, enc)
+	b.SetBytes(benchRelaySize)
+	b.ReportAllocs()
+	for i := 0; i < b.N; i++ {
+		_, err := w.ReadFrom(io.LimitReader(zeros{}, benchRelaySize))
+		require.NoError(b, err)
+	}
+}
+
+// MB/s divided by the clock rate in MHz gives bytes per cycle.
+func BenchmarkRelayCopyAES256GCM(b *testing.B) { benchmarkRelayCopy(b, AESGCM) }
+func BenchmarkRelayInPlaceAES256GCM(b *testing.B) { benchmarkRelayInPlace(b, AESGCM) }
+func BenchmarkRelayCopyChacha20(b *testing.B) { benchmarkRelayCopy(b, Chacha20Poly1305) }
+func BenchmarkRelayInPlaceChacha20(b *testing.B) { benchmarkRelayInPlace(b, Chacha20Poly1305) }
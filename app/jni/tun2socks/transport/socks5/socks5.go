@@ -86,6 +86,16 @@ func (r Reply) String() string {
 	}
 }
 
+// ReplyError is a failure reply of the server to a request.
+type ReplyError struct {
+	Command Command
+	Reply   Reply
+}
+
+func (e *ReplyError) Error() string {
+	return fmt.Sprintf("%s: %s", e.Command, e.Reply)
+}
+
 // MaxAddrLen is the maximum size of SOCKS address in bytes.
 const MaxAddrLen = 1 + 1 + 255 + 2
 
@@ -170,7 +180,16 @@ type User struct {
 
 // ClientHandshake fast-tracks SOCKS initialization to get target address to connect on client side.
 func ClientHandshake(rw io.ReadWriter, addr Addr, command Command, user *User) (Addr, error) {
-	buf := make([]byte, MaxAddrLen)
+	if err := ClientAuth(rw, user); err != nil {
+		return nil, err
+	}
+	return ClientRequest(rw, addr, command)
+}
+
+// ClientAuth performs the method negotiation and authentication of a
+// handshake, the part that does not depend on the request.
+func ClientAuth(rw io.ReadWriter, user *User) error {
+	var buf [2]byte
 
 	var method uint8
 	if user != nil {
@@ -181,21 +200,21 @@ func ClientHandshake(rw io.ReadWriter, addr Addr, command Command, user *User) (
 
 	// VER, NMETHODS, METHODS
 	if _, err := rw.Write([]byte{Version, 0x01 /* NMETHODS */, method}); err != nil {
-		return nil, err
+		return err
 	}
 
 	// VER, METHOD
-	if _, err := io.ReadFull(rw, buf[:2]); err != nil {
-		return nil, err
+	if _, err := io.ReadFull(rw, buf[:]); err != nil {
+		return err
 	}
 
 	if buf[0] != Version {
-		return nil, errors.New("socks version mismatched")
+		return errors.New("socks version mismatched")
 	}
 
 	if buf[1] == MethodUserPass /* USERNAME/PASSWORD */ {
 		if user == nil {
-			return nil, errors.New("auth required")
+			return errors.New("auth required")
 		}
 
 		uLen := len(user.Username)
@@ -203,9 +222,9 @@ func ClientHandshake(rw io.ReadWriter, addr Addr, command Command, user *User) (
 
 		// Both ULEN and PLEN are limited to the range [1, 255].
 		if uLen == 0 || pLen == 0 {
-			return nil, errors.New("auth username/password empty")
+			return errors.New("auth username/password empty")
 		} else if uLen > MaxAuthLen || pLen > MaxAuthLen {
-			return nil, errors.New("auth username/password too long")
+			return errors.New("auth username/password too long")
 		}
 
 		// password protocol version
@@ -218,20 +237,27 @@ func ClientHandshake(rw io.ReadWriter, addr Addr, command Command, user *User) (
 		authMsg.WriteString(user.Password /* PASSWD */)
 
 		if _, err := rw.Write(authMsg.Bytes()); err != nil {
-			return nil, err
+			return err
 		}
 
-		if _, err := io.ReadFull(rw, buf[:2]); err != nil {
-			return nil, err
+		if _, err := io.ReadFull(rw, buf[:]); err != nil {
+			return err
 		}
 
 		if buf[1] != 0x00 /* STATUS of SUCCESS */ {
-			return nil, errors.New("rejected username/password")
+			return errors.New("rejected username/password")
 		}
 
 	} else if buf[1] != MethodNoAuth /* NO AUTHENTICATION REQUIRED */ {
-		return nil, errors.New("unsupported method")
+		return errors.New("unsupported method")
 	}
+	return nil
+}
+
+// ClientRequest sends the request of a handshake after ClientAuth, and
+// returns the address bound by the server.
+func ClientRequest(rw io.ReadWriter, addr Addr, command Command) (Addr, error) {
+	buf := make([]byte, MaxAddrLen)
 
 	// VER, CMD, RSV, ADDR
 	req := bufferpool.Get()
@@ -252,7 +278,7 @@ func ClientHandshake(rw io.ReadWriter, addr Addr, command Command, user *User) (
 	}
 
 	if rep := Reply(buf[1]); rep != 0x00 /* SUCCEEDED */ {
-		return nil, fmt.Errorf("%s: %s", command, rep)
+		return nil, &ReplyError{Command: command, Reply: rep}
 	}
 
 	return ReadAddr(rw, buf)
@@ -0,0 +1,167 @@
+// Package uot implements version 2 of the UDP-over-TCP protocol of
+// sing-box, which carries the datagrams of a UDP socket over a stream
+// for networks where UDP to the proxy does not get through.
+package uot
+
+import (
+	"bufio"
+	"encoding/binary"
+	"errors"
+	"io"
+	"net"
+	"sync"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+// The stream is opened through the proxy to this pseudo destination.
+const (
+	DestinationHost = "sp.v2.udp-over-tcp.arpa"
+	DestinationPort = 0
+)
+
+// Address families of the packets, which are laid out like SOCKS
+// addresses but numbered apart.
+const (
+	familyIPv4 = 0x00
+	familyIPv6 = 0x01
+	familyFqdn = 0x02
+)
+
+// MaxPayloadSize is the largest payload the length of a packet tells.
+const MaxPayloadSize = 0xFFFF
+
+var (
+	errBadAddress = errors.New("uot: bad address")
+	errTooLarge   = errors.New("uot: packet too large")
+	errConnected  = errors.New("uot: connected sessions are not supported")
+)
+
+// Conn is a net.PacketConn over a stream: every packet is the address
+// of its peer, the length of its payload, then the payload.
+type Conn struct {
+	net.Conn
+
+	wmu     sync.Mutex
+	request []byte // nil once sent
+
+	rmu sync.Mutex
+	r   *bufio.Reader
+}
+
+// Client returns a Conn opening a session for dst. Packets name their
+// peer, so the session may reach others too. The request rides along
+// with the first packet.
+func Client(c net.Conn, dst socks5.Addr) *Conn {
+	request := make([]byte, 1, 1+len(dst))
+	request[0] = 0 // not connected
+	return &Conn{
+		Conn:    c,
+		request: append(request, dst...),
+		r:       bufio.NewReader(c),
+	}
+}
+
+// Server reads the request of a session opened by Client, and returns
+// the server side of it with the destination the request names.
+func Server(c net.Conn) (*Conn, socks5.Addr, error) {
+	r := bufio.NewReader(c)
+	connect, err := r.ReadByte()
+	if err != nil {
+		return nil, nil, err
+	}
+	if connect != 0 {
+		return nil, nil, errConnected
+	}
+	dst, err := socks5.ReadAddr(r, make([]byte, socks5.MaxAddrLen))
+	if err != nil {
+		return nil, nil, err
+	}
+	return &Conn{Conn: c, r: r}, dst, nil
+}
+
+func (c *Conn) WriteTo(b []byte, addr net.Addr) (int, error) {
+	if len(b) > MaxPayloadSize {
+		return 0, errTooLarge
+	}
+	a := socks5.ParseAddr(addr)
+	if a == nil {
+		return 0, errBadAddress
+	}
+
+	c.wmu.Lock()
+	defer c.wmu.Unlock()
+	buf := buffer.Get(len(c.request) + len(a) + 2 + len(b))
+	defer buffer.Put(buf)
+	n := copy(buf, c.request)
+	copy(buf[n:], a)
+	switch a[0] {
+	case socks5.AtypIPv4:
+		buf[n] = familyIPv4
+	case socks5.AtypIPv6:
+		buf[n] = familyIPv6
+	case socks5.AtypDomainName:
+		buf[n] = familyFqdn
+	}
+	n += len(a)
+	binary.BigEndian.PutUint16(buf[n:], uint16(len(b)))
+	n += 2
+	n += copy(buf[n:], b)
+
+	if _, err := c.Conn.Write(buf[:n]); err != nil {
+		return 0, err
+	}
+	c.request = nil
+	return len(b), nil
+}
+
+// ReadFrom reads the next packet into b, which loses what does not fit.
+// Packets from a domain name are skipped, as a net.Addr names an IP.
+func (c *Conn) ReadFrom(b []byte) (int, net.Addr, error) {
+	c.rmu.Lock()
+	defer c.rmu.Unlock()
+
+	// address, port, payload length
+	var hdr [255 + 2 + 2]byte
+	for {
+		family, err := c.r.ReadByte()
+		if err != nil {
+			return 0, nil, err
+		}
+		var size int
+		switch family {
+		case familyIPv4:
+			size = net.IPv4len
+		case familyIPv6:
+			size = net.IPv6len
+		case familyFqdn:
+			l, err := c.r.ReadByte()
+			if err != nil {
+				return 0, nil, err
+			}
+			size = int(l)
+		default:
+			return 0, nil, errBadAddress
+		}
+		h := hdr[:size+2+2]
+		if _, err := io.ReadFull(c.r, h); err != nil {
+			return 0, nil, err
+		}
+		length := int(binary.BigEndian.Uint16(h[size+2:]))
+
+		n, err := io.ReadFull(c.r, b[:min(length, len(b))])
+		if err != nil {
+			return 0, nil, err
+		}
+		if _, err := c.r.Discard(length - n); err != nil {
+			return 0, nil, err
+		}
+		if family == familyFqdn {
+			continue
+		}
+		ip := make(net.IP, size)
+		copy(ip, h)
+		return n, &net.UDPAddr{IP: ip, Port: int(binary.BigEndian.Uint16(h[size:]))}, nil
+	}
+}
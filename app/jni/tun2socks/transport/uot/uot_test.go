@@ -0,0 +1,59 @@
+package uot
+
+import (
+	"net"
+	"net/netip"
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	"github.com/xjasonlyu/tun2socks/v2/transport/socks5"
+)
+
+func TestConn(t *testing.T) {
+	c, s := net.Pipe()
+	defer c.Close()
+	defer s.Close()
+
+	dns := net.UDPAddrFromAddrPort(netip.MustParseAddrPort("1.1.1.1:53"))
+	dst := socks5.ParseAddr(dns)
+	client := Client(c, dst)
+	go func() {
+		client.WriteTo([]byte("query"), dns)
+		client.WriteTo([]byte("again"), dns)
+	}()
+
+	server, got, err := Server(s)
+	require.NoError(t, err)
+	assert.Equal(t, dst, got)
+
+	b := make([]byte, MaxPayloadSize)
+	n, from, err := server.ReadFrom(b)
+	require.NoError(t, err)
+	assert.Equal(t, "query", string(b[:n]))
+	assert.Equal(t, dns.String(), from.String())
+	n, _, err = server.ReadFrom(b)
+	require.NoError(t, err)
+	assert.Equal(t, "again", string(b[:n]))
+
+	// Packets from a domain name are skipped, those too large for b are
+	// truncated without losing the next one.
+	v6 := net.UDPAddrFromAddrPort(netip.MustParseAddrPort("[2606:4700::1111]:443"))
+	go func() {
+		server.Conn.Write([]byte{familyFqdn, 3, 'f', 'o', 'o', 0, 53, 0, 1, 'x'})
+		server.WriteTo([]byte("truncated"), v6)
+		server.WriteTo([]byte("answer"), dns)
+	}()
+	n, from, err = client.ReadFrom(b[:5])
+	require.NoError(t, err)
+	assert.Equal(t, "trunc", string(b[:n]))
+	assert.Equal(t, v6.String(), from.String())
+	n, from, err = client.ReadFrom(b)
+	require.NoError(t, err)
+	assert.Equal(t, "answer", string(b[:n]))
+	assert.Equal(t, dns.String(), from.String())
+
+	_, err = client.WriteTo(make([]byte, MaxPayloadSize+1), dns)
+	assert.ErrorIs(t, err, errTooLarge)
+}
@@ -0,0 +1,185 @@
+package tunnel
+
+import (
+	"sync"
+
+	"go.uber.org/atomic"
+
+	"github.com/xjasonlyu/tun2socks/v2/core/adapter"
+)
+
+const (
+	// DefaultDispatchWorkers is the number of goroutines dialing upstream.
+	DefaultDispatchWorkers = 128
+	// DefaultDispatchQueue bounds the connections waiting for a worker.
+	DefaultDispatchQueue = 1024
+	// DefaultDispatchPerDestination bounds the dials in flight to one
+	// destination.
+	DefaultDispatchPerDestination = 32
+)
+
+// DispatchConfig sizes the worker pool connections are handed to. Zero
+// fields take their default.
+type DispatchConfig struct {
+	Workers        int
+	QueueLen       int
+	PerDestination int
+}
+
+func (c DispatchConfig) withDefaults() DispatchConfig {
+	if c.Workers <= 0 {
+		c.Workers = DefaultDispatchWorkers
+	}
+	if c.QueueLen <= 0 {
+		c.QueueLen = DefaultDispatchQueue
+	}
+	if c.PerDestination <= 0 {
+		c.PerDestination = DefaultDispatchPerDestination
+	}
+	return c
+}
+
+// DispatchStats is a snapshot of the worker pool.
+type DispatchStats struct {
+	// Queued is the number of connections waiting for a worker, out of
+	// QueueLen.
+	Queued   int
+	QueueLen int
+	// Busy is the number of workers dialing, out of Workers.
+	Busy    int
+	Workers int
+	// Connections closed because the queue was full, or because too many
+	// dials to their destination were in flight.
+	ShedQueueFull   uint64
+	ShedDestination uint64
+}
+
+// job is a connection waiting for a worker, exactly one field is set.
+type job struct {
+	tcp adapter.TCPConn
+	nat *udpSession
+}
+
+func (j job) close() {
+	if j.tcp != nil {
+		j.tcp.Close()
+	} else {
+		j.nat.close()
+	}
+}
+
+// dispatcher is one generation of the worker pool. Reconfiguring the
+// Tunnel closes its queue, the workers then drain what is left and exit.
+type dispatcher struct {
+	cfg    DispatchConfig
+	queue  chan job
+	busy   atomic.Int32
+	closed atomic.Bool
+
+	mu       sync.Mutex
+	inflight map[string]int
+}
+
+func newDispatcher(cfg DispatchConfig) *dispatcher {
+	cfg = cfg.withDefaults()
+	return &dispatcher{
+		cfg:      cfg,
+		queue:    make(chan job, cfg.QueueLen),
+		inflight: make(map[string]int),
+	}
+}
+
+// acquire reserves a dial to dest, it fails when PerDestination dials
+// to it are already in flight.
+func (d *dispatcher) acquire(dest string) bool {
+	d.mu.Lock()
+	defer d.mu.Unlock()
+	if d.inflight[dest] >= d.cfg.PerDestination {
+		return false
+	}
+	d.inflight[dest]++
+	return true
+}
+
+func (d *dispatcher) release(dest string) {
+	d.mu.Lock()
+	if d.inflight[dest]--; d.inflight[dest] <= 0 {
+		delete(d.inflight, dest)
+	}
+	d.mu.Unlock()
+}
+
+func (t *Tunnel) startDispatcher(cfg DispatchConfig) *dispatcher {
+	d := newDispatcher(cfg)
+	for i := 0; i < d.cfg.Workers; i++ {
+		go t.work(d)
+	}
+	return d
+}
+
+// work dials the queued connections one at a time. Only the dial runs on
+// the worker, the relay that follows gets a goroutine of its own.
+func (t *Tunnel) work(d *dispatcher) {
+	for j := range d.queue {
+		if d.closed.Load() {
+			j.close()
+			continue
+		}
+		d.busy.Inc()
+		if j.tcp != nil {
+			t.handleTCPConn(j.tcp, d)
+		} else {
+			t.dialSession(j.nat, d)
+		}
+		d.busy.Dec()
+	}
+}
+
+// enqueue hands j to a worker without blocking the stack. It returns
+// false when the queue is full or the Tunnel is not processing, in which
+// case the caller must close the connection.
+func (t *Tunnel) enqueue(j job) bool {
+	t.dispatchMu.RLock()
+	defer t.dispatchMu.RUnlock()
+	if t.dispatch == nil {
+		return false
+	}
+	select {
+	case t.dispatch.queue <- j:
+		return true
+	default:
+		t.shedQueue.Inc()
+		return false
+	}
+}
+
+// SetDispatch resizes the worker pool. Connections already queued are
+// still served by the previous workers.
+func (t *Tunnel) SetDispatch(cfg DispatchConfig) {
+	t.dispatchMu.Lock()
+	defer t.dispatchMu.Unlock()
+	t.dispatchCfg = cfg
+	if old := t.dispatch; old != nil {
+		t.dispatch = t.startDispatcher(cfg)
+		close(old.queue)
+	}
+}
+
+// DispatchStats returns a snapshot of the worker pool.
+func (t *Tunnel) DispatchStats() DispatchStats {
+	t.dispatchMu.RLock()
+	d := t.dispatch
+	t.dispatchMu.RUnlock()
+
+	stats := DispatchStats{
+		ShedQueueFull:   t.shedQueue.Load(),
+		ShedDestination: t.shedDest.Load(),
+	}
+	if d != nil {
+		stats.Queued = len(d.queue)
+		stats.QueueLen = d.cfg.QueueLen
+		stats.Busy = int(d.busy.Load())
+		stats.Workers = d.cfg.Workers
+	}
+	return stats
+}
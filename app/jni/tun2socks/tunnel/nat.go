@@ -0,0 +1,382 @@
+package tunnel
+
+import (
+	"fmt"
+	"net"
+	"net/netip"
+	"sync"
+
+	"go.uber.org/atomic"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+	"github.com/xjasonlyu/tun2socks/v2/core/adapter"
+	"github.com/xjasonlyu/tun2socks/v2/log"
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/proxy"
+	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
+)
+
+// NATMode is how UDP sessions map sources to outbound sockets.
+type NATMode int32
+
+const (
+	// NATPortRestricted gives a source one outbound socket per outbound
+	// proxy, and only lets in replies from addresses it sent to.
+	NATPortRestricted NATMode = iota
+	// NATFullCone is like NATPortRestricted, but lets in datagrams from
+	// any address once the source has sent something.
+	NATFullCone
+	// NATSymmetric gives every source and destination pair a socket of
+	// its own.
+	NATSymmetric
+)
+
+var natModes = [...]string{
+	NATPortRestricted: "port-restricted",
+	NATFullCone:       "full-cone",
+	NATSymmetric:      "symmetric",
+}
+
+func (m NATMode) String() string {
+	if m < 0 || int(m) >= len(natModes) {
+		return fmt.Sprintf("NATMode(%d)", int32(m))
+	}
+	return natModes[m]
+}
+
+// ParseNATMode parses the name of a NATMode.
+func ParseNATMode(s string) (NATMode, error) {
+	for m, name := range natModes {
+		if s == name {
+			return NATMode(m), nil
+		}
+	}
+	return 0, fmt.Errorf("unknown udp nat mode: %s", s)
+}
+
+// natQueueLimit bounds the datagrams of a session waiting for its
+// writer, including those queued while it dials.
+const natQueueLimit = 32
+
+type flowKey struct {
+	src, dst netip.AddrPort
+}
+
+type sharedKey struct {
+	src      netip.AddrPort
+	outbound string
+}
+
+// natTable holds the UDP sessions. Every flow seen so far points at its
+// session, so most datagrams cost a single map lookup.
+type natTable struct {
+	mu     sync.RWMutex
+	flows  map[flowKey]*udpSession
+	shared map[sharedKey]*udpSession
+
+	wheel wheel
+}
+
+func newNATTable() *natTable {
+	return &natTable{
+		flows:  make(map[flowKey]*udpSession),
+		shared: make(map[sharedKey]*udpSession),
+	}
+}
+
+func (nt *natTable) lookup(src, dst netip.AddrPort) *udpSession {
+	nt.mu.RLock()
+	s := nt.flows[flowKey{src, dst}]
+	nt.mu.RUnlock()
+	return s
+}
+
+// attach adds the flow from src to dst to the shared session of
+// outbound, or to a new session made by create. It reports whether the
+// session is new.
+func (nt *natTable) attach(src, dst netip.AddrPort, outbound string, shared bool, create func() *udpSession) (*udpSession, bool) {
+	nt.mu.Lock()
+	defer nt.mu.Unlock()
+
+	flow := flowKey{src, dst}
+	if s := nt.flows[flow]; s != nil {
+		return s, false
+	}
+	key := sharedKey{src, outbound}
+	var s *udpSession
+	if shared {
+		s = nt.shared[key]
+	}
+	created := s == nil
+	if created {
+		s = create()
+		if shared {
+			s.key = &key
+			nt.shared[key] = s
+		}
+	}
+	s.addPeer(dst)
+	nt.flows[flow] = s
+	return s, created
+}
+
+// remove forgets s and every flow leading to it.
+func (nt *natTable) remove(s *udpSession) {
+	nt.mu.Lock()
+	defer nt.mu.Unlock()
+	if s.key != nil && nt.shared[*s.key] == s {
+		delete(nt.shared, *s.key)
+	}
+	s.mu.RLock()
+	for dst := range s.peers {
+		if f := (flowKey{s.src, dst}); nt.flows[f] == s {
+			delete(nt.flows, f)
+		}
+	}
+	s.mu.RUnlock()
+}
+
+// sessions returns every session in the table.
+func (nt *natTable) sessions() []*udpSession {
+	nt.mu.RLock()
+	defer nt.mu.RUnlock()
+	seen := make(map[*udpSession]struct{}, len(nt.flows))
+	all := make([]*udpSession, 0, len(nt.flows))
+	for _, s := range nt.flows {
+		if _, ok := seen[s]; !ok {
+			seen[s] = struct{}{}
+			all = append(all, s)
+		}
+	}
+	return all
+}
+
+type pendingDatagram struct {
+	dst  netip.AddrPort
+	data []byte
+}
+
+// udpSession is one outbound socket and the flows of a source it
+// carries. It costs two goroutines, one writing the datagrams of the
+// source and one reading replies.
+type udpSession struct {
+	src      netip.AddrPort
+	key      *sharedKey // nil when not shared
+	mode     NATMode
+	metadata *M.Metadata
+	w        adapter.UDPWriter
+
+	// active is the wheel tick of the last datagram in either direction.
+	active atomic.Int64
+	closed atomic.Bool
+	done   chan struct{} // closed by close
+
+	// queue holds the datagrams for the writer.
+	queue chan pendingDatagram
+
+	mu    sync.RWMutex
+	pc    net.PacketConn // nil until dialed
+	peers map[netip.AddrPort]net.Addr
+}
+
+func newUDPSession(src netip.AddrPort, mode NATMode, metadata *M.Metadata, w adapter.UDPWriter) *udpSession {
+	return &udpSession{
+		src:      src,
+		mode:     mode,
+		metadata: metadata,
+		w:        w,
+		done:     make(chan struct{}),
+		queue:    make(chan pendingDatagram, natQueueLimit),
+		peers:    make(map[netip.AddrPort]net.Addr),
+	}
+}
+
+func (s *udpSession) addPeer(dst netip.AddrPort) {
+	s.mu.Lock()
+	s.peers[dst] = net.UDPAddrFromAddrPort(dst)
+	s.mu.Unlock()
+}
+
+// accepts reports whether a datagram from addr may reach the source.
+func (s *udpSession) accepts(addr netip.AddrPort) bool {
+	if s.mode == NATFullCone {
+		return true
+	}
+	s.mu.RLock()
+	_, ok := s.peers[addr]
+	s.mu.RUnlock()
+	return ok
+}
+
+// send queues data to dst for the writer of s. It runs on the delivery
+// goroutine of the stack, which must not block on a slow outbound, so
+// data is dropped when the queue is full.
+func (s *udpSession) send(dst netip.AddrPort, data []byte) {
+	select {
+	case s.queue <- pendingDatagram{dst, data}:
+	default:
+		log.Debugf("[UDP] queue of %s full, drop packet to %s", s.src, dst)
+	}
+}
+
+// write sends the queued datagrams of s until it is closed.
+func (s *udpSession) write() {
+	for {
+		select {
+		case p := <-s.queue:
+			s.mu.RLock()
+			to := s.peers[p.dst]
+			s.mu.RUnlock()
+			if _, err := s.pc.WriteTo(p.data, to); err != nil {
+				log.Debugf("[UDP] write to %s: %v", p.dst, err)
+			}
+		case <-s.done:
+			return
+		}
+	}
+}
+
+func (s *udpSession) close() {
+	if s.closed.Swap(true) {
+		return
+	}
+	close(s.done)
+	s.mu.Lock()
+	pc := s.pc
+	s.mu.Unlock()
+	if pc != nil {
+		pc.Close()
+	}
+}
+
+// SetUDPNAT sets how new UDP sessions are shared, existing ones keep
+// their mode.
+func (t *Tunnel) SetUDPNAT(mode NATMode) {
+	t.natMode.Store(int32(mode))
+}
+
+// HandleUDPPacket routes a datagram from the stack to the session of its
+// flow, opening one when needed. Dials run on the dispatch workers.
+func (t *Tunnel) HandleUDPPacket(id *stack.TransportEndpointID, data []byte, w adapter.UDPWriter) {
+	src := netip.AddrPortFrom(parseTCPIPAddress(id.RemoteAddress), id.RemotePort)
+	dst := netip.AddrPortFrom(parseTCPIPAddress(id.LocalAddress), id.LocalPort)
+
+	s := t.nat.lookup(src, dst)
+	if s == nil {
+		if s = t.openSession(src, dst, w); s == nil {
+			return
+		}
+	}
+	s.active.Store(t.nat.wheel.now.Load())
+	s.send(dst, data)
+}
+
+func (t *Tunnel) openSession(src, dst netip.AddrPort, w adapter.UDPWriter) *udpSession {
+	metadata := &M.Metadata{
+		Network: M.UDP,
+		SrcIP:   src.Addr(),
+		SrcPort: src.Port(),
+		DstIP:   dst.Addr(),
+		DstPort: dst.Port(),
+	}
+
+	mode := NATMode(t.natMode.Load())
+	var (
+		outbound string
+		shared   bool
+	)
+	if mode != NATSymmetric {
+		if su, ok := t.Dialer().(proxy.SharedUDP); ok {
+			outbound, shared = su.SharedUDPKey(metadata)
+		}
+	}
+
+	s, created := t.nat.attach(src, dst, outbound, shared, func() *udpSession {
+		return newUDPSession(src, mode, metadata, w)
+	})
+	if !created {
+		return s
+	}
+	s.active.Store(t.nat.wheel.now.Load())
+	if !t.enqueue(job{nat: s}) {
+		log.Debugf("[UDP] dispatch queue full, drop %s", src)
+		t.closeSession(s)
+		return nil
+	}
+	t.nat.wheel.schedule(s, ticks(t.udpTimeout.Load()))
+	return s
+}
+
+// dialSession opens the outbound socket of s on a dispatch worker, then
+// starts writing what was queued meanwhile and reading replies.
+func (t *Tunnel) dialSession(s *udpSession, d *dispatcher) {
+	metadata := s.metadata
+	dest := metadata.DestinationAddress()
+	if !d.acquire(dest) {
+		t.shedDest.Inc()
+		log.Debugf("[UDP] too many dials to %s, drop %s", dest, metadata.SourceAddress())
+		t.closeSession(s)
+		return
+	}
+	pc, err := t.Dialer().DialUDP(metadata)
+	d.release(dest)
+	if err != nil {
+		log.Warnf("[UDP] dial %s: %v", dest, err)
+		t.closeSession(s)
+		return
+	}
+	metadata.MidIP, metadata.MidPort = parseNetAddr(pc.LocalAddr())
+	pc = statistic.NewUDPTracker(pc, metadata, t.manager)
+
+	s.mu.Lock()
+	if s.closed.Load() {
+		s.mu.Unlock()
+		pc.Close()
+		return
+	}
+	s.pc = pc
+	s.mu.Unlock()
+
+	log.Infof("[UDP] %s <-> %s (%s)", metadata.SourceAddress(), dest, s.mode)
+	go s.write()
+	go t.readSession(s)
+}
+
+// readSession hands the replies of s back to the stack until its socket
+// is closed.
+func (t *Tunnel) readSession(s *udpSession) {
+	defer t.closeSession(s)
+
+	buf := buffer.Get(buffer.MaxSegmentSize)
+	defer buffer.Put(buf)
+
+	for {
+		n, from, err := s.pc.ReadFrom(buf)
+		if err != nil {
+			if !s.closed.Load() {
+				log.Debugf("[UDP] read from %s: %v", s.metadata.DestinationAddress(), err)
+			}
+			return
+		}
+		ip, port := parseNetAddr(from)
+		addr := netip.AddrPortFrom(ip.Unmap(), port)
+		if !addr.IsValid() || !s.accepts(addr) {
+			log.Debugf("[UDP] %s nat %s: drop packet from %s", s.mode, s.src, from)
+			continue
+		}
+		s.active.Store(t.nat.wheel.now.Load())
+		if err := s.w.WriteUDP(buf[:n], addr, s.src); err != nil {
+			log.Debugf("[UDP] write back to %s: %v", s.src, err)
+		}
+	}
+}
+
+func (t *Tunnel) closeSession(s *udpSession) {
+	t.nat.remove(s)
+	s.close()
+}
+
+func (t *Tunnel) runNAT(done <-chan struct{}) {
+	t.nat.wheel.run(t.udpTimeout.Load, t.closeSession, done)
+}
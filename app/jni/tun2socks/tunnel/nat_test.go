@@ -0,0 +1,232 @@
+package tunnel
+
+import (
+	"context"
+	"errors"
+	"net"
+	"net/netip"
+	"sync"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+	"gvisor.dev/gvisor/pkg/tcpip"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
+)
+
+func newTestSession(src netip.AddrPort, mode NATMode) func() *udpSession {
+	return func() *udpSession {
+		return newUDPSession(src, mode, nil, nil)
+	}
+}
+
+func TestNATTableShared(t *testing.T) {
+	nt := newNATTable()
+	src := netip.MustParseAddrPort("10.0.0.2:5000")
+	dst1 := netip.MustParseAddrPort("1.1.1.1:53")
+	dst2 := netip.MustParseAddrPort("8.8.8.8:53")
+	dst3 := netip.MustParseAddrPort("9.9.9.9:53")
+
+	s1, created := nt.attach(src, dst1, "direct", true, newTestSession(src, NATPortRestricted))
+	assert.True(t, created)
+	s2, created := nt.attach(src, dst2, "direct", true, newTestSession(src, NATPortRestricted))
+	assert.False(t, created)
+	assert.Same(t, s1, s2)
+	assert.Same(t, s1, nt.lookup(src, dst2))
+
+	// Port restricted sessions only let in the peers they sent to.
+	assert.True(t, s1.accepts(dst2))
+	assert.False(t, s1.accepts(dst3))
+
+	// Flows that cannot share get a session each.
+	s3, created := nt.attach(src, dst3, "relay", false, newTestSession(src, NATSymmetric))
+	assert.True(t, created)
+	assert.NotSame(t, s1, s3)
+	assert.Len(t, nt.sessions(), 2)
+
+	nt.remove(s1)
+	assert.Nil(t, nt.lookup(src, dst1))
+	assert.Nil(t, nt.lookup(src, dst2))
+	assert.Same(t, s3, nt.lookup(src, dst3))
+}
+
+func TestWheelExpiry(t *testing.T) {
+	var w wheel
+	idle := &udpSession{}
+	busy := &udpSession{}
+	w.schedule(idle, 3)
+	w.schedule(busy, 3)
+
+	var expired []*udpSession
+	for i := 0; i < 3; i++ {
+		busy.active.Store(w.now.Load())
+		expired = append(expired, w.advance(3)...)
+	}
+	assert.Equal(t, []*udpSession{idle}, expired)
+
+	// busy was rescheduled and expires once it stops moving data.
+	for i := 0; i < 4; i++ {
+		expired = append(expired, w.advance(3)...)
+	}
+	assert.Equal(t, []*udpSession{idle, busy}, expired)
+}
+
+// echoDialer opens UDP sockets whose datagrams, whatever their
+// destination, go to an echo server and come back from it.
+type echoDialer struct {
+	echo net.Addr
+}
+
+func (echoDialer) DialContext(context.Context, *M.Metadata) (net.Conn, error) {
+	return nil, errors.New("no TCP")
+}
+
+func (d echoDialer) DialUDP(metadata *M.Metadata) (net.PacketConn, error) {
+	pc, err := net.ListenPacket("udp", "127.0.0.1:0")
+	if err != nil {
+		return nil, err
+	}
+	dst := net.UDPAddrFromAddrPort(netip.AddrPortFrom(metadata.DstIP, metadata.DstPort))
+	return &echoConn{PacketConn: pc, echo: d.echo, dst: dst}, nil
+}
+
+type echoConn struct {
+	net.PacketConn
+	echo, dst net.Addr
+}
+
+func (c *echoConn) WriteTo(b []byte, _ net.Addr) (int, error) {
+	return c.PacketConn.WriteTo(b, c.echo)
+}
+
+func (c *echoConn) ReadFrom(b []byte) (int, net.Addr, error) {
+	n, _, err := c.PacketConn.ReadFrom(b)
+	return n, c.dst, err
+}
+
+// stackWriter stands for the stack the replies are written to.
+type stackWriter chan string
+
+func (w stackWriter) WriteUDP(b []byte, _, _ netip.AddrPort) error {
+	w <- string(b)
+	return nil
+}
+
+// stuckDialer opens UDP sockets whose writes block until they are
+// closed, like a UDP-over-TCP stream that stopped moving.
+type stuckDialer struct{}
+
+func (stuckDialer) DialContext(context.Context, *M.Metadata) (net.Conn, error) {
+	return nil, errors.New("no TCP")
+}
+
+func (stuckDialer) DialUDP(*M.Metadata) (net.PacketConn, error) {
+	pc, err := net.ListenPacket("udp", "127.0.0.1:0")
+	if err != nil {
+		return nil, err
+	}
+	return &stuckConn{PacketConn: pc, closed: make(chan struct{})}, nil
+}
+
+type stuckConn struct {
+	net.PacketConn
+	once   sync.Once
+	closed chan struct{}
+}
+
+func (c *stuckConn) WriteTo([]byte, net.Addr) (int, error) {
+	<-c.closed
+	return 0, net.ErrClosed
+}
+
+func (c *stuckConn) Close() error {
+	c.once.Do(func() { close(c.closed) })
+	return c.PacketConn.Close()
+}
+
+var testUDPID = &stack.TransportEndpointID{
+	LocalAddress:  tcpip.AddrFrom4([4]byte{1, 1, 1, 1}),
+	LocalPort:     53,
+	RemoteAddress: tcpip.AddrFrom4([4]byte{10, 0, 0, 2}),
+	RemotePort:    5000,
+}
+
+func TestSendDoesNotBlock(t *testing.T) {
+	tun := New(stuckDialer{}, statistic.NewManager())
+	tun.ProcessAsync()
+	defer tun.Close()
+
+	w := make(stackWriter, 1)
+	tun.HandleUDPPacket(testUDPID, []byte("first"), w)
+	require.Eventually(t, func() bool {
+		sessions := tun.nat.sessions()
+		if len(sessions) != 1 {
+			return false
+		}
+		sessions[0].mu.RLock()
+		defer sessions[0].mu.RUnlock()
+		return sessions[0].pc != nil
+	}, time.Second, 10*time.Millisecond)
+
+	// The writer is stuck on the first datagram, the stack goes on and
+	// the datagrams past the queue are dropped.
+	done := make(chan struct{})
+	go func() {
+		defer close(done)
+		for i := 0; i < 4*natQueueLimit; i++ {
+			tun.HandleUDPPacket(testUDPID, []byte("stuck"), w)
+		}
+	}()
+	select {
+	case <-done:
+	case <-time.After(time.Second):
+		t.Fatal("a blocked outbound stalled the stack")
+	}
+}
+
+func TestCloseSessionsRestart(t *testing.T) {
+	echo, err := net.ListenPacket("udp", "127.0.0.1:0")
+	require.NoError(t, err)
+	defer echo.Close()
+	go func() {
+		b := make([]byte, 64)
+		for {
+			n, from, err := echo.ReadFrom(b)
+			if err != nil {
+				return
+			}
+			echo.WriteTo(b[:n], from)
+		}
+	}()
+
+	tun := New(echoDialer{echo.LocalAddr()}, statistic.NewManager())
+	tun.ProcessAsync()
+	defer tun.Close()
+
+	id := testUDPID
+	receive := func(w stackWriter) string {
+		select {
+		case msg := <-w:
+			return msg
+		case <-time.After(time.Second):
+			return ""
+		}
+	}
+
+	old := make(stackWriter, 4)
+	tun.HandleUDPPacket(id, []byte("before"), old)
+	assert.Equal(t, "before", receive(old))
+
+	// The stack is replaced: the flow gets a session writing to the new
+	// one, and nothing more reaches the old one.
+	tun.CloseSessions()
+	assert.Empty(t, tun.nat.sessions())
+	renewed := make(stackWriter, 4)
+	tun.HandleUDPPacket(id, []byte("after"), renewed)
+	assert.Equal(t, "after", receive(renewed))
+	assert.Empty(t, old)
+}
@@ -0,0 +1,209 @@
+package tunnel
+
+import (
+	"io"
+	"net"
+	"time"
+
+	"go.uber.org/atomic"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+// relayReadWait is how long a read may take and still count as one that
+// found data ready.
+const relayReadWait = time.Millisecond
+
+var (
+	// Number of TCP relay directions copying through a buffer, and the
+	// bytes of buffer they hold.
+	_relayStreams atomic.Int64
+	_relayBytes   atomic.Int64
+)
+
+// RelayMemory returns the number of TCP relay directions copying through
+// a buffer and the buffer bytes they currently hold.
+func RelayMemory() (streams, bytes int64) {
+	return _relayStreams.Load(), _relayBytes.Load()
+}
+
+// copyStream splices src to dst when both are kernel sockets, hands the
+// payload to the side that encrypts in a buffer of its own, and copies
+// through a pooled buffer otherwise. The path taken is recorded on the
+// tracker of the connection.
+func copyStream(dst, src net.Conn) error {
+	_, spliced, err := spliceStream(dst, src)
+	if spliced {
+		setRelay(dst, src, "splice")
+		return err
+	}
+	if relay := inPlaceRelay(dst, src); relay != nil {
+		setRelay(dst, src, "in-place")
+		_, err = relay()
+		return err
+	}
+	setRelay(dst, src, "copy")
+	_, err = copyAdaptive(dst, src)
+	return err
+}
+
+func setRelay(dst, src net.Conn, relay string) {
+	for _, c := range [...]net.Conn{dst, src} {
+		if r, ok := c.(interface{ SetRelay(string) }); ok {
+			r.SetRelay(relay)
+		}
+	}
+}
+
+// inPlaceRelay returns the relay of src to dst when one of them, under
+// its tracker, encrypts or decrypts in place in a buffer of its own:
+// that buffer then carries the payload, which the tracker reports.
+func inPlaceRelay(dst, src net.Conn) func() (int64, error) {
+	if rf, ok := unwrap(dst).(interface {
+		RelayFrom(io.Reader) (int64, error)
+	}); ok {
+		var r io.Reader = src
+		if up, ok := dst.(interface{ AddUpload(int64) }); ok {
+			r = &countReader{Reader: src, add: up.AddUpload}
+		}
+		return func() (int64, error) { return rf.RelayFrom(r) }
+	}
+	if wt, ok := unwrap(src).(interface {
+		RelayTo(io.Writer) (int64, error)
+	}); ok {
+		var w io.Writer = dst
+		if down, ok := src.(interface{ AddDownload(int64) }); ok {
+			w = &countWriter{Writer: dst, add: down.AddDownload}
+		}
+		return func() (int64, error) { return wt.RelayTo(w) }
+	}
+	return nil
+}
+
+func unwrap(c net.Conn) net.Conn {
+	if u, ok := c.(interface{ Unwrap() net.Conn }); ok {
+		return u.Unwrap()
+	}
+	return c
+}
+
+type countReader struct {
+	io.Reader
+	add func(int64)
+}
+
+func (r *countReader) Read(b []byte) (int, error) {
+	n, err := r.Reader.Read(b)
+	r.add(int64(n))
+	return n, err
+}
+
+type countWriter struct {
+	io.Writer
+	add func(int64)
+}
+
+func (w *countWriter) Write(b []byte) (int, error) {
+	n, err := w.Writer.Write(b)
+	w.add(int64(n))
+	return n, err
+}
+
+// relayBuffer is the buffer of one relay direction, accounted in
+// RelayMemory.
+type relayBuffer struct {
+	b []byte
+}
+
+// resize swaps the buffer for one of size bytes. Buffers larger than the
+// idle one count against the memory budget: when it is exhausted the
+// current buffer is kept.
+func (r *relayBuffer) resize(size int) {
+	if r.b != nil && len(r.b) == size {
+		return
+	}
+	var b []byte
+	if size > buffer.RelayBufferIdleSize {
+		if b = buffer.TryGet(size); b == nil {
+			return
+		}
+	} else {
+		b = buffer.Get(size)
+	}
+	if r.b != nil {
+		_relayBytes.Sub(int64(cap(r.b)))
+		buffer.Put(r.b)
+	}
+	r.b = b
+	_relayBytes.Add(int64(cap(r.b)))
+}
+
+func (r *relayBuffer) release() {
+	_relayBytes.Sub(int64(cap(r.b)))
+	buffer.Put(r.b)
+	r.b = nil
+}
+
+// copyAdaptive copies src to dst like io.CopyBuffer, sizing its buffer
+// to the flow. A read that had to wait for its data means the flow has
+// gone quiet, so the next one will likely block too: it waits on the
+// small idle buffer while the large one goes back to the pool. A partial
+// read that found its data ready is only a packet boundary of a bulk
+// flow and keeps the buffer. A read that fills its buffer means more is
+// pending, so the burst size is used next and grows while reads keep
+// filling it, as far as the buffer budget allows.
+func copyAdaptive(dst io.Writer, src io.Reader) (written int64, err error) {
+	var buf relayBuffer
+	buf.resize(buffer.RelayBufferIdleSize)
+	_relayStreams.Inc()
+	defer func() {
+		buf.release()
+		_relayStreams.Dec()
+	}()
+
+	burst := buffer.RelayBufferMinSize
+	for {
+		start := time.Now()
+		nr, er := src.Read(buf.b)
+		waited := time.Since(start) > relayReadWait
+		if nr > 0 {
+			nw, ew := dst.Write(buf.b[:nr])
+			if nw < 0 || nr < nw {
+				nw = 0
+				if ew == nil {
+					ew = io.ErrShortWrite
+				}
+			}
+			written += int64(nw)
+			if ew != nil {
+				return written, ew
+			}
+			if nr != nw {
+				return written, io.ErrShortWrite
+			}
+		}
+		if er != nil {
+			if er != io.EOF {
+				err = er
+			}
+			return written, err
+		}
+
+		switch size := len(buf.b); {
+		case nr < size:
+			if size == burst && nr < burst/4 && burst > buffer.RelayBufferMinSize {
+				burst /= 2
+			}
+			if waited {
+				buf.resize(buffer.RelayBufferIdleSize)
+			} else if size > buffer.RelayBufferIdleSize {
+				buf.resize(burst)
+			}
+		case size == burst && burst < buffer.RelayBufferMaxSize:
+			burst *= 2
+			buf.resize(burst)
+		default:
+			buf.resize(burst)
+		}
+	}
+}
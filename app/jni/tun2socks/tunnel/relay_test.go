@@ -0,0 +1,108 @@
+package tunnel
+
+import (
+	"bytes"
+	"io"
+	"testing"
+	"testing/iotest"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	"github.com/xjasonlyu/tun2socks/v2/buffer"
+)
+
+// trickle returns its data in reads of at most n bytes.
+type trickle struct {
+	r io.Reader
+	n int
+}
+
+func (t *trickle) Read(b []byte) (int, error) {
+	return t.r.Read(b[:min(len(b), t.n)])
+}
+
+func TestCopyAdaptive(t *testing.T) {
+	payload := bytes.Repeat([]byte("0123456789abcdef"), 1<<14)
+
+	for name, src := range map[string]io.Reader{
+		"bulk":    bytes.NewReader(payload),
+		"trickle": &trickle{r: bytes.NewReader(payload), n: 100},
+		"onebyte": iotest.OneByteReader(bytes.NewReader(payload[:4096])),
+	} {
+		t.Run(name, func(t *testing.T) {
+			var dst bytes.Buffer
+			n, err := copyAdaptive(&dst, src)
+			require.NoError(t, err)
+			assert.EqualValues(t, dst.Len(), n)
+			assert.True(t, bytes.HasPrefix(payload, dst.Bytes()))
+		})
+	}
+
+	streams, held := RelayMemory()
+	assert.Zero(t, streams)
+	assert.Zero(t, held)
+}
+
+// watcher records the buffer size of each read.
+type watcher struct {
+	r     io.Reader
+	sizes []int
+}
+
+func (w *watcher) Read(b []byte) (int, error) {
+	w.sizes = append(w.sizes, len(b))
+	return w.r.Read(b)
+}
+
+func TestCopyAdaptiveSizing(t *testing.T) {
+	// Bulk data grows the buffer up to the maximum.
+	w := &watcher{r: bytes.NewReader(make([]byte, 1<<20))}
+	_, err := copyAdaptive(io.Discard, w)
+	require.NoError(t, err)
+	assert.Equal(t, buffer.RelayBufferIdleSize, w.sizes[0])
+	assert.Equal(t, buffer.RelayBufferMaxSize, w.sizes[len(w.sizes)-2])
+
+	// Small messages keep waiting on the idle buffer.
+	w = &watcher{r: &trickle{r: bytes.NewReader(make([]byte, 1<<12)), n: 64}}
+	_, err = copyAdaptive(io.Discard, w)
+	require.NoError(t, err)
+	for _, size := range w.sizes {
+		assert.Equal(t, buffer.RelayBufferIdleSize, size)
+	}
+}
+
+// partial fills the reads until they reach the maximum buffer size, then
+// returns half of each buffer. The read numbered wait has to wait.
+type partial struct {
+	reads, wait int
+}
+
+func (p *partial) Read(b []byte) (int, error) {
+	p.reads++
+	if p.reads > 40 {
+		return 0, io.EOF
+	}
+	if p.reads == p.wait {
+		time.Sleep(2 * relayReadWait)
+	}
+	if len(b) < buffer.RelayBufferMaxSize {
+		return len(b), nil
+	}
+	return len(b) / 2, nil
+}
+
+func TestCopyAdaptivePartialReads(t *testing.T) {
+	w := &watcher{r: &partial{wait: 20}}
+	_, err := copyAdaptive(io.Discard, w)
+	require.NoError(t, err)
+
+	// Partial reads with data ready keep the burst buffer.
+	for _, size := range w.sizes[4:20] {
+		assert.Equal(t, buffer.RelayBufferMaxSize, size)
+	}
+	// Only the read that waited drops it, bulk data takes it back.
+	assert.Equal(t, buffer.RelayBufferIdleSize, w.sizes[20])
+	assert.Equal(t, buffer.RelayBufferMaxSize, w.sizes[21])
+}
@@ -0,0 +1,101 @@
+package tunnel
+
+import (
+	"errors"
+	"net"
+	"syscall"
+
+	"golang.org/x/sys/unix"
+)
+
+// spliceChunk is the most a single splice call moves, the default
+// capacity of a pipe.
+const spliceChunk = 1 << 16
+
+// spliceStream moves src to dst through a pipe, the payload never
+// reaching user space. It reports false without touching either end when
+// one of them is not a kernel socket, the caller then copies instead.
+func spliceStream(dst, src net.Conn) (int64, bool, error) {
+	sc, ok := src.(syscall.Conn)
+	if !ok {
+		return 0, false, nil
+	}
+	dc, ok := dst.(syscall.Conn)
+	if !ok {
+		return 0, false, nil
+	}
+	rsrc, err := sc.SyscallConn()
+	if err != nil {
+		return 0, false, nil
+	}
+	rdst, err := dc.SyscallConn()
+	if err != nil {
+		return 0, false, nil
+	}
+
+	var p [2]int
+	if err = unix.Pipe2(p[:], unix.O_CLOEXEC|unix.O_NONBLOCK); err != nil {
+		return 0, false, nil
+	}
+	defer unix.Close(p[0])
+	defer unix.Close(p[1])
+
+	download, _ := src.(interface{ AddDownload(int64) })
+	upload, _ := dst.(interface{ AddUpload(int64) })
+
+	var total int64
+	for {
+		n, err := spliceOnce(rsrc, p[1], spliceChunk, true)
+		if err != nil || n == 0 {
+			return total, true, err
+		}
+		if download != nil {
+			download.AddDownload(n)
+		}
+		// Drain the pipe fully before refilling it.
+		for n > 0 {
+			m, err := spliceOnce(rdst, p[0], int(n), false)
+			if err != nil {
+				return total, true, err
+			}
+			if upload != nil {
+				upload.AddUpload(m)
+			}
+			n -= m
+			total += m
+		}
+	}
+}
+
+// spliceOnce splices between the socket behind rc and the pipe end fd,
+// waiting on the poller until the socket is ready. With in set the socket
+// is the source, otherwise it is the destination.
+func spliceOnce(rc syscall.RawConn, fd, n int, in bool) (int64, error) {
+	var (
+		moved int64
+		errno error
+	)
+	const flags = unix.SPLICE_F_MOVE | unix.SPLICE_F_NONBLOCK
+	do := func(sock uintptr) bool {
+		for {
+			if in {
+				moved, errno = unix.Splice(int(sock), nil, fd, nil, n, flags)
+			} else {
+				moved, errno = unix.Splice(fd, nil, int(sock), nil, n, flags)
+			}
+			if !errors.Is(errno, unix.EINTR) {
+				return !errors.Is(errno, unix.EAGAIN)
+			}
+		}
+	}
+	var err error
+	if in {
+		err = rc.Read(do)
+	} else {
+		err = rc.Write(do)
+	}
+	if err != nil {
+		return 0, err
+	}
+	return moved, errno
+}
@@ -0,0 +1,59 @@
+package tunnel
+
+import (
+	"bytes"
+	"io"
+	"net"
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+)
+
+// tcpPair returns both ends of a loopback TCP connection.
+func tcpPair(t *testing.T) (net.Conn, net.Conn) {
+	ln, err := net.Listen("tcp", "127.0.0.1:0")
+	require.NoError(t, err)
+	defer ln.Close()
+
+	c, err := net.Dial("tcp", ln.Addr().String())
+	require.NoError(t, err)
+	s, err := ln.Accept()
+	require.NoError(t, err)
+	t.Cleanup(func() {
+		c.Close()
+		s.Close()
+	})
+	return c, s
+}
+
+func TestSpliceStream(t *testing.T) {
+	in, src := tcpPair(t)
+	dst, out := tcpPair(t)
+
+	payload := bytes.Repeat([]byte("tun2socks"), 50000)
+	go func() {
+		in.Write(payload)
+		in.Close()
+	}()
+
+	n, spliced, err := spliceStream(dst, src)
+	require.NoError(t, err)
+	assert.True(t, spliced)
+	assert.EqualValues(t, len(payload), n)
+	dst.Close()
+
+	got, err := io.ReadAll(out)
+	require.NoError(t, err)
+	assert.Equal(t, payload, got)
+}
+
+func TestSpliceStreamDeclines(t *testing.T) {
+	a, b := net.Pipe()
+	defer a.Close()
+	defer b.Close()
+
+	_, spliced, err := spliceStream(a, b)
+	assert.NoError(t, err)
+	assert.False(t, spliced)
+}
@@ -5,85 +5,229 @@ import (
 	"time"
 
 	"go.uber.org/atomic"
+	"golang.org/x/sys/cpu"
 )
 
+// shardCount is the number of counter cells and connection shards. Each
+// tracker sticks to one, so connections relayed on different cores
+// rarely write to the same cache line.
+const shardCount = 16
+
+// closedHistory bounds the closed connections remembered for
+// incremental snapshots.
+const closedHistory = 1 << 10
+
 var DefaultManager *Manager
 
 func init() {
-	DefaultManager = &Manager{
-		uploadTemp:    atomic.NewInt64(0),
-		downloadTemp:  atomic.NewInt64(0),
-		uploadBlip:    atomic.NewInt64(0),
-		downloadBlip:  atomic.NewInt64(0),
-		uploadTotal:   atomic.NewInt64(0),
-		downloadTotal: atomic.NewInt64(0),
-	}
+	DefaultManager = NewManager()
 	go DefaultManager.handle()
 }
 
+// cell holds the traffic pushed by the trackers of one shard, padded to
+// a cache line of its own.
+type cell struct {
+	upload   atomic.Int64
+	download atomic.Int64
+	_        cpu.CacheLinePad
+}
+
+// connShard holds the connections of one shard.
+type connShard struct {
+	mu          sync.Mutex
+	connections map[string]tracker
+	_           cpu.CacheLinePad
+}
+
+// closedConn is a connection that left, kept for incremental snapshots.
+type closedConn struct {
+	id    string
+	epoch uint64
+}
+
 type Manager struct {
-	connections   sync.Map
-	uploadTemp    *atomic.Int64
-	downloadTemp  *atomic.Int64
-	uploadBlip    *atomic.Int64
-	downloadBlip  *atomic.Int64
-	uploadTotal   *atomic.Int64
-	downloadTotal *atomic.Int64
+	cells  [shardCount]cell
+	shards [shardCount]connShard
+	next   atomic.Uint32
+
+	// Totals are the sum of the cells minus what was there at the last
+	// reset, rates the difference between two ticks.
+	resetMu      sync.Mutex
+	uploadBase   int64
+	downloadBase int64
+	uploadBlip   atomic.Int64
+	downloadBlip atomic.Int64
+
+	tcpActive atomic.Int64
+	udpActive atomic.Int64
+
+	// epoch is advanced by every snapshot, trackers record the epoch in
+	// which they last moved data. It is read on every relayed chunk, so it
+	// gets a cache line of its own.
+	_     cpu.CacheLinePad
+	epoch atomic.Uint64
+	_     cpu.CacheLinePad
+
+	closedMu    sync.Mutex
+	closed      []closedConn
+	closedFloor uint64
+}
+
+// NewManager returns an empty Manager. Its rates stay at zero, only
+// DefaultManager ticks.
+func NewManager() *Manager {
+	m := &Manager{}
+	for i := range m.shards {
+		m.shards[i].connections = make(map[string]tracker)
+	}
+	return m
+}
+
+// shard picks the shard of a new tracker, round robin.
+func (m *Manager) shard() int {
+	return int(m.next.Inc() % shardCount)
 }
 
 func (m *Manager) Join(c tracker) {
-	m.connections.Store(c.ID(), c)
+	s := &m.shards[c.shard()]
+	s.mu.Lock()
+	s.connections[c.ID()] = c
+	s.mu.Unlock()
+	m.count(c, 1)
 }
 
 func (m *Manager) Leave(c tracker) {
-	m.connections.Delete(c.ID())
+	s := &m.shards[c.shard()]
+	s.mu.Lock()
+	_, loaded := s.connections[c.ID()]
+	delete(s.connections, c.ID())
+	s.mu.Unlock()
+
+	// trackers may be closed more than once, only count the first leave.
+	if !loaded {
+		return
+	}
+	m.count(c, -1)
+
+	m.closedMu.Lock()
+	if len(m.closed) == closedHistory {
+		m.closedFloor = m.closed[0].epoch + 1
+		m.closed = append(m.closed[:0], m.closed[1:]...)
+	}
+	m.closed = append(m.closed, closedConn{id: c.ID(), epoch: m.epoch.Load()})
+	m.closedMu.Unlock()
+}
+
+func (m *Manager) count(c tracker, delta int64) {
+	switch c.(type) {
+	case *tcpTracker:
+		m.tcpActive.Add(delta)
+	case *udpTracker:
+		m.udpActive.Add(delta)
+	}
+}
+
+// Connections returns the number of active TCP and UDP connections
+// without walking the connection map.
+func (m *Manager) Connections() (tcp int64, udp int64) {
+	return m.tcpActive.Load(), m.udpActive.Load()
+}
+
+// sum adds up the cells, which is only done by readers.
+func (m *Manager) sum() (up int64, down int64) {
+	for i := range m.cells {
+		up += m.cells[i].upload.Load()
+		down += m.cells[i].download.Load()
+	}
+	return up, down
+}
+
+// Total returns the accumulated upload and download bytes.
+func (m *Manager) Total() (up int64, down int64) {
+	up, down = m.sum()
+	m.resetMu.Lock()
+	up, down = up-m.uploadBase, down-m.downloadBase
+	m.resetMu.Unlock()
+	return up, down
 }
 
+// PushUploaded counts traffic that belongs to no tracker. Trackers push
+// into the cell of their own shard instead.
 func (m *Manager) PushUploaded(size int64) {
-	m.uploadTemp.Add(size)
-	m.uploadTotal.Add(size)
+	m.cells[0].upload.Add(size)
 }
 
+// PushDownloaded is the download side of PushUploaded.
 func (m *Manager) PushDownloaded(size int64) {
-	m.downloadTemp.Add(size)
-	m.downloadTotal.Add(size)
+	m.cells[0].download.Add(size)
 }
 
 func (m *Manager) Now() (up int64, down int64) {
 	return m.uploadBlip.Load(), m.downloadBlip.Load()
 }
 
+// Snapshot returns every active connection.
 func (m *Manager) Snapshot() *Snapshot {
-	var connections []tracker
-	m.connections.Range(func(key, value any) bool {
-		connections = append(connections, value.(tracker))
-		return true
-	})
-
-	return &Snapshot{
-		UploadTotal:   m.uploadTotal.Load(),
-		DownloadTotal: m.downloadTotal.Load(),
-		Connections:   connections,
+	return m.SnapshotSince(0)
+}
+
+// SnapshotSince returns the connections that moved data or closed since
+// the snapshot that returned cursor. A connection may be reported twice
+// in a row. With a zero cursor, or one older than the closed connections
+// still remembered, every active connection is returned and Full is set.
+func (m *Manager) SnapshotSince(cursor uint64) *Snapshot {
+	epoch := m.epoch.Inc()
+	up, down := m.Total()
+	snapshot := &Snapshot{
+		UploadTotal:   up,
+		DownloadTotal: down,
+		Cursor:        epoch,
+	}
+
+	m.closedMu.Lock()
+	snapshot.Full = cursor == 0 || cursor <= m.closedFloor
+	if !snapshot.Full {
+		for _, c := range m.closed {
+			if c.epoch+1 >= cursor {
+				snapshot.Closed = append(snapshot.Closed, c.id)
+			}
+		}
+	}
+	m.closedMu.Unlock()
+
+	// A tracker may still store the epoch before cursor after the
+	// previous snapshot went past it, hence the extra epoch.
+	for i := range m.shards {
+		s := &m.shards[i]
+		s.mu.Lock()
+		for _, c := range s.connections {
+			if snapshot.Full || c.changed()+1 >= cursor {
+				snapshot.Connections = append(snapshot.Connections, c)
+			}
+		}
+		s.mu.Unlock()
 	}
+	return snapshot
 }
 
 func (m *Manager) ResetStatistic() {
-	m.uploadTemp.Store(0)
+	up, down := m.sum()
+	m.resetMu.Lock()
+	m.uploadBase, m.downloadBase = up, down
+	m.resetMu.Unlock()
 	m.uploadBlip.Store(0)
-	m.uploadTotal.Store(0)
-	m.downloadTemp.Store(0)
 	m.downloadBlip.Store(0)
-	m.downloadTotal.Store(0)
 }
 
 func (m *Manager) handle() {
 	ticker := time.NewTicker(time.Second)
 
+	lastUp, lastDown := m.sum()
 	for range ticker.C {
-		m.uploadBlip.Store(m.uploadTemp.Load())
-		m.uploadTemp.Store(0)
-		m.downloadBlip.Store(m.downloadTemp.Load())
-		m.downloadTemp.Store(0)
+		up, down := m.sum()
+		m.uploadBlip.Store(up - lastUp)
+		m.downloadBlip.Store(down - lastDown)
+		lastUp, lastDown = up, down
 	}
 }
 
@@ -91,4 +235,10 @@ type Snapshot struct {
 	DownloadTotal int64     `json:"downloadTotal"`
 	UploadTotal   int64     `json:"uploadTotal"`
 	Connections   []tracker `json:"connections"`
+	// Cursor is passed to SnapshotSince to get what changed after this
+	// snapshot. Full tells whether Connections holds every connection or
+	// only the changed ones, in which case Closed lists those that left.
+	Cursor uint64   `json:"cursor"`
+	Full   bool     `json:"full"`
+	Closed []string `json:"closed,omitempty"`
 }
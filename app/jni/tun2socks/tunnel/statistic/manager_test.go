@@ -0,0 +1,92 @@
+package statistic
+
+import (
+	"net"
+	"testing"
+
+	"github.com/stretchr/testify/assert"
+	"github.com/stretchr/testify/require"
+
+	M "github.com/xjasonlyu/tun2socks/v2/metadata"
+)
+
+func ids(s *Snapshot) []string {
+	var ids []string
+	for _, c := range s.Connections {
+		ids = append(ids, c.ID())
+	}
+	return ids
+}
+
+func TestManagerTotals(t *testing.T) {
+	m := NewManager()
+	var conns []net.Conn
+	for i := 0; i < 2*shardCount; i++ {
+		a, b := net.Pipe()
+		defer b.Close()
+		go func() {
+			buf := make([]byte, 64)
+			for {
+				if _, err := b.Read(buf); err != nil {
+					return
+				}
+			}
+		}()
+		conns = append(conns, NewTCPTracker(a, &M.Metadata{}, m))
+	}
+	for _, c := range conns {
+		_, err := c.Write(make([]byte, 10))
+		require.NoError(t, err)
+	}
+
+	up, down := m.Total()
+	assert.EqualValues(t, 20*shardCount, up)
+	assert.Zero(t, down)
+	tcp, _ := m.Connections()
+	assert.EqualValues(t, 2*shardCount, tcp)
+
+	m.ResetStatistic()
+	up, _ = m.Total()
+	assert.Zero(t, up)
+
+	for _, c := range conns {
+		c.Close()
+	}
+	tcp, _ = m.Connections()
+	assert.Zero(t, tcp)
+}
+
+func TestManagerSnapshotSince(t *testing.T) {
+	m := NewManager()
+	newConn := func() net.Conn {
+		a, b := net.Pipe()
+		t.Cleanup(func() { b.Close() })
+		go func() {
+			buf := make([]byte, 64)
+			for {
+				if _, err := b.Read(buf); err != nil {
+					return
+				}
+			}
+		}()
+		return NewTCPTracker(a, &M.Metadata{}, m)
+	}
+	idle, busy, gone := newConn(), newConn(), newConn()
+	id := func(c net.Conn) string { return c.(tracker).ID() }
+
+	full := m.SnapshotSince(0)
+	assert.True(t, full.Full)
+	assert.ElementsMatch(t, []string{id(idle), id(busy), id(gone)}, ids(full))
+
+	// Skip past the epoch the connections were created in.
+	cursor := m.SnapshotSince(full.Cursor).Cursor
+
+	_, err := busy.Write([]byte("x"))
+	require.NoError(t, err)
+	gone.Close()
+
+	s := m.SnapshotSince(cursor)
+	assert.False(t, s.Full)
+	assert.Equal(t, []string{id(busy)}, ids(s))
+	assert.Equal(t, []string{id(gone)}, s.Closed)
+}
@@ -3,6 +3,7 @@ package statistic
 import (
 	"errors"
 	"net"
+	"syscall"
 	"time"
 
 	"github.com/google/uuid"
@@ -14,6 +15,9 @@ import (
 type tracker interface {
 	ID() string
 	Close() error
+
+	shard() int
+	changed() uint64
 }
 
 type trackerInfo struct {
@@ -22,6 +26,53 @@ type trackerInfo struct {
 	Metadata      *M.Metadata   `json:"metadata"`
 	UploadTotal   *atomic.Int64 `json:"upload"`
 	DownloadTotal *atomic.Int64 `json:"download"`
+	// Relay is how the payload is moved, "copy", "splice" or
+	// "in-place".
+	Relay *atomic.String `json:"relay"`
+
+	shardID   int
+	lastEpoch atomic.Uint64
+}
+
+func newTrackerInfo(metadata *M.Metadata, relay string, manager *Manager) *trackerInfo {
+	id, _ := uuid.NewRandom()
+	info := &trackerInfo{
+		UUID:          id,
+		Start:         time.Now(),
+		Metadata:      metadata,
+		UploadTotal:   atomic.NewInt64(0),
+		DownloadTotal: atomic.NewInt64(0),
+		Relay:         atomic.NewString(relay),
+		shardID:       manager.shard(),
+	}
+	info.lastEpoch.Store(manager.epoch.Load())
+	return info
+}
+
+func (ti *trackerInfo) shard() int {
+	return ti.shardID
+}
+
+func (ti *trackerInfo) changed() uint64 {
+	return ti.lastEpoch.Load()
+}
+
+// push counts traffic in the cell of the tracker's shard and marks the
+// tracker as changed for incremental snapshots. The epoch is only
+// written when it moved, so a busy connection mostly reads it.
+func (ti *trackerInfo) push(m *Manager, upload, download int64) {
+	c := &m.cells[ti.shardID]
+	if upload != 0 {
+		c.upload.Add(upload)
+		ti.UploadTotal.Add(upload)
+	}
+	if download != 0 {
+		c.download.Add(download)
+		ti.DownloadTotal.Add(download)
+	}
+	if e := m.epoch.Load(); ti.lastEpoch.Load() != e {
+		ti.lastEpoch.Store(e)
+	}
 }
 
 type tcpTracker struct {
@@ -32,18 +83,10 @@ type tcpTracker struct {
 }
 
 func NewTCPTracker(conn net.Conn, metadata *M.Metadata, manager *Manager) net.Conn {
-	id, _ := uuid.NewRandom()
-
 	tt := &tcpTracker{
-		Conn:    conn,
-		manager: manager,
-		trackerInfo: &trackerInfo{
-			UUID:          id,
-			Start:         time.Now(),
-			Metadata:      metadata,
-			UploadTotal:   atomic.NewInt64(0),
-			DownloadTotal: atomic.NewInt64(0),
-		},
+		Conn:        conn,
+		manager:     manager,
+		trackerInfo: newTrackerInfo(metadata, "", manager),
 	}
 
 	manager.Join(tt)
@@ -56,20 +99,50 @@ func (tt *tcpTracker) ID() string {
 
 func (tt *tcpTracker) Read(b []byte) (int, error) {
 	n, err := tt.Conn.Read(b)
-	download := int64(n)
-	tt.manager.PushDownloaded(download)
-	tt.DownloadTotal.Add(download)
+	tt.AddDownload(int64(n))
 	return n, err
 }
 
 func (tt *tcpTracker) Write(b []byte) (int, error) {
 	n, err := tt.Conn.Write(b)
-	upload := int64(n)
-	tt.manager.PushUploaded(upload)
-	tt.UploadTotal.Add(upload)
+	tt.AddUpload(int64(n))
 	return n, err
 }
 
+// AddDownload counts n bytes read from the remote without going through
+// Read, as when they are spliced.
+func (tt *tcpTracker) AddDownload(n int64) {
+	tt.push(tt.manager, 0, n)
+}
+
+// AddUpload counts n bytes written to the remote without going through
+// Write.
+func (tt *tcpTracker) AddUpload(n int64) {
+	tt.push(tt.manager, n, 0)
+}
+
+// SetRelay records how the payload of the connection is moved.
+func (tt *tcpTracker) SetRelay(relay string) {
+	tt.Relay.Store(relay)
+}
+
+// SyscallConn exposes the socket under the tracker, so that relays may
+// move data without reading it. Bytes moved that way must be reported
+// with AddDownload and AddUpload.
+func (tt *tcpTracker) SyscallConn() (syscall.RawConn, error) {
+	if sc, ok := tt.Conn.(syscall.Conn); ok {
+		return sc.SyscallConn()
+	}
+	return nil, errors.New("SyscallConn is not implemented")
+}
+
+// Unwrap returns the connection under the tracker, for relays that let
+// it move the payload itself. Those bytes must be reported with
+// AddDownload and AddUpload.
+func (tt *tcpTracker) Unwrap() net.Conn {
+	return tt.Conn
+}
+
 func (tt *tcpTracker) Close() error {
 	tt.manager.Leave(tt)
 	return tt.Conn.Close()
@@ -97,18 +170,10 @@ type udpTracker struct {
 }
 
 func NewUDPTracker(conn net.PacketConn, metadata *M.Metadata, manager *Manager) net.PacketConn {
-	id, _ := uuid.NewRandom()
-
 	ut := &udpTracker{
-		PacketConn: conn,
-		manager:    manager,
-		trackerInfo: &trackerInfo{
-			UUID:          id,
-			Start:         time.Now(),
-			Metadata:      metadata,
-			UploadTotal:   atomic.NewInt64(0),
-			DownloadTotal: atomic.NewInt64(0),
-		},
+		PacketConn:  conn,
+		manager:     manager,
+		trackerInfo: newTrackerInfo(metadata, "copy", manager),
 	}
 
 	manager.Join(ut)
@@ -121,17 +186,13 @@ func (ut *udpTracker) ID() string {
 
 func (ut *udpTracker) ReadFrom(b []byte) (int, net.Addr, error) {
 	n, addr, err := ut.PacketConn.ReadFrom(b)
-	download := int64(n)
-	ut.manager.PushDownloaded(download)
-	ut.DownloadTotal.Add(download)
+	ut.push(ut.manager, 0, int64(n))
 	return n, addr, err
 }
 
 func (ut *udpTracker) WriteTo(b []byte, addr net.Addr) (int, error) {
 	n, err := ut.PacketConn.WriteTo(b, addr)
-	upload := int64(n)
-	ut.manager.PushUploaded(upload)
-	ut.UploadTotal.Add(upload)
+	ut.push(ut.manager, int64(n), 0)
 	return n, err
 }
 
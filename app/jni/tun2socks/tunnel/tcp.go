@@ -2,21 +2,19 @@ package tunnel
 
 import (
 	"context"
-	"io"
 	"net"
 	"sync"
 	"time"
 
-	"github.com/xjasonlyu/tun2socks/v2/buffer"
 	"github.com/xjasonlyu/tun2socks/v2/core/adapter"
 	"github.com/xjasonlyu/tun2socks/v2/log"
 	M "github.com/xjasonlyu/tun2socks/v2/metadata"
 	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
 )
 
-func (t *Tunnel) handleTCPConn(originConn adapter.TCPConn) {
-	defer originConn.Close()
-
+// handleTCPConn dials the upstream of originConn on a dispatch worker,
+// then hands both ends to a relay goroutine.
+func (t *Tunnel) handleTCPConn(originConn adapter.TCPConn, d *dispatcher) {
 	id := originConn.ID()
 	metadata := &M.Metadata{
 		Network: M.TCP,
@@ -26,41 +24,51 @@ func (t *Tunnel) handleTCPConn(originConn adapter.TCPConn) {
 		DstPort: id.LocalPort,
 	}
 
+	dest := metadata.DestinationAddress()
+	if !d.acquire(dest) {
+		t.shedDest.Inc()
+		log.Debugf("[TCP] too many dials to %s, drop %s", dest, metadata.SourceAddress())
+		originConn.Close()
+		return
+	}
 	ctx, cancel := context.WithTimeout(context.Background(), tcpConnectTimeout)
-	defer cancel()
-
 	remoteConn, err := t.Dialer().DialContext(ctx, metadata)
+	cancel()
+	d.release(dest)
 	if err != nil {
-		log.Warnf("[TCP] dial %s: %v", metadata.DestinationAddress(), err)
+		log.Warnf("[TCP] dial %s: %v", dest, err)
+		originConn.Close()
 		return
 	}
 	metadata.MidIP, metadata.MidPort = parseNetAddr(remoteConn.LocalAddr())
 
 	remoteConn = statistic.NewTCPTracker(remoteConn, metadata, t.manager)
-	defer remoteConn.Close()
 
-	log.Infof("[TCP] %s <-> %s", metadata.SourceAddress(), metadata.DestinationAddress())
-	pipe(originConn, remoteConn)
+	log.Infof("[TCP] %s <-> %s", metadata.SourceAddress(), dest)
+	go func() {
+		pipe(originConn, remoteConn)
+		remoteConn.Close()
+		originConn.Close()
+	}()
 }
 
-// pipe copies data to & from provided net.Conn(s) bidirectionally.
+// pipe copies data to & from provided net.Conn(s) bidirectionally. One
+// direction runs on the calling goroutine.
 func pipe(origin, remote net.Conn) {
 	wg := sync.WaitGroup{}
 	wg.Add(2)
 
 	go unidirectionalStream(remote, origin, "origin->remote", &wg)
-	go unidirectionalStream(origin, remote, "remote->origin", &wg)
+	unidirectionalStream(origin, remote, "remote->origin", &wg)
 
 	wg.Wait()
 }
 
 func unidirectionalStream(dst, src net.Conn, dir string, wg *sync.WaitGroup) {
 	defer wg.Done()
-	buf := buffer.Get(buffer.RelayBufferSize)
-	if _, err := io.CopyBuffer(dst, src, buf); err != nil {
+	if err := copyStream(dst, src); err != nil {
 		log.Debugf("[TCP] copy data for %s: %v", dir, err)
 	}
-	buffer.Put(buf)
 	// Do the upload/download side TCP half-close.
 	if cr, ok := src.(interface{ CloseRead() error }); ok {
 		cr.CloseRead()
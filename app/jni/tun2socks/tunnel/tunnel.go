@@ -1,13 +1,13 @@
 package tunnel
 
 import (
-	"context"
 	"sync"
 	"time"
 
 	"go.uber.org/atomic"
 
 	"github.com/xjasonlyu/tun2socks/v2/core/adapter"
+	"github.com/xjasonlyu/tun2socks/v2/log"
 	"github.com/xjasonlyu/tun2socks/v2/proxy"
 	"github.com/xjasonlyu/tun2socks/v2/tunnel/statistic"
 )
@@ -21,13 +21,12 @@ const (
 	udpSessionTimeout = 60 * time.Second
 )
 
-var _ adapter.TransportHandler = (*Tunnel)(nil)
+var (
+	_ adapter.TransportHandler = (*Tunnel)(nil)
+	_ adapter.UDPPacketHandler = (*Tunnel)(nil)
+)
 
 type Tunnel struct {
-	// Unbuffered TCP/UDP queues.
-	tcpQueue chan adapter.TCPConn
-	udpQueue chan adapter.UDPConn
-
 	// UDP session timeout.
 	udpTimeout *atomic.Duration
 
@@ -38,64 +37,78 @@ type Tunnel struct {
 	// Where the Tunnel statistics are sent to.
 	manager *statistic.Manager
 
-	procOnce   sync.Once
-	procCancel context.CancelFunc
+	// Worker pool the TCP/UDP connections are dispatched to.
+	dispatchMu  sync.RWMutex
+	dispatch    *dispatcher
+	dispatchCfg DispatchConfig
+	shedQueue   atomic.Uint64
+	shedDest    atomic.Uint64
+
+	// UDP sessions, and how new ones are shared.
+	nat     *natTable
+	natMode atomic.Int32
+	natDone chan struct{}
+
+	procOnce sync.Once
 }
 
 func New(dialer proxy.Dialer, manager *statistic.Manager) *Tunnel {
 	return &Tunnel{
-		tcpQueue:   make(chan adapter.TCPConn),
-		udpQueue:   make(chan adapter.UDPConn),
 		udpTimeout: atomic.NewDuration(udpSessionTimeout),
 		dialer:     dialer,
 		manager:    manager,
-		procCancel: func() { /* nop */ },
+		nat:        newNATTable(),
+		natDone:    make(chan struct{}),
 	}
 }
 
-// TCPIn return fan-in TCP queue.
-func (t *Tunnel) TCPIn() chan<- adapter.TCPConn {
-	return t.tcpQueue
-}
-
-// UDPIn return fan-in UDP queue.
-func (t *Tunnel) UDPIn() chan<- adapter.UDPConn {
-	return t.udpQueue
-}
-
+// HandleTCP queues conn for a worker, or closes it when the Tunnel is
+// overloaded.
 func (t *Tunnel) HandleTCP(conn adapter.TCPConn) {
-	t.TCPIn() <- conn
+	if !t.enqueue(job{tcp: conn}) {
+		log.Debugf("[TCP] dispatch queue full, drop %s", conn.LocalAddr())
+		conn.Close()
+	}
 }
 
+// HandleUDP closes conn. The stack never calls it, since the Tunnel is
+// a UDPPacketHandler and takes datagrams through HandleUDPPacket.
 func (t *Tunnel) HandleUDP(conn adapter.UDPConn) {
-	t.UDPIn() <- conn
-}
-
-func (t *Tunnel) process(ctx context.Context) {
-	for {
-		select {
-		case conn := <-t.tcpQueue:
-			go t.handleTCPConn(conn)
-		case conn := <-t.udpQueue:
-			go t.handleUDPConn(conn)
-		case <-ctx.Done():
-			return
-		}
-	}
+	conn.Close()
 }
 
 // ProcessAsync can be safely called multiple times, but will only be effective once.
 func (t *Tunnel) ProcessAsync() {
 	t.procOnce.Do(func() {
-		ctx, cancel := context.WithCancel(context.Background())
-		t.procCancel = cancel
-		go t.process(ctx)
+		t.dispatchMu.Lock()
+		t.dispatch = t.startDispatcher(t.dispatchCfg)
+		t.dispatchMu.Unlock()
+		go t.runNAT(t.natDone)
 	})
 }
 
 // Close closes the Tunnel and releases its resources.
 func (t *Tunnel) Close() {
-	t.procCancel()
+	t.dispatchMu.Lock()
+	d := t.dispatch
+	t.dispatch = nil
+	t.dispatchMu.Unlock()
+	if d != nil {
+		// Workers close what is still queued instead of dialing it.
+		d.closed.Store(true)
+		close(d.queue)
+		close(t.natDone)
+	}
+	t.CloseSessions()
+}
+
+// CloseSessions closes every UDP session, leaving the Tunnel running.
+// The sessions write their replies to the stack they were opened from,
+// so a new stack gets sessions of its own with its next datagrams.
+func (t *Tunnel) CloseSessions() {
+	for _, s := range t.nat.sessions() {
+		t.closeSession(s)
+	}
 }
 
 func (t *Tunnel) Dialer() proxy.Dialer {
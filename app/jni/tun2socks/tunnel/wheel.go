@@ -0,0 +1,86 @@
+package tunnel
+
+import (
+	"sync"
+	"time"
+
+	"go.uber.org/atomic"
+)
+
+const (
+	// wheelTick is the resolution of UDP session expiry.
+	wheelTick = time.Second
+	// wheelSlots is the number of ticks the wheel spans, sessions due
+	// later are visited early and rescheduled.
+	wheelSlots = 64
+)
+
+// wheel expires idle UDP sessions. Each session sits in the slot of the
+// tick it may expire at; when the slot comes up, sessions that were
+// active meanwhile are moved further instead of being closed. Nothing is
+// done per packet but storing the current tick, so no session needs a
+// timer or a read deadline of its own.
+type wheel struct {
+	mu    sync.Mutex
+	slots [wheelSlots][]*udpSession
+	pos   int
+
+	// now counts the ticks since the wheel started.
+	now atomic.Int64
+}
+
+// schedule makes the wheel look at s in ticks ticks.
+func (w *wheel) schedule(s *udpSession, ticks int64) {
+	ticks = min(max(ticks, 1), wheelSlots-1)
+	w.mu.Lock()
+	i := (w.pos + int(ticks)) % wheelSlots
+	w.slots[i] = append(w.slots[i], s)
+	w.mu.Unlock()
+}
+
+// advance moves to the next tick and returns the sessions idle for
+// timeout ticks or more, rescheduling the others.
+func (w *wheel) advance(timeout int64) []*udpSession {
+	now := w.now.Inc()
+
+	w.mu.Lock()
+	w.pos = (w.pos + 1) % wheelSlots
+	due := w.slots[w.pos]
+	w.slots[w.pos] = nil
+	w.mu.Unlock()
+
+	var expired []*udpSession
+	for _, s := range due {
+		if s.closed.Load() {
+			continue
+		}
+		if idle := now - s.active.Load(); idle >= timeout {
+			expired = append(expired, s)
+		} else {
+			w.schedule(s, timeout-idle)
+		}
+	}
+	return expired
+}
+
+// run advances the wheel every tick until done is closed, handing the
+// expired sessions to expire.
+func (w *wheel) run(timeout func() time.Duration, expire func(*udpSession), done <-chan struct{}) {
+	ticker := time.NewTicker(wheelTick)
+	defer ticker.Stop()
+	for {
+		select {
+		case <-ticker.C:
+			for _, s := range w.advance(ticks(timeout())) {
+				expire(s)
+			}
+		case <-done:
+			return
+		}
+	}
+}
+
+// ticks rounds d up to whole ticks.
+func ticks(d time.Duration) int64 {
+	return int64((d + wheelTick - 1) / wheelTick)
+}
@@ -4,6 +4,31 @@ package main
 #cgo CFLAGS: -Wno-error=implicit-function-declaration
 #include <stdlib.h>
 #include <string.h>
+#include <jni.h>
+
+static jsize jniArrayLength(JNIEnv *env, jarray array) {
+	return (*env)->GetArrayLength(env, array);
+}
+
+static void jniSetLongArrayRegion(JNIEnv *env, jlongArray array, jsize len, const jlong *buf) {
+	(*env)->SetLongArrayRegion(env, array, 0, len, buf);
+}
+
+static const char *jniGetStringUTFChars(JNIEnv *env, jstring s) {
+	return (*env)->GetStringUTFChars(env, s, NULL);
+}
+
+static void jniReleaseStringUTFChars(JNIEnv *env, jstring s, const char *chars) {
+	(*env)->ReleaseStringUTFChars(env, s, chars);
+}
+
+static void *jniDirectBufferAddress(JNIEnv *env, jobject buf) {
+	return (*env)->GetDirectBufferAddress(env, buf);
+}
+
+static jlong jniDirectBufferCapacity(JNIEnv *env, jobject buf) {
+	return (*env)->GetDirectBufferCapacity(env, buf);
+}
 */
 import "C"
 
@@ -14,8 +39,19 @@ import (
 	"strings"
 	"sync"
 	"time"
+	"unsafe"
 
 	"github.com/xjasonlyu/tun2socks/v2/engine"
+
+	"tun2socks_jni/bridge"
+)
+
+var (
+	// statsMu guards the scratch arrays, which are reused by every
+	// stats call so polling does not allocate.
+	statsMu      sync.Mutex
+	statsScratch [bridge.StatCount]int64
+	groupScratch [bridge.GroupStatsSlots]int64
 )
 
 var (
@@ -25,6 +61,9 @@ var (
 	engineCancel  context.CancelFunc
 	engineRunning = false
 	currentEngine *Tun2SocksEngine
+
+	// rulesPath is the routing rule file applied on every start.
+	rulesPath string
 )
 
 // Config represents the tun2socks configuration
@@ -158,9 +197,13 @@ func (e *Tun2SocksEngine) Start() error {
 		MTU:      e.config.mtu,
 		Device:   e.config.device,
 		Proxy:    e.config.proxy,
+		Rules:    currentRulesPath(),
 		LogLevel: e.config.logLevel,
 	}
 
+	// Every session counts its traffic from zero
+	bridge.ResetStats()
+
 	// Safely insert the key
 	if err := safeEngineInsert(&key); err != nil {
 		return fmt.Errorf("failed to insert engine key: %w", err)
@@ -203,6 +246,9 @@ func (e *Tun2SocksEngine) Start() error {
 		currentEngine = e
 		engineMutex.Unlock()
 		
+		// The engine installs its own logger while starting, take it over
+		bridge.InstallLogger()
+
 		log.Printf("Tun2Socks engine started successfully")
 		sendLogToJava("Tun2Socks engine started successfully")
 		return nil
@@ -287,6 +333,12 @@ func IsRunning() bool {
 	return engineRunning
 }
 
+func currentRulesPath() string {
+	engineMutex.RLock()
+	defer engineMutex.RUnlock()
+	return rulesPath
+}
+
 // StopGlobalEngine stops the global engine instance (thread-safe)
 func StopGlobalEngine() {
 	engineMutex.Lock()
@@ -371,7 +423,7 @@ func Java_com_yiguihai_tun2socks_Tun2Socks_StartWithUrl(tunFd C.int, proxyUrl *C
 		mtu:      1500,
 		device:   fmt.Sprintf("fd://%d", int(tunFd)),
 		proxy:    proxyUrlStr,
-		logLevel: "warning",
+		logLevel: "warn",
 	}
 
 	// Stop any existing engine
@@ -409,6 +461,155 @@ func Java_com_yiguihai_tun2socks_Tun2Socks_getStats() C.long {
 	return 0
 }
 
+//export Java_com_yiguihai_tun2socks_Tun2Socks_getTrafficStats
+func Java_com_yiguihai_tun2socks_Tun2Socks_getTrafficStats(env *C.JNIEnv, clazz C.jclass, out C.jlongArray) C.jint {
+	if env == nil || out == nil {
+		return 0
+	}
+
+	statsMu.Lock()
+	defer statsMu.Unlock()
+
+	n := bridge.FillStats(statsScratch[:])
+	if l := int(C.jniArrayLength(env, C.jarray(out))); l < n {
+		n = l
+	}
+	if n > 0 {
+		C.jniSetLongArrayRegion(env, out, C.jsize(n), (*C.jlong)(unsafe.Pointer(&statsScratch[0])))
+	}
+	return C.jint(n)
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_getProxyGroupStats
+func Java_com_yiguihai_tun2socks_Tun2Socks_getProxyGroupStats(env *C.JNIEnv, clazz C.jclass, out C.jlongArray) C.jint {
+	if env == nil || out == nil {
+		return 0
+	}
+
+	statsMu.Lock()
+	defer statsMu.Unlock()
+
+	n := bridge.FillGroupStats(groupScratch[:])
+	if l := int(C.jniArrayLength(env, C.jarray(out))); l < n {
+		n = l
+	}
+	if n > 0 {
+		C.jniSetLongArrayRegion(env, out, C.jsize(n), (*C.jlong)(unsafe.Pointer(&groupScratch[0])))
+	}
+	return C.jint(n)
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_updateProxy
+func Java_com_yiguihai_tun2socks_Tun2Socks_updateProxy(env *C.JNIEnv, clazz C.jclass, proxyUrl C.jstring) C.jboolean {
+	if env == nil {
+		return C.JNI_FALSE
+	}
+	proxyUrlStr := jniGoString(env, proxyUrl)
+
+	if !IsRunning() {
+		log.Printf("updateProxy: engine is not running")
+		return C.JNI_FALSE
+	}
+	if proxyUrlStr == "" || !strings.Contains(proxyUrlStr, "://") {
+		sendLogToJava("Failed to switch proxy: invalid proxy URL format")
+		return C.JNI_FALSE
+	}
+
+	if err := engine.SwapProxy(proxyUrlStr); err != nil {
+		sendLogToJava(fmt.Sprintf("Failed to switch proxy: %v", err))
+		return C.JNI_FALSE
+	}
+	sendLogToJava("Proxy switched, new connections use the new upstream")
+	return C.JNI_TRUE
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_awaitReady
+func Java_com_yiguihai_tun2socks_Tun2Socks_awaitReady(env *C.JNIEnv, clazz C.jclass, timeoutMs C.jint) C.jint {
+	if !IsRunning() {
+		return C.jint(bridge.ReadyNone)
+	}
+	return C.jint(bridge.AwaitReady(time.Duration(timeoutMs) * time.Millisecond))
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_setRules
+func Java_com_yiguihai_tun2socks_Tun2Socks_setRules(env *C.JNIEnv, clazz C.jclass, path C.jstring) C.jboolean {
+	if env == nil {
+		return C.JNI_FALSE
+	}
+	pathStr := jniGoString(env, path)
+
+	if IsRunning() {
+		if err := engine.SwapRules(pathStr); err != nil {
+			sendLogToJava(fmt.Sprintf("Failed to load rules: %v", err))
+			return C.JNI_FALSE
+		}
+	}
+
+	engineMutex.Lock()
+	rulesPath = pathStr
+	engineMutex.Unlock()
+	return C.JNI_TRUE
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_attachStatsBlock
+func Java_com_yiguihai_tun2socks_Tun2Socks_attachStatsBlock(env *C.JNIEnv, clazz C.jclass, buf C.jobject) C.jboolean {
+	if env == nil || buf == nil {
+		return C.JNI_FALSE
+	}
+
+	addr := C.jniDirectBufferAddress(env, buf)
+	size := C.jniDirectBufferCapacity(env, buf)
+	if addr == nil || size <= 0 {
+		log.Printf("attachStatsBlock: buffer is not a direct buffer")
+		return C.JNI_FALSE
+	}
+
+	if !bridge.AttachStatsBlock(addr, int(size)) {
+		log.Printf("attachStatsBlock: unusable buffer of %d bytes", int64(size))
+		return C.JNI_FALSE
+	}
+	return C.JNI_TRUE
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_detachStatsBlock
+func Java_com_yiguihai_tun2socks_Tun2Socks_detachStatsBlock(env *C.JNIEnv, clazz C.jclass) {
+	bridge.DetachStatsBlock()
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_drainLogs
+func Java_com_yiguihai_tun2socks_Tun2Socks_drainLogs(env *C.JNIEnv, clazz C.jclass, buf C.jobject, timeoutMs C.jint) C.jint {
+	if env == nil || buf == nil {
+		return -1
+	}
+
+	addr := C.jniDirectBufferAddress(env, buf)
+	size := C.jniDirectBufferCapacity(env, buf)
+	if addr == nil || size <= 0 {
+		return -1
+	}
+
+	dst := unsafe.Slice((*byte)(addr), int(size))
+	return C.jint(bridge.DrainLogs(dst, time.Duration(timeoutMs)*time.Millisecond))
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_setLogLevel
+func Java_com_yiguihai_tun2socks_Tun2Socks_setLogLevel(env *C.JNIEnv, clazz C.jclass, level C.jint) {
+	if level < 0 {
+		level = 0
+	}
+	bridge.SetLogLevel(uint8(min(level, C.jint(bridge.LogSilent))))
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_trimMemory
+func Java_com_yiguihai_tun2socks_Tun2Socks_trimMemory(env *C.JNIEnv, clazz C.jclass, level C.jint) {
+	bridge.TrimMemory(int(level))
+}
+
+//export Java_com_yiguihai_tun2socks_Tun2Socks_setBufferBudget
+func Java_com_yiguihai_tun2socks_Tun2Socks_setBufferBudget(env *C.JNIEnv, clazz C.jclass, bytes C.jlong) {
+	bridge.SetBufferBudget(int64(bytes))
+}
+
 //export Java_com_yiguihai_tun2socks_Tun2Socks_setTimeout
 func Java_com_yiguihai_tun2socks_Tun2Socks_setTimeout(timeoutMs C.int) {
 	log.Printf("Timeout set to %d ms", timeoutMs)
@@ -434,9 +635,23 @@ func safeGoString(cStr *C.char) string {
 	return strings.TrimSpace(C.GoString(cStr))
 }
 
-// sendLogToJava sends log messages to Java layer
+// jniGoString converts a Java string passed through a proper JNI signature
+func jniGoString(env *C.JNIEnv, s C.jstring) string {
+	if s == nil {
+		return ""
+	}
+	chars := C.jniGetStringUTFChars(env, s)
+	if chars == nil {
+		return ""
+	}
+	defer C.jniReleaseStringUTFChars(env, s, chars)
+	return strings.TrimSpace(C.GoString(chars))
+}
+
+// sendLogToJava queues lifecycle messages for the Java drain thread
 func sendLogToJava(message string) {
 	log.Printf("JAVA_LOG: %s", message)
+	bridge.Notice(message)
 }
 
 // Empty main function required for CGO shared library build
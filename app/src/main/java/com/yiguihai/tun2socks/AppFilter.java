@@ -0,0 +1,52 @@
+package com.yiguihai.tun2socks;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ordering and filtering of the app list shown by AppSelectionActivity.
+ * It only sees apps through {@link Entry}, so it runs on a plain JVM too.
+ */
+public final class AppFilter {
+
+    public static final String FILTER_ALL = "all";
+    public static final String FILTER_USER = "user";
+    public static final String FILTER_SYSTEM = "system";
+
+    public interface Entry {
+        String appName();
+        String packageName();
+        boolean isSelected();
+        boolean isSystemApp();
+    }
+
+    // Selected apps first, then by name
+    public static final Comparator<Entry> ORDER = (o1, o2) -> {
+        if (o1.isSelected() != o2.isSelected()) {
+            return o2.isSelected() ? 1 : -1;
+        }
+        return o1.appName().compareToIgnoreCase(o2.appName());
+    };
+
+    private AppFilter() {}
+
+    /**
+     * Replaces the content of {@code out} with the apps of {@code apps}
+     * that pass the filter and contain the lower case {@code query} in
+     * their name or package.
+     */
+    public static <T extends Entry> void filter(List<T> apps, String filter, String query, List<T> out) {
+        out.clear();
+        for (int i = 0, n = apps.size(); i < n; i++) {
+            T app = apps.get(i);
+            if (FILTER_USER.equals(filter) && app.isSystemApp()) continue;
+            if (FILTER_SYSTEM.equals(filter) && !app.isSystemApp()) continue;
+
+            if (query.isEmpty()
+                    || app.appName().toLowerCase().contains(query)
+                    || app.packageName().toLowerCase().contains(query)) {
+                out.add(app);
+            }
+        }
+    }
+}
@@ -3,7 +3,7 @@ package com.yiguihai.tun2socks;
 
 import android.graphics.drawable.Drawable;
 
-public class AppInfo {
+public class AppInfo implements AppFilter.Entry {
     public final String appName;
     public final String packageName;
     public final Drawable icon;
@@ -25,4 +25,24 @@ public class AppInfo {
         this.isSystemApp = isSystemApp;
         this.uid = uid;
     }
+
+    @Override
+    public String appName() {
+        return appName;
+    }
+
+    @Override
+    public String packageName() {
+        return packageName;
+    }
+
+    @Override
+    public boolean isSelected() {
+        return isSelected;
+    }
+
+    @Override
+    public boolean isSystemApp() {
+        return isSystemApp;
+    }
 }
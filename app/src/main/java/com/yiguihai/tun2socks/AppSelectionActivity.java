@@ -49,7 +49,7 @@ public class AppSelectionActivity extends AppCompatActivity {
     private TextView statsTextView;
 
     // Filter state
-    private String currentFilter = "all";
+    private String currentFilter = AppFilter.FILTER_ALL;
     private String searchQuery = "";
 
     @Override
@@ -139,13 +139,7 @@ public class AppSelectionActivity extends AppCompatActivity {
                 }
             }
 
-            // Sort apps: enabled apps first, then by name
-            Collections.sort(appList, (o1, o2) -> {
-                if (o1.isSelected != o2.isSelected) {
-                    return o2.isSelected ? 1 : -1; // enabled apps first
-                }
-                return o1.appName.compareToIgnoreCase(o2.appName); // then by name
-            });
+            Collections.sort(appList, AppFilter.ORDER);
 
             
             runOnUiThread(() -> {
@@ -207,7 +201,7 @@ public class AppSelectionActivity extends AppCompatActivity {
     private void setupFilterListeners() {
         // Set individual click listeners for each chip to ensure they work
         chipAllApps.setOnClickListener(v -> {
-            currentFilter = "all";
+            currentFilter = AppFilter.FILTER_ALL;
             chipAllApps.setChecked(true);
             chipUserApps.setChecked(false);
             chipSystemApps.setChecked(false);
@@ -215,7 +209,7 @@ public class AppSelectionActivity extends AppCompatActivity {
         });
 
         chipUserApps.setOnClickListener(v -> {
-            currentFilter = "user";
+            currentFilter = AppFilter.FILTER_USER;
             chipAllApps.setChecked(false);
             chipUserApps.setChecked(true);
             chipSystemApps.setChecked(false);
@@ -223,7 +217,7 @@ public class AppSelectionActivity extends AppCompatActivity {
         });
 
         chipSystemApps.setOnClickListener(v -> {
-            currentFilter = "system";
+            currentFilter = AppFilter.FILTER_SYSTEM;
             chipAllApps.setChecked(false);
             chipUserApps.setChecked(false);
             chipSystemApps.setChecked(true);
@@ -232,26 +226,7 @@ public class AppSelectionActivity extends AppCompatActivity {
     }
 
     private void updateFilteredApps() {
-        filteredAppList.clear();
-
-        for (AppInfo app : appList) {
-            // Apply filter
-            boolean matchesFilter = true;
-            if (currentFilter.equals("user") && app.isSystemApp) {
-                matchesFilter = false;
-            } else if (currentFilter.equals("system") && !app.isSystemApp) {
-                matchesFilter = false;
-            }
-
-            // Apply search
-            boolean matchesSearch = searchQuery.isEmpty() ||
-                    app.appName.toLowerCase().contains(searchQuery) ||
-                    app.packageName.toLowerCase().contains(searchQuery);
-
-            if (matchesFilter && matchesSearch) {
-                filteredAppList.add(app);
-            }
-        }
+        AppFilter.filter(appList, currentFilter, searchQuery, filteredAppList);
 
         // Use notifyDataSetChanged() for simple refresh, or consider better diff utils
         runOnUiThread(() -> {
@@ -271,10 +246,10 @@ public class AppSelectionActivity extends AppCompatActivity {
 
         String filterText = "";
         switch (currentFilter) {
-            case "user":
+            case AppFilter.FILTER_USER:
                 filterText = "User Apps";
                 break;
-            case "system":
+            case AppFilter.FILTER_SYSTEM:
                 filterText = "System Apps";
                 break;
             default:
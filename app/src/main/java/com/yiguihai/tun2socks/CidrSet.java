@@ -0,0 +1,511 @@
+package com.yiguihai.tun2socks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Set of IPv4 and IPv6 addresses built from a list of CIDRs. Entries are
+ * parsed by hand, stored as unsigned 128-bit ranges in flat long arrays,
+ * then sorted and merged, so tens of thousands of entries compile without
+ * a regex or an object per entry. The main use is turning an exclusion
+ * list into the smallest set of routes that covers everything else.
+ */
+public final class CidrSet {
+
+    /** Receives the routes produced by {@link Routes#forEach}. */
+    public interface RouteConsumer {
+        void accept(InetAddress address, int prefixLength);
+    }
+
+    private final Ranges v4 = new Ranges(32);
+    private final Ranges v6 = new Ranges(128);
+    private int invalidCount;
+    private String firstInvalid;
+
+    // Reused while parsing so that entries do not allocate
+    private final long[] scratch = new long[2];
+    private final int[] groupScratch = new int[8];
+
+    private CidrSet() {
+    }
+
+    /**
+     * Parses addresses and CIDRs separated by commas, semicolons or
+     * whitespace. Text from '#' to the end of a line is a comment. Host
+     * bits of a CIDR are ignored. Invalid entries are counted and skipped.
+     */
+    public static CidrSet parse(CharSequence text) {
+        CidrSet set = new CidrSet();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '#') {
+                while (i < length && text.charAt(i) != '\n') i++;
+                continue;
+            }
+            if (isSeparator(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && !isSeparator(text.charAt(i)) && text.charAt(i) != '#') i++;
+            if (!set.add(text, start, i)) {
+                if (set.invalidCount++ == 0) {
+                    set.firstInvalid = text.subSequence(start, i).toString();
+                }
+            }
+        }
+        set.v4.merge();
+        set.v6.merge();
+        return set;
+    }
+
+    /** Number of merged IPv4 ranges. */
+    public int ipv4RangeCount() {
+        return v4.count;
+    }
+
+    /** Number of merged IPv6 ranges. */
+    public int ipv6RangeCount() {
+        return v6.count;
+    }
+
+    public int invalidCount() {
+        return invalidCount;
+    }
+
+    /** The first entry that failed to parse, or null. */
+    public String firstInvalid() {
+        return firstInvalid;
+    }
+
+    /**
+     * Returns the minimal list of CIDRs covering every address of the
+     * enabled families that is not in this set.
+     */
+    public Routes complement(boolean ipv4, boolean ipv6) {
+        Routes routes = new Routes();
+        if (ipv4) v4.complementInto(routes);
+        if (ipv6) v6.complementInto(routes);
+        return routes;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == ';' || c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private boolean add(CharSequence s, int start, int end) {
+        int slash = end;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '/') {
+                slash = i;
+                break;
+            }
+        }
+        boolean ipv6 = false;
+        for (int i = start; i < slash; i++) {
+            if (s.charAt(i) == ':') {
+                ipv6 = true;
+                break;
+            }
+        }
+
+        int bits = ipv6 ? 128 : 32;
+        int prefix = bits;
+        if (slash < end) {
+            prefix = parseDecimal(s, slash + 1, end, bits);
+            if (prefix < 0) return false;
+        }
+
+        if (!ipv6) {
+            long address = parseIPv4(s, start, slash);
+            if (address < 0) return false;
+            long hostMask = prefix == 0 ? 0xFFFFFFFFL : (1L << (32 - prefix)) - 1;
+            long first = address & ~hostMask;
+            v4.add(0, first, 0, first | hostMask);
+            return true;
+        }
+
+        long[] address = scratch;
+        if (!parseIPv6(s, start, slash, address)) return false;
+        long hostHi = maskHi(128 - prefix);
+        long hostLo = maskLo(128 - prefix);
+        v6.add(address[0] & ~hostHi, address[1] & ~hostLo, address[0] | hostHi, address[1] | hostLo);
+        return true;
+    }
+
+    // High and low words of a mask of the n low bits
+    private static long maskHi(int n) {
+        if (n <= 64) return 0;
+        return n >= 128 ? -1L : (1L << (n - 64)) - 1;
+    }
+
+    private static long maskLo(int n) {
+        if (n >= 64) return -1L;
+        return n <= 0 ? 0 : (1L << n) - 1;
+    }
+
+    /** Parses an unsigned decimal no larger than max, or returns -1. */
+    private static int parseDecimal(CharSequence s, int start, int end, int max) {
+        if (start >= end || end - start > 3) return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value > max ? -1 : value;
+    }
+
+    /** Parses a dotted quad into the low 32 bits, or returns -1. */
+    private static long parseIPv4(CharSequence s, int start, int end) {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+        while (true) {
+            int dot = i;
+            while (dot < end && s.charAt(dot) != '.') dot++;
+            int octet = parseDecimal(s, i, dot, 255);
+            if (octet < 0) return -1;
+            address = (address << 8) | octet;
+            if (++octets == 4) return dot == end ? address : -1;
+            if (dot == end) return -1;
+            i = dot + 1;
+        }
+    }
+
+    /**
+     * Parses an IPv6 address, with "::" compression and an optional
+     * dotted quad tail, into out[0] (high word) and out[1] (low word).
+     */
+    private boolean parseIPv6(CharSequence s, int start, int end, long[] out) {
+        int[] groups = groupScratch;
+        int count = 0;
+        int gap = -1; // group index where "::" expands
+        int i = start;
+
+        if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (count == 8) return false;
+            int j = i;
+            int value = 0;
+            while (j < end && j - i < 5) {
+                int digit = Character.digit(s.charAt(j), 16);
+                if (digit < 0) break;
+                value = (value << 4) | digit;
+                j++;
+            }
+            if (j < end && s.charAt(j) == '.') {
+                // Embedded IPv4 takes the last two groups
+                if (count > 6) return false;
+                long v4 = parseIPv4(s, i, end);
+                if (v4 < 0) return false;
+                groups[count++] = (int) (v4 >>> 16);
+                groups[count++] = (int) (v4 & 0xFFFF);
+                i = end;
+                break;
+            }
+            if (j == i || j - i > 4) return false;
+            groups[count++] = value;
+            if (j == end) {
+                i = end;
+                break;
+            }
+            if (s.charAt(j) != ':') return false;
+            if (j + 1 < end && s.charAt(j + 1) == ':') {
+                if (gap >= 0) return false;
+                gap = count;
+                i = j + 2;
+            } else {
+                i = j + 1;
+                if (i == end) return false; // trailing single ':'
+            }
+        }
+
+        if (gap < 0 && count != 8) return false;
+        if (gap >= 0 && count == 8) return false;
+
+        long hi = 0;
+        long lo = 0;
+        int missing = 8 - count;
+        for (int g = 0, src = 0; g < 8; g++) {
+            int value;
+            if (gap >= 0 && g >= gap && g < gap + missing) {
+                value = 0;
+            } else {
+                value = groups[src++];
+            }
+            if (g < 4) {
+                hi = (hi << 16) | value;
+            } else {
+                lo = (lo << 16) | value;
+            }
+        }
+        out[0] = hi;
+        out[1] = lo;
+        return true;
+    }
+
+    /**
+     * Growable list of [start, end] ranges of one address family, four
+     * longs per range: start high, start low, end high, end low.
+     */
+    private static final class Ranges {
+        final int bits;
+        long[] data = new long[64];
+        int count;
+
+        Ranges(int bits) {
+            this.bits = bits;
+        }
+
+        void add(long startHi, long startLo, long endHi, long endLo) {
+            int at = count * 4;
+            if (at + 4 > data.length) {
+                long[] grown = new long[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, at);
+                data = grown;
+            }
+            data[at] = startHi;
+            data[at + 1] = startLo;
+            data[at + 2] = endHi;
+            data[at + 3] = endLo;
+            count++;
+        }
+
+        /** Sorts by start and coalesces overlapping or adjacent ranges. */
+        void merge() {
+            if (count < 2) return;
+            sort(0, count - 1);
+
+            int out = 0;
+            for (int r = 1; r < count; r++) {
+                int cur = out * 4;
+                int next = r * 4;
+                long endHi = data[cur + 2];
+                long endLo = data[cur + 3];
+                boolean endIsMax = endHi == maxHi() && endLo == maxLo();
+                // next starts at or before end + 1
+                long afterHi = endLo == -1L ? endHi + 1 : endHi;
+                long afterLo = endLo + 1;
+                if (endIsMax || compare(data[next], data[next + 1], afterHi, afterLo) <= 0) {
+                    if (compare(data[next + 2], data[next + 3], endHi, endLo) > 0) {
+                        data[cur + 2] = data[next + 2];
+                        data[cur + 3] = data[next + 3];
+                    }
+                } else {
+                    out++;
+                    System.arraycopy(data, next, data, out * 4, 4);
+                }
+            }
+            count = out + 1;
+        }
+
+        long maxHi() {
+            return bits == 128 ? -1L : 0;
+        }
+
+        long maxLo() {
+            return bits == 128 ? -1L : 0xFFFFFFFFL;
+        }
+
+        /** Appends the CIDRs of every gap between the merged ranges. */
+        void complementInto(Routes routes) {
+            long curHi = 0;
+            long curLo = 0;
+            for (int r = 0; r < count; r++) {
+                int at = r * 4;
+                long startHi = data[at];
+                long startLo = data[at + 1];
+                if (compare(curHi, curLo, startHi, startLo) < 0) {
+                    long gapHi = startLo == 0 ? startHi - 1 : startHi;
+                    routes.addRange(bits, curHi, curLo, gapHi, startLo - 1);
+                }
+                long endHi = data[at + 2];
+                long endLo = data[at + 3];
+                if (endHi == maxHi() && endLo == maxLo()) return;
+                curHi = endLo == -1L ? endHi + 1 : endHi;
+                curLo = endLo + 1;
+            }
+            routes.addRange(bits, curHi, curLo, maxHi(), maxLo());
+        }
+
+        private int compareAt(int a, int b) {
+            return compare(data[a * 4], data[a * 4 + 1], data[b * 4], data[b * 4 + 1]);
+        }
+
+        private void swap(int a, int b) {
+            for (int k = 0; k < 4; k++) {
+                long t = data[a * 4 + k];
+                data[a * 4 + k] = data[b * 4 + k];
+                data[b * 4 + k] = t;
+            }
+        }
+
+        // Quicksort on the range starts, insertion sort for short runs
+        private void sort(int lo, int hi) {
+            while (hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                if (compareAt(mid, lo) < 0) swap(mid, lo);
+                if (compareAt(hi, lo) < 0) swap(hi, lo);
+                if (compareAt(hi, mid) < 0) swap(hi, mid);
+                swap(mid, hi - 1);
+                int pivot = hi - 1;
+                int i = lo;
+                int j = hi - 1;
+                while (true) {
+                    while (compareAt(++i, pivot) < 0) { }
+                    while (compareAt(--j, pivot) > 0) { }
+                    if (i >= j) break;
+                    swap(i, j);
+                }
+                swap(i, hi - 1);
+                // Recurse into the smaller half to bound the stack depth
+                if (i - lo < hi - i) {
+                    sort(lo, i - 1);
+                    lo = i + 1;
+                } else {
+                    sort(i + 1, hi);
+                    hi = i - 1;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && compareAt(j, j - 1) < 0; j--) {
+                    swap(j, j - 1);
+                }
+            }
+        }
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compareUnsigned(aHi, bHi);
+        return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+    }
+
+    /**
+     * Compact list of routes, with one address and prefix length per
+     * entry. It can be written to and read back from a cache file.
+     */
+    public static final class Routes {
+        private static final int MAGIC = 0x54524F55; // "TROU"
+
+        private long[] hi = new long[64];
+        private long[] lo = new long[64];
+        private byte[] prefix = new byte[64];
+        private boolean[] ipv6 = new boolean[64];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        void add(boolean v6, long addressHi, long addressLo, int prefixLength) {
+            if (size == hi.length) {
+                int capacity = size * 2;
+                hi = Arrays.copyOf(hi, capacity);
+                lo = Arrays.copyOf(lo, capacity);
+                prefix = Arrays.copyOf(prefix, capacity);
+                ipv6 = Arrays.copyOf(ipv6, capacity);
+            }
+            hi[size] = addressHi;
+            lo[size] = addressLo;
+            prefix[size] = (byte) prefixLength;
+            ipv6[size] = v6;
+            size++;
+        }
+
+        /** Splits [start, end] into the fewest aligned CIDR blocks. */
+        void addRange(int bits, long startHi, long startLo, long endHi, long endLo) {
+            boolean v6 = bits == 128;
+            while (compare(startHi, startLo, endHi, endLo) <= 0) {
+                // Largest block aligned on start
+                int align = startLo != 0 ? Long.numberOfTrailingZeros(startLo)
+                        : startHi != 0 ? 64 + Long.numberOfTrailingZeros(startHi) : 128;
+                align = Math.min(align, bits);
+
+                // Largest block fitting in end - start + 1
+                long spanHi = endHi - startHi - (Long.compareUnsigned(endLo, startLo) < 0 ? 1 : 0);
+                long spanLo = endLo - startLo;
+                int fit;
+                if (spanLo == -1L && spanHi == -1L) {
+                    fit = 128; // the whole space
+                } else {
+                    long sizeLo = spanLo + 1;
+                    long sizeHi = spanLo == -1L ? spanHi + 1 : spanHi;
+                    fit = sizeHi != 0 ? 127 - Long.numberOfLeadingZeros(sizeHi)
+                            : 63 - Long.numberOfLeadingZeros(sizeLo);
+                }
+                int block = Math.min(align, fit);
+
+                add(v6, startHi, startLo, bits - block);
+
+                // start += 2^block, stop on wrap around
+                if (block >= 128) return;
+                long incHi = block >= 64 ? 1L << (block - 64) : 0;
+                long incLo = block >= 64 ? 0 : 1L << block;
+                long nextLo = startLo + incLo;
+                long nextHi = startHi + incHi + (Long.compareUnsigned(nextLo, startLo) < 0 ? 1 : 0);
+                if (compare(nextHi, nextLo, startHi, startLo) <= 0) return;
+                if (bits == 32 && nextLo > 0xFFFFFFFFL) return;
+                startHi = nextHi;
+                startLo = nextLo;
+            }
+        }
+
+        public void forEach(RouteConsumer consumer) throws UnknownHostException {
+            byte[] v4Bytes = new byte[4];
+            byte[] v6Bytes = new byte[16];
+            for (int i = 0; i < size; i++) {
+                InetAddress address;
+                if (ipv6[i]) {
+                    for (int b = 0; b < 8; b++) {
+                        v6Bytes[b] = (byte) (hi[i] >>> (56 - 8 * b));
+                        v6Bytes[8 + b] = (byte) (lo[i] >>> (56 - 8 * b));
+                    }
+                    address = InetAddress.getByAddress(v6Bytes);
+                } else {
+                    for (int b = 0; b < 4; b++) {
+                        v4Bytes[b] = (byte) (lo[i] >>> (24 - 8 * b));
+                    }
+                    address = InetAddress.getByAddress(v4Bytes);
+                }
+                consumer.accept(address, prefix[i] & 0xFF);
+            }
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeBoolean(ipv6[i]);
+                out.writeByte(prefix[i]);
+                if (ipv6[i]) out.writeLong(hi[i]);
+                out.writeLong(lo[i]);
+            }
+        }
+
+        public static Routes readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) throw new IOException("not a routes cache");
+            int count = in.readInt();
+            if (count < 0) throw new IOException("corrupt routes cache");
+            Routes routes = new Routes();
+            for (int i = 0; i < count; i++) {
+                boolean v6 = in.readBoolean();
+                int prefixLength = in.readByte() & 0xFF;
+                long addressHi = v6 ? in.readLong() : 0;
+                long addressLo = in.readLong();
+                if (prefixLength > (v6 ? 128 : 32)) throw new IOException("corrupt routes cache");
+                routes.add(v6, addressHi, addressLo, prefixLength);
+            }
+            return routes;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.yiguihai.tun2socks;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Renders a {@link LogRingBuffer}; only the visible rows are ever bound.
+ */
+public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
+
+    private final LogRingBuffer logs;
+
+    public LogAdapter(LogRingBuffer logs) {
+        this.logs = logs;
+    }
+
+    @NonNull
+    @Override
+    public LogViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item_log, parent, false);
+        return new LogViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LogViewHolder holder, int position) {
+        StringBuilder text = holder.text;
+        text.setLength(0);
+        text.append('[').append(logs.sequenceAt(position)).append("] ").append(logs.get(position));
+        holder.logLine.setText(text);
+    }
+
+    @Override
+    public int getItemCount() {
+        return logs.size();
+    }
+
+    static class LogViewHolder extends RecyclerView.ViewHolder {
+        final TextView logLine;
+        final StringBuilder text = new StringBuilder();
+
+        LogViewHolder(@NonNull View itemView) {
+            super(itemView);
+            logLine = itemView.findViewById(R.id.log_line);
+        }
+    }
+}
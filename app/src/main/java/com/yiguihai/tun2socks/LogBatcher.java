@@ -0,0 +1,60 @@
+package com.yiguihai.tun2socks;
+
+import java.util.ArrayList;
+
+/**
+ * Queues log lines from any thread and appends them to a
+ * {@link LogRingBuffer} in batches. add() tells the caller when a flush
+ * has to be scheduled, flush() runs on the thread that owns the ring.
+ */
+public final class LogBatcher {
+
+    private final LogRingBuffer buffer;
+    private final ArrayList<String> pending = new ArrayList<>();
+    private final ArrayList<String> flushing = new ArrayList<>();
+    private boolean scheduled;
+    private int evicted;
+
+    public LogBatcher(LogRingBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Queues a line and returns true if no flush was scheduled yet, in
+     * which case the caller schedules one.
+     */
+    public boolean add(String line) {
+        synchronized (pending) {
+            pending.add(line);
+            if (scheduled) return false;
+            scheduled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Appends the lines queued so far to the ring and returns how many
+     * there were. Only the owner of the ring may call it.
+     */
+    public int flush() {
+        synchronized (pending) {
+            flushing.addAll(pending);
+            pending.clear();
+            scheduled = false;
+        }
+        int appended = flushing.size();
+        evicted = 0;
+        for (int i = 0; i < appended; i++) {
+            if (buffer.add(flushing.get(i))) evicted++;
+        }
+        flushing.clear();
+        return appended;
+    }
+
+    /**
+     * Returns how many old lines the last flush evicted from the ring.
+     */
+    public int evicted() {
+        return evicted;
+    }
+}
@@ -0,0 +1,75 @@
+package com.yiguihai.tun2socks;
+
+/**
+ * Fixed-capacity ring of log lines. Appending is O(1) and evicts the
+ * oldest line once full; every line keeps the sequence number it was
+ * appended with. Not thread-safe, MainActivity only touches it on the
+ * UI thread.
+ */
+public final class LogRingBuffer {
+
+    private final String[] lines;
+    private final long[] sequences;
+    private int start;
+    private int size;
+    private long nextSequence = 1;
+
+    public LogRingBuffer(int capacity) {
+        lines = new String[capacity];
+        sequences = new long[capacity];
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a line and returns true if the oldest line was evicted.
+     */
+    public boolean add(String line) {
+        int index = start + size;
+        if (index >= lines.length) index -= lines.length;
+
+        lines[index] = line;
+        sequences[index] = nextSequence++;
+
+        if (size < lines.length) {
+            size++;
+            return false;
+        }
+        start = start + 1 == lines.length ? 0 : start + 1;
+        return true;
+    }
+
+    /**
+     * Returns the line at position, 0 being the oldest one kept.
+     */
+    public String get(int position) {
+        return lines[indexOf(position)];
+    }
+
+    /**
+     * Returns the sequence number of the line at position.
+     */
+    public long sequenceAt(int position) {
+        return sequences[indexOf(position)];
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(lines, null);
+        start = 0;
+        size = 0;
+    }
+
+    private int indexOf(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        int index = start + position;
+        return index >= lines.length ? index - lines.length : index;
+    }
+}
@@ -9,6 +9,9 @@ import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.net.VpnService;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.preference.PreferenceManager;
 import android.view.View;
 import android.widget.Button;
@@ -24,11 +27,12 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -44,8 +48,32 @@ public class MainActivity extends AppCompatActivity {
     // Configuration display
     private TextView configText;
 
-    private final Queue<String> logQueue = new LinkedList<>();
-    private static final int MAX_LOG_LINES = 100; // Increased for better context
+    // Statistics display
+    private TextView uploadText;
+    private TextView downloadText;
+    private TextView connectionsText;
+    private ThroughputGraphView throughputGraph;
+
+    // Reused by every poll so the stats loop does not allocate
+    private final long[] trafficStats = new long[Tun2Socks.STAT_COUNT];
+    private final long[] groupStats = new long[Tun2Socks.GROUP_STATS_SLOTS];
+    private static final long STATS_POLL_INTERVAL_MS = 1000;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statsPoller = new Runnable() {
+        @Override
+        public void run() {
+            updateStatsDisplay();
+            statsHandler.postDelayed(this, STATS_POLL_INTERVAL_MS);
+        }
+    };
+
+    // Log view: a fixed ring behind a RecyclerView, appends are applied once per frame
+    private static final int MAX_LOG_LINES = 1000;
+    private final LogRingBuffer logBuffer = new LogRingBuffer(MAX_LOG_LINES);
+    private final LogBatcher logBatcher = new LogBatcher(logBuffer);
+    private RecyclerView logsList;
+    private LogAdapter logAdapter;
+    private final Choreographer.FrameCallback logFrameCallback = frameTimeNanos -> flushPendingLogs();
 
     private final ActivityResultLauncher<Intent> vpnPermissionLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -67,26 +95,37 @@ public class MainActivity extends AppCompatActivity {
     private final BroadcastReceiver logReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // The service batches lines, single messages are still accepted
+            java.util.ArrayList<String> messages = intent.getStringArrayListExtra(TSocksVpnService.EXTRA_LOG_MESSAGES);
+            if (messages != null) {
+                for (String message : messages) {
+                    handleLogMessage(message);
+                }
+            }
             String message = intent.getStringExtra(TSocksVpnService.EXTRA_LOG_MESSAGE);
             if (message != null) {
-                addLog(message);
-
-                // Handle special messages for UI updates
-                if (message.contains("Tun2Socks engine started successfully")) {
-                    runOnUiThread(() -> {
-                        isVpnRunning = true;
-                        updateUiForVpnStarted();
-                    });
-                } else if (message.contains("Tun2Socks engine stopped") || message.contains("Failed to start tun2socks engine")) {
-                    runOnUiThread(() -> {
-                        isVpnRunning = false;
-                        updateUiForVpnStopped();
-                    });
-                }
+                handleLogMessage(message);
             }
         }
     };
 
+    private void handleLogMessage(String message) {
+        addLog(message);
+
+        // Handle special messages for UI updates
+        if (message.contains("Tun2Socks engine started successfully")) {
+            runOnUiThread(() -> {
+                isVpnRunning = true;
+                updateUiForVpnStarted();
+            });
+        } else if (message.contains("Tun2Socks engine stopped") || message.contains("Failed to start tun2socks engine")) {
+            runOnUiThread(() -> {
+                isVpnRunning = false;
+                updateUiForVpnStopped();
+            });
+        }
+    }
+
     private final BroadcastReceiver configNeededReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -122,10 +161,11 @@ public class MainActivity extends AppCompatActivity {
         TextView statusText = findViewById(R.id.status_text);
         MaterialCardView statusIndicator = findViewById(R.id.status_indicator);
         MaterialButton connectButton = findViewById(R.id.connect_button);
-        TextView uploadText = findViewById(R.id.upload_text);
-        TextView downloadText = findViewById(R.id.download_text);
-        TextView connectionsText = findViewById(R.id.connections_text);
-        TextView logsText = findViewById(R.id.logs_text);
+        uploadText = findViewById(R.id.upload_text);
+        downloadText = findViewById(R.id.download_text);
+        connectionsText = findViewById(R.id.connections_text);
+        throughputGraph = findViewById(R.id.throughput_graph);
+        logsList = findViewById(R.id.logs_list);
         Button clearLogsButton = findViewById(R.id.clear_logs_button);
         FloatingActionButton fab = findViewById(R.id.fab);
         configText = findViewById(R.id.config_text);
@@ -139,11 +179,18 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        LinearLayoutManager logsLayoutManager = new LinearLayoutManager(this);
+        logsLayoutManager.setStackFromEnd(true);
+        logsList.setLayoutManager(logsLayoutManager);
+        logAdapter = new LogAdapter(logBuffer);
+        logsList.setAdapter(logAdapter);
+        // Rows are appended at the bottom, item animations would only cost frames
+        logsList.setItemAnimator(null);
+
         clearLogsButton.setOnClickListener(v -> {
-            if (logsText != null) {
-                logsText.setText("Logs cleared...\n");
-                addLog("Logs cleared by user");
-            }
+            logBuffer.clear();
+            logAdapter.notifyDataSetChanged();
+            addLog("Logs cleared by user");
         });
 
         // Find the settings and apps buttons
@@ -185,6 +232,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        stopStatsPolling();
+        Choreographer.getInstance().removeFrameCallback(logFrameCallback);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(logReceiver);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(configNeededReceiver);
     }
@@ -231,36 +280,40 @@ public class MainActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
+    /**
+     * Queues a line for the log view. Safe to call from any thread, lines
+     * are applied to the view at most once per frame.
+     */
     private void addLog(String message) {
-        runOnUiThread(() -> {
-            TextView logsText = findViewById(R.id.logs_text);
-            if (logsText == null) return;
+        if (!logBatcher.add(message)) return;
 
-            if (logQueue.size() >= MAX_LOG_LINES) {
-                logQueue.poll();
-            }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(logFrameCallback);
+        } else {
+            statsHandler.post(() -> Choreographer.getInstance().postFrameCallback(logFrameCallback));
+        }
+    }
 
-            // Add line number for debugging log truncation
-            String numberedMessage = "[" + (logQueue.size() + 1) + "] " + message;
-            logQueue.add(numberedMessage);
+    private void flushPendingLogs() {
+        // Only follow new lines if the user has not scrolled up
+        boolean atBottom = logsList != null && !logsList.canScrollVertically(1);
 
-            StringBuilder logText = new StringBuilder();
-            for (String log : logQueue) {
-                logText.append(log).append("\n");
-            }
-            logsText.setText(logText.toString());
-
-            // Auto-scroll to bottom, but only if the user is already at the bottom.
-            androidx.core.widget.NestedScrollView scrollView = findViewById(R.id.scrollView_logs);
-            if (scrollView != null) {
-                View view = (View) scrollView.getChildAt(0);
-                // Calculate the scrolldelta, if 0, we are at the bottom
-                int scrollDelta = view.getBottom() - (scrollView.getHeight() + scrollView.getScrollY());
-                if (scrollDelta == 0) {
-                    scrollView.post(() -> scrollView.fullScroll(View.FOCUS_DOWN));
-                }
+        int appended = logBatcher.flush();
+        if (appended == 0 || logAdapter == null) return;
+        int evicted = logBatcher.evicted();
+
+        if (appended >= logBuffer.capacity()) {
+            logAdapter.notifyDataSetChanged();
+        } else {
+            if (evicted > 0) {
+                logAdapter.notifyItemRangeRemoved(0, evicted);
             }
-        });
+            logAdapter.notifyItemRangeInserted(logBuffer.size() - appended, appended);
+        }
+
+        if (atBottom) {
+            logsList.scrollToPosition(logBuffer.size() - 1);
+        }
     }
 
     private void updateUiForConnecting() {
@@ -317,10 +370,16 @@ public class MainActivity extends AppCompatActivity {
             fab.setImageResource(android.R.drawable.ic_menu_close_clear_cancel);
             fab.setEnabled(true);
         }
+        if (throughputGraph != null) {
+            throughputGraph.reset();
+        }
+
+        startStatsPolling();
     }
 
     private void updateUiForVpnStopped() {
         isVpnRunning = false;
+        stopStatsPolling();
         addLog("UI: VPN disconnected");
 
         // Update Material 3 UI components
@@ -371,31 +430,143 @@ public class MainActivity extends AppCompatActivity {
 
 
     private void showStatistics() {
+        StringBuilder message = new StringBuilder();
+        message.append("Connection Status: ").append(isVpnRunning ? "Connected" : "Disconnected");
+
+        if (isVpnRunning && pollTrafficStats()) {
+            long[] s = trafficStats;
+            message.append("\n\nData Statistics:")
+                   .append("\n• Upload: ").append(formatBytes(s[Tun2Socks.STAT_UPLOAD_TOTAL]))
+                   .append(" (").append(formatBytes(s[Tun2Socks.STAT_UPLOAD_RATE])).append("/s)")
+                   .append("\n• Download: ").append(formatBytes(s[Tun2Socks.STAT_DOWNLOAD_TOTAL]))
+                   .append(" (").append(formatBytes(s[Tun2Socks.STAT_DOWNLOAD_RATE])).append("/s)")
+                   .append("\n\nConnections:")
+                   .append("\n• TCP: ").append(s[Tun2Socks.STAT_TCP_CONNECTIONS])
+                   .append("\n• UDP: ").append(s[Tun2Socks.STAT_UDP_CONNECTIONS])
+                   .append("\n• TCP Failed Attempts: ").append(s[Tun2Socks.STAT_TCP_FAILED_ATTEMPTS])
+                   .append("\n• TCP Retransmits: ").append(s[Tun2Socks.STAT_TCP_RETRANSMITS])
+                   .append("\n• Waiting to Dial: ").append(s[Tun2Socks.STAT_DISPATCH_QUEUED])
+                   .append(" (").append(s[Tun2Socks.STAT_DISPATCH_BUSY]).append(" dialing)")
+                   .append("\n• Dropped (Overload): ").append(s[Tun2Socks.STAT_DISPATCH_SHED])
+                   .append("\n• Relay Buffers: ").append(formatBytes(s[Tun2Socks.STAT_RELAY_BUFFER_BYTES]))
+                   .append(" (").append(formatBytes(perConnection(s[Tun2Socks.STAT_RELAY_BUFFER_BYTES],
+                           s[Tun2Socks.STAT_TCP_CONNECTIONS]))).append(" per connection)")
+                   .append("\n• Engine Buffers: ").append(formatBytes(s[Tun2Socks.STAT_BUFFER_BYTES]))
+                   .append("\n• Warm Connections: ").append(hitRate(s[Tun2Socks.STAT_WARM_HITS],
+                           s[Tun2Socks.STAT_WARM_MISSES])).append("% hits, ")
+                   .append(s[Tun2Socks.STAT_WARM_SAVED_MILLIS]).append(" ms saved")
+                   .append("\n\nPackets:")
+                   .append("\n• Received: ").append(s[Tun2Socks.STAT_IP_PACKETS_RECEIVED])
+                   .append("\n• Sent: ").append(s[Tun2Socks.STAT_IP_PACKETS_SENT])
+                   .append("\n• Dropped: ").append(s[Tun2Socks.STAT_DROPPED_PACKETS])
+                   .append("\n• UDP Receive Errors: ").append(s[Tun2Socks.STAT_UDP_RECEIVE_ERRORS]);
+            appendGroupStats(message);
+        } else {
+            message.append("\n\nConnect to VPN to view statistics");
+        }
+
+        String startup = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(TSocksVpnService.PREF_LAST_STARTUP_TIMINGS, null);
+        if (startup != null) {
+            message.append("\n\nLast Startup:\n").append(startup);
+        }
+
         androidx.appcompat.app.AlertDialog.Builder builder = new androidx.appcompat.app.AlertDialog.Builder(this);
         builder.setTitle("Connection Statistics")
-               .setMessage("Connection Status: " + (isVpnRunning ? "Connected" : "Disconnected") +
-                          "\n\nData Statistics:" +
-                          "\n• Upload: Check main interface" +
-                          "\n• Download: Check main interface" +
-                          "\n• Active Connections: Check main interface" +
-                          "\n\nSession Info:" +
-                          "\n• Session Duration: " + (isVpnRunning ? "Active" : "Not started") +
-                          "\n• Protocol: Configured in Settings" +
-                          "\n• Server: Configured in Settings")
+               .setMessage(message.toString())
                .setPositiveButton("OK", (dialog, which) -> dialog.dismiss())
                .show();
     }
 
+    private static long perConnection(long total, long connections) {
+        return connections > 0 ? total / connections : 0;
+    }
+
+    private static long hitRate(long hits, long misses) {
+        return hits + misses > 0 ? hits * 100 / (hits + misses) : 0;
+    }
+
+    private void appendGroupStats(StringBuilder message) {
+        int n;
+        try {
+            n = Tun2Socks.getProxyGroupStats(groupStats);
+        } catch (UnsatisfiedLinkError e) {
+            return;
+        }
+        if (n <= Tun2Socks.GROUP_SELECTED) return;
+
+        int selected = (int) groupStats[Tun2Socks.GROUP_SELECTED];
+        message.append("\n\nUpstreams:");
+        for (int i = 0, slot = 1; slot + 1 < n; i++, slot += 2) {
+            long rttMicros = groupStats[slot];
+            long failures = groupStats[slot + 1];
+            message.append("\n").append(i == selected ? "▶ " : "• ").append("#").append(i + 1).append(": ");
+            if (failures > 0) {
+                message.append("down (").append(failures).append(" failures)");
+            } else if (rttMicros < 0) {
+                message.append("checking...");
+            } else {
+                message.append(rttMicros / 1000).append(" ms");
+            }
+        }
+    }
+
     private void refreshStats() {
         // Update statistics display
         if (isVpnRunning) {
-            addLog("Statistics refreshed");
+            updateStatsDisplay();
             showToast("Statistics refreshed");
         } else {
             showToast("Connect to VPN to view statistics");
         }
     }
 
+    private void startStatsPolling() {
+        statsHandler.removeCallbacks(statsPoller);
+        statsHandler.post(statsPoller);
+    }
+
+    private void stopStatsPolling() {
+        statsHandler.removeCallbacks(statsPoller);
+    }
+
+    /**
+     * Reads the native counters into trafficStats, returns false if the
+     * native library did not provide a full set.
+     */
+    private boolean pollTrafficStats() {
+        try {
+            return Tun2Socks.getTrafficStats(trafficStats) >= Tun2Socks.STAT_COUNT;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    private void updateStatsDisplay() {
+        if (!isVpnRunning) return;
+
+        // Prefer the shared stats block, it costs no JNI transition
+        StatsBlock block = StatsBlock.active();
+        if ((block == null || !block.readCounters(trafficStats)) && !pollTrafficStats()) return;
+
+        if (uploadText != null) {
+            uploadText.setText(formatBytes(trafficStats[Tun2Socks.STAT_UPLOAD_TOTAL]));
+        }
+        if (downloadText != null) {
+            downloadText.setText(formatBytes(trafficStats[Tun2Socks.STAT_DOWNLOAD_TOTAL]));
+        }
+        if (connectionsText != null) {
+            connectionsText.setText(String.valueOf(trafficStats[Tun2Socks.STAT_TCP_CONNECTIONS]
+                    + trafficStats[Tun2Socks.STAT_UDP_CONNECTIONS]));
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format(Locale.US, "%.1f %sB", bytes / Math.pow(1024, exp), "KMGTPE".charAt(exp - 1));
+    }
+
     private void updateConfigurationDisplay() {
         if (configText == null) return;
 
@@ -418,6 +589,10 @@ public class MainActivity extends AppCompatActivity {
             if (!username.isEmpty()) {
                 config.append("Username: ").append(username).append("\n");
             }
+            if ("Shadowsocks".equals(protocol)) {
+                config.append("Cipher: ").append(prefs.getString(SettingsActivity.PREF_PROXY_METHOD,
+                        Tun2Socks.ProxyConfig.DEFAULT_METHOD)).append("\n");
+            }
         } else {
             config.append("Server: Not configured\n");
         }
@@ -437,5 +612,15 @@ public class MainActivity extends AppCompatActivity {
         super.onResume();
         // Update configuration display when returning from settings
         updateConfigurationDisplay();
+        if (isVpnRunning) {
+            startStatsPolling();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // No one is looking at the counters while paused
+        stopStatsPolling();
     }
 }
\ No newline at end of file
@@ -12,11 +12,14 @@ import android.widget.EditText;
 import android.widget.RadioGroup;
 import com.google.android.material.materialswitch.MaterialSwitch;
 import android.widget.Toast;
+import android.view.View;
 import android.text.Editable;
 import android.text.TextWatcher;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.util.Arrays;
+
 public class SettingsActivity extends AppCompatActivity {
 
     private SharedPreferences sharedPreferences;
@@ -27,8 +30,11 @@ public class SettingsActivity extends AppCompatActivity {
     private EditText portEditText;
     private EditText usernameEditText;
     private EditText passwordEditText;
+    private AutoCompleteTextView methodSpinner;
+    private EditText upstreamsEditText;
     private Button saveButton;
     private com.google.android.material.textfield.TextInputLayout serverInputLayout;
+    private com.google.android.material.textfield.TextInputLayout methodInputLayout;
 
     // Network Configuration UI
     private EditText mtuEditText;
@@ -38,6 +44,8 @@ public class SettingsActivity extends AppCompatActivity {
     private MaterialSwitch ipv6Switch;
     private RadioGroup appFilterModeRadioGroup;
     private EditText excludedIpsEditText;
+    private EditText routingRulesEditText;
+    private AutoCompleteTextView logLevelSpinner;
     private Button selectAppsButton;
 
     public static final String PREF_MTU = "pref_mtu";
@@ -47,6 +55,9 @@ public class SettingsActivity extends AppCompatActivity {
     public static final String PREF_IPV6_ENABLED = "pref_ipv6_enabled";
     public static final String PREF_APP_FILTER_MODE = "pref_app_filter_mode";
     public static final String PREF_EXCLUDED_IPS = "pref_excluded_ips";
+    public static final String PREF_ROUTING_RULES = "pref_routing_rules";
+    // Tun2Socks.LOG_* level of the engine log, applied while connected
+    public static final String PREF_LOG_LEVEL = "pref_log_level";
 
     // Proxy Configuration Keys
     public static final String PREF_PROXY_PROTOCOL = "pref_proxy_protocol";
@@ -54,6 +65,10 @@ public class SettingsActivity extends AppCompatActivity {
     public static final String PREF_PROXY_PORT = "pref_proxy_port";
     public static final String PREF_PROXY_USERNAME = "pref_proxy_username";
     public static final String PREF_PROXY_PASSWORD = "pref_proxy_password";
+    // Shadowsocks cipher
+    public static final String PREF_PROXY_METHOD = "pref_proxy_method";
+    // Extra proxy URLs grouped with the server above, one per line
+    public static final String PREF_PROXY_UPSTREAMS = "pref_proxy_upstreams";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,6 +84,9 @@ public class SettingsActivity extends AppCompatActivity {
         portEditText = findViewById(R.id.edit_text_port);
         usernameEditText = findViewById(R.id.edit_text_username);
         passwordEditText = findViewById(R.id.edit_text_password);
+        methodSpinner = findViewById(R.id.spinner_method);
+        methodInputLayout = findViewById(R.id.layout_method);
+        upstreamsEditText = findViewById(R.id.edit_text_upstreams);
         saveButton = findViewById(R.id.button_save_settings);
 
         // Setup protocol dropdown
@@ -77,6 +95,11 @@ public class SettingsActivity extends AppCompatActivity {
             android.R.layout.simple_dropdown_item_1line, protocols);
         protocolSpinner.setAdapter(adapter);
 
+        // Setup Shadowsocks cipher dropdown
+        String[] methods = getResources().getStringArray(R.array.shadowsocks_methods);
+        methodSpinner.setAdapter(new ArrayAdapter<>(this,
+            android.R.layout.simple_dropdown_item_1line, methods));
+
         // Initialize Network Configuration UI
         mtuEditText = findViewById(R.id.edit_text_mtu);
         dnsV4EditText = findViewById(R.id.edit_text_dns_v4);
@@ -85,6 +108,12 @@ public class SettingsActivity extends AppCompatActivity {
         ipv6Switch = findViewById(R.id.switch_ipv6);
         appFilterModeRadioGroup = findViewById(R.id.radio_group_app_filter_mode);
         excludedIpsEditText = findViewById(R.id.edit_text_excluded_ips);
+        routingRulesEditText = findViewById(R.id.edit_text_routing_rules);
+
+        // Setup engine log level dropdown
+        logLevelSpinner = findViewById(R.id.spinner_log_level);
+        logLevelSpinner.setAdapter(new ArrayAdapter<>(this,
+            android.R.layout.simple_dropdown_item_1line, getResources().getStringArray(R.array.log_levels)));
 
         selectAppsButton = findViewById(R.id.button_select_apps);
         selectAppsButton.setOnClickListener(v -> {
@@ -133,6 +162,8 @@ public class SettingsActivity extends AppCompatActivity {
         portEditText.setText(sharedPreferences.getString(PREF_PROXY_PORT, ""));
         usernameEditText.setText(sharedPreferences.getString(PREF_PROXY_USERNAME, ""));
         passwordEditText.setText(sharedPreferences.getString(PREF_PROXY_PASSWORD, ""));
+        methodSpinner.setText(sharedPreferences.getString(PREF_PROXY_METHOD, Tun2Socks.ProxyConfig.DEFAULT_METHOD), false);
+        upstreamsEditText.setText(sharedPreferences.getString(PREF_PROXY_UPSTREAMS, ""));
 
         // Load Network Configuration
         mtuEditText.setText(sharedPreferences.getString(PREF_MTU, "1500"));
@@ -142,6 +173,10 @@ public class SettingsActivity extends AppCompatActivity {
         ipv6Switch.setChecked(sharedPreferences.getBoolean(PREF_IPV6_ENABLED, false));
         appFilterModeRadioGroup.check(sharedPreferences.getInt(PREF_APP_FILTER_MODE, R.id.radio_button_exclude_mode));
         excludedIpsEditText.setText(sharedPreferences.getString(PREF_EXCLUDED_IPS, ""));
+        routingRulesEditText.setText(sharedPreferences.getString(PREF_ROUTING_RULES, ""));
+        String[] levels = getResources().getStringArray(R.array.log_levels);
+        int level = sharedPreferences.getInt(PREF_LOG_LEVEL, Tun2Socks.LOG_INFO);
+        logLevelSpinner.setText(levels[Math.max(0, Math.min(level, levels.length - 1))], false);
     }
 
     private void saveSettings() {
@@ -154,6 +189,8 @@ public class SettingsActivity extends AppCompatActivity {
         editor.putString(PREF_PROXY_PORT, portEditText.getText().toString());
         editor.putString(PREF_PROXY_USERNAME, usernameEditText.getText().toString());
         editor.putString(PREF_PROXY_PASSWORD, passwordEditText.getText().toString());
+        editor.putString(PREF_PROXY_METHOD, methodSpinner.getText().toString());
+        editor.putString(PREF_PROXY_UPSTREAMS, upstreamsEditText.getText().toString());
 
         // Save Network Configuration
         editor.putString(PREF_MTU, mtuEditText.getText().toString());
@@ -163,16 +200,25 @@ public class SettingsActivity extends AppCompatActivity {
         editor.putBoolean(PREF_IPV6_ENABLED, ipv6Switch.isChecked());
         editor.putInt(PREF_APP_FILTER_MODE, appFilterModeRadioGroup.getCheckedRadioButtonId());
         editor.putString(PREF_EXCLUDED_IPS, excludedIpsEditText.getText().toString());
+        editor.putString(PREF_ROUTING_RULES, routingRulesEditText.getText().toString());
+        int level = Arrays.asList(getResources().getStringArray(R.array.log_levels))
+                .indexOf(logLevelSpinner.getText().toString());
+        if (level >= 0) {
+            editor.putInt(PREF_LOG_LEVEL, level);
+        }
         editor.commit();
     }
 
     private void handleProtocolChange(String protocol) {
         // Enable/disable authentication fields based on protocol
         boolean needsAuth = protocol.equals("SOCKS5") || protocol.equals("HTTP");
+        boolean shadowsocks = protocol.equals("Shadowsocks");
         boolean needsServer = !"Direct".equals(protocol) && !"Reject".equals(protocol);
 
         usernameEditText.setEnabled(needsAuth);
-        passwordEditText.setEnabled(needsAuth);
+        // Shadowsocks needs no username, but its password or 2022 key
+        passwordEditText.setEnabled(needsAuth || shadowsocks);
+        methodInputLayout.setVisibility(shadowsocks ? View.VISIBLE : View.GONE);
         serverEditText.setEnabled(needsServer);
         portEditText.setEnabled(needsServer);
 
@@ -212,7 +258,7 @@ public class SettingsActivity extends AppCompatActivity {
                 serverInputLayout.setHint("SOCKS4 proxy server (supports USERID auth only)");
                 break;
             case "Shadowsocks":
-                serverInputLayout.setHint("Shadowsocks server (format: ss://method:password@host:port)");
+                serverInputLayout.setHint("Shadowsocks server (2022 ciphers take the base64 key as password)");
                 break;
             case "Relay":
                 serverInputLayout.setHint("Relay proxy server (supports UDP/TCP relay)");
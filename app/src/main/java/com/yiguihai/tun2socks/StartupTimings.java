@@ -0,0 +1,54 @@
+package com.yiguihai.tun2socks;
+
+/**
+ * Records how long each stage of a VPN start took, from the moment the
+ * service was asked to start. Stages are marked from different threads,
+ * so marks are volatile writes and a stage is only ever marked once.
+ */
+public final class StartupTimings {
+
+    public static final int STAGE_PREFS = 0;
+    public static final int STAGE_ESTABLISH = 1;
+    public static final int STAGE_NATIVE = 2;
+    public static final int STAGE_FIRST_PACKET = 3;
+    private static final String[] STAGE_NAMES = {"prefs", "establish", "native init", "first packet"};
+
+    private final long origin = System.nanoTime();
+    private final long[] marks = new long[STAGE_NAMES.length];
+    private volatile int lastMarked = -1;
+
+    public void mark(int stage) {
+        if (marks[stage] != 0) return;
+        marks[stage] = System.nanoTime() - origin;
+        // The volatile write publishes the mark to the reading thread
+        lastMarked = Math.max(lastMarked, stage);
+    }
+
+    /** Milliseconds from the start of the service to the end of stage, or -1. */
+    public long elapsedMillis(int stage) {
+        if (stage > lastMarked || marks[stage] == 0) return -1;
+        return marks[stage] / 1_000_000;
+    }
+
+    /**
+     * One line such as "prefs 2 ms, establish 41 ms, native init 96 ms,
+     * first packet 130 ms, connected after 269 ms". Each stage shows its
+     * own duration, stages that were not reached are left out.
+     */
+    public String summary() {
+        int last = lastMarked;
+        StringBuilder sb = new StringBuilder();
+        long previous = 0;
+        for (int stage = 0; stage <= last; stage++) {
+            if (marks[stage] == 0) continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(STAGE_NAMES[stage]).append(' ')
+              .append((marks[stage] - previous) / 1_000_000).append(" ms");
+            previous = marks[stage];
+        }
+        if (sb.length() > 0) {
+            sb.append(", connected after ").append(previous / 1_000_000).append(" ms");
+        }
+        return sb.toString();
+    }
+}
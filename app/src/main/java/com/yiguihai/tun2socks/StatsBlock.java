@@ -0,0 +1,169 @@
+package com.yiguihai.tun2socks;
+
+import android.os.Build;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-layout stats block shared with the native engine.
+ *
+ * The engine publishes counters and a ring of per-second throughput
+ * samples into a direct buffer allocated once per session, so the UI can
+ * read them without any JNI call. The layout mirrors
+ * app/jni/bridge/statsblock.go.
+ */
+public final class StatsBlock {
+
+    /** Seconds of throughput history kept in the ring. */
+    public static final int HISTORY_SECONDS = 300;
+
+    private static final long MAGIC = 0x54535342L;
+
+    // Header slots, each one a native endian long
+    private static final int SLOT_MAGIC = 0;
+    private static final int SLOT_SEQ = 2;
+    private static final int SLOT_HEAD = 4;
+    private static final int SLOT_UPLOAD_TOTAL = 5;
+    private static final int SLOT_DOWNLOAD_TOTAL = 6;
+    private static final int SLOT_TCP_CONNECTIONS = 7;
+    private static final int SLOT_UDP_CONNECTIONS = 8;
+    private static final int HEADER_SLOTS = 16;
+
+    // Readers give up after this many torn reads and keep their old data
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    private static volatile StatsBlock active;
+
+    // Stored then loaded by loadFence() below API 33
+    private static volatile int fence;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+
+    private StatsBlock(int capacity) {
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect((HEADER_SLOTS + 2 * capacity) * 8)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Allocates the block for a new session and hands it to the engine.
+     * Returns null if the native side refused it.
+     */
+    public static StatsBlock attach() {
+        StatsBlock block = new StatsBlock(HISTORY_SECONDS);
+        if (!Tun2Socks.attachStatsBlock(block.buffer)) {
+            return null;
+        }
+        active = block;
+        return block;
+    }
+
+    /**
+     * Stops the engine from publishing. Readers holding the old block keep
+     * a valid, frozen view of it.
+     */
+    public static void detach() {
+        active = null;
+        Tun2Socks.detachStatsBlock();
+    }
+
+    /**
+     * Returns the block of the running session, or null.
+     */
+    public static StatsBlock active() {
+        return active;
+    }
+
+    private long slot(int index) {
+        return buffer.getLong(index * 8);
+    }
+
+    /**
+     * Keeps the slot reads between the two sequence reads of a snapshot.
+     * The engine writes the block from another thread without any lock,
+     * so plain reads could otherwise be reordered around the sequence
+     * check and pass a torn snapshot.
+     */
+    private static void loadFence() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            VarHandle.loadFence();
+        } else {
+            // A volatile store followed by a volatile load orders the
+            // loads before it with those after it on ART.
+            fence = 0;
+            if (fence != 0) throw new AssertionError();
+        }
+    }
+
+    /**
+     * Returns the publish sequence, which changes every time new data is
+     * written. Cheap enough to check on every frame.
+     */
+    public long sequence() {
+        return slot(SLOT_SEQ);
+    }
+
+    /**
+     * Copies the throughput history into up and down, oldest first, and
+     * returns the number of samples copied, or -1 if the block was being
+     * written and the caller should keep its previous data.
+     */
+    public int readHistory(long[] up, long[] down) {
+        if (slot(SLOT_MAGIC) != MAGIC) return -1;
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long seq = slot(SLOT_SEQ);
+            if ((seq & 1) != 0) continue;
+            loadFence();
+
+            long head = slot(SLOT_HEAD);
+            int count = (int) Math.min(Math.min(head, capacity), Math.min(up.length, down.length));
+            for (int i = 0; i < count; i++) {
+                int index = HEADER_SLOTS + (int) ((head - count + i) % capacity) * 2;
+                up[i] = slot(index);
+                down[i] = slot(index + 1);
+            }
+
+            loadFence();
+            if (slot(SLOT_SEQ) == seq) return count;
+        }
+        return -1;
+    }
+
+    /**
+     * Fills the totals, rates and connection slots of a
+     * {@link Tun2Socks#getTrafficStats(long[])} array. Returns false if no
+     * consistent snapshot was available.
+     */
+    public boolean readCounters(long[] stats) {
+        if (slot(SLOT_MAGIC) != MAGIC) return false;
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long seq = slot(SLOT_SEQ);
+            if ((seq & 1) != 0) continue;
+            loadFence();
+
+            long head = slot(SLOT_HEAD);
+            long up = 0;
+            long down = 0;
+            if (head > 0) {
+                int index = HEADER_SLOTS + (int) ((head - 1) % capacity) * 2;
+                up = slot(index);
+                down = slot(index + 1);
+            }
+            stats[Tun2Socks.STAT_UPLOAD_TOTAL] = slot(SLOT_UPLOAD_TOTAL);
+            stats[Tun2Socks.STAT_DOWNLOAD_TOTAL] = slot(SLOT_DOWNLOAD_TOTAL);
+            stats[Tun2Socks.STAT_UPLOAD_RATE] = up;
+            stats[Tun2Socks.STAT_DOWNLOAD_RATE] = down;
+            stats[Tun2Socks.STAT_TCP_CONNECTIONS] = slot(SLOT_TCP_CONNECTIONS);
+            stats[Tun2Socks.STAT_UDP_CONNECTIONS] = slot(SLOT_UDP_CONNECTIONS);
+
+            loadFence();
+            if (slot(SLOT_SEQ) == seq) return true;
+        }
+        return false;
+    }
+}
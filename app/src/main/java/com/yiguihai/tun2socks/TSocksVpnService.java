@@ -1,245 +1,232 @@
 package com.yiguihai.tun2socks;
 
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.VpnService;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
 
     private static final String TAG = "TSocksVpnService";
     public static final String ACTION_LOG_BROADCAST = "com.yiguihai.tun2socks.LOG_BROADCAST";
     public static final String EXTRA_LOG_MESSAGE = "log_message";
+    public static final String EXTRA_LOG_MESSAGES = "log_messages";
     private static final String VPN_SESSION_NAME = "TSocks VPN";
 
+    // Log lines are drained in batches, one broadcast per batch
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    private static final int LOG_DRAIN_TIMEOUT_MS = 250;
+    private static final int LOG_RECORD_HEADER = 3;
+
     private ParcelFileDescriptor tunFd;
     private Thread vpnThread;
 
+    private final ConcurrentLinkedQueue<String> pendingLogs = new ConcurrentLinkedQueue<>();
+    private volatile boolean logDraining;
+    private Thread logThread;
+
+    // Proxy settings changed while connected are applied to the running engine
+    private static final long PROXY_UPDATE_DEBOUNCE_MS = 500;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService controlExecutor = Executors.newSingleThreadExecutor();
+    // Connectivity checks run here, off the startup path
+    private final ExecutorService diagnosticsExecutor = Executors.newSingleThreadExecutor();
+    private static final int FIRST_PACKET_TIMEOUT_MS = 5000;
+    public static final String PREF_LAST_STARTUP_TIMINGS = "pref_last_startup_timings";
+    private volatile String activeProxyUrl;
+    private final Runnable proxyUpdateTask = () -> controlExecutor.execute(this::applyProxyChange);
+    private static final String RULES_FILE = "rules.txt";
+    private static final String ROUTES_CACHE_FILE = "excluded_routes.bin";
+    private static final int ROUTES_CACHE_VERSION = 1;
+    private final Runnable rulesUpdateTask = () -> controlExecutor.execute(this::applyRules);
+    private final SharedPreferences.OnSharedPreferenceChangeListener proxyPrefsListener = (prefs, key) -> {
+        if (activeProxyUrl == null) return;
+        if (SettingsActivity.PREF_LOG_LEVEL.equals(key)) {
+            controlExecutor.execute(() -> applyLogLevel(prefs));
+            return;
+        }
+        if (SettingsActivity.PREF_ROUTING_RULES.equals(key)) {
+            mainHandler.removeCallbacks(rulesUpdateTask);
+            mainHandler.postDelayed(rulesUpdateTask, PROXY_UPDATE_DEBOUNCE_MS);
+            return;
+        }
+        if (!isProxyPreference(key)) return;
+        // Settings are saved key by key, apply them once they settled
+        mainHandler.removeCallbacks(proxyUpdateTask);
+        mainHandler.postDelayed(proxyUpdateTask, PROXY_UPDATE_DEBOUNCE_MS);
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        logDraining = true;
+        logThread = new Thread(this::drainLogs, "TSocks-log");
+        logThread.start();
+
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(proxyPrefsListener);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         log("VPN service starting...");
+        StartupTimings timings = new StartupTimings();
+        vpnThread = new Thread(() -> startPipeline(timings), "TSocks-start");
+        vpnThread.start();
+        return START_STICKY;
+    }
+
+    /**
+     * Brings the VPN up as fast as possible: settings, TUN, then the engine,
+     * with the native library loading and rule writing overlapped with the
+     * TUN setup. The engine reports readiness itself, and the diagnostics
+     * run afterwards on their own thread so they never delay the tunnel.
+     */
+    private void startPipeline(StartupTimings timings) {
+        try {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            String proxyUrl = readStartUrl(prefs);
+            timings.mark(StartupTimings.STAGE_PREFS);
+
+            // None of this needs the TUN, run it while establish() blocks
+            Future<?> nativePrepared = controlExecutor.submit(() -> {
+                log("Native library test result: " + Tun2Socks.testJNI());
+                Tun2Socks.setBufferBudget(bufferBudget());
+                applyLogLevel(prefs);
+                applyRules();
+            });
+
+            tunFd = configureVpn(prefs);
+            log("VPN interface configured. TUN FD: " + tunFd.getFd());
+            timings.mark(StartupTimings.STAGE_ESTABLISH);
 
-        vpnThread = new Thread(() -> {
             try {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-                tunFd = configureVpn(prefs);
-                log("VPN interface configured. TUN FD: " + tunFd.getFd());
-
-                // Retrieve proxy configuration from settings
-                String proxyType = prefs.getString(SettingsActivity.PREF_PROXY_PROTOCOL, "SOCKS5");
-                String server = prefs.getString(SettingsActivity.PREF_PROXY_SERVER, "");
-                String portStr = prefs.getString(SettingsActivity.PREF_PROXY_PORT, "1080");
-                String username = prefs.getString(SettingsActivity.PREF_PROXY_USERNAME, "");
-                String password = prefs.getString(SettingsActivity.PREF_PROXY_PASSWORD, "");
-                String excludedRoutes = prefs.getString(SettingsActivity.PREF_EXCLUDED_IPS, "");
-
-                // Log configuration for debugging
-                log("Configuration loaded:");
-                log("  Protocol: " + proxyType);
-                log("  Server: '" + server + "'");
-                log("  Port: " + portStr);
-                log("  Username: '" + username + "'");
-                log("  Password: " + (password.isEmpty() ? "empty" : "set"));
-                log("  ExcludedRoutes: '" + excludedRoutes + "'");
-
-                // Validate configuration - skip for Direct and Reject protocols
-                if (!proxyType.equals("Direct") && !proxyType.equals("Reject")) {
-                    if (server.isEmpty() || server.trim().isEmpty()) {
-                        log("ERROR: Proxy server not configured");
-                        log("SOLUTION: Please open Settings and configure proxy server");
-
-                        // Send broadcast to MainActivity to show configuration needed dialog
-                        Intent broadcastIntent = new Intent("com.yiguihai.tun2socks.CONFIGURATION_NEEDED");
-                        broadcastIntent.putExtra("message", "Proxy server not configured. Please configure proxy settings first.");
-                        sendBroadcast(broadcastIntent);
-
-                        throw new Exception("Proxy server not configured in settings. Please configure proxy server first.");
-                    }
-                }
+                nativePrepared.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                log("ERROR: Native library not available or incompatible: " + cause.getMessage());
+                throw new Exception("Native library error: " + cause.getMessage());
+            }
 
-                // Test native library availability before starting
-                try {
-                    log("Testing native library connectivity...");
-                    int testResult = Tun2Socks.testJNI();
-                    log("Native library test result: " + testResult);
-                } catch (UnsatisfiedLinkError e) {
-                    log("ERROR: Native library not available or incompatible: " + e.getMessage());
-                    throw new Exception("Native library error: " + e.getMessage());
-                } catch (Exception e) {
-                    log("WARNING: Native library test failed, continuing: " + e.getMessage());
+            try {
+                Tun2Socks.StartWithUrl(tunFd.getFd(), proxyUrl);
+                if (Tun2Socks.awaitReady(0) == Tun2Socks.READY_NONE) {
+                    throw new Exception("engine did not start, see the log above");
                 }
+            } catch (UnsatisfiedLinkError e) {
+                log("FATAL: Native library linking error: " + e.getMessage());
+                throw new Exception("Native library linking failed: " + e.getMessage());
+            }
+            activeProxyUrl = proxyUrl;
+            timings.mark(StartupTimings.STAGE_NATIVE);
 
-                // Add a small delay to ensure VPN interface is fully ready
-                Thread.sleep(100);
-
-                // Start the native tun2socks process based on protocol with enhanced error handling
-                try {
-                    log("DEBUG: Starting native tun2socks with TUN FD: " + tunFd.getFd());
-                    log("DEBUG: Tun2Socks library loaded and available");
-
-                    if (proxyType.equalsIgnoreCase("Direct")) {
-                        log("Starting tun2socks with Direct connection (no proxy)");
-                        log("DEBUG: Using URL: direct://");
-                        log("DEBUG: Alternative direct URL would be: direct://0.0.0.0/0");
-
-                        // Try direct:// format first
-                        try {
-                            Tun2Socks.StartWithUrl(tunFd.getFd(), "direct://");
-                            log("DEBUG: direct:// URL accepted by native library");
-                        } catch (Exception e) {
-                            log("WARNING: direct:// URL failed: " + e.getMessage());
-                            log("This might indicate the native library doesn't support this URL format");
-                            throw e;
-                        }
-                    } else if (proxyType.equalsIgnoreCase("Reject")) {
-                        log("Starting tun2socks with Reject mode (blocking all connections)");
-                        log("DEBUG: Using URL: reject://");
-                        Tun2Socks.StartWithUrl(tunFd.getFd(), "reject://");
-                    } else {
-                        // Enhanced proxy parameter validation
-                        log("=== PROXY CONFIGURATION VALIDATION ===");
-                        log("Protocol: " + proxyType);
-                        log("Server: '" + server + "'");
-                        log("Port: '" + portStr + "'");
-                        log("Username: '" + username + "'");
-                        log("Password length: " + (password != null ? password.length() : 0));
-
-                        int port = 0;
-                        try {
-                            port = Integer.parseInt(portStr);
-                            if (port <= 0 || port > 65535) {
-                                log("ERROR: Invalid proxy port: " + port);
-                                throw new Exception("Invalid proxy port: " + port);
-                            }
-                        } catch (NumberFormatException e) {
-                            log("ERROR: Invalid port format: " + portStr);
-                            throw new Exception("Invalid port format: " + portStr);
-                        }
-
-                        // Validate server address
-                        if (server == null || server.trim().isEmpty()) {
-                            log("ERROR: Proxy server is empty or null");
-                            throw new Exception("Proxy server is required");
-                        }
-
-                        // Sanitize parameters for native library
-                        String cleanServer = server.trim();
-                        String cleanUsername = username != null ? username.trim() : "";
-                        String cleanPassword = password != null ? password.trim() : "";
-
-                        log("=== SANITIZED PARAMETERS ===");
-                        log("Clean server: '" + cleanServer + "'");
-                        log("Clean port: " + port);
-                        log("Clean username: '" + cleanUsername + "'");
-                        log("Has password: " + !cleanPassword.isEmpty());
-
-                        log(String.format("Starting tun2socks with %s://%s:%d (user: %s)",
-                            proxyType.toLowerCase(), cleanServer, port, cleanUsername.isEmpty() ? "none" : cleanUsername));
-                        log("DEBUG: Using traditional Start method with parameters");
-
-                        // Add additional safety check before native call
-                        try {
-                            log("DEBUG: About to call native Tun2Socks.Start() method");
-                            log("DEBUG: Parameters - FD: " + tunFd.getFd() + ", Type: " + proxyType +
-                                ", Server: " + cleanServer + ", Port: " + port +
-                                ", User: " + cleanUsername + ", PassLen: " + cleanPassword.length());
-
-                            Tun2Socks.Start(tunFd.getFd(), proxyType, cleanServer, port, cleanUsername, cleanPassword);
-                            log("DEBUG: Native Tun2Socks.Start() completed successfully");
-
-                        } catch (UnsatisfiedLinkError e) {
-                            log("FATAL: Native library error during SOCKS5 start: " + e.getMessage());
-                            log("This may indicate parameter format incompatibility");
-                            throw new Exception("Native library SOCKS5 error: " + e.getMessage());
-                        } catch (Exception e) {
-                            log("ERROR: SOCKS5 native start failed: " + e.getMessage());
-                            throw new Exception("SOCKS5 start failed: " + e.getMessage());
-                        }
-                    }
-
-                    // Add delay to verify native startup and test connectivity
-                    Thread.sleep(500);
+            // Share live counters with the UI for the rest of the session
+            try {
+                if (StatsBlock.attach() == null) {
+                    log("WARNING: Native engine refused the stats block");
+                }
+            } catch (UnsatisfiedLinkError e) {
+                log("WARNING: Stats block not supported by native library: " + e.getMessage());
+            }
+            log("Native tun2socks started successfully");
 
-                    // Test network connectivity after startup
-                    testNetworkConnectivity();
+            diagnosticsExecutor.execute(() -> runDiagnostics(timings));
 
-                    // Get connection statistics from native library
-                    try {
-                        int stats = Tun2Socks.getStats();
-                        log("Native library stats: " + stats);
-
-                        // Test if native library is actually processing data
-                        if (stats == 0) {
-                            log("WARNING: No traffic processed yet, this might indicate a routing issue");
-
-                            // Add more detailed diagnostics
-                            new Thread(() -> {
-                                try {
-                                    Thread.sleep(1000); // Wait 1 second
-                                    int stats2 = Tun2Socks.getStats();
-                                    log("Stats after 1 second: " + stats2);
-
-                                    if (stats2 == 0) {
-                                        log("DIAGNOSIS: No traffic is flowing through the VPN tunnel");
-                                        log("This suggests a routing or configuration problem");
-
-                                        // Test network interface status
-                                        try {
-                                            java.net.NetworkInterface tunInterface = java.net.NetworkInterface.getByName("tun0");
-                                            if (tunInterface != null) {
-                                                log("TUN interface found: " + tunInterface.toString());
-                                                log("TUN interface is up: " + tunInterface.isUp());
-                                            } else {
-                                                log("WARNING: TUN interface not found in NetworkInterface list");
-                                            }
-                                        } catch (Exception e) {
-                                            log("Could not check TUN interface: " + e.getMessage());
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    log("Error during stats monitoring: " + e.getMessage());
-                                }
-                            }).start();
-                        }
-                    } catch (Exception e) {
-                        log("WARNING: Could not get stats from native library: " + e.getMessage());
-                    }
+        } catch (Exception e) {
+            Log.e(TAG, "VPN thread error", e);
+            log("Error: " + e.getMessage());
 
-                    log("Native tun2socks started successfully");
+            // Send error broadcast to UI
+            Intent errorIntent = new Intent("com.yiguihai.tun2socks.VPN_ERROR");
+            errorIntent.putExtra("error", e.getMessage());
+            sendBroadcast(errorIntent);
 
-                } catch (UnsatisfiedLinkError e) {
-                    log("FATAL: Native library linking error: " + e.getMessage());
-                    throw new Exception("Native library linking failed: " + e.getMessage());
-                } catch (Exception e) {
-                    log("ERROR: Failed to start native tun2socks: " + e.getMessage());
-                    throw new Exception("Native startup failed: " + e.getMessage());
-                }
+            stopSelf(); // Stop service if startup fails
+        }
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "VPN thread error", e);
-                log("Error: " + e.getMessage());
+    /**
+     * Builds the engine URL from settings. Throws, and asks the UI to open
+     * the settings, if the proxy is not configured.
+     */
+    private String readStartUrl(SharedPreferences prefs) throws Exception {
+        Tun2Socks.ProxyConfig config = readProxyConfig(prefs);
+        if (config == null) {
+            log("ERROR: Proxy server not configured");
+            log("SOLUTION: Please open Settings and configure proxy server");
+
+            // Send broadcast to MainActivity to show configuration needed dialog
+            Intent broadcastIntent = new Intent("com.yiguihai.tun2socks.CONFIGURATION_NEEDED");
+            broadcastIntent.putExtra("message", "Proxy server not configured. Please configure proxy settings first.");
+            sendBroadcast(broadcastIntent);
+
+            throw new Exception("Proxy server not configured in settings. Please configure proxy server first.");
+        }
 
-                // Send error broadcast to UI
-                Intent errorIntent = new Intent("com.yiguihai.tun2socks.VPN_ERROR");
-                errorIntent.putExtra("error", e.getMessage());
-                sendBroadcast(errorIntent);
+        List<Tun2Socks.ProxyConfig> upstreams = readUpstreams(prefs, config);
+        log("Starting tun2socks with " + config.protocol.getDisplayName()
+                + (config.server.isEmpty() ? "" : " " + config.server + ":" + config.port)
+                + (upstreams.size() > 1 ? " and " + (upstreams.size() - 1) + " more upstreams" : ""));
+        return Tun2Socks.groupUrl(upstreams);
+    }
 
-                stopSelf(); // Stop service if startup fails
+    /**
+     * Runs after the tunnel is up: waits for the first packet, records the
+     * startup timings, then checks connectivity.
+     */
+    private void runDiagnostics(StartupTimings timings) {
+        try {
+            if (Tun2Socks.awaitReady(FIRST_PACKET_TIMEOUT_MS) == Tun2Socks.READY_TRAFFIC) {
+                timings.mark(StartupTimings.STAGE_FIRST_PACKET);
+            } else {
+                log("WARNING: No packet reached the tunnel within " + FIRST_PACKET_TIMEOUT_MS + " ms");
             }
-        });
+        } catch (UnsatisfiedLinkError e) {
+            log("WARNING: Readiness signal not supported by native library: " + e.getMessage());
+        }
 
-        vpnThread.start();
-        return START_STICKY;
+        String summary = timings.summary();
+        log("Startup timings: " + summary);
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putString(PREF_LAST_STARTUP_TIMINGS, summary)
+                .apply();
+
+        testNetworkConnectivity();
     }
 
     private ParcelFileDescriptor configureVpn(SharedPreferences prefs) throws Exception {
@@ -264,7 +251,7 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
 
         if (ipv4Enabled) {
             builder.addAddress("10.0.8.1", 24);
-            builder.addRoute("0.0.0.0", 0); // Default route for IPv4
+            // Routes are added below, minus the excluded addresses
             if (!dnsV4.isEmpty()) {
                 builder.addDnsServer(dnsV4);
                 log("DEBUG: Added IPv4 DNS server: " + dnsV4);
@@ -286,9 +273,7 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
 
         // Handle excluded routes automatically
         String excludedRoutes = prefs.getString(SettingsActivity.PREF_EXCLUDED_IPS, "");
-        if (!excludedRoutes.isEmpty()) {
-            processExcludedRoutes(builder, excludedRoutes, ipv4Enabled, ipv6Enabled);
-        }
+        addRoutes(builder, excludedRoutes, ipv4Enabled, ipv6Enabled);
 
         // App filtering
         int appFilterMode = prefs.getInt(SettingsActivity.PREF_APP_FILTER_MODE, R.id.radio_button_exclude_mode);
@@ -345,72 +330,228 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
     }
 
     /**
-     * Process excluded routes and add them to VPN builder
-     * Automatically detects IPv4/IPv6 and adds appropriate subnet masks
+     * Routes everything of the enabled families into the VPN except the
+     * excluded addresses. The exclusion list is compiled into the minimal
+     * complementary set of CIDRs, which is cached on disk and reused as
+     * long as the list and the enabled families do not change.
      */
-    private void processExcludedRoutes(Builder builder, String excludedRoutes, boolean ipv4Enabled, boolean ipv6Enabled) {
-        String[] routes = excludedRoutes.split(",");
+    private void addRoutes(Builder builder, String excludedRoutes, boolean ipv4Enabled, boolean ipv6Enabled) {
+        if (excludedRoutes.trim().isEmpty()) {
+            if (ipv4Enabled) builder.addRoute("0.0.0.0", 0);
+            if (ipv6Enabled) builder.addRoute("::", 0);
+            return;
+        }
 
-        for (String route : routes) {
-            String cleanedRoute = route.trim();
-            if (cleanedRoute.isEmpty()) continue;
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        String cacheKey = ROUTES_CACHE_VERSION + ":" + ipv4Enabled + ":" + ipv6Enabled + ":" + excludedRoutes;
+        byte[] digest = sha256(cacheKey);
+        File cacheFile = new File(getCacheDir(), ROUTES_CACHE_FILE);
+
+        CidrSet.Routes routes = readRoutesCache(cacheFile, digest);
+        boolean cached = routes != null;
+        if (!cached) {
+            CidrSet excluded = CidrSet.parse(excludedRoutes);
+            if (excluded.invalidCount() > 0) {
+                log("Warning: skipped " + excluded.invalidCount() + " invalid excluded routes, first: "
+                        + excluded.firstInvalid());
+            }
+            routes = excluded.complement(ipv4Enabled, ipv6Enabled);
+            writeRoutesCache(cacheFile, digest, routes);
+        }
 
-            try {
-                if (isIPv4Address(cleanedRoute)) {
-                    if (!ipv4Enabled) continue;
-
-                    if (cleanedRoute.contains("/")) {
-                        // Already has CIDR notation
-                        builder.addRoute(cleanedRoute.split("/")[0], Integer.parseInt(cleanedRoute.split("/")[1]));
-                    } else {
-                        // Single IP, add /32 mask
-                        builder.addRoute(cleanedRoute, 32);
-                    }
-                    log("Added excluded IPv4 route: " + cleanedRoute);
-
-                } else if (isIPv6Address(cleanedRoute)) {
-                    if (!ipv6Enabled) continue;
-
-                    if (cleanedRoute.contains("/")) {
-                        // Already has CIDR notation
-                        String[] parts = cleanedRoute.split("/");
-                        builder.addRoute(parts[0], Integer.parseInt(parts[1]));
-                    } else {
-                        // Single IP, add /128 mask
-                        builder.addRoute(cleanedRoute, 128);
-                    }
-                    log("Added excluded IPv6 route: " + cleanedRoute);
+        try {
+            routes.forEach(builder::addRoute);
+        } catch (Exception e) {
+            // Never leave the tunnel without routes, fall back to the defaults
+            Log.e(TAG, "Failed to add complement routes", e);
+            log("Warning: excluded routes not applied: " + e.getMessage());
+            if (ipv4Enabled) builder.addRoute("0.0.0.0", 0);
+            if (ipv6Enabled) builder.addRoute("::", 0);
+            return;
+        }
+        log("Excluded routes applied as " + routes.size() + " routes"
+                + (cached ? " (cached)" : "") + " in "
+                + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1_000_000 + " ms");
+    }
 
-                } else {
-                    log("Warning: Invalid route format, skipping: " + cleanedRoute);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to process excluded route: " + cleanedRoute, e);
-                log("Warning: Invalid route format, skipping: " + cleanedRoute);
+    private static CidrSet.Routes readRoutesCache(File file, byte[] digest) {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] stored = new byte[digest.length];
+            in.readFully(stored);
+            if (!Arrays.equals(stored, digest)) return null;
+            return CidrSet.Routes.readFrom(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable routes cache", e);
+            return null;
+        }
+    }
+
+    private static void writeRoutesCache(File file, byte[] digest, CidrSet.Routes routes) {
+        // Write aside and rename so a crash never leaves a truncated cache
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(digest);
+            routes.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write routes cache", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Passes the engine log level chosen in the settings to the native side,
+     * which drops the lines below it before formatting them.
+     */
+    private static void applyLogLevel(SharedPreferences prefs) {
+        int level = prefs.getInt(SettingsActivity.PREF_LOG_LEVEL, Tun2Socks.LOG_INFO);
+        Tun2Socks.setLogLevel(Math.max(Tun2Socks.LOG_DEBUG, Math.min(level, Tun2Socks.LOG_SILENT)));
+    }
+
+    private static boolean isProxyPreference(String key) {
+        return SettingsActivity.PREF_PROXY_PROTOCOL.equals(key)
+                || SettingsActivity.PREF_PROXY_SERVER.equals(key)
+                || SettingsActivity.PREF_PROXY_PORT.equals(key)
+                || SettingsActivity.PREF_PROXY_USERNAME.equals(key)
+                || SettingsActivity.PREF_PROXY_PASSWORD.equals(key)
+                || SettingsActivity.PREF_PROXY_METHOD.equals(key)
+                || SettingsActivity.PREF_PROXY_UPSTREAMS.equals(key);
+    }
+
+    /**
+     * Returns config followed by the extra upstreams it is grouped with.
+     * Direct and Reject are not grouped, they never fail over.
+     */
+    private static List<Tun2Socks.ProxyConfig> readUpstreams(SharedPreferences prefs, Tun2Socks.ProxyConfig config) {
+        List<Tun2Socks.ProxyConfig> upstreams = new ArrayList<>();
+        upstreams.add(config);
+        if (config.protocol != Tun2Socks.ProxyProtocol.DIRECT && config.protocol != Tun2Socks.ProxyProtocol.REJECT) {
+            addExtraUpstreams(prefs, upstreams);
+        }
+        return upstreams;
+    }
+
+    /**
+     * Appends the valid extra upstreams from settings to {@code upstreams}.
+     * Lines that do not parse are skipped.
+     */
+    private static void addExtraUpstreams(SharedPreferences prefs, List<Tun2Socks.ProxyConfig> upstreams) {
+        String lines = prefs.getString(SettingsActivity.PREF_PROXY_UPSTREAMS, "");
+        for (String line : lines.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            Tun2Socks.ProxyConfig config = Tun2Socks.ProxyConfig.fromUrl(line);
+            if (config != null) upstreams.add(config);
+        }
+    }
+
+    /**
+     * Builds the proxy configuration from settings, or returns null if the
+     * settings are incomplete.
+     */
+    private static Tun2Socks.ProxyConfig readProxyConfig(SharedPreferences prefs) {
+        Tun2Socks.ProxyProtocol protocol = Tun2Socks.ProxyProtocol.fromString(
+                prefs.getString(SettingsActivity.PREF_PROXY_PROTOCOL, "SOCKS5"));
+        String server = prefs.getString(SettingsActivity.PREF_PROXY_SERVER, "").trim();
+        String username = prefs.getString(SettingsActivity.PREF_PROXY_USERNAME, "").trim();
+        String password = prefs.getString(SettingsActivity.PREF_PROXY_PASSWORD, "").trim();
+
+        int port = 0;
+        if (protocol != Tun2Socks.ProxyProtocol.DIRECT && protocol != Tun2Socks.ProxyProtocol.REJECT) {
+            try {
+                port = Integer.parseInt(prefs.getString(SettingsActivity.PREF_PROXY_PORT, "1080").trim());
+            } catch (NumberFormatException e) {
+                return null;
             }
+            if (server.isEmpty() || port <= 0 || port > 65535) return null;
         }
+        Tun2Socks.ProxyConfig config = new Tun2Socks.ProxyConfig(protocol, server, port, username, password);
+        String method = prefs.getString(SettingsActivity.PREF_PROXY_METHOD, "").trim();
+        if (!method.isEmpty()) config.method = method;
+        return config;
     }
 
     /**
-     * Check if string is IPv4 address
+     * Runs on the control executor: swaps the upstream of the running engine
+     * without touching the TUN interface.
      */
-    private boolean isIPv4Address(String address) {
-        return address.matches("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$") ||
-               address.matches("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\/\\d{1,2}$");
+    private void applyProxyChange() {
+        if (activeProxyUrl == null) return;
+
+        Tun2Socks.ProxyConfig config = readProxyConfig(PreferenceManager.getDefaultSharedPreferences(this));
+        if (config == null) {
+            log("Proxy settings incomplete, keeping the current proxy");
+            return;
+        }
+        List<Tun2Socks.ProxyConfig> upstreams = readUpstreams(PreferenceManager.getDefaultSharedPreferences(this), config);
+        String proxyUrl = Tun2Socks.groupUrl(upstreams);
+        if (proxyUrl.equals(activeProxyUrl)) return;
+
+        try {
+            if (Tun2Socks.updateProxy(proxyUrl)) {
+                activeProxyUrl = proxyUrl;
+                log("Switched proxy to " + config.protocol.getDisplayName()
+                        + (config.server.isEmpty() ? "" : " " + config.server + ":" + config.port)
+                        + (upstreams.size() > 1 ? " and " + (upstreams.size() - 1) + " more" : ""));
+            } else {
+                log("WARNING: Proxy switch rejected, keeping the current proxy");
+            }
+        } catch (UnsatisfiedLinkError e) {
+            log("WARNING: Proxy switching not supported by native library: " + e.getMessage());
+        }
     }
 
     /**
-     * Check if string is IPv6 address
+     * Writes the routing rules from settings to a file and hands it to the
+     * engine. Rule sets can be large, so they go through a file rather than
+     * a JNI string. No rules turns routing off.
      */
-    private boolean isIPv6Address(String address) {
-        // Basic IPv6 pattern - simplified version for common cases
-        return address.matches("^[0-9a-fA-F:]+(/\\d{1,3})?$") &&
-               address.contains(":") &&
-               !address.matches(".*\\..*"); // Not IPv4
+    private void applyRules() {
+        String rules = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(SettingsActivity.PREF_ROUTING_RULES, "").trim();
+        String path = "";
+        if (!rules.isEmpty()) {
+            File file = new File(getFilesDir(), RULES_FILE);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                writer.write(rules);
+            } catch (IOException e) {
+                log("WARNING: Failed to write routing rules: " + e.getMessage());
+                return;
+            }
+            path = file.getAbsolutePath();
+        }
+
+        try {
+            if (Tun2Socks.setRules(path)) {
+                log(path.isEmpty() ? "Routing rules disabled" : "Routing rules loaded");
+            } else {
+                log("WARNING: Routing rules rejected, keeping the previous ones");
+            }
+        } catch (UnsatisfiedLinkError e) {
+            log("WARNING: Routing rules not supported by native library: " + e.getMessage());
+        }
     }
 
     private void stopVpn() {
         log("Stopping VPN...");
+        activeProxyUrl = null;
+        mainHandler.removeCallbacks(proxyUpdateTask);
+        mainHandler.removeCallbacks(rulesUpdateTask);
+        try {
+            StatsBlock.detach();
+        } catch (UnsatisfiedLinkError e) {
+            log("WARNING: Native library error while detaching stats: " + e.getMessage());
+        }
         try {
             // Try to stop native process with enhanced error handling
             Tun2Socks.Stop(); // Call JNI to stop the native process
@@ -432,6 +573,30 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
         }
     }
 
+    /**
+     * Sizes the memory relays may take to grow their buffers from the heap
+     * the system grants this app, tighter on low-RAM devices.
+     */
+    private long bufferBudget() {
+        ActivityManager am = getSystemService(ActivityManager.class);
+        long heap = (long) am.getMemoryClass() * 1024 * 1024;
+        return am.isLowRamDevice() ? heap / 16 : heap / 8;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (tunFd == null) return;
+        // Returning the heap to the system can take a while, keep it off the main thread
+        controlExecutor.execute(() -> {
+            try {
+                Tun2Socks.trimMemory(level);
+            } catch (UnsatisfiedLinkError e) {
+                Log.w(TAG, "Memory trimming not supported by native library", e);
+            }
+        });
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -439,11 +604,23 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
         if (vpnThread != null) {
             vpnThread.interrupt();
         }
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(proxyPrefsListener);
         stopVpn();
+        controlExecutor.shutdown();
+        diagnosticsExecutor.shutdownNow();
+
+        // The drain thread flushes what is left and exits within one timeout
+        logDraining = false;
+        if (logThread != null) {
+            logThread.interrupt();
+            logThread = null;
+        }
     }
 
     /**
-     * Test network connectivity after VPN startup
+     * Test network connectivity after VPN startup. Runs on the diagnostics
+     * executor, the checks go one after another.
      */
     private void testNetworkConnectivity() {
         log("=== Testing Network Connectivity ===");
@@ -486,67 +663,61 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
             }
 
             // Test simple TCP connection to google.com on port 443
-            new Thread(() -> {
-                try {
-                    log("Testing TCP connection to google.com:443...");
-                    java.net.Socket socket = new java.net.Socket();
-                    socket.connect(new java.net.InetSocketAddress("google.com", 443), 5000);
-                    socket.close();
-                    log("TCP connection to google.com:443: SUCCESS");
-                } catch (Exception e) {
-                    log("ERROR: TCP connection to google.com:443 failed: " + e.getMessage());
-                }
-            }).start();
+            try {
+                log("Testing TCP connection to google.com:443...");
+                java.net.Socket socket = new java.net.Socket();
+                socket.connect(new java.net.InetSocketAddress("google.com", 443), 5000);
+                socket.close();
+                log("TCP connection to google.com:443: SUCCESS");
+            } catch (Exception e) {
+                log("ERROR: TCP connection to google.com:443 failed: " + e.getMessage());
+            }
 
             // Test alternative connectivity to a simple service
-            new Thread(() -> {
-                try {
-                    log("Testing connectivity to http://example.com...");
-                    URL url = new URL("http://example.com");
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setConnectTimeout(3000);
-                    conn.setReadTimeout(3000);
-                    conn.setRequestMethod("GET");
-
-                    int responseCode = conn.getResponseCode();
-                    log("example.com response code: " + responseCode);
-                    if (responseCode == 200) {
-                        log("example.com connectivity: SUCCESS");
-                    }
-                    conn.disconnect();
-                } catch (Exception e) {
-                    log("ERROR: example.com connectivity failed: " + e.getMessage());
-                }
-            }).start();
-
-        } catch (Exception e) {
-            log("ERROR: DNS resolution failed: " + e.getMessage());
-        }
-
-        // Test HTTPS connectivity (in a separate thread to avoid blocking)
-        new Thread(() -> {
             try {
-                log("Testing HTTPS connectivity to https://httpbin.org/ip...");
-                URL url = new URL("https://httpbin.org/ip");
+                log("Testing connectivity to http://example.com...");
+                URL url = new URL("http://example.com");
                 HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(5000);
+                conn.setConnectTimeout(3000);
+                conn.setReadTimeout(3000);
                 conn.setRequestMethod("GET");
 
                 int responseCode = conn.getResponseCode();
-                log("HTTPS response code: " + responseCode);
-
+                log("example.com response code: " + responseCode);
                 if (responseCode == 200) {
-                    String response = new String(conn.getInputStream().readAllBytes());
-                    log("HTTPS response: " + response);
-                } else {
-                    log("HTTPS request failed with code: " + responseCode);
+                    log("example.com connectivity: SUCCESS");
                 }
                 conn.disconnect();
             } catch (Exception e) {
-                log("ERROR: HTTPS connectivity test failed: " + e.getMessage());
+                log("ERROR: example.com connectivity failed: " + e.getMessage());
             }
-        }).start();
+
+        } catch (Exception e) {
+            log("ERROR: DNS resolution failed: " + e.getMessage());
+        }
+
+        // Test HTTPS connectivity
+        try {
+            log("Testing HTTPS connectivity to https://httpbin.org/ip...");
+            URL url = new URL("https://httpbin.org/ip");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(5000);
+            conn.setRequestMethod("GET");
+
+            int responseCode = conn.getResponseCode();
+            log("HTTPS response code: " + responseCode);
+
+            if (responseCode == 200) {
+                String response = new String(conn.getInputStream().readAllBytes());
+                log("HTTPS response: " + response);
+            } else {
+                log("HTTPS request failed with code: " + responseCode);
+            }
+            conn.disconnect();
+        } catch (Exception e) {
+            log("ERROR: HTTPS connectivity test failed: " + e.getMessage());
+        }
 
         // Test basic ping functionality
         try {
@@ -566,33 +737,31 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
         }
 
         // Check if we can actually use the internet by making a real request
-        new Thread(() -> {
-            try {
-                log("Testing actual internet access...");
-
-                // Test with ipinfo.io (simple JSON service)
-                URL url = new URL("https://ipinfo.io/json");
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(5000);
-                conn.setRequestMethod("GET");
-                conn.setRequestProperty("User-Agent", "TSocks-VPN/1.0");
-
-                int responseCode = conn.getResponseCode();
-                log("ipinfo.io response code: " + responseCode);
-
-                if (responseCode == 200) {
-                    String response = new String(conn.getInputStream().readAllBytes());
-                    log("ipinfo.io response: " + response.substring(0, Math.min(100, response.length())) + "...");
-                    log("INTERNET ACCESS: SUCCESSFUL");
-                } else {
-                    log("INTERNET ACCESS: FAILED - Response code: " + responseCode);
-                }
-                conn.disconnect();
-            } catch (Exception e) {
-                log("ERROR: Internet access test failed: " + e.getMessage());
+        try {
+            log("Testing actual internet access...");
+
+            // Test with ipinfo.io (simple JSON service)
+            URL url = new URL("https://ipinfo.io/json");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(5000);
+            conn.setRequestMethod("GET");
+            conn.setRequestProperty("User-Agent", "TSocks-VPN/1.0");
+
+            int responseCode = conn.getResponseCode();
+            log("ipinfo.io response code: " + responseCode);
+
+            if (responseCode == 200) {
+                String response = new String(conn.getInputStream().readAllBytes());
+                log("ipinfo.io response: " + response.substring(0, Math.min(100, response.length())) + "...");
+                log("INTERNET ACCESS: SUCCESSFUL");
+            } else {
+                log("INTERNET ACCESS: FAILED - Response code: " + responseCode);
             }
-        }).start();
+            conn.disconnect();
+        } catch (Exception e) {
+            log("ERROR: Internet access test failed: " + e.getMessage());
+        }
 
         log("=== Network Connectivity Test Complete ===");
     }
@@ -600,8 +769,73 @@ public class TSocksVpnService extends VpnService implements Tun2Socks.Logger {
     @Override
     public void log(String message) {
         Log.d(TAG, "JNI_LOG: " + message);
-        Intent intent = new Intent(ACTION_LOG_BROADCAST);
-        intent.putExtra(EXTRA_LOG_MESSAGE, message);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        pendingLogs.offer(message);
+    }
+
+    /**
+     * Runs on the log thread: collects native records and service lines
+     * and hands them to the UI as one broadcast per batch.
+     */
+    private void drainLogs() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+        byte[] scratch = new byte[LOG_BUFFER_SIZE];
+        boolean nativeLogs = true;
+
+        while (true) {
+            boolean draining = logDraining;
+            int size = 0;
+            if (nativeLogs) {
+                try {
+                    size = Tun2Socks.drainLogs(buffer, draining ? LOG_DRAIN_TIMEOUT_MS : 0);
+                } catch (UnsatisfiedLinkError e) {
+                    Log.w(TAG, "Native log drain unavailable", e);
+                    nativeLogs = false;
+                }
+            } else if (draining) {
+                try {
+                    Thread.sleep(LOG_DRAIN_TIMEOUT_MS);
+                } catch (InterruptedException ignored) {
+                    // re-check the draining flag
+                }
+            }
+
+            ArrayList<String> batch = new ArrayList<>();
+            String line;
+            while ((line = pendingLogs.poll()) != null) {
+                batch.add(line);
+            }
+            decodeLogRecords(buffer, size, scratch, batch);
+
+            if (!batch.isEmpty()) {
+                Intent intent = new Intent(ACTION_LOG_BROADCAST);
+                intent.putStringArrayListExtra(EXTRA_LOG_MESSAGES, batch);
+                LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+            }
+
+            if (!draining) return;
+        }
+    }
+
+    private static void decodeLogRecords(ByteBuffer buffer, int size, byte[] scratch, ArrayList<String> out) {
+        int pos = 0;
+        while (pos + LOG_RECORD_HEADER <= size) {
+            int level = buffer.get(pos) & 0xff;
+            int length = buffer.getShort(pos + 1) & 0xffff;
+            pos += LOG_RECORD_HEADER;
+            if (pos + length > size) break;
+
+            buffer.position(pos);
+            buffer.get(scratch, 0, length);
+            pos += length;
+
+            String message = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            if (level >= Tun2Socks.LOG_ERROR) {
+                message = "ERROR: " + message;
+            } else if (level == Tun2Socks.LOG_WARN) {
+                message = "WARN: " + message;
+            }
+            out.add(message);
+        }
+        buffer.clear();
     }
-}
\ No newline at end of file
+}
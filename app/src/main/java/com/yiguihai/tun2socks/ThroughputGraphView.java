@@ -0,0 +1,127 @@
+package com.yiguihai.tun2socks;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Live upload/download graph drawn straight from the shared {@link StatsBlock}.
+ * All buffers are allocated up front, so a frame costs no JNI call and no
+ * allocation; the paths are only rebuilt when the engine published new data.
+ */
+public class ThroughputGraphView extends View {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private final long[] upSamples = new long[StatsBlock.HISTORY_SECONDS];
+    private final long[] downSamples = new long[StatsBlock.HISTORY_SECONDS];
+    private int sampleCount;
+    private long lastSequence = -1;
+    private boolean pathsDirty = true;
+
+    private final Path upPath = new Path();
+    private final Path downPath = new Path();
+    private final Paint upPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint downPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint axisPaint = new Paint();
+
+    public ThroughputGraphView(Context context) {
+        this(context, null);
+    }
+
+    public ThroughputGraphView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        float density = getResources().getDisplayMetrics().density;
+        upPaint.setStyle(Paint.Style.STROKE);
+        upPaint.setStrokeWidth(2 * density);
+        upPaint.setColor(getResources().getColor(R.color.md_theme_light_primary, null));
+        downPaint.setStyle(Paint.Style.STROKE);
+        downPaint.setStrokeWidth(2 * density);
+        downPaint.setColor(getResources().getColor(R.color.status_connected, null));
+        axisPaint.setStrokeWidth(density);
+        axisPaint.setColor(getResources().getColor(R.color.md_theme_light_outlineVariant, null));
+    }
+
+    /**
+     * Drops the current history, used when a new session starts.
+     */
+    public void reset() {
+        sampleCount = 0;
+        lastSequence = -1;
+        pathsDirty = true;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        pathsDirty = true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        StatsBlock block = StatsBlock.active();
+        if (block != null) {
+            long sequence = block.sequence();
+            if (sequence != lastSequence) {
+                int count = block.readHistory(upSamples, downSamples);
+                if (count >= 0) {
+                    sampleCount = count;
+                    lastSequence = sequence;
+                    pathsDirty = true;
+                }
+            }
+        }
+
+        if (pathsDirty) {
+            rebuildPaths();
+            pathsDirty = false;
+        }
+
+        float bottom = getHeight() - getPaddingBottom();
+        canvas.drawLine(getPaddingLeft(), bottom, getWidth() - getPaddingRight(), bottom, axisPaint);
+        canvas.drawPath(downPath, downPaint);
+        canvas.drawPath(upPath, upPaint);
+
+        if (block != null) {
+            postInvalidateDelayed(REFRESH_INTERVAL_MS);
+        }
+    }
+
+    private void rebuildPaths() {
+        upPath.rewind();
+        downPath.rewind();
+        if (sampleCount < 2) return;
+
+        long max = 1;
+        for (int i = 0; i < sampleCount; i++) {
+            max = Math.max(max, Math.max(upSamples[i], downSamples[i]));
+        }
+
+        float left = getPaddingLeft();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float top = getPaddingTop();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        float step = width / (StatsBlock.HISTORY_SECONDS - 1);
+
+        // Newest sample sits on the right edge, history scrolls left
+        float x = left + width - (sampleCount - 1) * step;
+        for (int i = 0; i < sampleCount; i++, x += step) {
+            float upY = top + height - height * upSamples[i] / max;
+            float downY = top + height - height * downSamples[i] / max;
+            if (i == 0) {
+                upPath.moveTo(x, upY);
+                downPath.moveTo(x, downY);
+            } else {
+                upPath.lineTo(x, upY);
+                downPath.lineTo(x, downY);
+            }
+        }
+    }
+}
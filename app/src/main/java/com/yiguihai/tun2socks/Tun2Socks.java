@@ -1,7 +1,61 @@
 package com.yiguihai.tun2socks;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.List;
+
 public class Tun2Socks {
 
+    // Slots of the array filled by getTrafficStats(). Keep in sync with
+    // app/jni/bridge/stats.go, new counters are only ever appended.
+    public static final int STAT_UPLOAD_TOTAL = 0;
+    public static final int STAT_DOWNLOAD_TOTAL = 1;
+    public static final int STAT_UPLOAD_RATE = 2;
+    public static final int STAT_DOWNLOAD_RATE = 3;
+    public static final int STAT_TCP_CONNECTIONS = 4;
+    public static final int STAT_UDP_CONNECTIONS = 5;
+    public static final int STAT_IP_PACKETS_RECEIVED = 6;
+    public static final int STAT_IP_PACKETS_SENT = 7;
+    public static final int STAT_DROPPED_PACKETS = 8;
+    public static final int STAT_TCP_ESTABLISHED = 9;
+    public static final int STAT_TCP_RETRANSMITS = 10;
+    public static final int STAT_TCP_FAILED_ATTEMPTS = 11;
+    public static final int STAT_UDP_PACKETS_RECEIVED = 12;
+    public static final int STAT_UDP_PACKETS_SENT = 13;
+    public static final int STAT_UDP_RECEIVE_ERRORS = 14;
+    public static final int STAT_LOG_DROPPED = 15;
+    public static final int STAT_DISPATCH_QUEUED = 16;
+    public static final int STAT_DISPATCH_BUSY = 17;
+    public static final int STAT_DISPATCH_SHED = 18;
+    public static final int STAT_RELAY_BUFFER_BYTES = 19;
+    public static final int STAT_BUFFER_BYTES = 20;
+    public static final int STAT_WARM_HITS = 21;
+    public static final int STAT_WARM_MISSES = 22;
+    public static final int STAT_WARM_SAVED_MILLIS = 23;
+    public static final int STAT_COUNT = 24;
+
+    // Layout of getProxyGroupStats(): the selected member index, then an
+    // (rtt in microseconds, consecutive failures) pair per member
+    public static final int GROUP_SELECTED = 0;
+    public static final int GROUP_MAX_MEMBERS = 32;
+    public static final int GROUP_STATS_SLOTS = 1 + 2 * GROUP_MAX_MEMBERS;
+
+    // States returned by awaitReady(), in the order they are reached
+    public static final int READY_NONE = 0;
+    public static final int READY_STARTED = 1;
+    public static final int READY_TRAFFIC = 2;
+
+    // Levels of native log records, see drainLogs() and setLogLevel()
+    public static final int LOG_DEBUG = 0;
+    public static final int LOG_INFO = 1;
+    public static final int LOG_WARN = 2;
+    public static final int LOG_ERROR = 3;
+    public static final int LOG_SILENT = 4;
+
     /**
      * Supported proxy protocols based on tun2socks v2.
      */
@@ -27,7 +81,8 @@ public class Tun2Socks {
 
         public static ProxyProtocol fromString(String protocol) {
             for (ProxyProtocol p : values()) {
-                if (p.protocol.equalsIgnoreCase(protocol)) {
+                // Accept both the URL scheme and the name stored by the settings screen
+                if (p.protocol.equalsIgnoreCase(protocol) || p.displayName.equalsIgnoreCase(protocol)) {
                     return p;
                 }
             }
@@ -51,6 +106,18 @@ public class Tun2Socks {
         public int port;
         public String username;
         public String password;
+        // Shadowsocks cipher, see R.array.shadowsocks_methods
+        public static final String DEFAULT_METHOD = "aes-256-gcm";
+        public String method = DEFAULT_METHOD;
+
+        // Raw query of a parsed URL, which carries the options the settings
+        // have no field for, such as mux or obfs. Empty when there is none.
+        public String query = "";
+
+        // Lets the engine keep up to 4 connections to the server open ahead
+        // of demand, fewer as connections arrive slower and none when idle
+        private static final String WARM_PARAM = "warm";
+        private static final String WARM_DEFAULT = "warm=4";
 
         public ProxyConfig(ProxyProtocol protocol, String server, int port,
                           String username, String password) {
@@ -63,23 +130,148 @@ public class Tun2Socks {
 
         public String toUrl() {
             switch (protocol) {
-                case SOCKS5:
-                    return String.format("socks5://%s:%s@%s:%d", username, password, server, port);
+                case DIRECT:
+                    return "direct://";
+                case REJECT:
+                    return "reject://";
                 case SOCKS4:
-                    return String.format("socks4://%s:%s@%s:%d", username, password, server, port);
-                case HTTP:
-                    return String.format("http://%s:%s@%s:%d", username, password, server, port);
+                    // SOCKS4 only knows a user ID
+                    return "socks4://" + userInfo(username, null) + hostPort() + query(false);
                 case SHADOWSOCKS:
                     // Shadowsocks format: ss://method:password@server:port
-                    return String.format("ss://%s:%s@%s:%d", "aes-256-gcm", password, server, port);
+                    return "ss://" + userInfo(method, password) + hostPort() + query(true);
                 case RELAY:
-                    return String.format("relay://%s:%d", server, port);
+                    return "relay://" + userInfo(username, password) + hostPort() + query(false);
                 default:
-                    return String.format("socks5://%s:%s@%s:%d", username, password, server, port);
+                    return protocol.getProtocol() + "://" + userInfo(username, password) + hostPort() + query(true);
+            }
+        }
+
+        /**
+         * Parses a proxy URL as produced by {@link #toUrl()}, or returns null
+         * if it cannot be understood.
+         */
+        public static ProxyConfig fromUrl(String url) {
+            if (url == null || !url.contains("://")) return null;
+            URI uri;
+            try {
+                uri = new URI(url.trim());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+
+            ProxyProtocol protocol = null;
+            for (ProxyProtocol p : ProxyProtocol.values()) {
+                if (p.protocol.equalsIgnoreCase(uri.getScheme())) protocol = p;
+            }
+            if (protocol == null) return null;
+            if (protocol == ProxyProtocol.DIRECT || protocol == ProxyProtocol.REJECT) {
+                return new ProxyConfig(protocol, "", 0, "", "");
+            }
+
+            String host = uri.getHost();
+            int port = uri.getPort();
+            if (host == null || port <= 0 || port > 65535) return null;
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+
+            String user = "";
+            String pass = "";
+            String info = uri.getRawUserInfo();
+            if (info != null) {
+                int colon = info.indexOf(':');
+                user = decode(colon < 0 ? info : info.substring(0, colon));
+                pass = colon < 0 ? "" : decode(info.substring(colon + 1));
+            }
+
+            ProxyConfig config;
+            if (protocol == ProxyProtocol.SHADOWSOCKS) {
+                config = new ProxyConfig(protocol, host, port, "", pass);
+                if (!user.isEmpty()) config.method = user;
+            } else {
+                config = new ProxyConfig(protocol, host, port, user, pass);
+            }
+            if (uri.getRawQuery() != null) config.query = uri.getRawQuery();
+            return config;
+        }
+
+        /**
+         * Returns the query of the URL, the kept one with the default warm
+         * pool merged in if warm is set and the query has none of its own.
+         */
+        private String query(boolean warm) {
+            StringBuilder q = new StringBuilder(query == null ? "" : query);
+            if (warm && !hasParam(q.toString(), WARM_PARAM)) {
+                if (q.length() > 0) q.append('&');
+                q.append(WARM_DEFAULT);
+            }
+            return q.length() == 0 ? "" : "?" + q;
+        }
+
+        // Shadowsocks plugin options are separated by semicolons, the
+        // other parameters by ampersands
+        private static boolean hasParam(String query, String name) {
+            for (String param : query.split("[&;]")) {
+                int eq = param.indexOf('=');
+                if ((eq < 0 ? param : param.substring(0, eq)).equals(name)) return true;
+            }
+            return false;
+        }
+
+        private String hostPort() {
+            String host = server == null ? "" : server.trim();
+            // IPv6 literals must be bracketed in a URL
+            if (host.indexOf(':') >= 0 && !host.startsWith("[")) {
+                host = "[" + host + "]";
+            }
+            return host + ":" + port;
+        }
+
+        private static String userInfo(String user, String pass) {
+            boolean hasUser = user != null && !user.isEmpty();
+            boolean hasPass = pass != null && !pass.isEmpty();
+            if (!hasUser && !hasPass) return "";
+
+            StringBuilder info = new StringBuilder();
+            info.append(encode(hasUser ? user : ""));
+            if (hasPass) {
+                info.append(':').append(encode(pass));
+            }
+            return info.append('@').toString();
+        }
+
+        private static String encode(String value) {
+            try {
+                // URLEncoder targets forms, userinfo wants %20 instead of '+'
+                return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
             }
         }
     }
 
+    /**
+     * Joins several upstreams into the URL list understood by the engine,
+     * which then balances connections over them as a proxy group.
+     */
+    public static String groupUrl(List<ProxyConfig> configs) {
+        StringBuilder urls = new StringBuilder();
+        for (ProxyConfig config : configs) {
+            if (urls.length() > 0) urls.append('\n');
+            urls.append(config.toUrl());
+        }
+        return urls.toString();
+    }
+
     /**
      * Connection status callback interface.
      */
@@ -104,6 +296,14 @@ public class Tun2Socks {
      */
     public static native void StartWithConfig(int tunFd, String proxyUrl);
 
+    /**
+     * Waits up to timeoutMs for the first packet read from the TUN and
+     * returns the READY_* state reached. With a timeout of 0 it reports the
+     * current state at once: READY_NONE right after a start call means the
+     * engine failed to come up.
+     */
+    public static native int awaitReady(int timeoutMs);
+
     /**
      * Stops the tun2socks core engine (legacy method).
      */
@@ -119,6 +319,76 @@ public class Tun2Socks {
      */
     public static native int getStats();
 
+    /**
+     * Fills {@code stats} with the live traffic counters, indexed by the
+     * STAT_* constants. Returns the number of slots written. The call does
+     * not allocate on either side, so it is cheap enough to poll every second.
+     */
+    public static native int getTrafficStats(long[] stats);
+
+    /**
+     * Fills {@code stats} with the state of the proxy group, laid out as
+     * described by GROUP_SELECTED. An rtt of -1 means the member has not
+     * answered a probe yet. Returns the number of slots written, which is
+     * 0 when a single proxy is in use.
+     */
+    public static native int getProxyGroupStats(long[] stats);
+
+    /**
+     * Swaps the outbound proxy of the running engine. The TUN device and
+     * the netstack stay up: new connections use the new proxy while the
+     * existing ones drain. The URL may be a newline separated list, see
+     * {@link #groupUrl(List)}. Returns false if the URL was rejected or the
+     * engine is not running.
+     */
+    public static native boolean updateProxy(String proxyUrl);
+
+    /**
+     * Sets the routing rule file used by the engine, or turns routing off
+     * when the path is empty. A running engine reloads it right away, new
+     * connections follow the new rules. Returns false if the file could not
+     * be parsed, in which case the previous rules stay in place.
+     */
+    public static native boolean setRules(String path);
+
+    /**
+     * Hands a direct buffer to the engine, which then publishes the
+     * {@link StatsBlock} layout into it once per second. The buffer must
+     * stay referenced until {@link #detachStatsBlock()} returns.
+     */
+    public static native boolean attachStatsBlock(ByteBuffer buffer);
+
+    /**
+     * Stops publishing into the attached stats block.
+     */
+    public static native void detachStatsBlock();
+
+    /**
+     * Copies queued native log records into a direct buffer, waiting up to
+     * timeoutMs for the first one. Each record is a level byte, a big endian
+     * unsigned short length and that many bytes of UTF-8 text. Returns the
+     * number of bytes written, 0 on timeout, or -1 if the buffer is unusable.
+     */
+    public static native int drainLogs(ByteBuffer buffer, int timeoutMs);
+
+    /**
+     * Sets the minimum LOG_* level queued by the engine. Lines below it are
+     * discarded before being formatted.
+     */
+    public static native void setLogLevel(int level);
+
+    /**
+     * Releases engine memory after the system asked for it, level being the
+     * one passed to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static native void trimMemory(int level);
+
+    /**
+     * Caps the bytes of buffers the engine may take to speed up bulk
+     * transfers, 0 lifts the cap. Idle connections are never refused.
+     */
+    public static native void setBufferBudget(long bytes);
+
     /**
      * Sets connection timeout.
      */
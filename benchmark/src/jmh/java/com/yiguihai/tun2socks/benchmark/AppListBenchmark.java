@@ -0,0 +1,86 @@
+package com.yiguihai.tun2socks.benchmark;
+
+import com.yiguihai.tun2socks.AppFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting the installed apps once loaded, and filtering them on every
+ * keystroke of the search box in AppSelectionActivity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AppListBenchmark {
+
+    static final class App implements AppFilter.Entry {
+        final String name;
+        final String packageName;
+        final boolean selected;
+        final boolean system;
+
+        App(String name, String packageName, boolean selected, boolean system) {
+            this.name = name;
+            this.packageName = packageName;
+            this.selected = selected;
+            this.system = system;
+        }
+
+        @Override public String appName() { return name; }
+        @Override public String packageName() { return packageName; }
+        @Override public boolean isSelected() { return selected; }
+        @Override public boolean isSystemApp() { return system; }
+    }
+
+    @Param({"300"})
+    public int apps;
+
+    private List<App> loaded;
+    private List<App> sorted;
+    private final List<App> filtered = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        loaded = new ArrayList<>(apps);
+        for (int i = 0; i < apps; i++) {
+            String word = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+            loaded.add(new App("App " + word, "com.vendor" + (i % 17) + "." + word,
+                    random.nextInt(10) == 0, random.nextInt(3) == 0));
+        }
+        sorted = new ArrayList<>(loaded);
+        Collections.sort(sorted, AppFilter.ORDER);
+    }
+
+    @Benchmark
+    public List<App> sort() {
+        List<App> list = new ArrayList<>(loaded);
+        Collections.sort(list, AppFilter.ORDER);
+        return list;
+    }
+
+    @Benchmark
+    public List<App> filterUserApps() {
+        AppFilter.filter(sorted, AppFilter.FILTER_USER, "", filtered);
+        return filtered;
+    }
+
+    @Benchmark
+    public List<App> search() {
+        AppFilter.filter(sorted, AppFilter.FILTER_ALL, "vendor1", filtered);
+        return filtered;
+    }
+}
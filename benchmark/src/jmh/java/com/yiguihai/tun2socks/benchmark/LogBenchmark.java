@@ -0,0 +1,57 @@
+package com.yiguihai.tun2socks.benchmark;
+
+import com.yiguihai.tun2socks.LogBatcher;
+import com.yiguihai.tun2socks.LogRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log line handling of MainActivity: lines are queued by addLog() and
+ * moved into the full ring buffer once per frame by flushPendingLogs(),
+ * both through the same {@link LogBatcher}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark {
+
+    // MainActivity.MAX_LOG_LINES
+    private static final int CAPACITY = 1000;
+    private static final int BATCH = 64;
+
+    private LogBatcher batcher;
+    private String[] lines;
+
+    @Setup
+    public void setup() {
+        LogRingBuffer buffer = new LogRingBuffer(CAPACITY);
+        batcher = new LogBatcher(buffer);
+        lines = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            lines[i] = "[TCP] 10.0.0.2:" + (40000 + i) + " <-> 142.250.80." + i + ":443";
+        }
+        // Start full, which is the steady state of a long session
+        for (int i = 0; i < CAPACITY; i++) {
+            buffer.add(lines[i % BATCH]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAndFlush() {
+        for (String line : lines) {
+            batcher.add(line);
+        }
+        batcher.flush();
+        return batcher.evicted();
+    }
+}
@@ -0,0 +1,51 @@
+package com.yiguihai.tun2socks.benchmark;
+
+import com.yiguihai.tun2socks.Tun2Socks.ProxyConfig;
+import com.yiguihai.tun2socks.Tun2Socks.ProxyProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proxy URL building and parsing, done on every start and proxy switch.
+ * Only the nested ProxyConfig is touched: initializing Tun2Socks itself
+ * would load the native library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyUrlBenchmark {
+
+    private ProxyConfig socks5;
+    private ProxyConfig shadowsocks;
+    private String socks5Url;
+
+    @Setup
+    public void setup() {
+        socks5 = new ProxyConfig(ProxyProtocol.SOCKS5, "proxy.example.com", 1080, "user name", "p@ss:word");
+        shadowsocks = new ProxyConfig(ProxyProtocol.SHADOWSOCKS, "2001:db8::1", 8388, "", "secret");
+        socks5Url = socks5.toUrl();
+    }
+
+    @Benchmark
+    public String toUrlSocks5() {
+        return socks5.toUrl();
+    }
+
+    @Benchmark
+    public String toUrlShadowsocks() {
+        return shadowsocks.toUrl();
+    }
+
+    @Benchmark
+    public ProxyConfig fromUrl() {
+        return ProxyConfig.fromUrl(socks5Url);
+    }
+}
@@ -0,0 +1,99 @@
+package com.yiguihai.tun2socks.benchmark;
+
+import com.yiguihai.tun2socks.CidrSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Excluded route handling done on every VPN start: parsing the list
+ * from the settings and turning it into the routes handed to the builder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RouteBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    public int entries;
+
+    private String text;
+    private String commaText;
+    private CidrSet set;
+
+    @Setup
+    public void setup() {
+        // Fixed seed, a mix of v4 and v6 prefixes like a typical China list
+        Random random = new Random(42);
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            if (i % 8 == 7) {
+                list.append(String.format("2%03x:%x::/%d",
+                        random.nextInt(0x1000), random.nextInt(0x10000), 16 + random.nextInt(33)));
+            } else {
+                list.append(random.nextInt(224)).append('.')
+                        .append(random.nextInt(256)).append('.')
+                        .append(random.nextInt(256)).append(".0/")
+                        .append(8 + random.nextInt(17));
+            }
+            list.append('\n');
+        }
+        text = list.toString();
+        // The regex parser split the list on commas only
+        commaText = text.replace('\n', ',');
+        set = CidrSet.parse(text);
+    }
+
+    /**
+     * Baseline: the regex checks and splits processExcludedRoutes ran on
+     * every entry before CidrSet, down to the address the builder parsed.
+     */
+    @Benchmark
+    public int regexParse() throws UnknownHostException {
+        int routes = 0;
+        for (String route : commaText.split(",")) {
+            String cleanedRoute = route.trim();
+            if (cleanedRoute.isEmpty()) continue;
+
+            if (isIPv4Address(cleanedRoute) || isIPv6Address(cleanedRoute)) {
+                String[] parts = cleanedRoute.split("/");
+                InetAddress.getByName(parts[0]);
+                if (parts.length > 1) Integer.parseInt(parts[1]);
+                routes++;
+            }
+        }
+        return routes;
+    }
+
+    @Benchmark
+    public CidrSet parse() {
+        return CidrSet.parse(text);
+    }
+
+    @Benchmark
+    public CidrSet.Routes complement() {
+        return set.complement(true, true);
+    }
+
+    private static boolean isIPv4Address(String address) {
+        return address.matches("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$") ||
+               address.matches("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\/\\d{1,2}$");
+    }
+
+    private static boolean isIPv6Address(String address) {
+        return address.matches("^[0-9a-fA-F:]+(/\\d{1,3})?$") &&
+               address.contains(":") &&
+               !address.matches(".*\\..*");
+    }
+}